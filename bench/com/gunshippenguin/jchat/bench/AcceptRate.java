@@ -0,0 +1,99 @@
+package com.gunshippenguin.jchat.bench;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Benchmark that measures how many new connections a server accepts and
+ * completes the handshake with each second, as in the storm of reconnects
+ * after a server is restarted. For each of the given numbers of acceptor
+ * threads it starts a server, opens stalled connections that never send their
+ * half of the handshake, and then has WORKERS threads connect, handshake and
+ * disconnect clients as fast as they can until connections clients have
+ * connected. The rate of connections and the median and 99th percentile time
+ * from connecting to receiving the server's half of the handshake are
+ * reported.
+ * 
+ * The stalled connections show that a client that never completes its
+ * handshake does not hold up the others; they stay open for the whole run, so
+ * handshakeTimeoutMillis should be longer than the run for them to matter.
+ * 
+ * Usage: AcceptRate [connections [stalled [acceptorThreads]]]
+ * [property=value ...] where acceptorThreads is a comma separated list and
+ * each property=value is passed on to the server.
+ * 
+ * @author GunshipPenguin
+ */
+public class AcceptRate {
+	/**
+	 * Number of threads that connect clients at once.
+	 */
+	private static final int WORKERS = 16;
+
+	public static void main(String[] args) throws Exception {
+		List<String> positional = ServerProcess.parsePositional(args);
+		int connections = positional.size() > 0 ? Integer.parseInt(positional.get(0)) : 10000;
+		int stalled = positional.size() > 1 ? Integer.parseInt(positional.get(1)) : 100;
+		String acceptorThreads = positional.size() > 2 ? positional.get(2) : "1,4";
+		Properties properties = ServerProcess.parseProperties(args);
+
+		for (String threads : acceptorThreads.split(",")) {
+			Properties runProperties = new Properties();
+			runProperties.putAll(properties);
+			runProperties.setProperty("acceptorThreads", threads.trim());
+			runProperties.setProperty("port", Integer.toString(ServerProcess.freePort()));
+			run(runProperties, connections, stalled);
+		}
+		return;
+	}
+
+	/**
+	 * Starts a server configured by properties, connects clients to it and
+	 * stops it again.
+	 * 
+	 * @param properties
+	 *            The server's properties
+	 * @param connections
+	 *            The number of clients to connect
+	 * @param stalled
+	 *            The number of connections to open that never handshake
+	 * @throws IOException
+	 *             If the server could not be started or a client failed
+	 */
+	private static void run(Properties properties, int connections, int stalled) throws IOException {
+		final int port = Integer.parseInt(properties.getProperty("port"));
+		ServerProcess server = ServerProcess.start(properties);
+		List<Socket> stalledSockets = new ArrayList<Socket>();
+		try {
+			for (int i = 0; i < stalled; i++) {
+				stalledSockets.add(new Socket("localhost", port));
+			}
+
+			final Samples handshakeMicros = new Samples();
+			long start = System.nanoTime();
+			Workers.run(connections, WORKERS, new Workers.Task() {
+				@Override
+				public void run(int i) throws IOException {
+					long connectStart = System.nanoTime();
+					BenchClient client = BenchClient.connect("localhost", port, "user" + i);
+					handshakeMicros.add((System.nanoTime() - connectStart) / 1000);
+					client.close();
+				}
+			});
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println(String.format("acceptorThreads=%s acceptBacklog=%s stalled=%d: %d connections in "
+					+ "%.2f s (%.0f/s), handshake p50=%d us p99=%d us", properties.getProperty("acceptorThreads"),
+					properties.getProperty("acceptBacklog", "default"), stalled, connections, seconds,
+					connections / seconds, handshakeMicros.percentile(0.5), handshakeMicros.percentile(0.99)));
+		} finally {
+			for (Socket socket : stalledSockets) {
+				socket.close();
+			}
+			server.stop();
+		}
+		return;
+	}
+}
@@ -0,0 +1,279 @@
+package com.gunshippenguin.jchat.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.gunshippenguin.jchat.shared.AcceptedToChatRoomEvent;
+import com.gunshippenguin.jchat.shared.ChatRoomInfo;
+import com.gunshippenguin.jchat.shared.Codec;
+import com.gunshippenguin.jchat.shared.Codecs;
+import com.gunshippenguin.jchat.shared.Event;
+import com.gunshippenguin.jchat.shared.InitClientInfo;
+import com.gunshippenguin.jchat.shared.InitServerInfo;
+import com.gunshippenguin.jchat.shared.Request;
+
+/**
+ * Class representing a connection to a chat server made by a benchmark. Unlike
+ * the client application's Connection it needs no user interface and keeps no
+ * state about the chat rooms it is in beyond their ids, so that a single
+ * benchmark can open thousands of them. It does the same handshake as the
+ * client application, asking for the binary codec, and then sends Requests
+ * and reads Events in whatever way the benchmark needs: by calling readEvent
+ * on its own thread, by starting a reader thread that hands every Event to a
+ * Listener, or not at all for connections that are meant to sit idle.
+ * 
+ * @author GunshipPenguin
+ */
+public class BenchClient {
+	/**
+	 * Interface for objects that are given the Events received by a
+	 * BenchClient's reader thread.
+	 */
+	public interface Listener {
+		/**
+		 * Called on the reader thread for every Event received.
+		 * 
+		 * @param client
+		 *            The BenchClient that received evnt
+		 * @param evnt
+		 *            The Event received
+		 */
+		public void eventReceived(BenchClient client, Event evnt);
+
+		/**
+		 * Called on the reader thread once the connection has closed.
+		 * 
+		 * @param client
+		 *            The BenchClient whose connection closed
+		 */
+		public void disconnected(BenchClient client);
+	}
+
+	/**
+	 * The socket connected to the server.
+	 */
+	private final Socket socket;
+	/**
+	 * Stream that Events are read from.
+	 */
+	private final InputStream in;
+	/**
+	 * Stream that Requests are written to.
+	 */
+	private final OutputStream out;
+	/**
+	 * Codec chosen by the server during the handshake.
+	 */
+	private final Codec codec;
+	/**
+	 * The InitServerInfo sent by the server during the handshake.
+	 */
+	private final InitServerInfo initServerInfo;
+	/**
+	 * Map of the names of the chat rooms this client has been accepted to to
+	 * their ids. Guarded by the lock on itself.
+	 */
+	private final Map<String, Integer> chatRoomIds = new HashMap<String, Integer>();
+
+	/**
+	 * Creates a new BenchClient for socket, which has finished its handshake.
+	 * 
+	 * @param socket
+	 *            The socket connected to the server
+	 * @param in
+	 *            Stream that Events are read from
+	 * @param codec
+	 *            The Codec chosen by the server
+	 * @param initServerInfo
+	 *            The InitServerInfo sent by the server
+	 * @throws IOException
+	 *             If the socket's output stream could not be opened
+	 */
+	private BenchClient(Socket socket, InputStream in, Codec codec, InitServerInfo initServerInfo)
+			throws IOException {
+		this.socket = socket;
+		this.in = in;
+		this.out = socket.getOutputStream();
+		this.codec = codec;
+		this.initServerInfo = initServerInfo;
+	}
+
+	/**
+	 * Connects to the chat server listening on port port of host, asking for
+	 * the nick nick, and does the handshake.
+	 * 
+	 * @param host
+	 *            The host the server is running on
+	 * @param port
+	 *            The port the server accepts clients on
+	 * @param nick
+	 *            The nick to ask for
+	 * @return The connected BenchClient
+	 * @throws IOException
+	 *             If the connection or handshake failed
+	 */
+	public static BenchClient connect(String host, int port, String nick) throws IOException {
+		Socket socket = new Socket(host, port);
+		try {
+			socket.setTcpNoDelay(true);
+			ObjectOutputStream objectOut = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			objectOut.writeObject(new InitClientInfo(nick, new String[] { Codecs.BINARY.getName() }));
+			objectOut.flush();
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			InitServerInfo isi = (InitServerInfo) new ObjectInputStream(in).readObject();
+			return new BenchClient(socket, in, Codecs.forName(isi.getCodec()), isi);
+		} catch (IOException | ClassNotFoundException | RuntimeException e) {
+			socket.close();
+			throw new IOException("Could not connect " + nick + " to " + host + ":" + port, e);
+		}
+	}
+
+	/**
+	 * Returns the InitServerInfo that the server sent during the handshake.
+	 * 
+	 * @return The InitServerInfo sent by the server
+	 */
+	public InitServerInfo getInitServerInfo() {
+		return initServerInfo;
+	}
+
+	/**
+	 * Returns the nick that the server gave this client.
+	 * 
+	 * @return The nick of this client
+	 */
+	public String getNick() {
+		return initServerInfo.getSelfClient().getNick();
+	}
+
+	/**
+	 * Sends r to the server. May be called by several threads at once.
+	 * 
+	 * @param r
+	 *            The Request to send
+	 * @throws IOException
+	 *             If r could not be sent
+	 */
+	public void send(Request r) throws IOException {
+		byte[] frame = codec.encode(r);
+		synchronized (out) {
+			out.write(frame);
+		}
+		return;
+	}
+
+	/**
+	 * Reads the next Event sent by the server, blocking until one arrives.
+	 * Must not be called once a reader thread has been started.
+	 * 
+	 * @return The Event received
+	 * @throws IOException
+	 *             If the connection closed or the Event could not be read
+	 */
+	public Event readEvent() throws IOException {
+		Event evnt = (Event) codec.read(in);
+		if (evnt instanceof AcceptedToChatRoomEvent) {
+			ChatRoomInfo chatRoomInfo = ((AcceptedToChatRoomEvent) evnt).getChatRoomInfo();
+			synchronized (chatRoomIds) {
+				chatRoomIds.put(chatRoomInfo.getName(), chatRoomInfo.getId());
+				chatRoomIds.notifyAll();
+			}
+		}
+		return evnt;
+	}
+
+	/**
+	 * Starts a daemon thread that reads Events until the connection closes,
+	 * handing each one to listener.
+	 * 
+	 * @param listener
+	 *            The Listener to give Events to
+	 */
+	public void startReading(final Listener listener) {
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						listener.eventReceived(BenchClient.this, readEvent());
+					}
+				} catch (IOException e) {
+					// The connection has closed
+				}
+				listener.disconnected(BenchClient.this);
+			}
+		});
+		reader.setDaemon(true);
+		reader.setName("BenchClientReader - " + getNick());
+		reader.start();
+		return;
+	}
+
+	/**
+	 * Returns the id of the chat room named chatRoomName once this client has
+	 * been accepted to it, waiting up to timeoutMillis milliseconds. Events
+	 * must be being read, by a reader thread or another thread calling
+	 * readEvent.
+	 * 
+	 * @param chatRoomName
+	 *            The name of the chat room
+	 * @param timeoutMillis
+	 *            The longest time to wait
+	 * @return The id of the chat room
+	 * @throws IOException
+	 *             If the client was not accepted to the chat room in time
+	 */
+	public int awaitChatRoom(String chatRoomName, long timeoutMillis) throws IOException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (chatRoomIds) {
+			while (!chatRoomIds.containsKey(chatRoomName)) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					throw new IOException(getNick() + " was not accepted to chat room " + chatRoomName);
+				}
+				try {
+					chatRoomIds.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for chat room " + chatRoomName);
+				}
+			}
+			return chatRoomIds.get(chatRoomName);
+		}
+	}
+
+	/**
+	 * Returns the id of the chat room named chatRoomName if this client has
+	 * been accepted to it.
+	 * 
+	 * @param chatRoomName
+	 *            The name of the chat room
+	 * @return The id of the chat room, or -1 if the client is not in it
+	 */
+	public int getChatRoomId(String chatRoomName) {
+		synchronized (chatRoomIds) {
+			Integer id = chatRoomIds.get(chatRoomName);
+			return id == null ? -1 : id;
+		}
+	}
+
+	/**
+	 * Closes the connection to the server.
+	 */
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// The connection is being abandoned anyway
+		}
+		return;
+	}
+}
@@ -0,0 +1,194 @@
+package com.gunshippenguin.jchat.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.gunshippenguin.jchat.shared.ChatMessageEvent;
+import com.gunshippenguin.jchat.shared.Event;
+import com.gunshippenguin.jchat.shared.SendChatMessageRequest;
+
+/**
+ * Benchmark that measures the server CPU time taken by each broadcast to a
+ * chat room as the chat room grows. It starts a server and a sender client,
+ * then for each of the given room sizes, smallest first, connects members to
+ * the default chat room until it has that many and has the sender send
+ * broadcasts chat messages to it. The server's CPU time from the first chat
+ * message being sent until every member has received every one is divided by
+ * the number of broadcasts and by the number of chat messages delivered.
+ * 
+ * The sender keeps no more than WINDOW chat messages unanswered, so that no
+ * member falls far enough behind to be treated as a slow consumer. CPU time
+ * is read from /proc to the nearest clock tick, so enough broadcasts must be
+ * sent for the smallest room to take many ticks.
+ * 
+ * Usage: BroadcastCost [broadcasts [roomSizes]] [property=value ...] where
+ * roomSizes is a comma separated list and each property=value is passed on to
+ * the server.
+ * 
+ * @author GunshipPenguin
+ */
+public class BroadcastCost {
+	/**
+	 * Number of threads that connect the members.
+	 */
+	private static final int WORKERS = 16;
+	/**
+	 * Number of chat messages the sender may have sent without having
+	 * received them back from the chat room.
+	 */
+	private static final int WINDOW = 16;
+	/**
+	 * Longest time in milliseconds to wait without any chat message being
+	 * delivered before giving up on the rest.
+	 */
+	private static final long STALL_MILLIS = 10000;
+	/**
+	 * Time in milliseconds to wait after members join for the presence events
+	 * their joins cause to be sent.
+	 */
+	private static final long SETTLE_MILLIS = 1000;
+
+	public static void main(String[] args) throws Exception {
+		List<String> positional = ServerProcess.parsePositional(args);
+		int broadcasts = positional.size() > 0 ? Integer.parseInt(positional.get(0)) : 500;
+		String roomSizes = positional.size() > 1 ? positional.get(1) : "10,100,1000,5000";
+		Properties properties = ServerProcess.parseProperties(args);
+		final int port = Integer.parseInt(properties.getProperty("port"));
+
+		ServerProcess server = ServerProcess.start(properties);
+		final List<BenchClient> members = new ArrayList<BenchClient>();
+		try {
+			final AtomicLong delivered = new AtomicLong();
+			final BenchClient.Listener counter = new BenchClient.Listener() {
+				@Override
+				public void eventReceived(BenchClient client, Event evnt) {
+					if (evnt instanceof ChatMessageEvent) {
+						delivered.incrementAndGet();
+					}
+				}
+
+				@Override
+				public void disconnected(BenchClient client) {
+				}
+			};
+			final AtomicLong echoes = new AtomicLong();
+			BenchClient sender = BenchClient.connect("localhost", port, "sender");
+			int chatRoomId = sender.getInitServerInfo().getDefaultChatRoom().getId();
+			sender.startReading(new BenchClient.Listener() {
+				@Override
+				public void eventReceived(BenchClient client, Event evnt) {
+					if (evnt instanceof ChatMessageEvent) {
+						synchronized (echoes) {
+							echoes.incrementAndGet();
+							echoes.notifyAll();
+						}
+					}
+				}
+
+				@Override
+				public void disconnected(BenchClient client) {
+				}
+			});
+			members.add(sender);
+
+			for (String roomSize : roomSizes.split(",")) {
+				final int size = Integer.parseInt(roomSize.trim());
+				final int connected = members.size();
+				Workers.run(size - connected, WORKERS, new Workers.Task() {
+					@Override
+					public void run(int i) throws IOException {
+						BenchClient member = BenchClient.connect("localhost", port, "member" + (connected + i));
+						member.startReading(counter);
+						synchronized (members) {
+							members.add(member);
+						}
+					}
+				});
+				sleep(SETTLE_MILLIS);
+
+				delivered.set(0);
+				echoes.set(0);
+				long expected = (long) broadcasts * (size - 1);
+				long cpuStart = server.getCpuNanos();
+				long start = System.nanoTime();
+				for (int b = 0; b < broadcasts; b++) {
+					awaitEchoes(echoes, b - WINDOW + 1);
+					sender.send(new SendChatMessageRequest("b" + b, chatRoomId));
+				}
+				awaitEchoes(echoes, broadcasts);
+				long last = -1;
+				long lastProgress = System.currentTimeMillis();
+				while (delivered.get() < expected && System.currentTimeMillis() - lastProgress < STALL_MILLIS) {
+					if (delivered.get() != last) {
+						last = delivered.get();
+						lastProgress = System.currentTimeMillis();
+					}
+					sleep(1);
+				}
+				long cpuNanos = server.getCpuNanos() - cpuStart;
+				long elapsedMillis = (System.nanoTime() - start) / 1000000;
+				if (delivered.get() + echoes.get() < expected + broadcasts) {
+					System.out.println("roomSize=" + size + ": only " + (delivered.get() + echoes.get()) + " of "
+							+ (expected + broadcasts) + " chat messages were delivered");
+				}
+				System.out.println(String.format("roomSize=%d broadcasts=%d cpu/broadcast=%.1f us "
+						+ "cpu/delivery=%.0f ns elapsed=%d ms", size, broadcasts, cpuNanos / 1000.0 / broadcasts,
+						(double) cpuNanos / (expected + broadcasts), elapsedMillis));
+			}
+		} finally {
+			for (BenchClient member : members) {
+				member.close();
+			}
+			server.stop();
+		}
+		return;
+	}
+
+	/**
+	 * Waits until the sender has received at least count of its own chat
+	 * messages back, or STALL_MILLIS have passed.
+	 * 
+	 * @param echoes
+	 *            The number of chat messages the sender has received, notified
+	 *            whenever it changes
+	 * @param count
+	 *            The number of chat messages to wait for
+	 * @throws IOException
+	 *             If the thread was interrupted
+	 */
+	private static void awaitEchoes(AtomicLong echoes, long count) throws IOException {
+		long deadline = System.currentTimeMillis() + STALL_MILLIS;
+		synchronized (echoes) {
+			while (echoes.get() < count && System.currentTimeMillis() < deadline) {
+				try {
+					echoes.wait(STALL_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for chat messages");
+				}
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Sleeps for millis milliseconds.
+	 * 
+	 * @param millis
+	 *            The number of milliseconds to sleep for
+	 * @throws IOException
+	 *             If the thread was interrupted
+	 */
+	private static void sleep(long millis) throws IOException {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for chat messages");
+		}
+		return;
+	}
+}
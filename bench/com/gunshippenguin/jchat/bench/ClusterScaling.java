@@ -0,0 +1,99 @@
+package com.gunshippenguin.jchat.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Benchmark that measures how a cluster's message throughput scales with the
+ * number of servers in it. For each cluster size from 1 to maxNodes it starts
+ * that many servers on the local host, each in its own JVM, and puts a
+ * RoomLoad of clientsPerNode clients for every server on it, in chat rooms of
+ * roomSize members spread over the servers so that most chat messages cross
+ * the cluster. Every client sends messagesPerClient chat messages, and the
+ * number of chat messages delivered per second is reported.
+ * 
+ * Since the load grows with the cluster, a cluster that scales perfectly
+ * delivers maxNodes times as many chat messages per second with maxNodes
+ * servers as with one. All of the servers share the cores of the machine the
+ * benchmark runs on, so the scaling measured is bounded by its core count.
+ * 
+ * Usage: ClusterScaling [maxNodes [clientsPerNode [roomSize
+ * [messagesPerClient]]]] [property=value ...] where each property=value is
+ * passed on to every server.
+ * 
+ * @author GunshipPenguin
+ */
+public class ClusterScaling {
+	public static void main(String[] args) throws Exception {
+		List<String> positional = ServerProcess.parsePositional(args);
+		int maxNodes = positional.size() > 0 ? Integer.parseInt(positional.get(0)) : 4;
+		int clientsPerNode = positional.size() > 1 ? Integer.parseInt(positional.get(1)) : 20;
+		int roomSize = positional.size() > 2 ? Integer.parseInt(positional.get(2)) : 10;
+		int messagesPerClient = positional.size() > 3 ? Integer.parseInt(positional.get(3)) : 500;
+		Properties properties = ServerProcess.parseProperties(args);
+		properties.remove("port");
+
+		double baseline = 0;
+		for (int nodes = 1; nodes <= maxNodes; nodes++) {
+			double rate = run(properties, nodes, clientsPerNode, roomSize, messagesPerClient);
+			if (nodes == 1) {
+				baseline = rate;
+			}
+			System.out.println(String.format("nodes=%d clients=%d deliveries/s=%.0f scaling=%.2f", nodes,
+					clientsPerNode * nodes, rate, rate / baseline));
+		}
+		return;
+	}
+
+	/**
+	 * Starts a cluster of nodes servers, loads it and stops it again.
+	 * 
+	 * @param properties
+	 *            Properties given to every server, apart from their ports and
+	 *            cluster settings
+	 * @param nodes
+	 *            The number of servers in the cluster
+	 * @param clientsPerNode
+	 *            The number of clients to connect to each server
+	 * @param roomSize
+	 *            The number of members in each chat room
+	 * @param messagesPerClient
+	 *            The number of chat messages each client sends
+	 * @return The number of chat messages delivered per second
+	 * @throws IOException
+	 *             If a server could not be started or a client failed
+	 */
+	private static double run(Properties properties, int nodes, int clientsPerNode, int roomSize,
+			int messagesPerClient) throws IOException {
+		int[] ports = new int[nodes];
+		StringBuilder clusterNodes = new StringBuilder();
+		for (int i = 0; i < nodes; i++) {
+			ports[i] = ServerProcess.freePort();
+			clusterNodes.append(i == 0 ? "" : ",").append("127.0.0.1:").append(ServerProcess.freePort());
+		}
+		List<ServerProcess> servers = new ArrayList<ServerProcess>();
+		RoomLoad load = new RoomLoad(ports, clientsPerNode * nodes, roomSize);
+		try {
+			for (int i = 0; i < nodes; i++) {
+				Properties nodeProperties = new Properties();
+				nodeProperties.putAll(properties);
+				nodeProperties.setProperty("port", Integer.toString(ports[i]));
+				if (nodes > 1) {
+					nodeProperties.setProperty("clusterNodes", clusterNodes.toString());
+					nodeProperties.setProperty("clusterNodeIndex", Integer.toString(i));
+				}
+				servers.add(ServerProcess.start(nodeProperties));
+			}
+			load.connect();
+			load.join();
+			return load.send(messagesPerClient);
+		} finally {
+			load.close();
+			for (ServerProcess server : servers) {
+				server.stop();
+			}
+		}
+	}
+}
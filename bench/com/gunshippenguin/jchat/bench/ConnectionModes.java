@@ -0,0 +1,268 @@
+package com.gunshippenguin.jchat.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.gunshippenguin.jchat.shared.ChatMessageEvent;
+import com.gunshippenguin.jchat.shared.CreateChatRoomRequest;
+import com.gunshippenguin.jchat.shared.Event;
+import com.gunshippenguin.jchat.shared.JoinChatRoomRequest;
+import com.gunshippenguin.jchat.shared.SendChatMessageRequest;
+
+/**
+ * Benchmark that compares the server's memory use and chat message latency in
+ * each of its ioModes with many connections open, most of them idle. For each
+ * ioMode it starts a server, connects idle clients that never send anything
+ * and never read, then active clients split into chat rooms of roomSize
+ * members, each of which sends messagesPerSecond chat messages a second to its
+ * chat room for the given number of seconds. Every chat message carries the
+ * time it was sent, so that its members can record how long it took to reach
+ * them.
+ * 
+ * For each ioMode the server's resident memory and thread count are reported
+ * once it is started, once the idle clients are connected and once the load
+ * has run, along with the median, 99th percentile and largest latency of the
+ * chat messages received after the first WARMUP_SECONDS. By default the
+ * blocking, virtual and nio ioModes are compared; set ioMode to run just one.
+ * Virtual threads need Java 21 or later, and on earlier versions the virtual
+ * ioMode runs on platform threads, as the benchmark warns.
+ * 
+ * Usage: ConnectionModes [idle [active [roomSize [seconds
+ * [messagesPerSecond]]]]] [property=value ...] where each property=value is
+ * passed on to the server.
+ * 
+ * @author GunshipPenguin
+ */
+public class ConnectionModes {
+	/**
+	 * The ioModes compared unless ioMode is given.
+	 */
+	private static final String[] IO_MODES = { "blocking", "virtual", "nio" };
+	/**
+	 * Number of threads that connect the clients.
+	 */
+	private static final int WORKERS = 16;
+	/**
+	 * Number of threads that send the active clients' chat messages.
+	 */
+	private static final int SENDERS = 4;
+	/**
+	 * Number of seconds at the start of the load whose latencies are not
+	 * recorded, while the server's JVM warms up.
+	 */
+	private static final int WARMUP_SECONDS = 5;
+	/**
+	 * Prefix of the chat messages sent, which is followed by the time they
+	 * were sent.
+	 */
+	private static final String PREFIX = "t";
+
+	public static void main(String[] args) throws Exception {
+		List<String> positional = ServerProcess.parsePositional(args);
+		int idle = positional.size() > 0 ? Integer.parseInt(positional.get(0)) : 10000;
+		int active = positional.size() > 1 ? Integer.parseInt(positional.get(1)) : 1000;
+		int roomSize = positional.size() > 2 ? Integer.parseInt(positional.get(2)) : 10;
+		int seconds = positional.size() > 3 ? Integer.parseInt(positional.get(3)) : 30;
+		int messagesPerSecond = positional.size() > 4 ? Integer.parseInt(positional.get(4)) : 1;
+		Properties properties = ServerProcess.parseProperties(args);
+
+		String[] ioModes = IO_MODES;
+		if (properties.getProperty("ioMode") != null) {
+			ioModes = new String[] { properties.getProperty("ioMode") };
+		}
+		for (String ioMode : ioModes) {
+			if (ioMode.equals("virtual") && !hasVirtualThreads()) {
+				System.out.println("Warning: virtual threads need Java 21 or later, ioMode virtual will use "
+						+ "platform threads");
+			}
+			Properties modeProperties = new Properties();
+			modeProperties.putAll(properties);
+			modeProperties.setProperty("ioMode", ioMode);
+			modeProperties.setProperty("port", Integer.toString(ServerProcess.freePort()));
+			run(modeProperties, idle, active, roomSize, seconds, messagesPerSecond);
+		}
+		return;
+	}
+
+	/**
+	 * Starts a server configured by properties, loads it and stops it again.
+	 * 
+	 * @param properties
+	 *            The server's properties
+	 * @param idle
+	 *            The number of idle clients to connect
+	 * @param active
+	 *            The number of active clients to connect
+	 * @param roomSize
+	 *            The number of active clients in each chat room
+	 * @param seconds
+	 *            The number of seconds to send chat messages for
+	 * @param messagesPerSecond
+	 *            The number of chat messages each active client sends a second
+	 * @throws IOException
+	 *             If the server could not be started or a client failed
+	 */
+	private static void run(Properties properties, int idle, final int active, final int roomSize, int seconds,
+			int messagesPerSecond) throws IOException {
+		final int port = Integer.parseInt(properties.getProperty("port"));
+		String ioMode = properties.getProperty("ioMode");
+		ServerProcess server = ServerProcess.start(properties);
+		final List<BenchClient> clients = new ArrayList<BenchClient>();
+		ScheduledThreadPoolExecutor senders = new ScheduledThreadPoolExecutor(SENDERS);
+		try {
+			report(ioMode, "started", server);
+
+			Workers.run(idle, WORKERS, new Workers.Task() {
+				@Override
+				public void run(int i) throws IOException {
+					BenchClient client = BenchClient.connect("localhost", port, "idle" + i);
+					synchronized (clients) {
+						clients.add(client);
+					}
+				}
+			});
+			report(ioMode, idle + " idle", server);
+
+			int rooms = (active + roomSize - 1) / roomSize;
+			BenchClient creator = BenchClient.connect("localhost", port, "creator");
+			for (int r = 0; r < rooms; r++) {
+				creator.send(new CreateChatRoomRequest(roomName(r)));
+			}
+			creator.send(new JoinChatRoomRequest(roomName(rooms - 1)));
+			while (creator.getChatRoomId(roomName(rooms - 1)) < 0) {
+				creator.readEvent();
+			}
+			creator.close();
+
+			final Samples latencies = new Samples();
+			final AtomicLong recordFrom = new AtomicLong(Long.MAX_VALUE);
+			final BenchClient.Listener recorder = new BenchClient.Listener() {
+				@Override
+				public void eventReceived(BenchClient client, Event evnt) {
+					if (evnt instanceof ChatMessageEvent) {
+						String chatMessage = ((ChatMessageEvent) evnt).getChatMessage();
+						long now = System.nanoTime();
+						long sent = Long.parseLong(chatMessage.substring(PREFIX.length()));
+						if (sent >= recordFrom.get()) {
+							latencies.add((now - sent) / 1000);
+						}
+					}
+				}
+
+				@Override
+				public void disconnected(BenchClient client) {
+				}
+			};
+			final BenchClient[] activeClients = new BenchClient[active];
+			Workers.run(active, WORKERS, new Workers.Task() {
+				@Override
+				public void run(int c) throws IOException {
+					BenchClient client = BenchClient.connect("localhost", port, "active" + c);
+					client.startReading(recorder);
+					client.send(new JoinChatRoomRequest(roomName(c / roomSize)));
+					client.awaitChatRoom(roomName(c / roomSize), 60000);
+					activeClients[c] = client;
+				}
+			});
+			for (BenchClient client : activeClients) {
+				clients.add(client);
+			}
+
+			// Each active client sends at a fixed rate, with the clients'
+			// start times spread over the first period
+			long periodMicros = 1000000 / messagesPerSecond;
+			for (int c = 0; c < active; c++) {
+				final BenchClient client = activeClients[c];
+				final int chatRoomId = client.getChatRoomId(roomName(c / roomSize));
+				senders.scheduleAtFixedRate(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							client.send(new SendChatMessageRequest(PREFIX + System.nanoTime(), chatRoomId));
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+					}
+				}, periodMicros * c / active, periodMicros, TimeUnit.MICROSECONDS);
+			}
+			sleep(WARMUP_SECONDS * 1000L);
+			recordFrom.set(System.nanoTime());
+			sleep(seconds * 1000L);
+			senders.shutdownNow();
+			sleep(1000);
+
+			report(ioMode, active + " active", server);
+			System.out.println(String.format("%s: %d chat messages received, latency p50=%d us p99=%d us max=%d us",
+					ioMode, latencies.size(), latencies.percentile(0.5), latencies.percentile(0.99),
+					latencies.percentile(1)));
+		} finally {
+			senders.shutdownNow();
+			for (BenchClient client : clients) {
+				client.close();
+			}
+			server.stop();
+		}
+		return;
+	}
+
+	/**
+	 * Prints the server's resident memory and thread count.
+	 * 
+	 * @param ioMode
+	 *            The server's ioMode
+	 * @param stage
+	 *            How far the benchmark has got
+	 * @param server
+	 *            The server
+	 */
+	private static void report(String ioMode, String stage, ServerProcess server) {
+		System.out.println(String.format("%s: %s: resident=%d MB threads=%d", ioMode, stage,
+				server.getResidentBytes() / (1024 * 1024), server.getThreadCount()));
+		return;
+	}
+
+	/**
+	 * Returns true if the JVM that the benchmark, and so the server, runs on
+	 * supports virtual threads.
+	 * 
+	 * @return True if the JVM is Java 21 or later, false otherwise
+	 */
+	private static boolean hasVirtualThreads() {
+		String version = System.getProperty("java.specification.version");
+		return !version.startsWith("1.") && Integer.parseInt(version) >= 21;
+	}
+
+	/**
+	 * Returns the name of the chat room with index r.
+	 * 
+	 * @param r
+	 *            The index of the chat room
+	 * @return The name of the chat room
+	 */
+	private static String roomName(int r) {
+		return "active-" + r;
+	}
+
+	/**
+	 * Sleeps for millis milliseconds.
+	 * 
+	 * @param millis
+	 *            The number of milliseconds to sleep for
+	 * @throws IOException
+	 *             If the thread was interrupted
+	 */
+	private static void sleep(long millis) throws IOException {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while running the load");
+		}
+		return;
+	}
+}
@@ -0,0 +1,204 @@
+package com.gunshippenguin.jchat.bench;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.gunshippenguin.jchat.shared.CreateChatRoomRequest;
+import com.gunshippenguin.jchat.shared.Event;
+import com.gunshippenguin.jchat.shared.InitServerInfo;
+import com.gunshippenguin.jchat.shared.JoinChatRoomRequest;
+import com.gunshippenguin.jchat.shared.PresenceEvent;
+
+/**
+ * Stress test that connects many users spread across many chat rooms and
+ * disconnects them all at once, measuring how long the server takes to remove
+ * them. By default 10000 users each join 5 of 10000 chat rooms.
+ * 
+ * A probe client stays connected throughout and watches the client count of
+ * the default chat room, which every user is in, so the time measured runs
+ * from the users' sockets being closed until the server has removed the last
+ * of them, plus up to presenceBatchMillis for the count to be sent. The users
+ * then reconnect with the same nicks, which fails the test if any nick has not
+ * been released.
+ * 
+ * Usage: DisconnectStress [users [rooms [roomsPerUser]]] [property=value ...]
+ * where each property=value is passed on to the server.
+ * 
+ * @author GunshipPenguin
+ */
+public class DisconnectStress {
+	/**
+	 * Number of threads that connect and disconnect the users.
+	 */
+	private static final int WORKERS = 16;
+	/**
+	 * Longest time in milliseconds to wait for any one step of the test.
+	 */
+	private static final long TIMEOUT_MILLIS = 300000;
+	/**
+	 * Client count of the default chat room last seen by the probe.
+	 */
+	private static volatile int defaultChatRoomCount = -1;
+
+	public static void main(String[] args) throws Exception {
+		List<String> positional = ServerProcess.parsePositional(args);
+		final int users = positional.size() > 0 ? Integer.parseInt(positional.get(0)) : 10000;
+		final int rooms = positional.size() > 1 ? Integer.parseInt(positional.get(1)) : 10000;
+		final int roomsPerUser = positional.size() > 2 ? Integer.parseInt(positional.get(2)) : 5;
+		Properties properties = ServerProcess.parseProperties(args);
+		final int port = Integer.parseInt(properties.getProperty("port"));
+
+		ServerProcess server = ServerProcess.start(properties);
+		try {
+			// The probe creates the chat rooms, and is known to have done so
+			// once it has been accepted to the last one
+			BenchClient probe = BenchClient.connect("localhost", port, "probe");
+			final int defaultChatRoomId = probe.getInitServerInfo().getDefaultChatRoom().getId();
+			probe.startReading(new BenchClient.Listener() {
+				@Override
+				public void eventReceived(BenchClient client, Event evnt) {
+					if (evnt instanceof PresenceEvent && ((PresenceEvent) evnt).getChatRoomId() == defaultChatRoomId) {
+						defaultChatRoomCount = ((PresenceEvent) evnt).getClientCount();
+					}
+				}
+
+				@Override
+				public void disconnected(BenchClient client) {
+				}
+			});
+			long start = System.nanoTime();
+			for (int r = 0; r < rooms; r++) {
+				probe.send(new CreateChatRoomRequest(roomName(r)));
+			}
+			probe.send(new JoinChatRoomRequest(roomName(rooms - 1)));
+			probe.awaitChatRoom(roomName(rooms - 1), TIMEOUT_MILLIS);
+			System.out.println("Created " + rooms + " chat rooms in " + millisSince(start) + " ms");
+
+			// Connect the users, each joining roomsPerUser chat rooms spread
+			// evenly over all of them
+			final BenchClient[] clients = new BenchClient[users];
+			start = System.nanoTime();
+			Workers.run(users, WORKERS, new Workers.Task() {
+				@Override
+				public void run(int user) throws IOException {
+					BenchClient client = BenchClient.connect("localhost", port, "user" + user);
+					for (int j = 0; j < roomsPerUser; j++) {
+						client.send(new JoinChatRoomRequest(roomName(roomOf(user, j, rooms, roomsPerUser))));
+					}
+					for (int j = 0; j < roomsPerUser; j++) {
+						String name = roomName(roomOf(user, j, rooms, roomsPerUser));
+						while (client.getChatRoomId(name) < 0) {
+							client.readEvent();
+						}
+					}
+					clients[user] = client;
+				}
+			});
+			System.out.println("Connected " + users + " users to " + roomsPerUser + " chat rooms each in "
+					+ millisSince(start) + " ms");
+			awaitDefaultChatRoomCount(users + 1);
+
+			// Disconnect every user at once
+			start = System.nanoTime();
+			Workers.run(users, WORKERS, new Workers.Task() {
+				@Override
+				public void run(int user) {
+					clients[user].close();
+				}
+			});
+			awaitDefaultChatRoomCount(1);
+			long disconnectMillis = millisSince(start);
+			System.out.println("Disconnected " + users + " users from " + rooms + " chat rooms in " + disconnectMillis
+					+ " ms (" + String.format("%.1f", disconnectMillis * 1000.0 / users) + " us per user)");
+
+			// Every nick must have been released
+			final AtomicInteger renamed = new AtomicInteger();
+			Workers.run(users, WORKERS, new Workers.Task() {
+				@Override
+				public void run(int user) throws IOException {
+					BenchClient client = BenchClient.connect("localhost", port, "user" + user);
+					if ((client.getInitServerInfo().getFlags() & InitServerInfo.BAD_NICK) != 0) {
+						renamed.incrementAndGet();
+					}
+					client.close();
+				}
+			});
+			if (renamed.get() > 0) {
+				System.out.println("FAILED: " + renamed.get() + " nicks were not released");
+				System.exit(1);
+			}
+			System.out.println("All nicks released");
+			probe.close();
+		} finally {
+			server.stop();
+		}
+		return;
+	}
+
+	/**
+	 * Returns the name of the chat room with index r.
+	 * 
+	 * @param r
+	 *            The index of the chat room
+	 * @return The name of the chat room
+	 */
+	private static String roomName(int r) {
+		return "stress-" + r;
+	}
+
+	/**
+	 * Returns the index of the j-th chat room that user joins.
+	 * 
+	 * @param user
+	 *            The index of the user
+	 * @param j
+	 *            Which of the user's chat rooms to return
+	 * @param rooms
+	 *            The number of chat rooms
+	 * @param roomsPerUser
+	 *            The number of chat rooms each user joins
+	 * @return The index of the chat room
+	 */
+	private static int roomOf(int user, int j, int rooms, int roomsPerUser) {
+		return (int) (((long) user * roomsPerUser + j) % rooms);
+	}
+
+	/**
+	 * Returns the number of milliseconds since the value of System.nanoTime()
+	 * start.
+	 * 
+	 * @param start
+	 *            The earlier value of System.nanoTime()
+	 * @return The number of milliseconds since start
+	 */
+	private static long millisSince(long start) {
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	/**
+	 * Waits until the probe has seen the default chat room's client count
+	 * reach count.
+	 * 
+	 * @param count
+	 *            The client count to wait for
+	 * @throws IOException
+	 *             If the count was not reached within TIMEOUT_MILLIS
+	 */
+	private static void awaitDefaultChatRoomCount(int count) throws IOException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (defaultChatRoomCount != count) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new IOException("Default chat room has " + defaultChatRoomCount + " clients, expected " + count);
+			}
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for the default chat room");
+			}
+		}
+		return;
+	}
+}
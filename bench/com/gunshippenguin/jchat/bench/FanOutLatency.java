@@ -0,0 +1,190 @@
+package com.gunshippenguin.jchat.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.gunshippenguin.jchat.shared.ChatMessageEvent;
+import com.gunshippenguin.jchat.shared.Event;
+import com.gunshippenguin.jchat.shared.SendChatMessageRequest;
+
+/**
+ * Benchmark that measures how long a broadcast to a large chat room takes to
+ * reach its last member, with and without the broadcast being split across
+ * fan-out threads. For each of the given fanOutThreads values and core counts
+ * it starts a server limited to that many cores, grows the default chat room
+ * through each of the given room sizes and at each size sends broadcasts chat
+ * messages to it one at a time. The completion time of a broadcast runs from
+ * it being sent until the last member has received it, and its median and
+ * 99th percentile are reported.
+ * 
+ * The members are read by the benchmark's own threads on the same machine, so
+ * on a machine with few cores the completion times include the time taken for
+ * the benchmark to be scheduled.
+ * 
+ * Usage: FanOutLatency [broadcasts [roomSizes [fanOutThreads [cores]]]]
+ * [property=value ...] where roomSizes, fanOutThreads and cores are comma
+ * separated lists and each property=value is passed on to the server. cores
+ * defaults to the number of cores of the machine.
+ * 
+ * @author GunshipPenguin
+ */
+public class FanOutLatency {
+	/**
+	 * Number of threads that connect the members.
+	 */
+	private static final int WORKERS = 16;
+	/**
+	 * Longest time in milliseconds to wait for a broadcast to reach every
+	 * member.
+	 */
+	private static final long BROADCAST_TIMEOUT_MILLIS = 10000;
+	/**
+	 * Time in milliseconds to wait after members join for the presence events
+	 * their joins cause to be sent.
+	 */
+	private static final long SETTLE_MILLIS = 1000;
+
+	public static void main(String[] args) throws Exception {
+		List<String> positional = ServerProcess.parsePositional(args);
+		int broadcasts = positional.size() > 0 ? Integer.parseInt(positional.get(0)) : 200;
+		String roomSizes = positional.size() > 1 ? positional.get(1) : "1000,5000,10000";
+		String fanOutThreads = positional.size() > 2 ? positional.get(2) : "0,4";
+		String cores = positional.size() > 3 ? positional.get(3)
+				: Integer.toString(Runtime.getRuntime().availableProcessors());
+		Properties properties = ServerProcess.parseProperties(args);
+
+		for (String coreCount : cores.split(",")) {
+			for (String threads : fanOutThreads.split(",")) {
+				Properties runProperties = new Properties();
+				runProperties.putAll(properties);
+				runProperties.setProperty("fanOutThreads", threads.trim());
+				runProperties.setProperty("port", Integer.toString(ServerProcess.freePort()));
+				List<String> jvmOptions = Collections.singletonList("-XX:ActiveProcessorCount=" + coreCount.trim());
+				run(runProperties, jvmOptions, broadcasts, roomSizes, "fanOutThreads=" + threads.trim() + " cores="
+						+ coreCount.trim());
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Starts a server configured by properties, measures its broadcasts at
+	 * each of roomSizes and stops it again.
+	 * 
+	 * @param properties
+	 *            The server's properties
+	 * @param jvmOptions
+	 *            Options for the server's JVM
+	 * @param broadcasts
+	 *            The number of broadcasts to send at each room size
+	 * @param roomSizes
+	 *            Comma separated list of room sizes, smallest first
+	 * @param label
+	 *            Printed before the results
+	 * @throws IOException
+	 *             If the server could not be started or a client failed
+	 */
+	private static void run(Properties properties, List<String> jvmOptions, int broadcasts, String roomSizes,
+			String label) throws IOException {
+		final int port = Integer.parseInt(properties.getProperty("port"));
+		ServerProcess server = ServerProcess.start(properties, jvmOptions);
+		final List<BenchClient> members = new ArrayList<BenchClient>();
+		try {
+			// Members note the broadcast they have received and the latest
+			// time any of them received it
+			final AtomicInteger current = new AtomicInteger(-1);
+			final AtomicInteger arrivals = new AtomicInteger();
+			final AtomicLong lastArrival = new AtomicLong();
+			final BenchClient.Listener listener = new BenchClient.Listener() {
+				@Override
+				public void eventReceived(BenchClient client, Event evnt) {
+					if (evnt instanceof ChatMessageEvent) {
+						long now = System.nanoTime();
+						if (Integer.parseInt(((ChatMessageEvent) evnt).getChatMessage()) == current.get()) {
+							long last;
+							while ((last = lastArrival.get()) < now && !lastArrival.compareAndSet(last, now)) {
+								// Another member arrived at the same time
+							}
+							arrivals.incrementAndGet();
+						}
+					}
+				}
+
+				@Override
+				public void disconnected(BenchClient client) {
+				}
+			};
+			BenchClient sender = BenchClient.connect("localhost", port, "sender");
+			int chatRoomId = sender.getInitServerInfo().getDefaultChatRoom().getId();
+			sender.startReading(listener);
+			members.add(sender);
+
+			for (String roomSize : roomSizes.split(",")) {
+				int size = Integer.parseInt(roomSize.trim());
+				final int connected = members.size();
+				Workers.run(size - connected, WORKERS, new Workers.Task() {
+					@Override
+					public void run(int i) throws IOException {
+						BenchClient member = BenchClient.connect("localhost", port, "member" + (connected + i));
+						member.startReading(listener);
+						synchronized (members) {
+							members.add(member);
+						}
+					}
+				});
+				sleep(SETTLE_MILLIS);
+
+				Samples completionMicros = new Samples();
+				int incomplete = 0;
+				for (int b = 0; b < broadcasts; b++) {
+					arrivals.set(0);
+					lastArrival.set(0);
+					current.set(b);
+					long sent = System.nanoTime();
+					sender.send(new SendChatMessageRequest(Integer.toString(b), chatRoomId));
+					long deadline = System.currentTimeMillis() + BROADCAST_TIMEOUT_MILLIS;
+					while (arrivals.get() < size && System.currentTimeMillis() < deadline) {
+						sleep(1);
+					}
+					if (arrivals.get() < size) {
+						incomplete++;
+					} else {
+						completionMicros.add((lastArrival.get() - sent) / 1000);
+					}
+				}
+				System.out.println(String.format("%s roomSize=%d: completion p50=%d us p99=%d us%s", label, size,
+						completionMicros.percentile(0.5), completionMicros.percentile(0.99),
+						incomplete == 0 ? "" : " (" + incomplete + " broadcasts did not reach every member)"));
+			}
+		} finally {
+			for (BenchClient member : members) {
+				member.close();
+			}
+			server.stop();
+		}
+		return;
+	}
+
+	/**
+	 * Sleeps for millis milliseconds.
+	 * 
+	 * @param millis
+	 *            The number of milliseconds to sleep for
+	 * @throws IOException
+	 *             If the thread was interrupted
+	 */
+	private static void sleep(long millis) throws IOException {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a broadcast");
+		}
+		return;
+	}
+}
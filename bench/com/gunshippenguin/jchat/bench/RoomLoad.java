@@ -0,0 +1,272 @@
+package com.gunshippenguin.jchat.bench;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.gunshippenguin.jchat.shared.ChatMessageEvent;
+import com.gunshippenguin.jchat.shared.CreateChatRoomRequest;
+import com.gunshippenguin.jchat.shared.Event;
+import com.gunshippenguin.jchat.shared.JoinChatRoomRequest;
+import com.gunshippenguin.jchat.shared.SendChatMessageRequest;
+
+/**
+ * Class representing a load of many small chat rooms, each with a few members
+ * chatting as fast as they can, put on one server or spread across the
+ * servers of a cluster. Client c connects to server c % servers and joins chat
+ * room c / roomSize, so consecutive members of a chat room are on different
+ * servers.
+ * 
+ * Every client sends its chat messages while keeping no more than WINDOW of
+ * them unanswered, so that the servers are kept busy without any client
+ * falling so far behind that chat messages are dropped. The time taken for
+ * every member to receive every chat message gives the number of chat messages
+ * delivered per second.
+ * 
+ * @author GunshipPenguin
+ */
+class RoomLoad {
+	/**
+	 * Number of threads that connect the clients. Each client sends its chat
+	 * messages from a thread of its own.
+	 */
+	private static final int WORKERS = 16;
+	/**
+	 * Number of chat messages a client may have sent without having received
+	 * them back from its chat room. Together with the chat room's size this
+	 * must stay below the server's slowConsumerBacklog, or members are treated
+	 * as slow consumers and chat messages are dropped.
+	 */
+	private static final int WINDOW = 8;
+	/**
+	 * Longest time in milliseconds to wait for a client to be accepted to a
+	 * chat room before asking again, since a chat room created on one server
+	 * of a cluster takes a moment to become known to the others.
+	 */
+	private static final long JOIN_RETRY_MILLIS = 1000;
+	/**
+	 * Number of times a client asks to join its chat room before giving up.
+	 */
+	private static final int JOIN_ATTEMPTS = 30;
+	/**
+	 * Longest time in milliseconds to wait without any chat message being
+	 * delivered before giving up on the rest.
+	 */
+	private static final long STALL_MILLIS = 10000;
+	/**
+	 * Ports of the servers that the clients connect to.
+	 */
+	private final int[] ports;
+	/**
+	 * The number of members in each chat room.
+	 */
+	private final int roomSize;
+	/**
+	 * The connected clients.
+	 */
+	private final BenchClient[] clients;
+	/**
+	 * Number of chat messages received by every client together.
+	 */
+	private final AtomicLong delivered = new AtomicLong();
+	/**
+	 * Number of its own chat messages each client has received, guarded by
+	 * the lock on itself.
+	 */
+	private final int[] echoes;
+
+	/**
+	 * Creates a new RoomLoad of clients clients in chat rooms of roomSize
+	 * members, spread across the servers listening on ports.
+	 * 
+	 * @param ports
+	 *            The ports of the servers, all on the local host
+	 * @param clients
+	 *            The number of clients
+	 * @param roomSize
+	 *            The number of members in each chat room
+	 */
+	RoomLoad(int[] ports, int clients, int roomSize) {
+		this.ports = ports;
+		this.roomSize = roomSize;
+		this.clients = new BenchClient[clients];
+		this.echoes = new int[clients];
+	}
+
+	/**
+	 * Creates the chat rooms and connects the clients, without joining them
+	 * to their chat rooms.
+	 * 
+	 * @throws IOException
+	 *             If a client could not be connected
+	 */
+	void connect() throws IOException {
+		int rooms = (clients.length + roomSize - 1) / roomSize;
+		BenchClient creator = BenchClient.connect("localhost", ports[0], "creator");
+		for (int r = 0; r < rooms; r++) {
+			creator.send(new CreateChatRoomRequest(roomName(r)));
+		}
+		final BenchClient.Listener counter = new BenchClient.Listener() {
+			@Override
+			public void eventReceived(BenchClient client, Event evnt) {
+				if (evnt instanceof ChatMessageEvent) {
+					delivered.incrementAndGet();
+					if (((ChatMessageEvent) evnt).getSenderId() == client.getInitServerInfo().getSelfClient().getId()) {
+						int c = Integer.parseInt(client.getNick().substring("user".length()));
+						synchronized (echoes) {
+							echoes[c]++;
+							echoes.notifyAll();
+						}
+					}
+				}
+			}
+
+			@Override
+			public void disconnected(BenchClient client) {
+			}
+		};
+		Workers.run(clients.length, WORKERS, new Workers.Task() {
+			@Override
+			public void run(int c) throws IOException {
+				BenchClient client = BenchClient.connect("localhost", ports[c % ports.length], "user" + c);
+				client.startReading(counter);
+				clients[c] = client;
+			}
+		});
+		creator.close();
+		return;
+	}
+
+	/**
+	 * Joins every client to its chat room.
+	 * 
+	 * @return The number of joins per second
+	 * @throws IOException
+	 *             If a client was not accepted to its chat room
+	 */
+	double join() throws IOException {
+		long start = System.nanoTime();
+		Workers.run(clients.length, WORKERS, new Workers.Task() {
+			@Override
+			public void run(int c) throws IOException {
+				String chatRoomName = roomName(c / roomSize);
+				for (int attempt = 1;; attempt++) {
+					clients[c].send(new JoinChatRoomRequest(chatRoomName));
+					try {
+						clients[c].awaitChatRoom(chatRoomName, JOIN_RETRY_MILLIS);
+						return;
+					} catch (IOException e) {
+						if (attempt == JOIN_ATTEMPTS) {
+							throw e;
+						}
+					}
+				}
+			}
+		});
+		return clients.length / ((System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * Has every client send messagesPerClient chat messages to its chat room
+	 * and waits for them to be delivered to every member. Prints a warning if
+	 * any were not delivered.
+	 * 
+	 * @param messagesPerClient
+	 *            The number of chat messages each client sends
+	 * @return The number of chat messages delivered per second
+	 * @throws IOException
+	 *             If a client failed
+	 */
+	double send(final int messagesPerClient) throws IOException {
+		long expected = 0;
+		for (int c = 0; c < clients.length; c++) {
+			expected += (long) messagesPerClient * Math.min(roomSize, clients.length - c / roomSize * roomSize);
+		}
+		delivered.set(0);
+		synchronized (echoes) {
+			for (int c = 0; c < clients.length; c++) {
+				echoes[c] = 0;
+			}
+		}
+		long start = System.nanoTime();
+		Workers.run(clients.length, clients.length, new Workers.Task() {
+			@Override
+			public void run(int c) throws IOException {
+				int chatRoomId = clients[c].getChatRoomId(roomName(c / roomSize));
+				for (int m = 0; m < messagesPerClient; m++) {
+					awaitEchoes(c, m - WINDOW + 1);
+					clients[c].send(new SendChatMessageRequest("m" + m, chatRoomId));
+				}
+			}
+		});
+		long last = -1;
+		long lastProgress = System.currentTimeMillis();
+		while (delivered.get() < expected && System.currentTimeMillis() - lastProgress < STALL_MILLIS) {
+			if (delivered.get() != last) {
+				last = delivered.get();
+				lastProgress = System.currentTimeMillis();
+			}
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for chat messages");
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		if (delivered.get() < expected) {
+			seconds -= STALL_MILLIS / 1000.0;
+			System.out.println("Warning: only " + delivered.get() + " of " + expected
+					+ " chat messages were delivered");
+		}
+		return delivered.get() / seconds;
+	}
+
+	/**
+	 * Waits until client c has received at least count of its own chat
+	 * messages back from its chat room, or STALL_MILLIS have passed.
+	 * 
+	 * @param c
+	 *            The index of the client
+	 * @param count
+	 *            The number of chat messages to wait for
+	 * @throws IOException
+	 *             If the thread was interrupted
+	 */
+	private void awaitEchoes(int c, int count) throws IOException {
+		long deadline = System.currentTimeMillis() + STALL_MILLIS;
+		synchronized (echoes) {
+			while (echoes[c] < count && System.currentTimeMillis() < deadline) {
+				try {
+					echoes.wait(STALL_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for chat messages");
+				}
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Disconnects every client.
+	 */
+	void close() {
+		for (BenchClient client : clients) {
+			if (client != null) {
+				client.close();
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Returns the name of the chat room with index r.
+	 * 
+	 * @param r
+	 *            The index of the chat room
+	 * @return The name of the chat room
+	 */
+	private static String roomName(int r) {
+		return "load-" + r;
+	}
+}
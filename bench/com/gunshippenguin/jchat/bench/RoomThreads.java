@@ -0,0 +1,55 @@
+package com.gunshippenguin.jchat.bench;
+
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Benchmark that contrasts running chat rooms on room threads with running
+ * them on the calling thread under a lock. For each of the given roomThreads
+ * values, 0 being the locked path, it starts a server and puts a RoomLoad of
+ * rooms chat rooms of roomSize members on it, reporting how many joins a
+ * second the server handles as every member joins its chat room and how many
+ * chat messages a second it delivers as every member sends
+ * messagesPerClient chat messages.
+ * 
+ * Room threads can only do better than the locked path when there are cores
+ * for them to run on, so the results depend on the core count of the machine
+ * the benchmark runs on, which is printed with them.
+ * 
+ * Usage: RoomThreads [rooms [roomSize [messagesPerClient [roomThreads]]]]
+ * [property=value ...] where roomThreads is a comma separated list and each
+ * property=value is passed on to the server.
+ * 
+ * @author GunshipPenguin
+ */
+public class RoomThreads {
+	public static void main(String[] args) throws Exception {
+		List<String> positional = ServerProcess.parsePositional(args);
+		int rooms = positional.size() > 0 ? Integer.parseInt(positional.get(0)) : 200;
+		int roomSize = positional.size() > 1 ? Integer.parseInt(positional.get(1)) : 10;
+		int messagesPerClient = positional.size() > 2 ? Integer.parseInt(positional.get(2)) : 200;
+		String roomThreads = positional.size() > 3 ? positional.get(3) : "0,4";
+		Properties properties = ServerProcess.parseProperties(args);
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		for (String threads : roomThreads.split(",")) {
+			Properties runProperties = new Properties();
+			runProperties.putAll(properties);
+			runProperties.setProperty("roomThreads", threads.trim());
+			runProperties.setProperty("port", Integer.toString(ServerProcess.freePort()));
+			ServerProcess server = ServerProcess.start(runProperties);
+			RoomLoad load = new RoomLoad(new int[] { server.getPort() }, rooms * roomSize, roomSize);
+			try {
+				load.connect();
+				double joinRate = load.join();
+				double deliveryRate = load.send(messagesPerClient);
+				System.out.println(String.format("roomThreads=%s cores=%d rooms=%d roomSize=%d: joins/s=%.0f "
+						+ "deliveries/s=%.0f", threads.trim(), cores, rooms, roomSize, joinRate, deliveryRate));
+			} finally {
+				load.close();
+				server.stop();
+			}
+		}
+		return;
+	}
+}
@@ -0,0 +1,70 @@
+package com.gunshippenguin.jchat.bench;
+
+import java.util.Arrays;
+
+/**
+ * Class representing a set of measurements taken by a benchmark, such as the
+ * latencies of chat messages, from which percentiles can be read. May be added
+ * to by several threads at once.
+ * 
+ * @author GunshipPenguin
+ */
+class Samples {
+	/**
+	 * The measurements taken, of which the first count are used.
+	 */
+	private long[] values = new long[1024];
+	/**
+	 * Number of measurements taken.
+	 */
+	private int count = 0;
+
+	/**
+	 * Adds the measurement value.
+	 * 
+	 * @param value
+	 *            The measurement to add
+	 */
+	synchronized void add(long value) {
+		if (count == values.length) {
+			values = Arrays.copyOf(values, values.length * 2);
+		}
+		values[count++] = value;
+		return;
+	}
+
+	/**
+	 * Returns the number of measurements taken.
+	 * 
+	 * @return The number of measurements
+	 */
+	synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the smallest measurement that at least fraction of the
+	 * measurements are no greater than, so that percentile(0.99) is the 99th
+	 * percentile.
+	 * 
+	 * @param fraction
+	 *            The fraction of measurements, from 0 to 1
+	 * @return The percentile, or -1 if no measurements were taken
+	 */
+	synchronized long percentile(double fraction) {
+		if (count == 0) {
+			return -1;
+		}
+		Arrays.sort(values, 0, count);
+		int index = (int) Math.ceil(fraction * count) - 1;
+		return values[Math.max(0, Math.min(count - 1, index))];
+	}
+
+	/**
+	 * Removes every measurement.
+	 */
+	synchronized void clear() {
+		count = 0;
+		return;
+	}
+}
@@ -0,0 +1,375 @@
+package com.gunshippenguin.jchat.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.gunshippenguin.jchat.shared.ChatMessageEvent;
+import com.gunshippenguin.jchat.shared.CreateChatRoomRequest;
+import com.gunshippenguin.jchat.shared.Event;
+import com.gunshippenguin.jchat.shared.JoinChatRoomRequest;
+import com.gunshippenguin.jchat.shared.SearchHit;
+import com.gunshippenguin.jchat.shared.SearchRequest;
+import com.gunshippenguin.jchat.shared.SearchResultsEvent;
+import com.gunshippenguin.jchat.shared.SendChatMessageRequest;
+
+/**
+ * Benchmark that measures the latency of searches over a large number of chat
+ * messages. It starts a server with room for messages chat messages in its
+ * search index, has LOADERS clients send that many chat messages spread over
+ * ROOMS chat rooms, each loader sending to chat rooms of its own, and then has
+ * a separate client in every chat room run queries searches of each kind
+ * below one at a time, reporting the median and 99th percentile time from
+ * sending each search to receiving its first page of results.
+ * 
+ * <ul>
+ * <li>common: a word used in many messages</li>
+ * <li>rare: a word used in few messages</li>
+ * <li>pair: a common word and a less common one together</li>
+ * <li>room: a common word in one chat room</li>
+ * <li>sender: a common word sent by one client</li>
+ * <li>recent: a common word sent in the second half of the load</li>
+ * </ul>
+ * 
+ * Each chat message is a unique sequence word followed by WORDS words chosen
+ * from a vocabulary of VOCABULARY words, low numbered words being chosen far
+ * more often than high numbered ones. Chat messages are indexed on a single
+ * thread behind a bounded queue, so every CHECKPOINT chat messages each loader
+ * waits until its latest chat message can be found before sending more, which
+ * keeps the queue from overflowing.
+ * 
+ * Usage: SearchLatency [messages [queries [heap]]] [property=value ...] where
+ * heap is the largest heap of the server's JVM (default 6g), and each
+ * property=value is passed on to the server.
+ * 
+ * @author GunshipPenguin
+ */
+public class SearchLatency {
+	/**
+	 * Number of clients that send the chat messages.
+	 */
+	private static final int LOADERS = 8;
+	/**
+	 * Number of chat rooms the chat messages are sent to.
+	 */
+	private static final int ROOMS = 16;
+	/**
+	 * Number of words in the vocabulary the chat messages are made from.
+	 */
+	private static final int VOCABULARY = 50000;
+	/**
+	 * Number of vocabulary words in each chat message.
+	 */
+	private static final int WORDS = 6;
+	/**
+	 * Number of chat messages a loader may have sent without having received
+	 * them back.
+	 */
+	private static final int WINDOW = 64;
+	/**
+	 * Number of chat messages each loader sends between waiting for the index
+	 * to catch up.
+	 */
+	private static final int CHECKPOINT = 4096;
+	/**
+	 * Longest time in milliseconds to wait for a search or a chat message.
+	 */
+	private static final long TIMEOUT_MILLIS = 60000;
+	/**
+	 * Number of search results asked for in each search.
+	 */
+	private static final int PAGE = 20;
+
+	public static void main(String[] args) throws Exception {
+		List<String> positional = ServerProcess.parsePositional(args);
+		final int messages = positional.size() > 0 ? Integer.parseInt(positional.get(0)) : 10000000;
+		int queries = positional.size() > 1 ? Integer.parseInt(positional.get(1)) : 200;
+		String heap = positional.size() > 2 ? positional.get(2) : "6g";
+		Properties properties = ServerProcess.parseProperties(args);
+		if (properties.getProperty("searchMaxMessages") == null) {
+			properties.setProperty("searchMaxMessages", Integer.toString(messages));
+		}
+		final int port = Integer.parseInt(properties.getProperty("port"));
+
+		ServerProcess server = ServerProcess.start(properties, Collections.singletonList("-Xmx" + heap));
+		final List<BenchClient> clients = new ArrayList<BenchClient>();
+		try {
+			BenchClient creator = BenchClient.connect("localhost", port, "creator");
+			for (int r = 0; r < ROOMS; r++) {
+				creator.send(new CreateChatRoomRequest(roomName(r)));
+			}
+			creator.send(new JoinChatRoomRequest(roomName(ROOMS - 1)));
+			while (creator.getChatRoomId(roomName(ROOMS - 1)) < 0) {
+				creator.readEvent();
+			}
+			creator.close();
+
+			// Load the chat messages, noting the time half way through
+			final long[] halfWayMillis = new long[1];
+			long start = System.nanoTime();
+			Workers.run(LOADERS, LOADERS, new Workers.Task() {
+				@Override
+				public void run(int loader) throws IOException {
+					Searcher loaderClient = Searcher.connect(port, "loader" + loader, loader, LOADERS);
+					synchronized (clients) {
+						clients.add(loaderClient.client);
+					}
+					List<Integer> chatRoomIds = new ArrayList<Integer>();
+					for (int r = loader; r < ROOMS; r += LOADERS) {
+						chatRoomIds.add(loaderClient.client.getChatRoomId(roomName(r)));
+					}
+					Random random = new Random(loader);
+					int count = messages / LOADERS + (loader < messages % LOADERS ? 1 : 0);
+					for (int m = 0; m < count; m++) {
+						if (loader == 0 && m == count / 2) {
+							halfWayMillis[0] = System.currentTimeMillis();
+						}
+						loaderClient.awaitEchoes(m - WINDOW + 1);
+						String sequence = "s" + loader + "x" + m;
+						loaderClient.client.send(new SendChatMessageRequest(chatMessage(sequence, random),
+								chatRoomIds.get(m % chatRoomIds.size())));
+						if ((m + 1) % CHECKPOINT == 0 || m == count - 1) {
+							while (loaderClient.search(new SearchRequest(sequence, "", "", 0, 0, -1, 1)).isEmpty()) {
+								sleep(10);
+							}
+						}
+					}
+				}
+			});
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println(String.format("Loaded %d chat messages in %.1f s (%.0f/s), server resident=%d MB",
+					messages, seconds, messages / seconds, server.getResidentBytes() / (1024 * 1024)));
+
+			Searcher searcher = Searcher.connect(port, "searcher", 0, 1);
+			clients.add(searcher.client);
+			String[] kinds = { "common", "rare", "pair", "room", "sender", "recent" };
+			Random random = new Random(0);
+			for (String kind : kinds) {
+				Samples micros = new Samples();
+				for (int q = 0; q < queries; q++) {
+					SearchRequest request = query(kind, random, halfWayMillis[0]);
+					long queryStart = System.nanoTime();
+					searcher.search(request);
+					micros.add((System.nanoTime() - queryStart) / 1000);
+				}
+				System.out.println(String.format("%s: p50=%d us p99=%d us", kind, micros.percentile(0.5),
+						micros.percentile(0.99)));
+			}
+		} finally {
+			synchronized (clients) {
+				for (BenchClient client : clients) {
+					client.close();
+				}
+			}
+			server.stop();
+		}
+		return;
+	}
+
+	/**
+	 * Returns a search of the kind kind.
+	 * 
+	 * @param kind
+	 *            The kind of search, as listed in the class comment
+	 * @param random
+	 *            Source of the words searched for
+	 * @param halfWayMillis
+	 *            The time half the chat messages had been sent by
+	 * @return The search
+	 */
+	private static SearchRequest query(String kind, Random random, long halfWayMillis) {
+		String common = "w" + random.nextInt(10);
+		if (kind.equals("rare")) {
+			return new SearchRequest("w" + (VOCABULARY / 2 + random.nextInt(VOCABULARY / 2)), "", "", 0, 0, -1, PAGE);
+		} else if (kind.equals("pair")) {
+			return new SearchRequest(common + " w" + (100 + random.nextInt(900)), "", "", 0, 0, -1, PAGE);
+		} else if (kind.equals("room")) {
+			return new SearchRequest(common, "", roomName(random.nextInt(ROOMS)), 0, 0, -1, PAGE);
+		} else if (kind.equals("sender")) {
+			return new SearchRequest(common, "loader" + random.nextInt(LOADERS), "", 0, 0, -1, PAGE);
+		} else if (kind.equals("recent")) {
+			return new SearchRequest(common, "", "", halfWayMillis, 0, -1, PAGE);
+		}
+		return new SearchRequest(common, "", "", 0, 0, -1, PAGE);
+	}
+
+	/**
+	 * Returns the text of a chat message starting with sequence.
+	 * 
+	 * @param sequence
+	 *            The word that the chat message starts with
+	 * @param random
+	 *            Source of the other words
+	 * @return The text of the chat message
+	 */
+	private static String chatMessage(String sequence, Random random) {
+		StringBuilder text = new StringBuilder(sequence);
+		for (int i = 0; i < WORDS; i++) {
+			// Cubing a uniform number makes low numbered words far more common
+			double r = random.nextDouble();
+			text.append(" w").append((int) (r * r * r * VOCABULARY));
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Returns the name of the chat room with index r.
+	 * 
+	 * @param r
+	 *            The index of the chat room
+	 * @return The name of the chat room
+	 */
+	private static String roomName(int r) {
+		return "search-" + r;
+	}
+
+	/**
+	 * Sleeps for millis milliseconds.
+	 * 
+	 * @param millis
+	 *            The number of milliseconds to sleep for
+	 * @throws IOException
+	 *             If the thread was interrupted
+	 */
+	private static void sleep(long millis) throws IOException {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading chat messages");
+		}
+		return;
+	}
+
+	/**
+	 * Class representing a client in some of the chat rooms of the benchmark,
+	 * which can search the chat messages sent to them and counts those it sent
+	 * itself as they come back.
+	 */
+	private static class Searcher implements BenchClient.Listener {
+		/**
+		 * The connection to the server.
+		 */
+		private final BenchClient client;
+		/**
+		 * Search results received and not yet taken.
+		 */
+		private final BlockingQueue<SearchResultsEvent> results = new ArrayBlockingQueue<SearchResultsEvent>(1);
+		/**
+		 * Number of its own chat messages received back, guarded by the lock
+		 * on this Searcher.
+		 */
+		private int echoes = 0;
+
+		/**
+		 * Creates a new Searcher for client.
+		 * 
+		 * @param client
+		 *            The connection to the server
+		 */
+		private Searcher(BenchClient client) {
+			this.client = client;
+		}
+
+		/**
+		 * Connects a Searcher with the nick nick and joins it to every roomStep
+		 * chat room from firstRoom on.
+		 * 
+		 * @param port
+		 *            The port the server accepts clients on
+		 * @param nick
+		 *            The nick to ask for
+		 * @param firstRoom
+		 *            The index of the first chat room to join
+		 * @param roomStep
+		 *            The difference between the indexes of the chat rooms
+		 *            joined
+		 * @return The connected Searcher
+		 * @throws IOException
+		 *             If it could not connect or join the chat rooms
+		 */
+		static Searcher connect(int port, String nick, int firstRoom, int roomStep) throws IOException {
+			Searcher searcher = new Searcher(BenchClient.connect("localhost", port, nick));
+			searcher.client.startReading(searcher);
+			for (int r = firstRoom; r < ROOMS; r += roomStep) {
+				searcher.client.send(new JoinChatRoomRequest(roomName(r)));
+			}
+			for (int r = firstRoom; r < ROOMS; r += roomStep) {
+				searcher.client.awaitChatRoom(roomName(r), TIMEOUT_MILLIS);
+			}
+			return searcher;
+		}
+
+		@Override
+		public void eventReceived(BenchClient client, Event evnt) {
+			if (evnt instanceof SearchResultsEvent) {
+				results.offer((SearchResultsEvent) evnt);
+			} else if (evnt instanceof ChatMessageEvent
+					&& ((ChatMessageEvent) evnt).getSenderId() == client.getInitServerInfo().getSelfClient().getId()) {
+				synchronized (this) {
+					echoes++;
+					notifyAll();
+				}
+			}
+		}
+
+		@Override
+		public void disconnected(BenchClient client) {
+		}
+
+		/**
+		 * Sends request and waits for its results.
+		 * 
+		 * @param request
+		 *            The search to run
+		 * @return The chat messages found
+		 * @throws IOException
+		 *             If no results arrived within TIMEOUT_MILLIS
+		 */
+		List<SearchHit> search(SearchRequest request) throws IOException {
+			client.send(request);
+			try {
+				SearchResultsEvent evnt = results.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+				if (evnt == null) {
+					throw new IOException("No search results received by " + client.getNick());
+				}
+				return evnt.getHits();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for search results");
+			}
+		}
+
+		/**
+		 * Waits until at least count of this client's own chat messages have
+		 * come back.
+		 * 
+		 * @param count
+		 *            The number of chat messages to wait for
+		 * @throws IOException
+		 *             If they did not come back within TIMEOUT_MILLIS
+		 */
+		synchronized void awaitEchoes(int count) throws IOException {
+			long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+			while (echoes < count) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					throw new IOException(client.getNick() + " did not receive its chat messages back");
+				}
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for chat messages");
+				}
+			}
+			return;
+		}
+	}
+}
@@ -0,0 +1,368 @@
+package com.gunshippenguin.jchat.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import com.gunshippenguin.jchat.server.ChatServer;
+
+/**
+ * Class representing a chat server started in its own JVM by a benchmark, so
+ * that the server's memory, threads and CPU time can be measured apart from
+ * the clients loading it. Each server runs in a new temporary directory
+ * holding its server.properties, its log and a file with its process id, and
+ * the directory is deleted when the server is stopped.
+ * 
+ * The server's resident memory, thread count and CPU time are read from
+ * /proc, so they are only available on Linux; elsewhere they are reported as
+ * -1.
+ * 
+ * @author GunshipPenguin
+ */
+public class ServerProcess {
+	/**
+	 * Name of the file in the server's directory that holds its process id.
+	 */
+	private static final String PID_FILE = "pid";
+	/**
+	 * Number of clock ticks per second that /proc reports CPU time in. This is
+	 * 100 on every Linux platform that a JVM runs on.
+	 */
+	private static final long CLOCK_TICKS_PER_SECOND = 100;
+	/**
+	 * Longest time in milliseconds to wait for a server to start accepting
+	 * clients.
+	 */
+	private static final long START_TIMEOUT_MILLIS = 30000;
+	/**
+	 * The running server's JVM.
+	 */
+	private final Process process;
+	/**
+	 * The directory that the server runs in.
+	 */
+	private final File directory;
+	/**
+	 * The port that the server accepts clients on.
+	 */
+	private final int port;
+	/**
+	 * The server's process id, or -1 if it is not known.
+	 */
+	private final int pid;
+
+	/**
+	 * Creates a new ServerProcess for a server that has started.
+	 * 
+	 * @param process
+	 *            The server's JVM
+	 * @param directory
+	 *            The directory the server runs in
+	 * @param port
+	 *            The port the server accepts clients on
+	 * @param pid
+	 *            The server's process id, or -1 if it is not known
+	 */
+	private ServerProcess(Process process, File directory, int port, int pid) {
+		this.process = process;
+		this.directory = directory;
+		this.port = port;
+		this.pid = pid;
+	}
+
+	/**
+	 * Starts a chat server configured by properties, which must include its
+	 * port, in a new JVM started with the options jvmOptions, and waits until
+	 * it accepts clients.
+	 * 
+	 * @param properties
+	 *            The server's properties
+	 * @param jvmOptions
+	 *            Options for the server's JVM, such as -Xmx4g
+	 * @return The started server
+	 * @throws IOException
+	 *             If the server could not be started
+	 */
+	public static ServerProcess start(Properties properties, List<String> jvmOptions) throws IOException {
+		File directory = Files.createTempDirectory("jchat-bench").toFile();
+		OutputStream propertiesOut = new FileOutputStream(new File(directory, "server.properties"));
+		try {
+			properties.store(propertiesOut, "Written by a jchat benchmark");
+		} finally {
+			propertiesOut.close();
+		}
+		ArrayList<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		command.addAll(jvmOptions);
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(ServerProcess.class.getName());
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.directory(directory);
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(new File(directory, "server.log"));
+		Process process = builder.start();
+
+		int port = Integer.parseInt(properties.getProperty("port"));
+		long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+		while (!isAccepting(port)) {
+			if (System.currentTimeMillis() > deadline) {
+				process.destroy();
+				throw new IOException("Server did not start, see " + new File(directory, "server.log"));
+			}
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				process.destroy();
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while starting server");
+			}
+		}
+		return new ServerProcess(process, directory, port, readPid(directory));
+	}
+
+	/**
+	 * Starts a chat server configured by properties in a new JVM with default
+	 * options, and waits until it accepts clients.
+	 * 
+	 * @param properties
+	 *            The server's properties
+	 * @return The started server
+	 * @throws IOException
+	 *             If the server could not be started
+	 */
+	public static ServerProcess start(Properties properties) throws IOException {
+		return start(properties, new ArrayList<String>());
+	}
+
+	/**
+	 * Returns the server properties given as key=value arguments in args,
+	 * with port set to a free port unless one is given.
+	 * 
+	 * @param args
+	 *            The arguments of a benchmark, of which those containing = are
+	 *            server properties
+	 * @return The server properties
+	 * @throws IOException
+	 *             If a free port could not be found
+	 */
+	public static Properties parseProperties(String[] args) throws IOException {
+		Properties properties = new Properties();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals > 0) {
+				properties.setProperty(arg.substring(0, equals), arg.substring(equals + 1));
+			}
+		}
+		if (properties.getProperty("port") == null) {
+			properties.setProperty("port", Integer.toString(freePort()));
+		}
+		return properties;
+	}
+
+	/**
+	 * Returns a port on the local host that nothing is listening on.
+	 * 
+	 * @return A free port
+	 * @throws IOException
+	 *             If a free port could not be found
+	 */
+	public static int freePort() throws IOException {
+		ServerSocket probe = new ServerSocket(0);
+		try {
+			return probe.getLocalPort();
+		} finally {
+			probe.close();
+		}
+	}
+
+	/**
+	 * Returns the arguments in args that are not server properties, in order.
+	 * 
+	 * @param args
+	 *            The arguments of a benchmark
+	 * @return The arguments that do not contain =
+	 */
+	public static List<String> parsePositional(String[] args) {
+		ArrayList<String> positional = new ArrayList<String>();
+		for (String arg : args) {
+			if (arg.indexOf('=') <= 0) {
+				positional.add(arg);
+			}
+		}
+		return positional;
+	}
+
+	/**
+	 * Returns true if a server is accepting connections on port port of the
+	 * local host.
+	 * 
+	 * @param port
+	 *            The port to try
+	 * @return True if a connection could be made, false otherwise
+	 */
+	private static boolean isAccepting(int port) {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress("localhost", port), 1000);
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Only used to test the port
+			}
+		}
+	}
+
+	/**
+	 * Reads the process id that a server wrote to directory as it started.
+	 * 
+	 * @param directory
+	 *            The directory the server runs in
+	 * @return The process id, or -1 if it could not be read
+	 */
+	private static int readPid(File directory) {
+		try {
+			byte[] pid = Files.readAllBytes(new File(directory, PID_FILE).toPath());
+			return Integer.parseInt(new String(pid, StandardCharsets.UTF_8).trim());
+		} catch (IOException | NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns the port that the server accepts clients on.
+	 * 
+	 * @return The server's port
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Returns the value of the field named field in the server's
+	 * /proc/pid/status file, such as VmRSS or Threads, without its units.
+	 * 
+	 * @param field
+	 *            The name of the field
+	 * @return The value of the field, or -1 if it could not be read
+	 */
+	private long readStatus(String field) {
+		if (pid < 0) {
+			return -1;
+		}
+		try {
+			for (String line : Files.readAllLines(new File("/proc/" + pid + "/status").toPath(),
+					StandardCharsets.UTF_8)) {
+				if (line.startsWith(field + ":")) {
+					return Long.parseLong(line.substring(field.length() + 1).replace("kB", "").trim());
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			// Not available on this platform
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the server's resident memory in bytes.
+	 * 
+	 * @return The server's resident memory, or -1 if it is not known
+	 */
+	public long getResidentBytes() {
+		long kilobytes = readStatus("VmRSS");
+		return kilobytes < 0 ? -1 : kilobytes * 1024;
+	}
+
+	/**
+	 * Returns the number of threads the server's JVM is running.
+	 * 
+	 * @return The number of threads, or -1 if it is not known
+	 */
+	public long getThreadCount() {
+		return readStatus("Threads");
+	}
+
+	/**
+	 * Returns the CPU time, user and system, that the server's JVM has used in
+	 * nanoseconds, to the nearest clock tick.
+	 * 
+	 * @return The CPU time used, or -1 if it is not known
+	 */
+	public long getCpuNanos() {
+		if (pid < 0) {
+			return -1;
+		}
+		try {
+			String stat = new String(Files.readAllBytes(new File("/proc/" + pid + "/stat").toPath()),
+					StandardCharsets.UTF_8);
+			// Fields are counted from after the command name, which may
+			// contain spaces; utime and stime are the 14th and 15th fields
+			String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+			long ticks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+			return ticks * (1000000000L / CLOCK_TICKS_PER_SECOND);
+		} catch (IOException | RuntimeException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Stops the server and deletes its directory.
+	 */
+	public void stop() {
+		process.destroy();
+		try {
+			process.waitFor();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		delete(directory);
+		return;
+	}
+
+	/**
+	 * Deletes file and, if it is a directory, everything in it.
+	 * 
+	 * @param file
+	 *            The file or directory to delete
+	 */
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+		return;
+	}
+
+	/**
+	 * Writes the process id of this JVM to the pid file in the working
+	 * directory and runs the chat server. Used as the main class of the JVMs
+	 * started by start.
+	 * 
+	 * @param args
+	 *            Passed on to the chat server
+	 * @throws IOException
+	 *             If the pid file could not be written
+	 */
+	public static void main(String[] args) throws IOException {
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		Files.write(new File(PID_FILE).toPath(), name.substring(0, name.indexOf('@')).getBytes(StandardCharsets.UTF_8));
+		ChatServer.main(args);
+	}
+}
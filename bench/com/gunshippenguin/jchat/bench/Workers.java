@@ -0,0 +1,81 @@
+package com.gunshippenguin.jchat.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class that runs a step of a benchmark for each of a number of items, such as
+ * connecting each of thousands of clients, split across a fixed number of
+ * threads.
+ * 
+ * @author GunshipPenguin
+ */
+class Workers {
+	/**
+	 * A step of a benchmark done for each item.
+	 */
+	interface Task {
+		/**
+		 * Does the step for the item with index item.
+		 * 
+		 * @param item
+		 *            The index of the item
+		 * @throws IOException
+		 *             If the step failed
+		 */
+		void run(int item) throws IOException;
+	}
+
+	/**
+	 * Runs task for every item from 0 to items - 1, split across threads
+	 * threads, and waits for them all to finish. A thread stops at the first
+	 * item that fails.
+	 * 
+	 * @param items
+	 *            The number of items
+	 * @param threads
+	 *            The number of threads to split them across
+	 * @param task
+	 *            The step to run for each item
+	 * @throws IOException
+	 *             If the step failed for any item
+	 */
+	static void run(final int items, int threads, final Task task) throws IOException {
+		final AtomicInteger next = new AtomicInteger();
+		final List<IOException> failures = new ArrayList<IOException>();
+		Thread[] workers = new Thread[threads];
+		for (int w = 0; w < threads; w++) {
+			workers[w] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					int item;
+					while ((item = next.getAndIncrement()) < items) {
+						try {
+							task.run(item);
+						} catch (IOException e) {
+							synchronized (failures) {
+								failures.add(e);
+							}
+							return;
+						}
+					}
+				}
+			});
+			workers[w].start();
+		}
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for workers");
+			}
+		}
+		if (!failures.isEmpty()) {
+			throw failures.get(0);
+		}
+		return;
+	}
+}
@@ -1,9 +1,23 @@
 package com.gunshippenguin.jchat.client;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import javafx.collections.FXCollections;
 
+import com.gunshippenguin.jchat.shared.ChatMessageEvent;
 import com.gunshippenguin.jchat.shared.ChatRoomInfo;
 import com.gunshippenguin.jchat.shared.ClientInfo;
+import com.gunshippenguin.jchat.shared.GetChatHistoryRequest;
+import com.gunshippenguin.jchat.shared.GetClientInfoRequest;
+import com.gunshippenguin.jchat.shared.GetRosterRequest;
 
 import javafx.application.Platform;
 import javafx.collections.ObservableList;
@@ -15,6 +29,21 @@ import javafx.collections.ObservableList;
  * @author GunshipPenguin
  */
 public class ChatRoomManager {
+	/**
+	 * Number of clients to ask for on each page when fetching the roster of a
+	 * chat room.
+	 */
+	public static final int ROSTER_PAGE_SIZE = 500;
+	/**
+	 * Number of older chat messages to ask for each time the user pages back
+	 * through the history of a chat room.
+	 */
+	public static final int HISTORY_PAGE_SIZE = 50;
+	/**
+	 * Number of senders of chat messages not listed on the roster whose nicks
+	 * are remembered.
+	 */
+	public static final int SENDER_CACHE_SIZE = 1000;
 	/**
 	 * Connection object associated with this ChatRoomManager
 	 */
@@ -23,6 +52,10 @@ public class ChatRoomManager {
 	 * Name of the chat room that this ChatRoomManager represents.
 	 */
 	private String name;
+	/**
+	 * Id of the chat room that this ChatRoomManager represents.
+	 */
+	private int id;
 	/**
 	 * ObservableList of all chat messages that have been sent since the client
 	 * joined this chat room. This will be displayed in the UI.
@@ -33,11 +66,58 @@ public class ChatRoomManager {
 	 * to the chat room. This will be displayed in the UI.
 	 */
 	private ObservableList<ClientInfo> clients;
+	/**
+	 * Map of session ids to the ClientInfo objects of all users connected to
+	 * the chat room, used to find the client that an incoming Event refers to.
+	 * Unlike clients, it is updated as soon as an Event is handled rather than
+	 * on the UI thread.
+	 */
+	private ConcurrentMap<Integer, ClientInfo> clientsById;
+	/**
+	 * Version of the chat room's roster that clientsById reflects. Events older
+	 * than this version are ignored.
+	 */
+	private int version;
+	/**
+	 * Number of clients in the chat room, which may be larger than the size of
+	 * clients while the roster is still being fetched.
+	 */
+	private int clientCount;
+	/**
+	 * Sequence number to ask for older chat messages before, or -1 if the
+	 * server holds no older messages than those shown.
+	 */
+	private int historyCursor = -1;
+	/**
+	 * Map of session ids to the nicks of senders of chat messages that were
+	 * looked up on the server, as chat messages name their sender by session
+	 * id only. Emptied once it holds SENDER_CACHE_SIZE senders, unless chat
+	 * messages are waiting to be shown.
+	 */
+	private final Map<Integer, String> senderNicks = new HashMap<Integer, String>();
+	/**
+	 * Session ids of the senders that have been looked up on the server
+	 * without a reply yet.
+	 */
+	private final Set<Integer> requestedSenders = new HashSet<Integer>();
+	/**
+	 * Chat messages waiting for the nick of their sender, or of the sender of
+	 * an earlier chat message, to be looked up before they are shown, oldest
+	 * first.
+	 */
+	private final ArrayDeque<ChatMessageEvent> pendingMessages = new ArrayDeque<ChatMessageEvent>();
 
 	public ChatRoomManager(ChatRoomInfo chatRoomInfo, Connection conn) {
 		messages = FXCollections.observableArrayList();
 		clients = FXCollections.observableArrayList(chatRoomInfo.getClients());
+		clientsById = new ConcurrentHashMap<Integer, ClientInfo>();
+		for (ClientInfo clientInfo : chatRoomInfo.getClients()) {
+			clientsById.put(clientInfo.getId(), clientInfo);
+		}
 		name = chatRoomInfo.getName();
+		id = chatRoomInfo.getId();
+		version = chatRoomInfo.getVersion();
+		clientCount = chatRoomInfo.getClientCount();
 		this.conn = conn;
 	}
 
@@ -56,6 +136,75 @@ public class ChatRoomManager {
 		return;
 	}
 
+	/**
+	 * Adds the chat message message to the chat room once the nick of its
+	 * sender is known. If neither the roster nor an earlier lookup names the
+	 * sender, its nick is asked for from the server. Chat messages are shown
+	 * in the order they were received, so later ones wait behind message.
+	 * 
+	 * @param message
+	 *            The chat message received
+	 */
+	public synchronized void receiveChatMessage(ChatMessageEvent message) {
+		int senderId = message.getSenderId();
+		String nick = getSenderNick(senderId);
+		if (nick != null && pendingMessages.isEmpty()) {
+			addChatString("<" + nick + ">" + " " + message.getChatMessage());
+			return;
+		}
+		pendingMessages.add(message);
+		if (nick != null) {
+			// Remember the sender in case it leaves the roster while waiting
+			senderNicks.put(senderId, nick);
+		} else if (requestedSenders.add(senderId)) {
+			conn.sendRequest(new GetClientInfoRequest(id, senderId));
+		}
+		return;
+	}
+
+	/**
+	 * Records the nick of sender, looked up on the server, and shows the chat
+	 * messages that were waiting for it. A sender the server no longer knows
+	 * is shown by its session id.
+	 * 
+	 * @param sender
+	 *            The ClientInfo of the sender, with a null nick if the server
+	 *            did not know it
+	 */
+	public synchronized void addSender(ClientInfo sender) {
+		requestedSenders.remove(sender.getId());
+		if (senderNicks.size() >= SENDER_CACHE_SIZE && pendingMessages.isEmpty()) {
+			senderNicks.clear();
+		}
+		senderNicks.put(sender.getId(), sender.getNick() != null ? sender.getNick() : "#" + sender.getId());
+		while (!pendingMessages.isEmpty()) {
+			ChatMessageEvent message = pendingMessages.peek();
+			String nick = getSenderNick(message.getSenderId());
+			if (nick == null) {
+				break;
+			}
+			addChatString("<" + nick + ">" + " " + message.getChatMessage());
+			pendingMessages.poll();
+		}
+		return;
+	}
+
+	/**
+	 * Returns the nick of the client with session id senderId if it is listed
+	 * on the roster or has been looked up on the server.
+	 * 
+	 * @param senderId
+	 *            The session id of the client
+	 * @return The nick of the client, or null if it is not known
+	 */
+	private String getSenderNick(int senderId) {
+		ClientInfo clientInfo = clientsById.get(senderId);
+		if (clientInfo != null) {
+			return clientInfo.getNick();
+		}
+		return senderNicks.get(senderId);
+	}
+
 	/**
 	 * Returns the Connection object associated with this ChatRoomManager.
 	 * 
@@ -95,22 +244,61 @@ public class ChatRoomManager {
 		});
 	}
 
+	/**
+	 * Adds chat messages sent before the client joined, or before the oldest
+	 * message shown, above the messages already shown.
+	 * 
+	 * @param history
+	 *            The chat messages, oldest first
+	 * @param nextBefore
+	 *            The sequence number to ask for older messages before, or -1 if
+	 *            the server holds no older messages
+	 */
+	public synchronized void addChatHistory(List<ChatMessageEvent> history, int nextBefore) {
+		historyCursor = nextBefore;
+		final List<String> strings = new ArrayList<String>();
+		for (ChatMessageEvent message : history) {
+			strings.add("<" + message.getSenderNick() + ">" + " " + message.getChatMessage());
+		}
+		Platform.runLater(new Runnable() {
+			@Override
+			public void run() {
+				messages.addAll(0, strings);
+				return;
+			}
+		});
+		return;
+	}
+
+	/**
+	 * Asks the server for the chat messages sent before the oldest one shown.
+	 * 
+	 * @return True if they were asked for, false if the server holds no older
+	 *         messages
+	 */
+	public synchronized boolean requestOlderMessages() {
+		if (historyCursor < 0) {
+			return false;
+		}
+		conn.sendRequest(new GetChatHistoryRequest(id, historyCursor, HISTORY_PAGE_SIZE));
+		return true;
+	}
+
 	/**
 	 * Returns the ClientInfo object for the client in the chat room with
-	 * nickname nick.
+	 * session id id.
 	 * 
-	 * @param nick
-	 *            Nickname of the client whose ClientInfo object to return.
+	 * @param id
+	 *            Session id of the client whose ClientInfo object to return.
 	 * @return The ClientInfo object for the client in the chat room with
-	 *         nickname nick
+	 *         session id id
 	 */
-	public ClientInfo getClientInfoByNick(String nick) {
-		for (ClientInfo clientInfo : clients) {
-			if (clientInfo.getNick().equals(nick)) {
-				return clientInfo;
-			}
+	public ClientInfo getClientInfoById(int id) {
+		ClientInfo clientInfo = clientsById.get(id);
+		if (clientInfo != null) {
+			return clientInfo;
 		}
-		throw new RuntimeException("Client with nick of " + nick + " not found");
+		throw new RuntimeException("Client with id of " + id + " not found");
 	}
 
 	/**
@@ -120,6 +308,10 @@ public class ChatRoomManager {
 	 *            The client to add to the ChatRoomManager
 	 */
 	public synchronized void addClient(final ClientInfo client) {
+		if (clientsById.put(client.getId(), client) != null) {
+			return;
+		}
+		clientCount++;
 		Platform.runLater(new Runnable() {
 			@Override
 			public void run() {
@@ -130,26 +322,179 @@ public class ChatRoomManager {
 	}
 
 	/**
-	 * Removes the client with the nickname nick from this ChatRoomManager.
+	 * Applies the joins and leaves sent in a PresenceEvent and informs the user
+	 * of them. Ignored if the roster already includes them. If some changes
+	 * before fromVersion were missed, the ones sent are applied anyway and the
+	 * missed ones are requested from the server.
 	 * 
-	 * @param nick
-	 *            Nickname of client to remove
+	 * @param fromVersion
+	 *            The roster version that the changes start from
+	 * @param toVersion
+	 *            The roster version once the changes are applied
+	 * @param joined
+	 *            The clients who have joined and are still in the chat room
+	 * @param leftIds
+	 *            The session ids of the clients who have left
 	 */
-	public synchronized void removeClient(String nick) {
-		for (final ClientInfo ci : clients) {
-			if (ci.getNick().equals(nick)) {
-				Platform.runLater(new Runnable() {
-					@Override
-					public void run() {
-						clients.remove(ci);
-					}
-				});
-				break;
+	public synchronized void applyPresence(int fromVersion, int toVersion, List<ClientInfo> joined, int[] leftIds) {
+		if (toVersion <= version) {
+			return;
+		}
+		boolean missedChanges = fromVersion > version;
+		for (ClientInfo client : joined) {
+			if (!clientsById.containsKey(client.getId())) {
+				addClient(client);
+				addServerMessage("Client " + client.getNick() + " has joined");
 			}
 		}
+		for (int leftId : leftIds) {
+			ClientInfo leavingClient = removeClient(leftId);
+			if (leavingClient != null) {
+				addServerMessage("Client " + leavingClient.getNick() + " has left");
+			}
+		}
+		if (missedChanges) {
+			requestRosterChanges();
+		} else {
+			version = toVersion;
+			clientCount = clientsById.size();
+		}
+		return;
+	}
+
+	/**
+	 * Sets the number of clients in the chat room, for chat rooms too large to
+	 * be sent who joins and leaves.
+	 * 
+	 * @param clientCount
+	 *            The number of clients in the chat room
+	 */
+	public synchronized void setClientCount(int clientCount) {
+		this.clientCount = clientCount;
+		return;
+	}
+
+	/**
+	 * Adds the clients listed on a page of this chat room's roster. The first
+	 * page of a roster replaces the clients already held.
+	 * 
+	 * @param page
+	 *            The clients listed on the page
+	 * @param first
+	 *            True if this is the first page of the roster
+	 * @param pageClientCount
+	 *            The number of clients in the chat room when the page was
+	 *            taken
+	 * @param pageVersion
+	 *            The roster version when the page was taken
+	 */
+	public synchronized void addRosterPage(List<ClientInfo> page, boolean first, int pageClientCount,
+			int pageVersion) {
+		if (first) {
+			clientsById.clear();
+			Platform.runLater(new Runnable() {
+				@Override
+				public void run() {
+					clients.clear();
+				}
+			});
+		}
+		for (ClientInfo client : page) {
+			addClient(client);
+		}
+		clientCount = pageClientCount;
+		version = Math.max(version, pageVersion);
+		return;
+	}
+
+	/**
+	 * Applies the net changes to this chat room's roster since the version
+	 * this ChatRoomManager holds.
+	 * 
+	 * @param joined
+	 *            The clients who have joined and are still in the chat room
+	 * @param leftIds
+	 *            The session ids of the clients who have left
+	 * @param newVersion
+	 *            The roster version once the changes are applied
+	 */
+	public synchronized void applyRosterDelta(List<ClientInfo> joined, int[] leftIds, int newVersion) {
+		for (ClientInfo client : joined) {
+			addClient(client);
+		}
+		for (int leftId : leftIds) {
+			removeClient(leftId);
+		}
+		version = Math.max(version, newVersion);
+		clientCount = clientsById.size();
 		return;
 	}
 
+	/**
+	 * Asks the server for the page of this chat room's roster starting after
+	 * the client with session id afterId.
+	 * 
+	 * @param afterId
+	 *            The session id of the last client on the previous page, or -1
+	 *            for the first page
+	 */
+	public void requestRosterPage(int afterId) {
+		conn.sendRequest(new GetRosterRequest(id, -1, afterId, ROSTER_PAGE_SIZE));
+		return;
+	}
+
+	/**
+	 * Asks the server for the changes to this chat room's roster since the
+	 * version this ChatRoomManager holds. The server replies with the full
+	 * roster instead if it no longer remembers all of them.
+	 */
+	public void requestRosterChanges() {
+		conn.sendRequest(new GetRosterRequest(id, getVersion(), -1, ROSTER_PAGE_SIZE));
+		return;
+	}
+
+	/**
+	 * Removes the client with the session id id from this ChatRoomManager.
+	 * 
+	 * @param id
+	 *            Session id of client to remove
+	 * @return The ClientInfo of the removed client, or null if it was not in
+	 *         this ChatRoomManager
+	 */
+	public synchronized ClientInfo removeClient(int id) {
+		final ClientInfo ci = clientsById.remove(id);
+		if (ci != null) {
+			clientCount--;
+			Platform.runLater(new Runnable() {
+				@Override
+				public void run() {
+					clients.remove(ci);
+				}
+			});
+		}
+		return ci;
+	}
+
+	/**
+	 * Returns the version of the chat room's roster that this ChatRoomManager
+	 * holds.
+	 * 
+	 * @return The roster version held by this ChatRoomManager
+	 */
+	public synchronized int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the number of clients in the chat room, which may be more than
+	 * are listed by getClients while the roster is still being fetched.
+	 * 
+	 * @return The number of clients in the chat room
+	 */
+	public synchronized int getClientCount() {
+		return clientCount;
+	}
+
 	/**
 	 * Returns the list of chat messages for this ChatRoomManager.
 	 * 
@@ -178,6 +523,15 @@ public class ChatRoomManager {
 		return name;
 	}
 
+	/**
+	 * Returns the id of the chat room represented by this ChatRoomManager.
+	 * 
+	 * @return The id of the chat room represented by this ChatRoomManager
+	 */
+	public int getId() {
+		return id;
+	}
+
 	/**
 	 * Sets the name of this ChatRoomManager.
 	 * 
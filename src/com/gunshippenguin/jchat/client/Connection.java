@@ -1,20 +1,28 @@
 package com.gunshippenguin.jchat.client;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.gunshippenguin.jchat.shared.ChatRoomInfo;
 import com.gunshippenguin.jchat.shared.ClientInfo;
+import com.gunshippenguin.jchat.shared.Codec;
+import com.gunshippenguin.jchat.shared.Codecs;
+import com.gunshippenguin.jchat.shared.GetChatRoomDirectoryRequest;
 import com.gunshippenguin.jchat.shared.InitClientInfo;
 import com.gunshippenguin.jchat.shared.InitServerInfo;
 import com.gunshippenguin.jchat.shared.JoinChatRoomRequest;
 import com.gunshippenguin.jchat.shared.LeaveChatRoomRequest;
 import com.gunshippenguin.jchat.shared.Request;
+import com.gunshippenguin.jchat.shared.SearchRequest;
 
 /**
  * Class representing a connection to a server.
@@ -23,6 +31,14 @@ import com.gunshippenguin.jchat.shared.Request;
  *
  */
 public class Connection {
+	/**
+	 * Number of chat rooms to ask for on each page of the chat room directory.
+	 */
+	public static final int DIRECTORY_PAGE_SIZE = 50;
+	/**
+	 * Number of chat messages to ask for on each page of search results.
+	 */
+	public static final int SEARCH_PAGE_SIZE = 20;
 	/**
 	 * Hostname of the server.
 	 */
@@ -32,9 +48,14 @@ public class Connection {
 	 */
 	private int port;
 	/**
-	 * ObjectOutputStream used to send request to the server.
+	 * ObjectOutputStream used to send the InitClientInfo to the server.
 	 */
 	private ObjectOutputStream objectOut;
+	/**
+	 * Codec chosen by the server during the handshake. Used to encode Requests
+	 * and decode Events.
+	 */
+	private Codec codec;
 	/**
 	 * ServerEventHandler handling incoming events for this connection.
 	 */
@@ -52,6 +73,11 @@ public class Connection {
 	 * the user is currently in.
 	 */
 	private ArrayList<ChatRoomManager> chatRooms;
+	/**
+	 * Map of chat room ids to the same ChatRoomManagers as chatRooms, used to
+	 * find the chat room that an incoming Event refers to.
+	 */
+	private ConcurrentMap<Integer, ChatRoomManager> chatRoomsById;
 	/**
 	 * UserInterface object associated with this Connection.
 	 */
@@ -65,6 +91,25 @@ public class Connection {
 	 * Socket object connected to the server.
 	 */
 	private Socket socket;
+	/**
+	 * Prefix of the chat room directory listing last received from the server.
+	 */
+	private String directoryPrefix = "";
+	/**
+	 * Name of the chat room that the next page of the chat room directory
+	 * listing starts after, or the empty string if there are no more pages.
+	 */
+	private String directoryCursor = "";
+	/**
+	 * The last SearchRequest sent to the server, or null if none has been
+	 * sent.
+	 */
+	private SearchRequest lastSearch = null;
+	/**
+	 * Position that the next page of the last search results starts before,
+	 * or -1 if there are no more pages.
+	 */
+	private int searchCursor = -1;
 	/**
 	 * Logger object for Connection.
 	 */
@@ -90,6 +135,23 @@ public class Connection {
 		this.hostName = hostName;
 		this.port = port;
 		this.chatRooms = new ArrayList<ChatRoomManager>();
+		this.chatRoomsById = new ConcurrentHashMap<Integer, ChatRoomManager>();
+	}
+
+	/**
+	 * Returns the ChatRoomManager for the chat room with id id. If the user is
+	 * not in a chat room with id id, throws a runtime exception.
+	 * 
+	 * @param id
+	 *            The id of the chat room whose ChatRoomManager to return
+	 * @return The ChatRoomManager for the chat room with id id
+	 */
+	public ChatRoomManager getChatRoomManagerById(int id) {
+		ChatRoomManager chatRoomManager = chatRoomsById.get(id);
+		if (chatRoomManager != null) {
+			return chatRoomManager;
+		}
+		throw new RuntimeException("ChatRoom with id of " + id + " not found");
 	}
 
 	/**
@@ -119,14 +181,119 @@ public class Connection {
 	public void sendRequest(Request r) {
 		logger.log(Level.FINER, "Sending request - " + r.toString());
 		try {
-			objectOut.reset();
-			objectOut.writeObject(r);
+			socket.getOutputStream().write(codec.encode(r));
 		} catch (IOException ioe) {
 			ioe.printStackTrace();
 		}
 		return;
 	}
 
+	/**
+	 * Asks the server for the first page of the chat rooms whose names start
+	 * with prefix.
+	 * 
+	 * @param prefix
+	 *            The prefix that the names of the listed chat rooms must start
+	 *            with, or the empty string for every chat room
+	 */
+	public void requestChatRoomDirectory(String prefix) {
+		sendRequest(new GetChatRoomDirectoryRequest(prefix, "", DIRECTORY_PAGE_SIZE));
+		return;
+	}
+
+	/**
+	 * Asks the server for the next page of the chat room directory listing
+	 * last received, if there is one.
+	 * 
+	 * @return True if the next page was requested, false if there is none
+	 */
+	public boolean requestMoreChatRooms() {
+		String prefix;
+		String cursor;
+		synchronized (this) {
+			prefix = directoryPrefix;
+			cursor = directoryCursor;
+		}
+		if (cursor.isEmpty()) {
+			return false;
+		}
+		sendRequest(new GetChatRoomDirectoryRequest(prefix, cursor, DIRECTORY_PAGE_SIZE));
+		return true;
+	}
+
+	/**
+	 * Remembers where the next page of the chat room directory listing
+	 * starts.
+	 * 
+	 * @param prefix
+	 *            The prefix of the listing
+	 * @param cursor
+	 *            The name of the last chat room received if there are more, the
+	 *            empty string otherwise
+	 */
+	public synchronized void setChatRoomDirectoryCursor(String prefix, String cursor) {
+		directoryPrefix = prefix;
+		directoryCursor = cursor;
+		return;
+	}
+
+	/**
+	 * Asks the server for the first page of the chat messages containing every
+	 * word of query that match the other conditions given.
+	 * 
+	 * @param query
+	 *            The words that the messages must contain
+	 * @param senderNick
+	 *            The nick of the client that must have sent the messages, or
+	 *            the empty string for any client
+	 * @param chatRoomName
+	 *            The name of the chat room the messages must have been sent
+	 *            to, or the empty string for any chat room
+	 * @param sinceMillis
+	 *            The earliest time the messages may have been sent at, or 0 for
+	 *            no limit
+	 */
+	public void search(String query, String senderNick, String chatRoomName, long sinceMillis) {
+		SearchRequest request = new SearchRequest(query, senderNick, chatRoomName, sinceMillis, 0, -1,
+				SEARCH_PAGE_SIZE);
+		synchronized (this) {
+			lastSearch = request;
+			searchCursor = -1;
+		}
+		sendRequest(request);
+		return;
+	}
+
+	/**
+	 * Asks the server for the next page of the last search results received,
+	 * if there is one.
+	 * 
+	 * @return True if the next page was requested, false if there is none
+	 */
+	public boolean requestMoreSearchResults() {
+		SearchRequest request;
+		synchronized (this) {
+			if (lastSearch == null || searchCursor < 0) {
+				return false;
+			}
+			request = lastSearch.nextPage(searchCursor);
+		}
+		sendRequest(request);
+		return true;
+	}
+
+	/**
+	 * Remembers where the next page of the last search results starts.
+	 * 
+	 * @param cursor
+	 *            The position to ask for the next page before, or -1 if there
+	 *            are no more pages
+	 */
+	public synchronized void setSearchCursor(int cursor) {
+		searchCursor = cursor;
+		return;
+	}
+
 	/**
 	 * Returns the UserInterface object associated with this Connection.
 	 * 
@@ -178,7 +345,11 @@ public class Connection {
 	public void addChatRoom(ChatRoomInfo chatRoomInfo) {
 		ChatRoomManager newCrm = new ChatRoomManager(chatRoomInfo, this);
 		chatRooms.add(newCrm);
+		chatRoomsById.put(newCrm.getId(), newCrm);
 		ui.addChatRoom(this, newCrm);
+		if (!chatRoomInfo.isRosterComplete()) {
+			newCrm.requestRosterPage(-1);
+		}
 		return;
 	}
 
@@ -195,6 +366,7 @@ public class Connection {
 		if (!crm.isDefaultChatRoom()) {
 			sendRequest(new LeaveChatRoomRequest(name));
 			chatRooms.remove(crm);
+			chatRoomsById.remove(crm.getId());
 		}
 		return;
 	}
@@ -232,7 +404,8 @@ public class Connection {
 	public boolean connect(String nick) {
 		try {
 			this.socket = new Socket(hostName, port);
-			this.objectOut = new ObjectOutputStream(socket.getOutputStream());
+			socket.setTcpNoDelay(true);
+			this.objectOut = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 		} catch (IOException e) {
 			e.printStackTrace();
 			logger.log(Level.INFO, "Connection to server " + socket.getInetAddress().getHostAddress() + " on port "
@@ -240,11 +413,12 @@ public class Connection {
 			return false;
 		}
 
-		InitClientInfo ici = new InitClientInfo(nick);
+		InitClientInfo ici = new InitClientInfo(nick, Codecs.getNames());
 		InitServerInfo isi;
 		try {
 			// Send the InitClientInfo
 			objectOut.writeObject(ici);
+			objectOut.flush();
 
 			ObjectInputStream ois = new ObjectInputStream(socket.getInputStream());
 			isi = (InitServerInfo) ois.readObject();
@@ -255,6 +429,7 @@ public class Connection {
 			// Default chat room for server
 			defaultChatRoom = new ChatRoomManager(isi.getDefaultChatRoom(), this);
 			chatRooms.add(defaultChatRoom);
+			chatRoomsById.put(defaultChatRoom.getId(), defaultChatRoom);
 
 			// Handle flags in InitServerInfo
 			if ((isi.getFlags() & InitServerInfo.BAD_NICK) == InitServerInfo.BAD_NICK) {
@@ -262,12 +437,22 @@ public class Connection {
 						"Nickname already taken, your nick has been set to " + isi.getSelfClient().getNick());
 			}
 
+			// Use the codec chosen by the server for everything after the
+			// handshake
+			codec = Codecs.forName(isi.getCodec());
+
 			// Create a serverEventHandler
-			eventHandler = new ServerEventHandler(this, ois);
+			eventHandler = new ServerEventHandler(this, codec, new BufferedInputStream(socket.getInputStream()));
 			eventHandlerThread = new Thread(eventHandler);
 			eventHandlerThread.setDaemon(true);
 			eventHandlerThread.setName("EventHandlerThread");
 			eventHandlerThread.start();
+
+			// Fetch the default chat room's roster if the server only sent
+			// its client count
+			if (!isi.getDefaultChatRoom().isRosterComplete()) {
+				defaultChatRoom.requestRosterPage(-1);
+			}
 			logger.log(Level.INFO, "Connected to server " + socket.getInetAddress().getHostAddress() + " on port "
 					+ Integer.toString(socket.getPort()) + " successfully");
 
@@ -2,10 +2,11 @@ package com.gunshippenguin.jchat.client;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.io.InputStream;
 import java.net.SocketException;
 import java.util.logging.Level;
 
+import com.gunshippenguin.jchat.shared.Codec;
 import com.gunshippenguin.jchat.shared.Event;
 import java.util.logging.Logger;
 
@@ -22,33 +23,40 @@ public class ServerEventHandler implements Runnable {
 	 */
 	private Connection conn;
 	/**
-	 * The ObjectInputStream to listen for incoming events on.
+	 * The Codec used to decode incoming events.
 	 */
-	private ObjectInputStream ois;
+	private Codec codec;
+	/**
+	 * The InputStream to listen for incoming events on.
+	 */
+	private InputStream in;
 	/**
 	 * Logger object for ServerEventHandler.
 	 */
 	private static final Logger logger = Logger.getLogger(ServerEventHandler.class.getName());
 
 	/**
-	 * Sets up this ServerEventHandler to listen for incoming events on the
-	 * ObjectInputStream ois, and to treat all events as if they are coming from
-	 * the server associated with the Connection conn.
+	 * Sets up this ServerEventHandler to listen for incoming events encoded
+	 * with the Codec codec on the InputStream in, and to treat all events as if
+	 * they are coming from the server associated with the Connection conn.
 	 * 
 	 * @param conn
 	 *            - The connection to be associated with this
 	 *            ServerEventHandler.
-	 * @param ois
-	 *            - The ObjectInputStream to listen for incoming events on.
+	 * @param codec
+	 *            - The Codec used to decode incoming events.
+	 * @param in
+	 *            - The InputStream to listen for incoming events on.
 	 */
-	public ServerEventHandler(Connection conn, ObjectInputStream ois) {
+	public ServerEventHandler(Connection conn, Codec codec, InputStream in) {
 		this.conn = conn;
-		this.ois = ois;
+		this.codec = codec;
+		this.in = in;
 	}
 
 	/**
-	 * Listens for incoming events on ois and calls their handle method. If an
-	 * exception is caught when trying to read from ois, disconnects from the
+	 * Listens for incoming events on in and calls their handle method. If an
+	 * exception is caught when trying to read from in, disconnects from the
 	 * server.
 	 */
 	@Override
@@ -56,7 +64,7 @@ public class ServerEventHandler implements Runnable {
 		Event incomingEvent = null;
 		do {
 			try {
-				incomingEvent = (Event) ois.readObject();
+				incomingEvent = (Event) codec.read(in);
 				logger.log(Level.FINER, "Received event " + incomingEvent.toString());
 				incomingEvent.handle(conn);
 			} catch (EOFException e) {
@@ -65,7 +73,7 @@ public class ServerEventHandler implements Runnable {
 			} catch (SocketException s) {
 				logger.log(Level.INFO, "Disconnected from " + conn.getConnectionInfo());
 				return;
-			} catch (ClassNotFoundException | IOException e) {
+			} catch (IOException e) {
 				logger.log(Level.SEVERE, "Something went wrong when trying to receive an event from the server");
 				e.printStackTrace();
 			}
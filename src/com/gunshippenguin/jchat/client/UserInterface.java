@@ -1,10 +1,10 @@
 package com.gunshippenguin.jchat.client;
 
 import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
 
 import com.gunshippenguin.jchat.shared.CreateChatRoomRequest;
 import com.gunshippenguin.jchat.shared.ClientInfo;
-import com.gunshippenguin.jchat.shared.GetChatRoomListRequest;
 import com.gunshippenguin.jchat.shared.SendChatMessageRequest;
 
 import javafx.scene.input.KeyEvent;
@@ -225,7 +225,7 @@ public class UserInterface extends Application {
 			recvCommand(splitCmd);
 		} else {
 			ChatRoomManager crm = getSelectedChatRoom().getValue();
-			SendChatMessageRequest request = new SendChatMessageRequest(msg, crm.getName());
+			SendChatMessageRequest request = new SendChatMessageRequest(msg, crm.getId());
 			crm.getConnection().sendRequest(request);
 		}
 		chatTextField.clear();
@@ -313,9 +313,63 @@ public class UserInterface extends Application {
 	 */
 	private void loadCommands() {
 		commands = new HashMap<String, Command>();
-		commands.put("listchatrooms", new Command("List chat rooms", "") {
+		commands.put("listchatrooms", new Command("List chat rooms", "[name prefix]") {
 			public void runCommand(String[] params) {
-				getSelectedChatRoom().getValue().getConnection().sendRequest(new GetChatRoomListRequest());
+				getSelectedChatRoom().getValue().getConnection()
+						.requestChatRoomDirectory(params.length >= 2 ? params[1] : "");
+			}
+		});
+		commands.put("morechatrooms", new Command("List more chat rooms", "") {
+			public void runCommand(String[] params) {
+				if (!getSelectedChatRoom().getValue().getConnection().requestMoreChatRooms()) {
+					showUiMessage("No more chat rooms to list");
+				}
+			}
+		});
+		commands.put("history", new Command("Show older messages in the current chat room", "") {
+			public void runCommand(String[] params) {
+				if (!getSelectedChatRoom().getValue().requestOlderMessages()) {
+					showUiMessage("No older messages to show");
+				}
+			}
+		});
+		commands.put("search", new Command("Search the messages in your chat rooms",
+				"[from:<nick>] [in:<chat room name>] [since:<hours>h|<days>d] <words>") {
+			public void runCommand(String[] params) {
+				if (getSelectedChatRoom() == null) {
+					showUiMessage("You are not connected to a server to search");
+					return;
+				}
+				String senderNick = "";
+				String chatRoomName = "";
+				long sinceMillis = 0;
+				StringBuilder query = new StringBuilder();
+				for (int i = 1; i < params.length; i++) {
+					if (params[i].startsWith("from:")) {
+						senderNick = params[i].substring("from:".length());
+					} else if (params[i].startsWith("in:")) {
+						chatRoomName = params[i].substring("in:".length());
+					} else if (params[i].matches("since:[0-9]+[hd]")) {
+						long amount = Long.parseLong(params[i].substring("since:".length(), params[i].length() - 1));
+						TimeUnit unit = params[i].endsWith("h") ? TimeUnit.HOURS : TimeUnit.DAYS;
+						sinceMillis = System.currentTimeMillis() - unit.toMillis(amount);
+					} else {
+						query.append(params[i]).append(' ');
+					}
+				}
+				if (query.length() == 0 && senderNick.isEmpty() && chatRoomName.isEmpty()) {
+					showUiMessage("Incorrect number of parameters");
+					return;
+				}
+				getSelectedChatRoom().getValue().getConnection().search(query.toString().trim(), senderNick,
+						chatRoomName, sinceMillis);
+			}
+		});
+		commands.put("moresearch", new Command("Show more search results", "") {
+			public void runCommand(String[] params) {
+				if (!getSelectedChatRoom().getValue().getConnection().requestMoreSearchResults()) {
+					showUiMessage("No more search results to show");
+				}
 			}
 		});
 		commands.put("join", new Command("Join a chat room", "<chat room name>") {
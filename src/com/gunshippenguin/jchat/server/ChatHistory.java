@@ -0,0 +1,359 @@
+package com.gunshippenguin.jchat.server;
+
+import java.util.ArrayList;
+
+import com.gunshippenguin.jchat.shared.ChatHistoryEvent;
+import com.gunshippenguin.jchat.shared.ChatMessageEvent;
+
+/**
+ * Class holding the most recent chat messages sent to a ChatRoom, so that they
+ * can be shown to clients who join it later. Holds at most maxMessages
+ * messages taking up an estimated maxBytes of memory between them, dropping
+ * the oldest messages to make room for new ones.
+ * 
+ * Every message is given a sequence number one greater than the last, and
+ * clients page back through the history by asking for the messages before a
+ * sequence number. Messages are held in a circular array that grows as
+ * messages are added and can be shrunk to fit once the ChatRoom falls idle, so
+ * that quiet chat rooms hold no more memory than their messages need.
+ * 
+ * If the server keeps a MessageLog, every message added is also queued to be
+ * written to the chat room's RoomLog, and the ChatHistory starts out holding
+ * the newest messages in the RoomLog, numbered as they were. Pages older than
+ * the messages held in memory are then read from the RoomLog, without holding
+ * the lock that adding a message takes. Since that reads the disk, callers
+ * first try getPageIfHeld and only call getPage from a thread that does not
+ * serve clients or run a chat room's exclusive tasks.
+ * 
+ * @author GunshipPenguin
+ */
+class ChatHistory {
+	/**
+	 * Number of slots in the array of a ChatHistory when its first message is
+	 * added.
+	 */
+	private static final int INITIAL_CAPACITY = 8;
+	/**
+	 * Estimated number of bytes taken by a message besides the characters of
+	 * its text and sender's nick.
+	 */
+	private static final int MESSAGE_OVERHEAD = 64;
+	/**
+	 * Largest estimated number of bytes of messages returned on one page, so
+	 * that a page always fits in a single frame.
+	 */
+	private static final long MAX_PAGE_BYTES = 256 * 1024;
+	/**
+	 * Largest number of messages to hold.
+	 */
+	private final int maxMessages;
+	/**
+	 * Largest estimated number of bytes for the held messages to take up.
+	 */
+	private final long maxBytes;
+	/**
+	 * Circular array of held messages, the oldest at index head.
+	 */
+	private ChatMessageEvent[] messages = new ChatMessageEvent[0];
+	/**
+	 * Index in messages of the oldest held message.
+	 */
+	private int head = 0;
+	/**
+	 * Number of messages held.
+	 */
+	private int size = 0;
+	/**
+	 * Estimated number of bytes taken up by the held messages.
+	 */
+	private long bytes = 0;
+	/**
+	 * Sequence number that the next message added will be given.
+	 */
+	private int nextSequence = 0;
+	/**
+	 * Value of System.nanoTime() when the last message was added.
+	 */
+	private long lastAdded = System.nanoTime();
+	/**
+	 * The MessageLog that added messages are written to, or null if messages
+	 * are only held in memory.
+	 */
+	private final MessageLog messageLog;
+	/**
+	 * The RoomLog of the chat room, or null if messages are only held in
+	 * memory.
+	 */
+	private final RoomLog roomLog;
+
+	/**
+	 * Creates a new ChatHistory for the chat room with id chatRoomId, holding
+	 * the newest messages in roomLog if there is one.
+	 * 
+	 * @param maxMessages
+	 *            The largest number of messages to hold
+	 * @param maxBytes
+	 *            The largest estimated number of bytes for the held messages to
+	 *            take up
+	 * @param chatRoomId
+	 *            The id of the chat room
+	 * @param messageLog
+	 *            The MessageLog to write added messages to, or null to only
+	 *            hold them in memory
+	 * @param roomLog
+	 *            The RoomLog of the chat room, or null to only hold messages in
+	 *            memory
+	 */
+	ChatHistory(int maxMessages, long maxBytes, int chatRoomId, MessageLog messageLog, RoomLog roomLog) {
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+		this.messageLog = messageLog;
+		this.roomLog = roomLog;
+		if (roomLog != null) {
+			int end = roomLog.getEndSequence();
+			nextSequence = Math.max(roomLog.getStartSequence(), end - maxMessages);
+			for (ChatMessageEvent evnt : roomLog.read(chatRoomId, nextSequence, end)) {
+				hold(evnt);
+			}
+		}
+	}
+
+	/**
+	 * Adds the chat message evnt to the history, dropping the oldest messages
+	 * if the history would otherwise hold too many or take up too much memory.
+	 * A message too large to fit at all is held as a placeholder that uses up
+	 * its sequence number but is never returned, so that the older messages
+	 * are kept. If there is a RoomLog, evnt is queued to be written to
+	 * it.
+	 * 
+	 * @param evnt
+	 *            The chat message to add
+	 */
+	synchronized void add(ChatMessageEvent evnt) {
+		lastAdded = System.nanoTime();
+		if (roomLog != null) {
+			messageLog.append(roomLog, nextSequence, evnt);
+		}
+		hold(evnt);
+		return;
+	}
+
+	/**
+	 * Holds the chat message evnt in memory as the message with the next
+	 * sequence number. evnt may be null for a message that was not written to
+	 * the RoomLog, which takes up a sequence number but is never returned.
+	 * A message too large to fit at all is held as null in the same way.
+	 * Must be called while holding the lock on this ChatHistory.
+	 * 
+	 * @param evnt
+	 *            The chat message to hold, or null
+	 */
+	private void hold(ChatMessageEvent evnt) {
+		long evntBytes = estimateBytes(evnt);
+		if (evntBytes > maxBytes) {
+			evnt = null;
+			evntBytes = estimateBytes(null);
+		}
+		nextSequence++;
+		while (size > 0 && (size >= maxMessages || bytes + evntBytes > maxBytes)) {
+			removeOldest();
+		}
+		if (size == messages.length) {
+			resize(Math.min(maxMessages, Math.max(INITIAL_CAPACITY, messages.length * 2)));
+		}
+		messages[(head + size) % messages.length] = evnt;
+		size++;
+		bytes += evntBytes;
+		return;
+	}
+
+	/**
+	 * Returns a ChatHistoryEvent for the chat room with id chatRoomId holding
+	 * up to limit of the held messages sent before the message with sequence
+	 * number before, oldest first. Fewer are returned if they would take up
+	 * more than MAX_PAGE_BYTES. If there is a RoomLog and the page reaches
+	 * back past the oldest message held in memory, the page is read from the
+	 * RoomLog instead.
+	 * 
+	 * @param chatRoomId
+	 *            The id of the chat room the history belongs to
+	 * @param before
+	 *            The sequence number to return the messages before, or -1 to
+	 *            return the most recent messages
+	 * @param limit
+	 *            The largest number of messages to return
+	 * @return A ChatHistoryEvent holding the requested messages
+	 */
+	ChatHistoryEvent getPage(int chatRoomId, int before, int limit) {
+		int end;
+		synchronized (this) {
+			end = before < 0 || before > nextSequence ? nextSequence : before;
+			if (isHeld(end, limit)) {
+				return getHeldPage(chatRoomId, end, limit);
+			}
+		}
+		return roomLog.getPage(chatRoomId, end, limit);
+	}
+
+	/**
+	 * Returns the same page as getPage if it can be made from the messages
+	 * held in memory, without reading the RoomLog.
+	 * 
+	 * @param chatRoomId
+	 *            The id of the chat room the history belongs to
+	 * @param before
+	 *            The sequence number to return the messages before, or -1 to
+	 *            return the most recent messages
+	 * @param limit
+	 *            The largest number of messages to return
+	 * @return A ChatHistoryEvent holding the requested messages, or null if
+	 *         they must be read from the RoomLog with getPage
+	 */
+	synchronized ChatHistoryEvent getPageIfHeld(int chatRoomId, int before, int limit) {
+		int end = before < 0 || before > nextSequence ? nextSequence : before;
+		return isHeld(end, limit) ? getHeldPage(chatRoomId, end, limit) : null;
+	}
+
+	/**
+	 * Returns a ChatHistoryEvent holding up to limit of the most recent
+	 * messages held in memory, oldest first, never reading the RoomLog. Older
+	 * messages, even if they are in the RoomLog, are left for the client to
+	 * ask for with getPage.
+	 * 
+	 * @param chatRoomId
+	 *            The id of the chat room the history belongs to
+	 * @param limit
+	 *            The largest number of messages to return
+	 * @return A ChatHistoryEvent holding the most recent held messages
+	 */
+	synchronized ChatHistoryEvent getRecentPage(int chatRoomId, int limit) {
+		return getHeldPage(chatRoomId, nextSequence, limit);
+	}
+
+	/**
+	 * Returns true if the page of up to limit messages before the message with
+	 * sequence number end should be made from the messages held in memory,
+	 * which is the case unless it reaches back past them into the RoomLog.
+	 * Must be called while holding the lock on this ChatHistory.
+	 * 
+	 * @param end
+	 *            The sequence number to return the messages before
+	 * @param limit
+	 *            The largest number of messages to return
+	 * @return True if the page should be made from the held messages, false
+	 *         if it should be read from the RoomLog
+	 */
+	private boolean isHeld(int end, int limit) {
+		int oldest = nextSequence - size;
+		return roomLog == null || end - limit >= oldest || roomLog.getStartSequence() >= oldest
+				|| roomLog.getEndSequence() < end;
+	}
+
+	/**
+	 * Returns a ChatHistoryEvent holding up to limit of the messages held in
+	 * memory sent before the message with sequence number end, oldest first.
+	 * Must be called while holding the lock on this ChatHistory.
+	 * 
+	 * @param chatRoomId
+	 *            The id of the chat room the history belongs to
+	 * @param end
+	 *            The sequence number to return the messages before
+	 * @param limit
+	 *            The largest number of messages to return
+	 * @return A ChatHistoryEvent holding the requested messages
+	 */
+	private ChatHistoryEvent getHeldPage(int chatRoomId, int end, int limit) {
+		int oldest = nextSequence - size;
+		end = Math.max(end, oldest);
+		int start = end;
+		long pageBytes = 0;
+		while (start > oldest && end - start < limit) {
+			pageBytes += estimateBytes(messages[(head + start - 1 - oldest) % messages.length]);
+			if (pageBytes > MAX_PAGE_BYTES && start < end) {
+				break;
+			}
+			start--;
+		}
+		ArrayList<ChatMessageEvent> page = new ArrayList<ChatMessageEvent>(end - start);
+		for (int sequence = start; sequence < end; sequence++) {
+			ChatMessageEvent evnt = messages[(head + sequence - oldest) % messages.length];
+			if (evnt != null) {
+				page.add(evnt);
+			}
+		}
+		int floor = roomLog == null ? oldest : Math.min(oldest, roomLog.getStartSequence());
+		return new ChatHistoryEvent(chatRoomId, page, start > floor ? start : -1);
+	}
+
+	/**
+	 * Returns the sequence number that the RoomLog has reached, which may be
+	 * behind the messages added while they wait to be written.
+	 * 
+	 * @return The sequence number after the newest message in the RoomLog, or
+	 *         -1 if messages are only held in memory
+	 */
+	int getLoggedEnd() {
+		return roomLog == null ? -1 : roomLog.getEndSequence();
+	}
+
+	/**
+	 * Shrinks the array holding the messages to fit them if no message has been
+	 * added for idleNanos nanoseconds.
+	 * 
+	 * @param idleNanos
+	 *            The number of nanoseconds without a message after which the
+	 *            history is shrunk
+	 * @return True if the array was shrunk, false otherwise
+	 */
+	synchronized boolean trimIfIdle(long idleNanos) {
+		if (size == messages.length || System.nanoTime() - lastAdded < idleNanos) {
+			return false;
+		}
+		resize(size);
+		return true;
+	}
+
+	/**
+	 * Drops the oldest held message. Must be called while holding the lock on
+	 * this ChatHistory.
+	 */
+	private void removeOldest() {
+		bytes -= estimateBytes(messages[head]);
+		messages[head] = null;
+		head = (head + 1) % messages.length;
+		size--;
+		return;
+	}
+
+	/**
+	 * Moves the held messages to a new array with capacity slots, oldest
+	 * first. Must be called while holding the lock on this ChatHistory.
+	 * 
+	 * @param capacity
+	 *            The number of slots in the new array, at least size
+	 */
+	private void resize(int capacity) {
+		ChatMessageEvent[] resized = new ChatMessageEvent[capacity];
+		for (int i = 0; i < size; i++) {
+			resized[i] = messages[(head + i) % messages.length];
+		}
+		messages = resized;
+		head = 0;
+		return;
+	}
+
+	/**
+	 * Returns an estimate of the number of bytes of memory taken by the chat
+	 * message evnt.
+	 * 
+	 * @param evnt
+	 *            The chat message, or null
+	 * @return The estimated number of bytes taken by evnt
+	 */
+	private static long estimateBytes(ChatMessageEvent evnt) {
+		if (evnt == null) {
+			return MESSAGE_OVERHEAD;
+		}
+		return MESSAGE_OVERHEAD + 2L * (evnt.getChatMessage().length() + evnt.getSenderNick().length());
+	}
+}
@@ -1,74 +1,570 @@
 package com.gunshippenguin.jchat.server;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
 import com.gunshippenguin.jchat.shared.AcceptedToChatRoomEvent;
+import com.gunshippenguin.jchat.shared.ChatHistoryEvent;
+import com.gunshippenguin.jchat.shared.ChatMessageEvent;
 import com.gunshippenguin.jchat.shared.ChatRoomInfo;
+import com.gunshippenguin.jchat.shared.ClientInfo;
+import com.gunshippenguin.jchat.shared.ClientInfoEvent;
 import com.gunshippenguin.jchat.shared.Event;
-import com.gunshippenguin.jchat.shared.JoinChatRoomEvent;
-import com.gunshippenguin.jchat.shared.LeaveChatRoomEvent;
+import com.gunshippenguin.jchat.shared.PresenceEvent;
+import com.gunshippenguin.jchat.shared.RosterDeltaEvent;
+import com.gunshippenguin.jchat.shared.RosterPageEvent;
 
 /**
  * Class representing a chat room on the server side. Contains methods to obtain
  * information about the chat room and interface with its connected clients.
  * 
+ * Joins, leaves and other changes to the state of a ChatRoom are made by tasks
+ * passed to runExclusive. Normally these run on the calling thread while lock
+ * is held. If the server has room threads, each ChatRoom is instead given one
+ * of them and its tasks are queued to run there in order, so that no lock is
+ * needed and busy chat rooms on different room threads never contend.
+ * 
+ * If the server gives chat rooms a RoomRing, chat messages are published to it
+ * rather than queued for each member, and each member's OutboundQueue reads
+ * them from the ring at its own pace. Such chat messages may then be written to
+ * a member after events sent to it later, such as PresenceEvents.
+ * 
+ * The most recent chat messages are also kept in a ChatHistory, bounded both
+ * in number and in size, and the newest of them are sent to each client that
+ * joins.
+ * 
+ * If the server is one node of a Cluster, the ChatRoom may be a replica of a
+ * chat room owned by another node. Chat messages sent to a replica are
+ * forwarded to the owner, which sends them back to be delivered to the
+ * replica's members, and the owner is told when the replica gains its first
+ * member and loses its last.
+ * 
  * @author GunshipPenguin
  *
  */
 public class ChatRoom {
+	/**
+	 * Largest roster that is sent in full to a client joining a ChatRoom.
+	 * Clients joining a larger ChatRoom are sent only its client count and
+	 * fetch the roster a page at a time.
+	 */
+	public static final int INLINE_ROSTER_LIMIT = 100;
+	/**
+	 * Largest number of clients listed on a single RosterPageEvent.
+	 */
+	public static final int MAX_ROSTER_PAGE = 500;
+	/**
+	 * Largest number of chat messages returned on one page of the history of a
+	 * ChatRoom.
+	 */
+	public static final int MAX_HISTORY_PAGE = 100;
+	/**
+	 * Number of roster changes remembered so that clients holding a recent
+	 * version of the roster can be sent only what has changed since.
+	 */
+	static final int ROSTER_HISTORY_SIZE = 1024;
+	/**
+	 * Number of recent senders of chat messages whose nicks are remembered, so
+	 * that members can look up senders their rosters do not list.
+	 */
+	static final int SENDER_NICK_CACHE_SIZE = 1024;
 	protected ChatRoomInfo chatRoomInfo;
-	protected ArrayList<Client> clients;
+	/**
+	 * The ChatServer that this ChatRoom is on.
+	 */
+	protected final ChatServer server;
+	/**
+	 * Number of milliseconds that presence changes are collected for before
+	 * being sent to the members of this ChatRoom in a single PresenceEvent, 0
+	 * to send them as soon as they happen.
+	 */
+	private final long presenceBatchMillis;
+	/**
+	 * Number of members above which PresenceEvents carry only the client count
+	 * of this ChatRoom rather than who joined and left.
+	 */
+	private final int presenceLargeRoomThreshold;
+	/**
+	 * Roster version that the last PresenceEvent sent to the members of this
+	 * ChatRoom brought them up to. Only used by exclusive tasks.
+	 */
+	private int presenceVersion = 0;
+	/**
+	 * Names of chat rooms created since the last PresenceEvent, to be included
+	 * in the next one. Only used by exclusive tasks.
+	 */
+	private final ArrayList<String> pendingChatRoomsAdded = new ArrayList<String>();
+	/**
+	 * True while a PresenceEvent is scheduled to be sent. Only used by
+	 * exclusive tasks.
+	 */
+	private boolean presenceScheduled = false;
+	/**
+	 * Map of nicks to the Clients in this ChatRoom, used for constant time
+	 * lookups. Only modified by exclusive tasks.
+	 */
+	private final ConcurrentMap<String, Client> clientsByNick = new ConcurrentHashMap<String, Client>();
+	/**
+	 * Array of all Clients in this ChatRoom that broadcasts iterate over. It is
+	 * never modified; joins and leaves replace it with a new array, so
+	 * broadcasts never contend with them.
+	 */
+	private volatile Client[] clients = new Client[0];
+	/**
+	 * The most recent changes to the roster of this ChatRoom, oldest first and
+	 * at most ROSTER_HISTORY_SIZE of them. Only used by exclusive tasks.
+	 */
+	private final ArrayDeque<RosterChange> rosterHistory = new ArrayDeque<RosterChange>();
+	/**
+	 * Lock held while exclusive tasks run, unless this ChatRoom has a room
+	 * thread. A ReentrantLock is used rather than synchronized methods because
+	 * events are written to sockets while it is held, which would pin the
+	 * carrier of a virtual thread.
+	 */
+	protected final ReentrantLock lock = new ReentrantLock();
+	/**
+	 * Executor running the room thread that exclusive tasks are queued on, or
+	 * null if they run on the calling thread while lock is held.
+	 */
+	private final Executor executor;
+	/**
+	 * Number of members at which broadcasts to this ChatRoom are split across
+	 * the server's fan-out lanes rather than sent from one thread.
+	 */
+	private final int fanOutThreshold;
+	/**
+	 * Number of fan-out lanes on the server, 0 if broadcasts are never split.
+	 */
+	private final int fanOutLanes;
+	/**
+	 * The members of this ChatRoom split by the fan-out lane that events to
+	 * them are sent from. Each entry is replaced rather than modified, like
+	 * clients. Empty if there are no fan-out lanes.
+	 */
+	private final AtomicReferenceArray<Client[]> laneClients;
+	/**
+	 * True once this ChatRoom has reached fanOutThreshold members. From then
+	 * on every event to its members is sent from their fan-out lane, even if
+	 * the ChatRoom shrinks again, so that no event overtakes one queued
+	 * before it.
+	 */
+	private volatile boolean fanningOut = false;
+	/**
+	 * Number of chat messages published between checks of how far behind the
+	 * slowest member of this ChatRoom is in reading its RoomRing.
+	 */
+	private static final int RING_LAG_CHECK_INTERVAL = 1024;
+	/**
+	 * Ring that chat messages sent to this ChatRoom are published to, or null
+	 * if they are queued for each member.
+	 */
+	private final RoomRing ring;
+	/**
+	 * Map of the members of this ChatRoom to their cursors in ring. Empty if
+	 * there is no ring.
+	 */
+	private final ConcurrentMap<Client, RoomRing.Cursor> ringCursors = new ConcurrentHashMap<Client, RoomRing.Cursor>();
+	/**
+	 * Map of session ids to the nicks of the recent senders of chat messages
+	 * to this ChatRoom, including senders on other nodes of a Cluster. Chat
+	 * messages are sent to clients with only their sender's session id, and a
+	 * client whose roster does not list the sender asks for its nick as soon
+	 * as the message arrives, so the map is simply emptied once it holds
+	 * SENDER_NICK_CACHE_SIZE senders.
+	 */
+	private final ConcurrentMap<Integer, String> senderNicks = new ConcurrentHashMap<Integer, String>();
+	/**
+	 * The most recent chat messages sent to this ChatRoom, or null if chat
+	 * messages are not kept.
+	 */
+	private final ChatHistory history;
+	/**
+	 * Number of the most recent chat messages sent to a client joining this
+	 * ChatRoom.
+	 */
+	private final int historyReplay;
+	/**
+	 * The server's index of chat messages, or null if chat messages cannot be
+	 * searched.
+	 */
+	private final SearchIndex searchIndex;
+	/**
+	 * The Cluster that the server is a node of, or null if it is the only
+	 * server.
+	 */
+	private final Cluster cluster;
+	/**
+	 * Index of the node that owns this ChatRoom if the server is one node of a
+	 * Cluster, -1 otherwise.
+	 */
+	private final int ownerNode;
 	private static final Logger logger = Logger.getLogger(ChatRoom.class.getName());
 
-	public ChatRoom(String name) {
-		clients = new ArrayList<Client>();
-		this.chatRoomInfo = new ChatRoomInfo(name);
+	/**
+	 * Creates a new ChatRoom with name name on the ChatServer server, which
+	 * assigns it an id.
+	 * 
+	 * @param name
+	 *            The name of the chat room
+	 * @param server
+	 *            The ChatServer that the chat room is on
+	 */
+	public ChatRoom(String name, ChatServer server) {
+		this(name, server.nextChatRoomId(), server);
+	}
+
+	/**
+	 * Creates a new ChatRoom with name name and id id on the ChatServer
+	 * server. Used to restore chat rooms recorded in a snapshot with the ids
+	 * they had before the server was restarted.
+	 * 
+	 * @param name
+	 *            The name of the chat room
+	 * @param id
+	 *            The id of the chat room, not used by any other chat room
+	 * @param server
+	 *            The ChatServer that the chat room is on
+	 */
+	ChatRoom(String name, int id, ChatServer server) {
+		this.chatRoomInfo = new ChatRoomInfo(name, id);
+		this.server = server;
+		this.presenceBatchMillis = Long
+				.parseLong(server.getProperties().getProperty("presenceBatchMillis", "100"));
+		this.presenceLargeRoomThreshold = Integer
+				.parseInt(server.getProperties().getProperty("presenceLargeRoomThreshold", "1000"));
+		this.executor = server.getRoomExecutor(chatRoomInfo.getId());
+		this.fanOutThreshold = Integer.parseInt(server.getProperties().getProperty("fanOutThreshold", "5000"));
+		this.fanOutLanes = server.getFanOutLanes();
+		this.laneClients = new AtomicReferenceArray<Client[]>(fanOutLanes);
+		for (int i = 0; i < fanOutLanes; i++) {
+			laneClients.set(i, new Client[0]);
+		}
+		int ringSize = Integer.parseInt(server.getProperties().getProperty("roomRingSize", "0"));
+		this.ring = ringSize > 0 ? new RoomRing(chatRoomInfo.getId(), ringSize) : null;
+		int historySize = Integer.parseInt(server.getProperties().getProperty("historySize", "100"));
+		long historyBytes = Long.parseLong(server.getProperties().getProperty("historyBytes", "65536"));
+		if (historySize > 0 && historyBytes > 0) {
+			this.history = new ChatHistory(historySize, historyBytes, chatRoomInfo.getId(),
+					server.getMessageLog(), openRoomLog(name, server.getMessageLog()));
+		} else {
+			this.history = null;
+		}
+		this.historyReplay = Math.min(MAX_HISTORY_PAGE,
+				Integer.parseInt(server.getProperties().getProperty("historyReplay", "20")));
+		this.searchIndex = server.getSearchIndex();
+		this.cluster = server.getCluster();
+		this.ownerNode = cluster != null ? cluster.ownerOf(name) : -1;
 	}
 
 	/**
-	 * Sends the event evnt to all clients in this chat room.
+	 * Returns the RoomLog for the chat room named name from messageLog, or null
+	 * if there is no MessageLog or the RoomLog could not be opened, in which
+	 * case the chat room's history is only held in memory.
+	 * 
+	 * @param name
+	 *            The name of the chat room
+	 * @param messageLog
+	 *            The server's MessageLog, or null if it has none
+	 * @return The RoomLog for the chat room, or null
+	 */
+	private static RoomLog openRoomLog(String name, MessageLog messageLog) {
+		if (messageLog == null) {
+			return null;
+		}
+		try {
+			return messageLog.open(name);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Could not open the log of chat room " + name
+					+ ", its history will not be kept on disk", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Runs task with exclusive access to the state of this ChatRoom. If this
+	 * ChatRoom has a room thread, task is queued to run there after every task
+	 * queued before it and this method returns straight away. Otherwise task
+	 * runs on the calling thread while lock is held.
+	 * 
+	 * @param task
+	 *            The task to run
+	 */
+	protected void runExclusive(final Runnable task) {
+		if (executor == null) {
+			lock.lock();
+			try {
+				task.run();
+			} finally {
+				lock.unlock();
+			}
+			return;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					logger.log(Level.WARNING, "Task failed in chat room " + chatRoomInfo.getName(), e);
+				}
+			}
+		});
+		return;
+	}
+
+	/**
+	 * Sends the event evnt to all clients in this chat room. The event is
+	 * encoded once for each Codec in use and the resulting frames are shared by
+	 * every client. If this ChatRoom has a room thread, the event is sent from
+	 * there, in order with joins and leaves. Otherwise it is sent straight away
+	 * without taking lock, and clients joining or leaving during the broadcast
+	 * may or may not receive it.
+	 * 
+	 * @param evnt
+	 *            The event to send
+	 */
+	public void sendEventToAllClients(final Event evnt) {
+		if (executor == null) {
+			broadcast(evnt);
+		} else {
+			runExclusive(new Runnable() {
+				@Override
+				public void run() {
+					broadcast(evnt);
+				}
+			});
+		}
+		return;
+	}
+
+	/**
+	 * Sends the chat message evnt to all clients in this chat room. If the
+	 * server is one node of a Cluster, evnt is routed through it first: if
+	 * another node owns this ChatRoom, evnt is forwarded there instead and
+	 * delivered here once the owner sends it back, and if this node owns it,
+	 * evnt is also sent to every other node with members in it.
+	 * 
+	 * @param evnt
+	 *            The chat message to send
+	 */
+	public void sendChatMessage(ChatMessageEvent evnt) {
+		if (cluster != null && !cluster.routeChatMessage(this, evnt)) {
+			return;
+		}
+		deliverChatMessage(evnt);
+		return;
+	}
+
+	/**
+	 * Sends the chat message evnt to the clients in this chat room on this
+	 * server, adds it to the history of this ChatRoom and queues it to be
+	 * indexed for searching. If this ChatRoom has a RoomRing, evnt is encoded
+	 * once and published to it on the calling thread without taking lock or
+	 * queuing anything for the members, and only the members whose writers
+	 * are waiting for it are woken. Otherwise it is sent as sendEventToAllClients sends any other event.
+	 * 
+	 * @param evnt
+	 *            The chat message to send
+	 */
+	void deliverChatMessage(ChatMessageEvent evnt) {
+		if (evnt.getSenderNick() != null && !senderNicks.containsKey(evnt.getSenderId())) {
+			if (senderNicks.size() >= SENDER_NICK_CACHE_SIZE) {
+				senderNicks.clear();
+			}
+			senderNicks.put(evnt.getSenderId(), evnt.getSenderNick());
+		}
+		if (history != null) {
+			history.add(evnt);
+		}
+		if (searchIndex != null) {
+			searchIndex.add(evnt);
+		}
+		if (ring == null) {
+			sendEventToAllClients(evnt);
+			return;
+		}
+		long sequence = ring.publish(new EncodedEvent(evnt));
+		ring.wakeWaiters();
+		if (sequence % RING_LAG_CHECK_INTERVAL == 0) {
+			long lag = getRingLag();
+			if (lag >= ring.getCapacity() / 2) {
+				server.getMetrics().increment("ring.lagWarnings");
+				logger.log(Level.WARNING, "Slowest member of chat room " + chatRoomInfo.getName() + " is " + lag
+						+ " of " + ring.getCapacity() + " chat messages behind");
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Returns the number of chat messages published to the RoomRing of this
+	 * ChatRoom that its slowest member has not yet read, or 0 if it has no
+	 * RoomRing.
+	 * 
+	 * @return The number of chat messages the slowest member is behind
+	 */
+	public long getRingLag() {
+		long lag = 0;
+		for (RoomRing.Cursor cursor : ringCursors.values()) {
+			lag = Math.max(lag, cursor.getLag());
+		}
+		return lag;
+	}
+
+	/**
+	 * Sends the event evnt to all clients in this chat room. Sent from the
+	 * calling thread, or if this ChatRoom is large enough, from every fan-out
+	 * lane in parallel.
 	 * 
 	 * @param evnt
 	 *            The event to send
 	 */
-	public void sendEventToAllClients(Event evnt) {
+	private void broadcast(Event evnt) {
 		logger.log(Level.FINE,
 				"Event " + evnt.toString() + " being sent to all clients in chat room " + chatRoomInfo.getName());
-		for (Client c : clients) {
-			c.sendEvent(evnt);
+		final EncodedEvent encoded = new EncodedEvent(evnt);
+		Client[] members = clients;
+		if (fanOutLanes > 0 && !fanningOut && members.length >= fanOutThreshold) {
+			fanningOut = true;
+		}
+		if (!fanningOut) {
+			for (Client c : members) {
+				c.sendEncodedEvent(encoded);
+			}
+			return;
+		}
+
+		// Queue one slice of the broadcast on each fan-out lane, the last
+		// slice to finish recording how long the whole broadcast took
+		final long start = System.nanoTime();
+		final AtomicInteger remaining = new AtomicInteger(fanOutLanes);
+		for (int lane = 0; lane < fanOutLanes; lane++) {
+			final Client[] recipients = laneClients.get(lane);
+			server.getFanOutExecutor(lane).execute(new Runnable() {
+				@Override
+				public void run() {
+					for (Client c : recipients) {
+						c.sendEncodedEvent(encoded);
+					}
+					if (remaining.decrementAndGet() == 0) {
+						ServerMetrics metrics = server.getMetrics();
+						metrics.increment("fanOut.broadcasts");
+						metrics.add("fanOut.completionMicros", (System.nanoTime() - start) / 1000);
+					}
+				}
+			});
 		}
 		return;
 	}
 
+	/**
+	 * Sends the event evnt to the member client of this ChatRoom, from its
+	 * fan-out lane if broadcasts to this ChatRoom are fanned out so that evnt
+	 * stays in order with them.
+	 * 
+	 * @param client
+	 *            The client to send evnt to
+	 * @param evnt
+	 *            The event to send
+	 */
+	private void sendToMember(final Client client, Event evnt) {
+		if (!fanningOut) {
+			client.sendEvent(evnt);
+			return;
+		}
+		final EncodedEvent encoded = new EncodedEvent(evnt);
+		server.getFanOutExecutor(laneOf(client)).execute(new Runnable() {
+			@Override
+			public void run() {
+				client.sendEncodedEvent(encoded);
+			}
+		});
+		return;
+	}
+
+	/**
+	 * Returns the fan-out lane that events to client are sent from. Every chat
+	 * room on the server sends from the same lane for a given client.
+	 * 
+	 * @param client
+	 *            The client
+	 * @return The fan-out lane of client
+	 */
+	private int laneOf(Client client) {
+		return server.bucketOf(client.getClientInfo().getId(), fanOutLanes);
+	}
+
 	/**
 	 * Removes the client with nickname nick from the ChatRoom.
 	 * 
 	 * @param nick
 	 *            The nickname of the client to remove
 	 */
-	public synchronized void removeClient(String nick) {
+	public void removeClient(final String nick) {
 		logger.log(Level.INFO, "Client " + nick + " leaving chat room " + chatRoomInfo.getName());
-		Iterator<Client> it = clients.iterator();
-		Client clientToRemove = null;
-		while (it.hasNext()) {
-			clientToRemove = it.next();
-			if (clientToRemove.getClientInfo().getNick().equals(nick)) {
-				clients.remove(clientToRemove);
-				break;
+		runExclusive(new Runnable() {
+			@Override
+			public void run() {
+				if (leaveClient(nick) == null) {
+					throw new RuntimeException("Trying to remove client " + nick + " from chatRoom "
+							+ chatRoomInfo.getName() + " but client does not exist");
+				}
 			}
-		}
+		});
+		return;
+	}
+
+	/**
+	 * Removes the Client client from the ChatRoom if it is still a member.
+	 * Unlike removeClient(String), does nothing if another client has since
+	 * joined with the same nick.
+	 * 
+	 * @param client
+	 *            The client to remove
+	 */
+	void removeClient(final Client client) {
+		runExclusive(new Runnable() {
+			@Override
+			public void run() {
+				String nick = client.getClientInfo().getNick();
+				if (clientsByNick.get(nick) == client) {
+					leaveClient(nick);
+				}
+			}
+		});
+		return;
+	}
+
+	/**
+	 * Removes the client with nickname nick from the members and roster of
+	 * this ChatRoom and tells the other members. Must be called by an exclusive
+	 * task.
+	 * 
+	 * @param nick
+	 *            The nickname of the client to remove
+	 * @return The removed Client, or null if no client with nickname nick is
+	 *         in this ChatRoom
+	 */
+	protected Client leaveClient(String nick) {
+		Client clientToRemove = removeMember(nick);
 		if (clientToRemove != null) {
-			chatRoomInfo.removeClient(nick);
-			sendEventToAllClients(
-					new LeaveChatRoomEvent(clientToRemove.getClientInfo().getNick(), chatRoomInfo.getName()));
-		} else {
-			throw new RuntimeException("Trying to remove client " + nick + " from chatRoom " + chatRoomInfo.getName()
-					+ " but client does not exist");
+			removeFromRoster(clientToRemove.getClientInfo());
+			presenceChanged();
 		}
-		return;
+		return clientToRemove;
 	}
 
 	/**
@@ -77,16 +573,160 @@ public class ChatRoom {
 	 * @param client
 	 *            The client to add
 	 */
-	public synchronized void addClient(Client client) {
+	public void addClient(final Client client) {
 		logger.log(Level.INFO,
 				"Client " + client.getClientInfo().getNick() + " joining chat room" + chatRoomInfo.getName());
-		sendEventToAllClients(new JoinChatRoomEvent(client.getClientInfo(), chatRoomInfo.getName()));
-		clients.add(client);
-		chatRoomInfo.addClient(client.getClientInfo());
-		client.sendEvent(new AcceptedToChatRoomEvent(chatRoomInfo));
+		runExclusive(new Runnable() {
+			@Override
+			public void run() {
+				joinClient(client);
+			}
+		});
+		return;
+	}
+
+	/**
+	 * Adds client to the members and roster of this ChatRoom, unless it is
+	 * already a member or has disconnected, and tells it and the other
+	 * members. Must be called by an exclusive task.
+	 * 
+	 * @param client
+	 *            The client to add
+	 * @return True if client was added, false otherwise
+	 */
+	protected boolean joinClient(Client client) {
+		if (clientsByNick.containsKey(client.getClientInfo().getNick()) || client.isDisconnected()) {
+			return false;
+		}
+		addToRoster(client.getClientInfo());
+		addMember(client);
+		// A client disconnecting on another thread removes itself from the
+		// chat rooms it is in after marking itself disconnected, so if it was
+		// not yet marked when it was checked above, it is now either marked or
+		// will find this ChatRoom among its chat rooms
+		if (client.isDisconnected()) {
+			leaveClient(client.getClientInfo().getNick());
+			return false;
+		}
+		acceptClient(client);
+		presenceChanged();
+		return true;
+	}
+
+	/**
+	 * Tells client, which has just been added to this ChatRoom, who else is in
+	 * it. Must be called by an exclusive task.
+	 * 
+	 * @param client
+	 *            The client that has been added
+	 */
+	protected void acceptClient(Client client) {
+		sendToMember(client, new AcceptedToChatRoomEvent(chatRoomInfo.summary(INLINE_ROSTER_LIMIT)));
+		replayHistory(client);
+		return;
+	}
+
+	/**
+	 * Sends client, which has just been added to this ChatRoom, the most
+	 * recent chat messages in its history, if chat messages are kept. Only the
+	 * messages held in memory are sent, so that the exclusive task never reads
+	 * the RoomLog; the client can page back through older ones. Must be called
+	 * by an exclusive task.
+	 * 
+	 * @param client
+	 *            The client that has been added
+	 */
+	protected void replayHistory(Client client) {
+		if (history != null) {
+			sendToMember(client, history.getRecentPage(chatRoomInfo.getId(), historyReplay));
+		}
+		return;
+	}
+
+	/**
+	 * Sends requester up to limit of the chat messages in the history of this
+	 * ChatRoom sent before the message with sequence number before, in a
+	 * ChatHistoryEvent. If chat messages are not kept, the ChatHistoryEvent is
+	 * empty. A page that reaches back past the messages held in memory is read
+	 * from the RoomLog on the server's log read thread, so this method then
+	 * returns straight away.
+	 * 
+	 * @param requester
+	 *            The Client that asked for the messages
+	 * @param before
+	 *            The sequence number to send the messages before, or -1 for the
+	 *            most recent messages
+	 * @param limit
+	 *            The largest number of messages to send
+	 */
+	public void sendChatHistory(final Client requester, final int before, int limit) {
+		final int pageSize = Math.max(0, Math.min(limit, MAX_HISTORY_PAGE));
+		if (history == null) {
+			requester.sendEvent(new ChatHistoryEvent(chatRoomInfo.getId(), new ArrayList<ChatMessageEvent>(), -1));
+			return;
+		}
+		ChatHistoryEvent page = history.getPageIfHeld(chatRoomInfo.getId(), before, pageSize);
+		if (page != null) {
+			requester.sendEvent(page);
+			return;
+		}
+		server.getLogReadExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				requester.sendEvent(history.getPage(chatRoomInfo.getId(), before, pageSize));
+			}
+		});
+		return;
+	}
+
+	/**
+	 * Sends requester the ClientInfo of the client with session id clientId,
+	 * who sent a chat message to this ChatRoom, in a ClientInfoEvent. The
+	 * client is looked for among the recent senders and then the members of
+	 * this ChatRoom. If it is not found, the ClientInfoEvent has a null nick.
+	 * 
+	 * @param requester
+	 *            The Client that asked for the ClientInfo
+	 * @param clientId
+	 *            The session id of the client to send the ClientInfo of
+	 */
+	public void sendSenderInfo(Client requester, int clientId) {
+		String nick = senderNicks.get(clientId);
+		if (nick == null) {
+			Client[] members = clients;
+			int index = indexAfter(members, clientId) - 1;
+			if (index >= 0 && members[index].getClientInfo().getId() == clientId) {
+				nick = members[index].getClientInfo().getNick();
+			}
+		}
+		requester.sendEvent(new ClientInfoEvent(chatRoomInfo.getId(), new ClientInfo(nick, clientId)));
 		return;
 	}
 
+	/**
+	 * Shrinks the memory used to hold the history of this ChatRoom to fit the
+	 * messages in it, if no chat message has been sent to it for idleNanos
+	 * nanoseconds.
+	 * 
+	 * @param idleNanos
+	 *            The number of nanoseconds without a chat message after which
+	 *            the history is shrunk
+	 * @return True if the history was shrunk, false otherwise
+	 */
+	boolean trimHistory(long idleNanos) {
+		return history != null && history.trimIfIdle(idleNanos);
+	}
+
+	/**
+	 * Returns the sequence number that the RoomLog of this ChatRoom has
+	 * reached, or -1 if its chat messages are not kept in a RoomLog.
+	 * 
+	 * @return The sequence number after the newest logged chat message, or -1
+	 */
+	int getLoggedHistoryEnd() {
+		return history == null ? -1 : history.getLoggedEnd();
+	}
+
 	/**
 	 * Returns true if a client with nick clientNick is in this ChatRoom, false
 	 * otherwise.
@@ -97,12 +737,7 @@ public class ChatRoom {
 	 *         clientNick, false otherwise.
 	 */
 	public boolean hasClient(String nick) {
-		for (Client c : clients) {
-			if (c.getClientInfo().getNick().equals(nick)) {
-				return true;
-			}
-		}
-		return false;
+		return clientsByNick.containsKey(nick);
 	}
 
 	/**
@@ -116,14 +751,383 @@ public class ChatRoom {
 	 * @return The client object of the client with the nickname nick.
 	 */
 	public Client getClientByNick(String nick) {
-		for (Client c : clients) {
-			if (c.getClientInfo().getNick().equals(nick)) {
-				return c;
-			}
+		Client c = clientsByNick.get(nick);
+		if (c != null) {
+			return c;
 		}
 		throw new RuntimeException("Client with nickname of " + nick + " could not be found");
 	}
 
+	/**
+	 * Sends requester the part of this ChatRoom's roster it asked for. If
+	 * knownVersion is a version whose later changes are all still remembered,
+	 * requester is sent a RosterDeltaEvent with the net changes since. Otherwise
+	 * it is sent a RosterPageEvent listing up to limit clients with session ids
+	 * greater than afterId.
+	 * 
+	 * Sent by an exclusive task, so that the event is queued in the same order
+	 * as the PresenceEvents around it.
+	 * 
+	 * @param requester
+	 *            The Client that asked for the roster
+	 * @param knownVersion
+	 *            The version of the roster requester already holds, or -1 if
+	 *            it holds none
+	 * @param afterId
+	 *            The session id that the page should start after, or -1 to
+	 *            start at the beginning of the roster
+	 * @param limit
+	 *            The largest number of clients to list on the page
+	 */
+	public void sendRoster(final Client requester, final int knownVersion, final int afterId, final int limit) {
+		runExclusive(new Runnable() {
+			@Override
+			public void run() {
+				sendRosterPart(requester, knownVersion, afterId, limit);
+			}
+		});
+		return;
+	}
+
+	/**
+	 * Sends requester the part of this ChatRoom's roster it asked for, as
+	 * described by sendRoster. Must be called by an exclusive task.
+	 * 
+	 * @param requester
+	 *            The Client that asked for the roster
+	 * @param knownVersion
+	 *            The version of the roster requester already holds, or -1 if
+	 *            it holds none
+	 * @param afterId
+	 *            The session id that the page should start after, or -1 to
+	 *            start at the beginning of the roster
+	 * @param limit
+	 *            The largest number of clients to list on the page
+	 */
+	private void sendRosterPart(Client requester, int knownVersion, int afterId, int limit) {
+		int version = chatRoomInfo.getVersion();
+		RosterChange oldest = rosterHistory.peekFirst();
+		if (knownVersion >= 0 && knownVersion <= version
+				&& (knownVersion == version || (oldest != null && oldest.version <= knownVersion + 1))) {
+			ArrayList<ClientInfo> joined = new ArrayList<ClientInfo>();
+			int[] leftIds = collectRosterChanges(knownVersion, joined);
+			sendToMember(requester, new RosterDeltaEvent(chatRoomInfo.getId(), knownVersion, version, joined, leftIds));
+			return;
+		}
+		Client[] members = clients;
+		int start = indexAfter(members, afterId);
+		int end = Math.min(members.length, start + Math.max(0, Math.min(limit, MAX_ROSTER_PAGE)));
+		ArrayList<ClientInfo> page = new ArrayList<ClientInfo>();
+		for (int i = start; i < end; i++) {
+			page.add(members[i].getClientInfo());
+		}
+		sendToMember(requester, new RosterPageEvent(chatRoomInfo.getId(), afterId, version, members.length, page,
+				end < members.length && end > start));
+		return;
+	}
+
+	/**
+	 * Records that a chat room with name name has been created, so that the
+	 * members of this ChatRoom are told about it in the next PresenceEvent.
+	 * 
+	 * @param name
+	 *            The name of the created chat room
+	 */
+	public void chatRoomAdded(final String name) {
+		runExclusive(new Runnable() {
+			@Override
+			public void run() {
+				pendingChatRoomsAdded.add(name);
+				presenceChanged();
+			}
+		});
+		return;
+	}
+
+	/**
+	 * Arranges for the members of this ChatRoom to be sent a PresenceEvent
+	 * once the presence batch window has passed, or straight away if there is
+	 * no window. Changes made before then are sent in the same PresenceEvent.
+	 * Must be called by an exclusive task.
+	 */
+	protected void presenceChanged() {
+		if (presenceBatchMillis <= 0) {
+			sendPresence();
+		} else if (!presenceScheduled) {
+			presenceScheduled = true;
+			server.getPresenceTimer().schedule(new Runnable() {
+				@Override
+				public void run() {
+					runExclusive(new Runnable() {
+						@Override
+						public void run() {
+							sendPresence();
+						}
+					});
+				}
+			}, presenceBatchMillis, TimeUnit.MILLISECONDS);
+		}
+		return;
+	}
+
+	/**
+	 * Sends the members of this ChatRoom a PresenceEvent with everything that
+	 * has changed since the last one. The joins and leaves themselves are left
+	 * out if this ChatRoom has more than presenceLargeRoomThreshold members, or
+	 * if there have been too many of them to still be in rosterHistory. Must be
+	 * called by an exclusive task.
+	 */
+	private void sendPresence() {
+		presenceScheduled = false;
+		int version = chatRoomInfo.getVersion();
+		if (version == presenceVersion && pendingChatRoomsAdded.isEmpty()) {
+			return;
+		}
+		RosterChange oldest = rosterHistory.peekFirst();
+		boolean membersIncluded = clients.length <= presenceLargeRoomThreshold
+				&& (version == presenceVersion || (oldest != null && oldest.version <= presenceVersion + 1));
+		ArrayList<ClientInfo> joined = new ArrayList<ClientInfo>();
+		int[] leftIds = new int[0];
+		if (membersIncluded) {
+			leftIds = collectRosterChanges(presenceVersion, joined);
+		}
+		broadcast(new PresenceEvent(chatRoomInfo.getId(), presenceVersion, version, clients.length,
+				membersIncluded, joined, leftIds, new ArrayList<String>(pendingChatRoomsAdded)));
+		server.getMetrics().increment("presence.events");
+		server.getMetrics().add("presence.changes", version - presenceVersion + pendingChatRoomsAdded.size());
+		presenceVersion = version;
+		pendingChatRoomsAdded.clear();
+		return;
+	}
+
+	/**
+	 * Collects the net changes to the roster of this ChatRoom since
+	 * fromVersion, all of which must still be in rosterHistory. Must be called
+	 * by an exclusive task.
+	 * 
+	 * @param fromVersion
+	 *            The version the changes start from
+	 * @param joined
+	 *            List that the clients who have joined since fromVersion and
+	 *            are still in this ChatRoom are added to
+	 * @return The session ids of the clients who have left since fromVersion
+	 */
+	private int[] collectRosterChanges(int fromVersion, ArrayList<ClientInfo> joined) {
+		// Keep only the last change to each client, so that a client who
+		// joined and left since fromVersion is only reported as having left
+		Map<Integer, RosterChange> lastChanges = new LinkedHashMap<Integer, RosterChange>();
+		for (RosterChange change : rosterHistory) {
+			if (change.version > fromVersion) {
+				lastChanges.remove(change.clientId);
+				lastChanges.put(change.clientId, change);
+			}
+		}
+		int[] leftIds = new int[lastChanges.size()];
+		int leftCount = 0;
+		for (RosterChange change : lastChanges.values()) {
+			if (change.joined != null) {
+				joined.add(change.joined);
+			} else {
+				leftIds[leftCount++] = change.clientId;
+			}
+		}
+		return Arrays.copyOf(leftIds, leftCount);
+	}
+
+	/**
+	 * Adds clientInfo to the roster of this ChatRoom and records the change.
+	 * Must be called by an exclusive task.
+	 * 
+	 * @param clientInfo
+	 *            The ClientInfo of the joining client
+	 * @return The new roster version
+	 */
+	protected int addToRoster(ClientInfo clientInfo) {
+		int version = chatRoomInfo.addClient(clientInfo);
+		recordRosterChange(new RosterChange(version, clientInfo.getId(), clientInfo));
+		return version;
+	}
+
+	/**
+	 * Removes clientInfo from the roster of this ChatRoom and records the
+	 * change. Must be called by an exclusive task.
+	 * 
+	 * @param clientInfo
+	 *            The ClientInfo of the leaving client
+	 * @return The new roster version
+	 */
+	protected int removeFromRoster(ClientInfo clientInfo) {
+		int version = chatRoomInfo.removeClient(clientInfo.getNick());
+		recordRosterChange(new RosterChange(version, clientInfo.getId(), null));
+		return version;
+	}
+
+	/**
+	 * Adds change to rosterHistory, forgetting the oldest change if it is
+	 * full. Must be called by an exclusive task.
+	 * 
+	 * @param change
+	 *            The change to record
+	 */
+	private void recordRosterChange(RosterChange change) {
+		if (rosterHistory.size() >= ROSTER_HISTORY_SIZE) {
+			rosterHistory.pollFirst();
+		}
+		rosterHistory.addLast(change);
+		return;
+	}
+
+	/**
+	 * Returns the index of the first Client in members, which must be sorted by
+	 * session id, whose session id is greater than id.
+	 * 
+	 * @param members
+	 *            The Clients to search, sorted by session id
+	 * @param id
+	 *            The session id to search after
+	 * @return The index of the first Client with a session id greater than id,
+	 *         or members.length if there is none
+	 */
+	private static int indexAfter(Client[] members, int id) {
+		int low = 0;
+		int high = members.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (members[mid].getClientInfo().getId() <= id) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Adds client to the members of this ChatRoom, keeping them sorted by
+	 * session id so that the roster can be paged through. Must be called by an
+	 * exclusive task.
+	 * 
+	 * @param client
+	 *            The Client to add
+	 */
+	protected void addMember(Client client) {
+		clientsByNick.put(client.getClientInfo().getNick(), client);
+		Client[] oldClients = clients;
+		int index = indexAfter(oldClients, client.getClientInfo().getId());
+		Client[] newClients = new Client[oldClients.length + 1];
+		System.arraycopy(oldClients, 0, newClients, 0, index);
+		newClients[index] = client;
+		System.arraycopy(oldClients, index, newClients, index + 1, oldClients.length - index);
+		clients = newClients;
+		if (cluster != null && oldClients.length == 0) {
+			cluster.firstMemberJoined(this);
+		}
+		if (fanOutLanes > 0) {
+			int lane = laneOf(client);
+			Client[] oldLane = laneClients.get(lane);
+			Client[] newLane = Arrays.copyOf(oldLane, oldLane.length + 1);
+			newLane[oldLane.length] = client;
+			laneClients.set(lane, newLane);
+		}
+		if (ring != null) {
+			RoomRing.Cursor cursor = ring.subscribe();
+			ringCursors.put(client, cursor);
+			client.getOutboundQueue().addRing(cursor);
+		}
+		client.joinedChatRoom(this);
+		server.chatRoomDirectoryChanged();
+		return;
+	}
+
+	/**
+	 * Removes the client with nickname nick from the members of this ChatRoom.
+	 * Must be called by an exclusive task.
+	 * 
+	 * @param nick
+	 *            The nickname of the client to remove
+	 * @return The removed Client, or null if no client with nickname nick is
+	 *         in this ChatRoom
+	 */
+	protected Client removeMember(String nick) {
+		Client removed = clientsByNick.remove(nick);
+		if (removed != null) {
+			Client[] oldClients = clients;
+			Client[] newClients = new Client[oldClients.length - 1];
+			int j = 0;
+			for (Client c : oldClients) {
+				if (c != removed) {
+					newClients[j++] = c;
+				}
+			}
+			clients = newClients;
+			if (cluster != null && newClients.length == 0) {
+				cluster.lastMemberLeft(this);
+			}
+			if (fanOutLanes > 0) {
+				int lane = laneOf(removed);
+				Client[] oldLane = laneClients.get(lane);
+				Client[] newLane = new Client[oldLane.length - 1];
+				int k = 0;
+				for (Client c : oldLane) {
+					if (c != removed) {
+						newLane[k++] = c;
+					}
+				}
+				laneClients.set(lane, newLane);
+			}
+			RoomRing.Cursor cursor = ringCursors.remove(removed);
+			if (cursor != null) {
+				removed.getOutboundQueue().removeRing(cursor);
+			}
+			removed.leftChatRoom(this);
+			server.chatRoomDirectoryChanged();
+		}
+		return removed;
+	}
+
+	/**
+	 * A single change to the roster of a ChatRoom.
+	 */
+	private static class RosterChange {
+		/**
+		 * The roster version that the change produced.
+		 */
+		final int version;
+		/**
+		 * The session id of the client who joined or left.
+		 */
+		final int clientId;
+		/**
+		 * The ClientInfo of the client if it joined, null if it left.
+		 */
+		final ClientInfo joined;
+
+		RosterChange(int version, int clientId, ClientInfo joined) {
+			this.version = version;
+			this.clientId = clientId;
+			this.joined = joined;
+		}
+	}
+
+	/**
+	 * Returns the number of clients in this ChatRoom. Never blocks.
+	 * 
+	 * @return The number of clients in this ChatRoom
+	 */
+	public int getClientCount() {
+		return clients.length;
+	}
+
+	/**
+	 * Returns the index of the node of the Cluster that owns this ChatRoom, or
+	 * -1 if the server is not one node of a Cluster.
+	 * 
+	 * @return The index of the owner of this ChatRoom
+	 */
+	int getOwnerNode() {
+		return ownerNode;
+	}
+
 	/**
 	 * Returns the ChatRoomInfo for this ChatRoom.
 	 * 
@@ -7,12 +7,28 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import com.gunshippenguin.jchat.shared.ChatRoomAddedEvent;
-import com.gunshippenguin.jchat.shared.ChatRoomInfo;
+import com.gunshippenguin.jchat.shared.ChatRoomListing;
+import com.gunshippenguin.jchat.shared.SearchHit;
+import com.gunshippenguin.jchat.shared.SearchResultsEvent;
 
 /**
  * Class representing a running JChat chat server. Contains methods to add,
@@ -23,17 +39,121 @@ import com.gunshippenguin.jchat.shared.ChatRoomInfo;
  */
 public class ChatServer {
 	/**
-	 * ArrayList of ChatRoom objects representing all ChatRooms on this server.
+	 * Largest number of chat rooms listed on one page of the chat room
+	 * directory.
 	 */
-	private ArrayList<ChatRoom> chatRooms = new ArrayList<ChatRoom>();
+	public static final int MAX_DIRECTORY_PAGE = 500;
+	/**
+	 * Number of milliseconds after a chat room is created that the snapshot is
+	 * written, so that chat rooms created together are recorded in one write.
+	 */
+	private static final long SNAPSHOT_DELAY_MILLIS = 1000;
+	/**
+	 * Map of chat room names to the ChatRoom objects representing all
+	 * ChatRooms on this server, sorted by name so that the chat room directory
+	 * can be listed a page at a time. Lookups never block, and chat rooms can
+	 * be added from any thread.
+	 */
+	private ConcurrentNavigableMap<String, ChatRoom> chatRooms = new ConcurrentSkipListMap<String, ChatRoom>();
+	/**
+	 * Map of chat room ids to the same ChatRoom objects as chatRooms, used to
+	 * look up the chat rooms that Requests refer to by id.
+	 */
+	private ConcurrentMap<Integer, ChatRoom> chatRoomsById = new ConcurrentHashMap<Integer, ChatRoom>();
+	/**
+	 * Names of the chat rooms being created, reserved before their ChatRoom
+	 * objects are constructed so that a chat room created by several threads
+	 * at once is only constructed once.
+	 */
+	private final Set<String> creatingChatRooms = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	/**
+	 * Id to be given to the next chat room created on this server.
+	 */
+	private final AtomicInteger nextChatRoomId = new AtomicInteger();
+	/**
+	 * Session id to be given to the next client to connect to this server.
+	 */
+	private final AtomicInteger nextSessionId = new AtomicInteger();
+	/**
+	 * Amount that chat room and session ids are incremented by. If this server
+	 * is one node of a Cluster, this is the number of nodes and each node
+	 * starts from its own index, so that no two nodes give out the same id.
+	 */
+	private int idStride = 1;
 	/**
 	 * DefaultChatRoom object for this server.
 	 */
 	private DefaultChatRoom defaultChatRoom;
+	/**
+	 * NickRegistry holding the nick of every client connected to this server.
+	 */
+	private final NickRegistry nickRegistry = new NickRegistry();
+	/**
+	 * DirectoryCache holding encoded pages of this server's chat room
+	 * directory.
+	 */
+	private final DirectoryCache directoryCache = new DirectoryCache(this);
 	/**
 	 * Properties of this server containing configuration information.
 	 */
 	private Properties properties;
+	/**
+	 * Counters describing the behaviour of this ChatServer.
+	 */
+	private ServerMetrics metrics;
+	/**
+	 * Timer that sends the PresenceEvents batched up by the ChatRooms on this
+	 * server and shrinks the histories of idle ChatRooms.
+	 */
+	private ScheduledThreadPoolExecutor presenceTimer;
+	/**
+	 * Single threaded executors that ChatRooms run their joins, leaves and
+	 * broadcasts on, each ChatRoom always using the same one. Empty if
+	 * ChatRooms use locks instead.
+	 */
+	private ExecutorService[] roomExecutors;
+	/**
+	 * Single threaded executors that broadcasts to large ChatRooms are split
+	 * across, each client's events always being sent from the same one. Empty
+	 * if broadcasts are never split.
+	 */
+	private ExecutorService[] fanOutExecutors;
+	/**
+	 * Log that the chat messages sent to each ChatRoom are kept in on disk, or
+	 * null if they are only held in memory.
+	 */
+	private MessageLog messageLog;
+	/**
+	 * Executor that pages of chat history older than those held in memory are
+	 * read from messageLog on, so that reading the disk never holds up the
+	 * threads reading requests and sending events. Null if messageLog is.
+	 */
+	private ExecutorService logReadExecutor;
+	/**
+	 * Inverted index of the chat messages sent to every ChatRoom, or null if
+	 * chat messages cannot be searched.
+	 */
+	private SearchIndex searchIndex;
+	/**
+	 * Executor that searches of searchIndex run on, so that they never hold up
+	 * the threads reading requests and sending events.
+	 */
+	private ExecutorService searchExecutor;
+	/**
+	 * Snapshot that the chat rooms on this server are recorded in so that they
+	 * are restored when it restarts, or null if they are not recorded.
+	 */
+	private RegistrySnapshot registrySnapshot;
+	/**
+	 * True if a write of the snapshot has been scheduled but has not started.
+	 */
+	private final AtomicBoolean snapshotScheduled = new AtomicBoolean();
+	/**
+	 * The Cluster that this server is one node of, or null if it is the only
+	 * server.
+	 */
+	private Cluster cluster;
 	/**
 	 * Logger object for the ChatServer.
 	 */
@@ -42,10 +162,6 @@ public class ChatServer {
 	public ChatServer() {
 		logger.log(Level.INFO, "Jchat server starting");
 
-		// Create the default chat room
-		defaultChatRoom = new DefaultChatRoom(this);
-		chatRooms.add(defaultChatRoom);
-
 		// Load server properties
 		File f = new File("server.properties");
 		if (!f.exists()) {
@@ -54,10 +170,211 @@ public class ChatServer {
 		}
 		this.properties = loadProperties();
 
-		// Create the client accepter thread
-		Thread clientAccepterThread = new Thread(new ClientAccepter(this));
-		clientAccepterThread.setName("ClientAccepterThread");
-		clientAccepterThread.start();
+		// Create the metrics thread, which periodically logs all counters
+		int metricsLogInterval = Integer.parseInt(properties.getProperty("metricsLogInterval", "60"));
+		metrics = new ServerMetrics(metricsLogInterval);
+		if (metricsLogInterval > 0) {
+			Thread metricsThread = new Thread(metrics);
+			metricsThread.setDaemon(true);
+			metricsThread.setName("MetricsThread");
+			metricsThread.start();
+		}
+
+		// Create the presence timer, which sends batched PresenceEvents
+		presenceTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r);
+				t.setDaemon(true);
+				t.setName("PresenceTimerThread");
+				return t;
+			}
+		});
+
+		// Create the room threads, if chat rooms should run on them rather
+		// than taking locks
+		int roomThreads = Integer.parseInt(properties.getProperty("roomThreads", "0"));
+		roomExecutors = new ExecutorService[Math.max(0, roomThreads)];
+		for (int i = 0; i < roomExecutors.length; i++) {
+			final String threadName = "RoomThread - " + i;
+			roomExecutors[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r);
+					t.setDaemon(true);
+					t.setName(threadName);
+					return t;
+				}
+			});
+		}
+
+		// Create the fan-out threads, which share broadcasts to large chat
+		// rooms between them
+		int fanOutThreads = Integer.parseInt(properties.getProperty("fanOutThreads", "0"));
+		fanOutExecutors = new ExecutorService[Math.max(0, fanOutThreads)];
+		for (int i = 0; i < fanOutExecutors.length; i++) {
+			final String threadName = "FanOutThread - " + i;
+			fanOutExecutors[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r);
+					t.setDaemon(true);
+					t.setName(threadName);
+					return t;
+				}
+			});
+		}
+
+		// Start the message log writer, if chat messages should be kept on
+		// disk, and let it write what is still queued when the server stops
+		if (!properties.getProperty("logDirectory", "").isEmpty()) {
+			messageLog = new MessageLog(properties, metrics);
+			final Thread messageLogThread = new Thread(messageLog);
+			messageLogThread.setDaemon(true);
+			messageLogThread.setName("MessageLogThread");
+			messageLogThread.start();
+			final AtomicInteger logReadThreadCount = new AtomicInteger();
+			logReadExecutor = Executors.newFixedThreadPool(
+					Math.max(1, Integer.parseInt(properties.getProperty("logReadThreads", "1"))),
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r);
+							t.setDaemon(true);
+							t.setName("LogReadThread - " + logReadThreadCount.getAndIncrement());
+							return t;
+						}
+					});
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					messageLogThread.interrupt();
+					try {
+						messageLogThread.join(5000);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+		}
+
+		// Start the search indexer and its merge and search threads, if chat
+		// messages should be searchable
+		if (Integer.parseInt(properties.getProperty("searchMaxMessages", "1000000")) > 0) {
+			ExecutorService mergeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r);
+					t.setDaemon(true);
+					t.setName("SearchMergeThread");
+					return t;
+				}
+			});
+			searchIndex = new SearchIndex(properties, mergeExecutor, metrics);
+			Thread searchIndexThread = new Thread(searchIndex);
+			searchIndexThread.setDaemon(true);
+			searchIndexThread.setName("SearchIndexThread");
+			searchIndexThread.start();
+			final AtomicInteger searchThreadCount = new AtomicInteger();
+			searchExecutor = Executors.newFixedThreadPool(
+					Math.max(1, Integer.parseInt(properties.getProperty("searchThreads", "1"))), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r);
+							t.setDaemon(true);
+							t.setName("SearchThread - " + searchThreadCount.getAndIncrement());
+							return t;
+						}
+					});
+		}
+
+		// Join the cluster, if chat rooms are shared between several servers,
+		// before any ids are given out
+		String clusterNodes = properties.getProperty("clusterNodes", "");
+		if (!clusterNodes.isEmpty()) {
+			cluster = new Cluster(this, clusterNodes.split(","),
+					Integer.parseInt(properties.getProperty("clusterNodeIndex", "0")),
+					Integer.parseInt(properties.getProperty("clusterQueueSize", "65536")), metrics);
+			idStride = cluster.getNodeCount();
+			nextChatRoomId.set(cluster.getNodeIndex());
+			nextSessionId.set(cluster.getNodeIndex());
+		}
+
+		// Create the default chat room, which reads its configuration from
+		// properties
+		defaultChatRoom = new DefaultChatRoom(this);
+		chatRooms.put(defaultChatRoom.getChatRoomInfo().getName(), defaultChatRoom);
+		chatRoomsById.put(defaultChatRoom.getChatRoomInfo().getId(), defaultChatRoom);
+
+		// Restore the chat rooms recorded when the server last ran, then keep
+		// the snapshot up to date while it runs and when it stops
+		String snapshotFile = properties.getProperty("snapshotFile", "chatrooms.snapshot");
+		if (!snapshotFile.isEmpty()) {
+			registrySnapshot = new RegistrySnapshot(new File(snapshotFile));
+			restoreChatRooms();
+			long snapshotIntervalSeconds = Long.parseLong(properties.getProperty("snapshotIntervalSeconds", "60"));
+			if (snapshotIntervalSeconds > 0) {
+				presenceTimer.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						saveSnapshot();
+					}
+				}, snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+			}
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					saveSnapshot();
+				}
+			});
+		}
+
+		// Connect to the other nodes of the cluster once the chat rooms this
+		// node owns have been restored, so that they are announced. A node
+		// that cannot listen for the others is of no use to the cluster
+		if (cluster != null) {
+			try {
+				cluster.start();
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "Could not listen for the other nodes of the cluster (Is the port in use?), "
+						+ "Jchat server stopping", e);
+				System.exit(1);
+			}
+		}
+
+		// Periodically shrink the histories of chat rooms that have gone
+		// quiet, so that they only hold the memory their messages need
+		final long historyIdleSeconds = Long.parseLong(properties.getProperty("historyIdleSeconds", "300"));
+		if (historyIdleSeconds > 0) {
+			presenceTimer.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					long idleNanos = TimeUnit.SECONDS.toNanos(historyIdleSeconds);
+					for (ChatRoom cr : chatRooms.values()) {
+						if (cr.trimHistory(idleNanos)) {
+							metrics.increment("history.trims");
+						}
+					}
+				}
+			}, historyIdleSeconds, historyIdleSeconds, TimeUnit.SECONDS);
+		}
+
+		// Create the client accepter threads, stopping the server if it
+		// cannot listen for clients
+		ClientAccepter clientAccepter;
+		try {
+			clientAccepter = new ClientAccepter(this);
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Jchat server stopping", e);
+			System.exit(1);
+			return;
+		}
+		int acceptorThreads = Integer.parseInt(properties.getProperty("acceptorThreads", "1"));
+		for (int i = 0; i < acceptorThreads; i++) {
+			Thread clientAccepterThread = new Thread(clientAccepter);
+			clientAccepterThread.setName("ClientAccepterThread - " + i);
+			clientAccepterThread.start();
+		}
 	}
 
 	/**
@@ -70,6 +387,48 @@ public class ChatServer {
 		try {
 			output = new FileOutputStream("server.properties");
 			prop.setProperty("port", "9001");
+			prop.setProperty("ioMode", "blocking");
+			prop.setProperty("nioThreads", "2");
+			prop.setProperty("codecs", "binary,java");
+			prop.setProperty("acceptBacklog", "128");
+			prop.setProperty("acceptorThreads", "1");
+			prop.setProperty("handshakeTimeoutMillis", "10000");
+			prop.setProperty("flushPolicy", "immediate");
+			prop.setProperty("flushLingerMicros", "200");
+			prop.setProperty("tcpNoDelay", "true");
+			prop.setProperty("socketSendBufferSize", "0");
+			prop.setProperty("socketReceiveBufferSize", "0");
+			prop.setProperty("outboundQueueSize", "1024");
+			prop.setProperty("slowConsumerBacklog", "256");
+			prop.setProperty("slowConsumerWriteMillis", "5000");
+			prop.setProperty("slowConsumerPolicy", "coalesce");
+			prop.setProperty("metricsLogInterval", "60");
+			prop.setProperty("presenceBatchMillis", "100");
+			prop.setProperty("presenceLargeRoomThreshold", "1000");
+			prop.setProperty("roomThreads", "0");
+			prop.setProperty("fanOutThreads", "0");
+			prop.setProperty("fanOutThreshold", "5000");
+			prop.setProperty("roomRingSize", "0");
+			prop.setProperty("historySize", "100");
+			prop.setProperty("historyBytes", "65536");
+			prop.setProperty("historyReplay", "20");
+			prop.setProperty("historyIdleSeconds", "300");
+			prop.setProperty("logDirectory", "");
+			prop.setProperty("logSegmentBytes", "8388608");
+			prop.setProperty("logFsync", "interval");
+			prop.setProperty("logFsyncMillis", "1000");
+			prop.setProperty("logRetentionBytes", "268435456");
+			prop.setProperty("logRetentionHours", "168");
+			prop.setProperty("logIdleSeconds", "60");
+			prop.setProperty("logQueueSize", "65536");
+			prop.setProperty("searchMaxMessages", "1000000");
+			prop.setProperty("searchQueueSize", "65536");
+			prop.setProperty("searchThreads", "1");
+			prop.setProperty("snapshotFile", "chatrooms.snapshot");
+			prop.setProperty("snapshotIntervalSeconds", "60");
+			prop.setProperty("clusterNodes", "");
+			prop.setProperty("clusterNodeIndex", "0");
+			prop.setProperty("clusterQueueSize", "65536");
 
 			prop.store(output, null);
 		} catch (IOException io) {
@@ -85,6 +444,99 @@ public class ChatServer {
 		}
 	}
 
+	/**
+	 * Recreates the chat rooms recorded in the snapshot with the names and ids
+	 * they had before, so that clients reconnecting find them still there.
+	 * Their histories are read back from their RoomLogs as they are created.
+	 * Called before clients are accepted, so no client can create a chat room
+	 * with the same name first. If the snapshot cannot be read, it is renamed
+	 * so that it is not overwritten and the server starts with only the
+	 * default chat room.
+	 */
+	private void restoreChatRooms() {
+		long start = System.nanoTime();
+		RegistrySnapshot.Restored restored;
+		try {
+			restored = registrySnapshot.load();
+		} catch (IOException e) {
+			File unreadable = new File(registrySnapshot.getFile().getPath() + ".unreadable");
+			registrySnapshot.getFile().renameTo(unreadable);
+			logger.log(Level.WARNING, "Could not read chat room snapshot, starting without its chat rooms and keeping"
+					+ " it as " + unreadable, e);
+			return;
+		}
+		if (restored == null) {
+			return;
+		}
+		int nextId = restored.nextChatRoomId;
+		for (RegistrySnapshot.Entry entry : restored.chatRooms) {
+			if (chatRooms.containsKey(entry.name) || chatRoomsById.containsKey(entry.id)) {
+				logger.log(Level.WARNING, "Not restoring chat room " + entry.name + " with id " + entry.id
+						+ ", its name or id is already in use");
+				continue;
+			}
+			ChatRoom cr = new ChatRoom(entry.name, entry.id, this);
+			chatRooms.put(entry.name, cr);
+			chatRoomsById.put(entry.id, cr);
+			nextId = Math.max(nextId, entry.id + 1);
+			int loggedEnd = cr.getLoggedHistoryEnd();
+			if (loggedEnd >= 0 && loggedEnd < entry.historyEnd) {
+				logger.log(Level.WARNING, "Log of chat room " + entry.name + " ends at " + loggedEnd
+						+ " but had reached " + entry.historyEnd + ", " + (entry.historyEnd - loggedEnd)
+						+ " chat messages were lost");
+			}
+		}
+		nextChatRoomId.set(alignId(Math.max(nextChatRoomId.get(), nextId)));
+		chatRoomDirectoryChanged();
+		metrics.add("snapshot.chatRoomsRestored", chatRooms.size() - 1);
+		logger.log(Level.INFO, "Restored " + (chatRooms.size() - 1) + " chat rooms from "
+				+ registrySnapshot.getFile() + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+				+ " ms");
+		return;
+	}
+
+	/**
+	 * Records the chat rooms on this server in the snapshot, if they or their
+	 * logs have changed since it was last written.
+	 */
+	void saveSnapshot() {
+		ArrayList<RegistrySnapshot.Entry> entries = new ArrayList<RegistrySnapshot.Entry>();
+		for (ChatRoom cr : chatRooms.values()) {
+			if (!cr.getChatRoomInfo().isDefaultChatRoom()) {
+				entries.add(new RegistrySnapshot.Entry(cr.getChatRoomInfo().getName(), cr.getChatRoomInfo().getId(),
+						cr.getLoggedHistoryEnd()));
+			}
+		}
+		// Read after the chat rooms, so that it is greater than all of their ids
+		int nextId = nextChatRoomId.get();
+		try {
+			if (registrySnapshot.save(entries, nextId)) {
+				metrics.increment("snapshot.writes");
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Could not write chat room snapshot", e);
+		}
+		return;
+	}
+
+	/**
+	 * Schedules the snapshot to be written SNAPSHOT_DELAY_MILLIS from now, if
+	 * chat rooms are recorded in one and a write is not already scheduled.
+	 */
+	private void scheduleSnapshot() {
+		if (registrySnapshot == null || !snapshotScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		presenceTimer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				snapshotScheduled.set(false);
+				saveSnapshot();
+			}
+		}, SNAPSHOT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+		return;
+	}
+
 	/**
 	 * Returns the properties object containing configuration information for
 	 * this ChatServer.
@@ -96,6 +548,122 @@ public class ChatServer {
 		return properties;
 	}
 
+	/**
+	 * Returns the ServerMetrics object holding counters describing the
+	 * behaviour of this ChatServer.
+	 * 
+	 * @return The ServerMetrics object for this ChatServer
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the executor that the ChatRoom with id chatRoomId should run its
+	 * joins, leaves and broadcasts on, chosen by hashing the id over the room
+	 * threads, or null if ChatRooms on this server use locks instead.
+	 * 
+	 * @param chatRoomId
+	 *            The id of the ChatRoom
+	 * @return The executor for the ChatRoom, or null if there are no room
+	 *         threads
+	 */
+	Executor getRoomExecutor(int chatRoomId) {
+		if (roomExecutors.length == 0) {
+			return null;
+		}
+		return roomExecutors[bucketOf(chatRoomId, roomExecutors.length)];
+	}
+
+	/**
+	 * Returns which of buckets buckets the chat room or session id id belongs
+	 * in. Ids given out by one node of a Cluster all leave the same remainder
+	 * when divided by the number of nodes, so the id is divided by idStride
+	 * first, which spreads the ids from every node evenly across the buckets.
+	 * 
+	 * @param id
+	 *            The chat room or session id
+	 * @param buckets
+	 *            The number of buckets
+	 * @return The bucket of id, from 0 to buckets - 1
+	 */
+	int bucketOf(int id, int buckets) {
+		return ((id & Integer.MAX_VALUE) / idStride) % buckets;
+	}
+
+	/**
+	 * Returns the number of fan-out lanes that broadcasts to large ChatRooms
+	 * are split across, 0 if they are never split.
+	 * 
+	 * @return The number of fan-out lanes
+	 */
+	int getFanOutLanes() {
+		return fanOutExecutors.length;
+	}
+
+	/**
+	 * Returns the executor for the fan-out lane lane.
+	 * 
+	 * @param lane
+	 *            The fan-out lane, less than getFanOutLanes()
+	 * @return The executor for the fan-out lane
+	 */
+	Executor getFanOutExecutor(int lane) {
+		return fanOutExecutors[lane];
+	}
+
+	/**
+	 * Returns the log that the chat messages sent to each ChatRoom on this
+	 * ChatServer are kept in on disk.
+	 * 
+	 * @return The MessageLog of this ChatServer, or null if chat messages are
+	 *         only held in memory
+	 */
+	MessageLog getMessageLog() {
+		return messageLog;
+	}
+
+	/**
+	 * Returns the Executor that pages of chat history older than those held in
+	 * memory are read from the MessageLog on.
+	 * 
+	 * @return The Executor to read the MessageLog on, or null if chat messages
+	 *         are only held in memory
+	 */
+	Executor getLogReadExecutor() {
+		return logReadExecutor;
+	}
+
+	/**
+	 * Returns the inverted index of the chat messages sent to every ChatRoom
+	 * on this ChatServer.
+	 * 
+	 * @return The SearchIndex of this ChatServer, or null if chat messages
+	 *         cannot be searched
+	 */
+	SearchIndex getSearchIndex() {
+		return searchIndex;
+	}
+
+	/**
+	 * Returns the Cluster that this ChatServer is one node of.
+	 * 
+	 * @return The Cluster of this ChatServer, or null if it is the only server
+	 */
+	Cluster getCluster() {
+		return cluster;
+	}
+
+	/**
+	 * Returns the timer that ChatRooms on this ChatServer schedule their
+	 * batched PresenceEvents on.
+	 * 
+	 * @return The presence timer for this ChatServer
+	 */
+	public ScheduledThreadPoolExecutor getPresenceTimer() {
+		return presenceTimer;
+	}
+
 	/**
 	 * Loads the information from the server.properties file into a properties
 	 * object and returns it.
@@ -123,34 +691,238 @@ public class ChatServer {
 	}
 
 	/**
-	 * Returns an ArrayList of ChatRoomInfo objects representing all chat rooms
-	 * on this chat server.
+	 * Returns a ChatRoomListing for each of up to limit chat rooms on this chat
+	 * server whose names start with prefix and come after after, in order of
+	 * name. Only the chat rooms listed are visited, so the cost does not grow
+	 * with the number of chat rooms on the server.
+	 * 
+	 * @param prefix
+	 *            The prefix that the names of the listed chat rooms must start
+	 *            with, or the empty string for every chat room
+	 * @param after
+	 *            The name of the last chat room on the previous page, or the
+	 *            empty string to start from the first matching chat room
+	 * @param limit
+	 *            The largest number of chat rooms to list
+	 * @return A ChatRoomListing for each chat room listed
+	 */
+	ArrayList<ChatRoomListing> getChatRoomDirectory(String prefix, String after, int limit) {
+		ConcurrentNavigableMap<String, ChatRoom> matching;
+		if (after.compareTo(prefix) >= 0) {
+			matching = chatRooms.tailMap(after, false);
+		} else {
+			matching = chatRooms.tailMap(prefix, true);
+		}
+		ArrayList<ChatRoomListing> directory = new ArrayList<ChatRoomListing>();
+		for (ChatRoom cr : matching.values()) {
+			String name = cr.getChatRoomInfo().getName();
+			if (directory.size() >= limit || !name.startsWith(prefix)) {
+				break;
+			}
+			directory.add(new ChatRoomListing(name, cr.getClientCount(), cr.getChatRoomInfo().isDefaultChatRoom()));
+		}
+		return directory;
+	}
+
+	/**
+	 * Sends requester the page of the chat room directory listing up to limit
+	 * chat rooms whose names start with prefix and come after after. Pages are
+	 * shared by every client that asks for them until the directory next
+	 * changes.
+	 * 
+	 * @param requester
+	 *            The Client to send the page to
+	 * @param prefix
+	 *            The prefix that the names of the listed chat rooms must start
+	 *            with, or the empty string for every chat room
+	 * @param after
+	 *            The name of the last chat room on the previous page, or the
+	 *            empty string to start from the first matching chat room
+	 * @param limit
+	 *            The largest number of chat rooms to list, at most
+	 *            MAX_DIRECTORY_PAGE
+	 */
+	public void sendChatRoomDirectory(Client requester, String prefix, String after, int limit) {
+		int pageSize = Math.max(1, Math.min(limit, MAX_DIRECTORY_PAGE));
+		requester.sendEncodedEvent(directoryCache.getPage(prefix, after, pageSize));
+		return;
+	}
+
+	/**
+	 * Searches the chat messages sent to the chat rooms that requester is in
+	 * and sends it a SearchResultsEvent holding up to limit of the newest
+	 * messages found before the position before. The search runs on a search
+	 * thread, so this method returns straight away. If chat messages cannot be
+	 * searched, the SearchResultsEvent is empty.
 	 * 
-	 * @return An ArrayList of ChatRoomInfo objects representing all chat rooms
-	 *         on this chat server
+	 * @param requester
+	 *            The Client searching
+	 * @param query
+	 *            The words that the messages must contain
+	 * @param senderNick
+	 *            The nick of the client that must have sent the messages, or
+	 *            the empty string for any client
+	 * @param chatRoomName
+	 *            The name of the chat room the messages must have been sent
+	 *            to, or the empty string for any chat room requester is in
+	 * @param sinceMillis
+	 *            The earliest time the messages may have been sent at, or 0 for
+	 *            no limit
+	 * @param untilMillis
+	 *            The time the messages must have been sent before, or 0 for no
+	 *            limit
+	 * @param before
+	 *            The position to return the messages before, or -1 for the
+	 *            newest messages
+	 * @param limit
+	 *            The largest number of messages to return
 	 */
-	public ArrayList<ChatRoomInfo> getChatRoomList() {
-		ArrayList<ChatRoomInfo> chatRoomList = new ArrayList<ChatRoomInfo>();
-		for (ChatRoom cr : chatRooms) {
-			chatRoomList.add(cr.getChatRoomInfo());
+	public void sendSearchResults(final Client requester, final String query, final String senderNick,
+			final String chatRoomName, final long sinceMillis, final long untilMillis, final int before,
+			final int limit) {
+		if (searchIndex == null) {
+			requester.sendEvent(new SearchResultsEvent(new ArrayList<SearchHit>(), -1));
+			return;
 		}
-		// return new ArrayList<ChatRoomInfo>();
-		return chatRoomList;
+		searchExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				requester.sendEvent(searchIndex.search(requester, query, senderNick, chatRoomName, sinceMillis,
+						untilMillis, before, limit));
+			}
+		});
+		return;
 	}
 
 	/**
-	 * Adds the ChatRoom cr to this ChatServer.
+	 * Records that a change has been made that could alter the chat room
+	 * directory, such as a client joining or leaving a chat room.
+	 */
+	void chatRoomDirectoryChanged() {
+		directoryCache.invalidate();
+		return;
+	}
+
+	/**
+	 * Returns a read-only view of all chat rooms on this chat server. Iterating
+	 * over it never blocks and never fails because of concurrent changes; chat
+	 * rooms added during the iteration may or may not be seen.
+	 * 
+	 * @return A read-only view of all chat rooms on this chat server
+	 */
+	public Collection<ChatRoom> getChatRooms() {
+		return Collections.unmodifiableCollection(chatRooms.values());
+	}
+
+	/**
+	 * Adds the ChatRoom cr to this ChatServer unless a chat room with the same
+	 * name already exists. Safe to call from any thread; if several threads add
+	 * a chat room with the same name at once, exactly one of them succeeds.
 	 * 
 	 * @param cr
 	 *            The chatRoom to add to the server
+	 * @return True if cr was added, false if a chat room with its name already
+	 *         exists
 	 */
-	public void addChatRoom(ChatRoom cr) {
-		chatRooms.add(cr);
+	public boolean addChatRoom(ChatRoom cr) {
+		if (chatRooms.putIfAbsent(cr.getChatRoomInfo().getName(), cr) != null) {
+			return false;
+		}
+		chatRoomsById.put(cr.getChatRoomInfo().getId(), cr);
+		chatRoomDirectoryChanged();
+		scheduleSnapshot();
 		logger.log(Level.INFO, "Chat Room " + cr.getChatRoomInfo().getName() + " created");
-		defaultChatRoom.sendEventToAllClients(new ChatRoomAddedEvent(cr.getChatRoomInfo().getName()));
+		defaultChatRoom.chatRoomAdded(cr.getChatRoomInfo().getName());
+		return true;
+	}
+
+	/**
+	 * Creates a chat room named name, unless one already exists. If this server
+	 * is one node of a Cluster and another node owns the chat room, that node
+	 * is asked to create it instead, and it appears here once the owner has
+	 * announced it. Otherwise it is created here and announced to the other
+	 * nodes. The name is reserved before the ChatRoom is constructed, so a
+	 * thread that loses a race to create the same chat room never takes an id
+	 * or opens a RoomLog for it.
+	 * 
+	 * @param name
+	 *            The name of the chat room to create
+	 */
+	public void createChatRoom(String name) {
+		if (chatRoomExists(name) || (cluster != null && !cluster.routeCreate(name))) {
+			return;
+		}
+		if (!reserveChatRoomName(name)) {
+			return;
+		}
+		try {
+			ChatRoom cr = new ChatRoom(name, this);
+			if (addChatRoom(cr) && cluster != null) {
+				cluster.chatRoomCreated(cr);
+			}
+		} finally {
+			creatingChatRooms.remove(name);
+		}
 		return;
 	}
 
+	/**
+	 * Reserves name for a chat room about to be created, unless a chat room
+	 * with that name already exists or is being created. The reservation must
+	 * be released by removing name from creatingChatRooms once the chat room
+	 * has been added or could not be.
+	 * 
+	 * @param name
+	 *            The name of the chat room about to be created
+	 * @return True if name was reserved, false otherwise
+	 */
+	private boolean reserveChatRoomName(String name) {
+		if (!creatingChatRooms.add(name)) {
+			return false;
+		}
+		// A chat room added just before the name was reserved is seen here,
+		// since it is added before its name is released
+		if (chatRoomExists(name)) {
+			creatingChatRooms.remove(name);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Adds a replica of the chat room named name with id id, which another node
+	 * of the Cluster owns and has created, unless this server already has it.
+	 * 
+	 * @param name
+	 *            The name of the chat room
+	 * @param id
+	 *            The id that the owner gave the chat room
+	 */
+	void chatRoomCreatedByOwner(String name, int id) {
+		if (chatRoomsById.containsKey(id) || !reserveChatRoomName(name)) {
+			return;
+		}
+		try {
+			addChatRoom(new ChatRoom(name, id, this));
+		} finally {
+			creatingChatRooms.remove(name);
+		}
+		return;
+	}
+
+	/**
+	 * Returns the smallest id no less than id that this server may give out,
+	 * which is every id if it is not one node of a Cluster.
+	 * 
+	 * @param id
+	 *            The lowest id wanted
+	 * @return The smallest id that may be given out no less than id
+	 */
+	private int alignId(int id) {
+		int offset = cluster != null ? cluster.getNodeIndex() : 0;
+		return id + ((offset - id) % idStride + idStride) % idStride;
+	}
+
 	/**
 	 * Returns true if a chat room with name name exists on this server, false
 	 * otherwise.
@@ -160,12 +932,7 @@ public class ChatServer {
 	 * @return True if a chat room with name exists, false otherwise
 	 */
 	public boolean chatRoomExists(String name) {
-		for (ChatRoom cr : chatRooms) {
-			if (cr.getChatRoomInfo().getName().equals(name)) {
-				return true;
-			}
-		}
-		return false;
+		return chatRooms.containsKey(name);
 	}
 
 	/**
@@ -180,14 +947,51 @@ public class ChatServer {
 	 *         name.
 	 */
 	public ChatRoom getChatRoomByName(String name) {
-		for (ChatRoom cr : chatRooms) {
-			if (cr.getChatRoomInfo().getName().equals(name)) {
-				return cr;
-			}
+		ChatRoom cr = chatRooms.get(name);
+		if (cr != null) {
+			return cr;
 		}
 		throw new RuntimeException("ChatRoom with name of " + name + " could not be found");
 	}
 
+	/**
+	 * If a chat room exists in this ChatServer with the id id, returns its
+	 * ChatRoom object. Otherwise throws a runtime exception.
+	 * 
+	 * @param id
+	 *            The id of the chat room whose ChatRoom object should be
+	 *            returned
+	 * @return The ChatRoom object representing the chat room with an id of id
+	 */
+	public ChatRoom getChatRoomById(int id) {
+		ChatRoom cr = chatRoomsById.get(id);
+		if (cr != null) {
+			return cr;
+		}
+		throw new RuntimeException("ChatRoom with id of " + id + " could not be found");
+	}
+
+	/**
+	 * Returns a new id for a chat room about to be created on this server. Ids
+	 * are never reused.
+	 * 
+	 * @return A new chat room id
+	 */
+	public int nextChatRoomId() {
+		return nextChatRoomId.getAndAdd(idStride);
+	}
+
+	/**
+	 * Returns a new session id for a client connecting to this server. Ids are
+	 * never reused, so events about a client that has since disconnected can
+	 * never be mistaken for events about another.
+	 * 
+	 * @return A new session id
+	 */
+	public int nextSessionId() {
+		return nextSessionId.getAndAdd(idStride);
+	}
+
 	/**
 	 * Returns a DefaultChatRoom object representing the default chat room on
 	 * this server.
@@ -199,6 +1003,32 @@ public class ChatServer {
 		return defaultChatRoom;
 	}
 
+	/**
+	 * Returns the NickRegistry holding the nick of every client connected to
+	 * this server.
+	 * 
+	 * @return The NickRegistry for this server
+	 */
+	public NickRegistry getNickRegistry() {
+		return nickRegistry;
+	}
+
+	/**
+	 * If a client with the nick nick is connected to this server, returns its
+	 * Client object. Otherwise throws a runtime exception.
+	 * 
+	 * @param nick
+	 *            The nick of the client whose Client object should be returned
+	 * @return The Client object of the client with a nick of nick
+	 */
+	public Client getClientByNick(String nick) {
+		Client c = nickRegistry.get(nick);
+		if (c != null) {
+			return c;
+		}
+		throw new RuntimeException("Client with nick of " + nick + " could not be found");
+	}
+
 	public static void main(String[] args) {
 		new ChatServer();
 	}
@@ -1,14 +1,24 @@
 package com.gunshippenguin.jchat.server;
 
+import java.io.BufferedInputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
 import com.gunshippenguin.jchat.shared.ClientInfo;
+import com.gunshippenguin.jchat.shared.Codec;
 import com.gunshippenguin.jchat.shared.Event;
 import com.gunshippenguin.jchat.shared.Request;
 
@@ -16,7 +26,9 @@ import com.gunshippenguin.jchat.shared.Request;
  * Class representing a client.
  * 
  * This class implements the Runnable interface so that it can handle incoming
- * requests from the client in a separate thread.
+ * requests from the client in a separate thread. Events sent to the client are
+ * placed on a bounded OutboundQueue and written by a separate writer, so that
+ * sending an event never blocks on the client's socket.
  * 
  * @author GunshipPenguin
  *
@@ -33,20 +45,54 @@ public class Client implements Runnable {
 	 */
 	private Socket socket;
 	/**
-	 * ObjectInputStream connected to socket. Used to receive Requests from the
-	 * client.
+	 * Codec negotiated with the client during its handshake. Used to decode
+	 * Requests from and encode Events to the client.
 	 */
-	private ObjectInputStream in;
-	/**
-	 * ObjectOutput stream connected to socket. Used to sent Events to the
-	 * client.
-	 */
-	private ObjectOutputStream out;
+	private Codec codec;
 	/**
 	 * ChatServer object to be passed into the handle method of incoming
 	 * Requests.
 	 */
 	private ChatServer chatServer;
+	/**
+	 * NioSession holding the channel state of this Client when its socket is
+	 * owned by a NioEventLoop, null when this Client reads requests on its own
+	 * thread.
+	 */
+	private NioSession nioSession;
+	/**
+	 * Events waiting to be written to the client. Only the writer removes
+	 * events from this queue, so only the writer ever writes to out.
+	 */
+	private OutboundQueue outbound;
+	/**
+	 * Thread that writes events from outbound to out when this Client is not
+	 * owned by a NioEventLoop.
+	 */
+	private Thread writerThread;
+	/**
+	 * Set of the ChatRooms this Client is in, including the default chat
+	 * room. Kept up to date by ChatRoom as the client joins and leaves, so that
+	 * the chat rooms a client is in can be found without searching every chat
+	 * room on the server.
+	 */
+	private final Set<ChatRoom> chatRooms = Collections
+			.newSetFromMap(new ConcurrentHashMap<ChatRoom, Boolean>());
+	/**
+	 * True once this Client has started disconnecting. Chat rooms that have
+	 * room threads check it so that a join queued before the disconnect does
+	 * not add the client back after it has left.
+	 */
+	private volatile boolean disconnected = false;
+	/**
+	 * Number of nanoseconds the writer waits for more events to batch into a
+	 * write, 0 if events are written as soon as they are queued.
+	 */
+	private long flushLingerNanos;
+	/**
+	 * Largest number of bytes gathered into a single write to the socket.
+	 */
+	static final int WRITE_BATCH_BYTES = 64 * 1024;
 	/**
 	 * Logger object to be used by the Client class.
 	 */
@@ -55,45 +101,318 @@ public class Client implements Runnable {
 	/**
 	 * Creates a new Client object.
 	 * 
-	 * @param out
-	 *            ObjectOutputStream that will be used to send events to the
-	 *            client
-	 * @param in
-	 *            The ObjectInputStream that will be used to receive Requests
-	 *            from the client
 	 * @param socket
 	 *            The Socket object where Requests from the client will be
 	 *            received and where Events from the server will be sent
 	 * @param clientInfo
 	 *            ClientInfo object representing this client
+	 * @param codec
+	 *            The Codec negotiated with the client during its handshake
 	 * @param chatServer
 	 *            ChatServer object representing the chat server
 	 */
-	public Client(ObjectOutputStream out, ObjectInputStream in, Socket socket, ClientInfo clientInfo,
-			ChatServer chatServer) {
+	public Client(Socket socket, ClientInfo clientInfo, Codec codec, ChatServer chatServer) {
 		this.clientInfo = clientInfo;
 		this.socket = socket;
+		this.codec = codec;
 		this.chatServer = chatServer;
-		this.out = out;
-		this.in = in;
+		this.outbound = new OutboundQueue(this, chatServer.getProperties(), chatServer.getMetrics());
+		this.flushLingerNanos = getFlushLingerNanos(chatServer.getProperties());
+	}
+
+	/**
+	 * Returns the number of nanoseconds that writers should wait for more
+	 * events before writing, as configured by the flushPolicy and
+	 * flushLingerMicros server properties. Returns 0 for the immediate policy.
+	 * 
+	 * @param properties
+	 *            The properties of the server
+	 * @return The number of nanoseconds to linger before writing
+	 */
+	static long getFlushLingerNanos(Properties properties) {
+		if (!properties.getProperty("flushPolicy", "immediate").equals("linger")) {
+			return 0;
+		}
+		return TimeUnit.MICROSECONDS.toNanos(Long.parseLong(properties.getProperty("flushLingerMicros", "200")));
+	}
+
+	/**
+	 * Hands this Client's connection over to the NioEventLoop eventLoop, which
+	 * will then write queued events to the client. The run and startWriter
+	 * methods must not be used afterwards. Queued events are held back until
+	 * the event loop has started the session, so that the end of the handshake
+	 * is written first.
+	 * 
+	 * @param eventLoop
+	 *            The NioEventLoop that will own channel
+	 * @param channel
+	 *            The SocketChannel connected to the client
+	 */
+	void useEventLoop(NioEventLoop eventLoop, SocketChannel channel) {
+		nioSession = new NioSession(this, channel, eventLoop);
+		return;
+	}
+
+	/**
+	 * Returns the NioSession holding the channel state of this Client.
+	 * 
+	 * @return The NioSession of this Client, or null if it is not owned by a
+	 *         NioEventLoop
+	 */
+	NioSession getNioSession() {
+		return nioSession;
+	}
+
+	/**
+	 * Returns a read-only view of the ChatRooms this Client is in, including
+	 * the default chat room. Iterating over it never fails because of
+	 * concurrent changes.
+	 * 
+	 * @return The ChatRooms this Client is in
+	 */
+	public Collection<ChatRoom> getChatRooms() {
+		return Collections.unmodifiableSet(chatRooms);
+	}
+
+	/**
+	 * Records that this Client has joined the ChatRoom cr. Called by cr.
+	 * 
+	 * @param cr
+	 *            The ChatRoom that this Client has joined
+	 */
+	void joinedChatRoom(ChatRoom cr) {
+		chatRooms.add(cr);
+		return;
+	}
+
+	/**
+	 * Returns true once this Client has started disconnecting.
+	 * 
+	 * @return True if this Client is disconnecting or has disconnected
+	 */
+	boolean isDisconnected() {
+		return disconnected;
+	}
+
+	/**
+	 * Records that this Client has left the ChatRoom cr. Called by cr.
+	 * 
+	 * @param cr
+	 *            The ChatRoom that this Client has left
+	 */
+	void leftChatRoom(ChatRoom cr) {
+		chatRooms.remove(cr);
+		return;
+	}
+
+	/**
+	 * Returns the Socket connected to the client.
+	 * 
+	 * @return The Socket connected to the client
+	 */
+	Socket getSocket() {
+		return socket;
+	}
+
+	/**
+	 * Starts a thread created by threadFactory that writes queued events to the
+	 * client. Events queued before this is called are held back, so that the
+	 * handshake can be written to out first.
+	 * 
+	 * @param threadFactory
+	 *            The ThreadFactory to create the writer thread with
+	 */
+	void startWriter(ThreadFactory threadFactory) {
+		writerThread = threadFactory.newThread(new Runnable() {
+			@Override
+			public void run() {
+				writeEvents();
+			}
+		});
+		writerThread.setName("ClientWriterThread - " + clientInfo.getNick());
+		writerThread.start();
+		return;
 	}
 
 	/**
-	 * Sends an event to the client.
+	 * Queues an event to be sent to the client. Never blocks; if the client is
+	 * not keeping up, the server's slow consumer policy is applied instead.
 	 * 
 	 * @param evnt
 	 *            The event to send.
 	 */
 	public void sendEvent(Event evnt) {
+		sendEncodedEvent(new EncodedEvent(evnt));
+		return;
+	}
+
+	/**
+	 * Queues an event to be sent to the client. The EncodedEvent evnt may be
+	 * queued for many clients, in which case each Codec encodes it only once.
+	 * 
+	 * @param evnt
+	 *            The event to send.
+	 */
+	void sendEncodedEvent(EncodedEvent evnt) {
 		logger.log(Level.FINER, "Sending event " + evnt.toString() + " to client " + clientInfo.getNick());
+		if (outbound.offer(evnt) && nioSession != null) {
+			nioSession.eventQueued();
+		}
+		return;
+	}
+
+	/**
+	 * Tells this Client that a chat message has been published to the
+	 * RoomRing of one of its chat rooms while its writer was waiting, so that
+	 * its writer reads it.
+	 */
+	void ringPublished() {
+		outbound.ringPublished();
+		if (nioSession != null) {
+			nioSession.eventQueued();
+		}
+		return;
+	}
+
+	/**
+	 * Returns the Codec negotiated with the client during its handshake.
+	 * 
+	 * @return The Codec of this Client
+	 */
+	Codec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Returns the OutboundQueue holding events waiting to be written to this
+	 * Client.
+	 * 
+	 * @return The OutboundQueue of this Client
+	 */
+	OutboundQueue getOutboundQueue() {
+		return outbound;
+	}
+
+	/**
+	 * Closes this Client's connection without blocking, so that it is removed
+	 * from the server by whichever thread reads its requests. Used to
+	 * disconnect a client from a thread that may hold chat room locks.
+	 */
+	void requestDisconnect() {
+		if (nioSession != null) {
+			nioSession.requestDisconnect();
+		} else {
+			stopListening();
+		}
+		return;
+	}
+
+	/**
+	 * Writes queued events to the socket until the writer thread is
+	 * interrupted or the connection fails. All events queued when the writer
+	 * wakes up, plus any queued during the linger time, are gathered into as
+	 * few writes as possible. Only the writes themselves count towards the
+	 * client's write-blocked time, not the linger waits between them.
+	 */
+	private void writeEvents() {
+		EncodedEvent evnt = null;
+		byte[] batch = new byte[WRITE_BATCH_BYTES];
 		try {
-			out.reset();
-			out.writeObject(evnt);
+			OutputStream out = socket.getOutputStream();
+			while (true) {
+				evnt = outbound.take();
+				long deadline = System.nanoTime() + flushLingerNanos;
+				int length = 0;
+				int events = 0;
+				while (evnt != null) {
+					byte[] frame = evnt.getFrame(codec);
+					if (length + frame.length > batch.length && length > 0) {
+						write(out, batch, length, events);
+						length = 0;
+						events = 0;
+					}
+					if (frame.length > batch.length) {
+						write(out, frame, frame.length, 1);
+					} else {
+						System.arraycopy(frame, 0, batch, length, frame.length);
+						length += frame.length;
+						events++;
+					}
+					evnt = outbound.poll();
+					if (evnt == null && flushLingerNanos > 0) {
+						evnt = outbound.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+					}
+				}
+				if (length > 0) {
+					write(out, batch, length, events);
+				}
+			}
+		} catch (InterruptedException e) {
+			return;
 		} catch (IOException e) {
 			logger.log(Level.WARNING,
-					"Could not send event - " + evnt.toString() + " to client " + clientInfo.getNick(), e);
-			e.printStackTrace();
+					"Could not send event - " + evnt + " to client " + clientInfo.getNick(), e);
+			stopListening();
+		}
+		return;
+	}
+
+	/**
+	 * Writes the first length bytes of bytes, holding events events, to out.
+	 * The client's outbound queue is marked as write-blocked for as long as
+	 * the write takes, so that a client whose socket stops draining is seen as
+	 * a slow consumer.
+	 * 
+	 * @param out
+	 *            The client's socket output stream
+	 * @param bytes
+	 *            The bytes to write
+	 * @param length
+	 *            The number of bytes to write
+	 * @param events
+	 *            The number of events completed by the write
+	 * @throws IOException
+	 *             If the write fails
+	 */
+	private void write(OutputStream out, byte[] bytes, int length, int events) throws IOException {
+		outbound.markWriteBlocked();
+		out.write(bytes, 0, length);
+		outbound.markWriteCompleted();
+		countWrite(events, length);
+		return;
+	}
+
+	/**
+	 * Records a single write of bytes bytes holding events events to the
+	 * client's socket in the server's metrics.
+	 * 
+	 * @param events
+	 *            The number of events completed by the write
+	 * @param bytes
+	 *            The number of bytes written
+	 */
+	void countWrite(int events, long bytes) {
+		ServerMetrics metrics = chatServer.getMetrics();
+		metrics.increment("io.writes");
+		metrics.add("io.eventsWritten", events);
+		metrics.add("io.bytesWritten", bytes);
+		return;
+	}
+
+	/**
+	 * Removes this Client from the server if it has not been removed already
+	 * and closes its socket.
+	 */
+	void disconnect() {
+		DefaultChatRoom defaultChatRoom = chatServer.getDefaultChatRoom();
+		NickRegistry nickRegistry = chatServer.getNickRegistry();
+		String nick = clientInfo.getNick();
+		disconnected = true;
+		if (nickRegistry.get(nick) == this) {
+			defaultChatRoom.removeClient(this);
+			nickRegistry.release(nick, this);
 		}
+		stopListening();
 		return;
 	}
 
@@ -101,6 +420,9 @@ public class Client implements Runnable {
 	 * Closes the socket object for this Client.
 	 */
 	public void stopListening() {
+		if (writerThread != null) {
+			writerThread.interrupt();
+		}
 		try {
 			socket.close();
 			logger.log(Level.FINER, "Stopped listening for requests from " + clientInfo.getNick());
@@ -113,24 +435,41 @@ public class Client implements Runnable {
 
 	/**
 	 * Receives incoming Requests from the client and calls their handle method.
+	 * If a Request cannot be read or handled, the client is disconnected so
+	 * that its nick and chat room memberships are released.
 	 */
 	@Override
 	public void run() {
 		logger.log(Level.FINER, "Starting to listen for requests from" + clientInfo.getNick());
 		Request newRequest = null;
+		InputStream in;
+		try {
+			in = new BufferedInputStream(socket.getInputStream());
+		} catch (IOException e) {
+			logger.log(Level.INFO, "Lost connection to client " + clientInfo.getNick());
+			disconnect();
+			return;
+		}
 		do {
+			newRequest = null;
 			try {
-				newRequest = (Request) in.readObject();
+				newRequest = (Request) codec.read(in);
 				logger.log(Level.FINER,
 						"Got request " + newRequest.toString() + " from client " + clientInfo.getNick());
 				newRequest.handle(chatServer, clientInfo);
 			} catch (EOFException e) {
 				logger.log(Level.INFO, "Client " + clientInfo.getNick() + " disconnected");
-				chatServer.getDefaultChatRoom().removeClient(clientInfo.getNick());
-				stopListening();
+				disconnect();
 				return;
-			} catch (ClassNotFoundException | IOException e) {
+			} catch (IOException e) {
 				e.printStackTrace();
+				logger.log(Level.INFO, "Lost connection to client " + clientInfo.getNick());
+				disconnect();
+				return;
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "Could not handle request " + newRequest + " from client "
+						+ clientInfo.getNick() + ", disconnecting it", e);
+				disconnect();
 				return;
 			}
 		} while (newRequest != null);
@@ -1,14 +1,32 @@
 package com.gunshippenguin.jchat.server;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.gunshippenguin.jchat.shared.ChatRoomInfo;
 import com.gunshippenguin.jchat.shared.ClientInfo;
+import com.gunshippenguin.jchat.shared.Codec;
+import com.gunshippenguin.jchat.shared.Codecs;
 import com.gunshippenguin.jchat.shared.InitClientInfo;
 import com.gunshippenguin.jchat.shared.InitServerInfo;
 
@@ -16,6 +34,18 @@ import com.gunshippenguin.jchat.shared.InitServerInfo;
  * Class that waits for incoming connections from clients and adds them to the
  * ChatServer.
  * 
+ * Threads running a ClientAccepter only accept connections. The handshake of
+ * each connection is done elsewhere, so that a client that connects and never
+ * sends its InitClientInfo cannot hold up later connections. When the server's
+ * ioMode is nio the handshake is done without blocking by a NioEventLoop,
+ * otherwise it is done by the thread that will go on to read the client's
+ * requests. Either way the new client is added to the default chat room by
+ * one of its exclusive tasks, which also builds the InitServerInfo sent back,
+ * so a NioEventLoop never waits for the default chat room. Every connection
+ * must finish its handshake within the server's
+ * handshakeTimeoutMillis of being accepted or it is closed. Several threads can
+ * run the same ClientAccepter to accept connections in parallel.
+ * 
  * @author GunshipPenguin
  */
 public class ClientAccepter implements Runnable {
@@ -28,20 +58,90 @@ public class ClientAccepter implements Runnable {
 	 */
 	private ServerSocket serverSocket;
 	/**
-	 * ObjectInputStream connected to socket. Used to receive Requests from the
-	 * client.
+	 * ServerSocketChannel to listen for incoming connections on when the
+	 * server's ioMode is nio, null otherwise.
+	 */
+	private ServerSocketChannel serverChannel;
+	/**
+	 * NioEventLoops that accepted clients are handed to when the server's
+	 * ioMode is nio, null otherwise.
+	 */
+	private NioEventLoop[] eventLoops;
+	/**
+	 * Executor that adds clients whose handshakes have been read by the
+	 * NioEventLoops to the server, so that a NioEventLoop never waits for a
+	 * nick or the default chat room's lock. Null unless the server's ioMode is
+	 * nio.
+	 */
+	private ExecutorService joinExecutor;
+	/**
+	 * Index of the NioEventLoop that the next accepted client will be handed
+	 * to.
+	 */
+	private final AtomicInteger nextEventLoop = new AtomicInteger();
+	/**
+	 * ThreadFactory used to create the threads that read requests from and
+	 * write events to each client when the server's ioMode is blocking or
+	 * virtual.
+	 */
+	private ThreadFactory clientThreadFactory;
+	/**
+	 * Names of the Codecs that this server will agree to use, from the
+	 * server's codecs property.
+	 */
+	private ArrayList<String> allowedCodecs = new ArrayList<String>();
+	/**
+	 * Whether Nagle's algorithm is disabled on client sockets, from the
+	 * server's tcpNoDelay property.
+	 */
+	private boolean tcpNoDelay;
+	/**
+	 * Send buffer size requested for client sockets, or 0 to use the operating
+	 * system's default.
+	 */
+	private int socketSendBufferSize;
+	/**
+	 * Executor that closes connections whose handshake has not finished by
+	 * their deadline.
 	 */
-	private ObjectInputStream in;
+	private ScheduledThreadPoolExecutor handshakeTimer;
 	/**
-	 * ObjectOutput stream connected to socket. Used to sent Events to the
-	 * client.
+	 * Number of milliseconds after being accepted that a connection must
+	 * finish its handshake within.
 	 */
-	private ObjectOutputStream out;
+	private long handshakeTimeoutMillis;
+	/**
+	 * Number of milliseconds that an accepting thread first waits for after
+	 * accept fails, doubling with each failure in a row up to
+	 * MAX_ACCEPT_BACKOFF_MILLIS.
+	 */
+	private static final long MIN_ACCEPT_BACKOFF_MILLIS = 10;
+	/**
+	 * Longest time in milliseconds that an accepting thread waits for after
+	 * accept fails.
+	 */
+	private static final long MAX_ACCEPT_BACKOFF_MILLIS = 1000;
 	/**
 	 * Logger object to be used by the ClientAccepter class.
 	 */
 	private static final Logger logger = Logger.getLogger(ChatServer.class.getName());
 
+	/**
+	 * Interface for the code to run once a new client has been added to the
+	 * server by join.
+	 */
+	interface ReplyCallback {
+		/**
+		 * Called once the new client has been added to the server, possibly on
+		 * a room thread. Must not block.
+		 * 
+		 * @param isi
+		 *            The InitServerInfo to send to the client, or null if it
+		 *            could not be added
+		 */
+		void reply(InitServerInfo isi);
+	}
+
 	/**
 	 * Creates a new ClientAccepter object that accepts clients for the chat
 	 * server represented by ChatServer.
@@ -49,82 +149,501 @@ public class ClientAccepter implements Runnable {
 	 * @param chatServer
 	 *            the ChatServer object that this ClientAccepter will accept
 	 *            clients for
+	 * @throws IOException
+	 *             If the server could not listen for clients on its port
 	 */
-	public ClientAccepter(ChatServer chatServer) {
+	public ClientAccepter(ChatServer chatServer) throws IOException {
 		this.chatServer = chatServer;
 		int port = Integer.parseInt(chatServer.getProperties().getProperty("port"));
+		String ioMode = chatServer.getProperties().getProperty("ioMode", "blocking");
+		if (ioMode.equals("virtual")) {
+			clientThreadFactory = createVirtualThreadFactory();
+		}
+		if (clientThreadFactory == null) {
+			clientThreadFactory = new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r);
+					t.setDaemon(true);
+					return t;
+				}
+			};
+		}
+		for (String name : chatServer.getProperties().getProperty("codecs", "binary,java").split(",")) {
+			try {
+				allowedCodecs.add(Codecs.forName(name.trim()).getName());
+			} catch (IllegalArgumentException e) {
+				logger.log(Level.WARNING, "Ignoring unknown codec " + name.trim());
+			}
+		}
+		tcpNoDelay = Boolean.parseBoolean(chatServer.getProperties().getProperty("tcpNoDelay", "true"));
+		socketSendBufferSize = Integer.parseInt(chatServer.getProperties().getProperty("socketSendBufferSize", "0"));
+		int socketReceiveBufferSize = Integer
+				.parseInt(chatServer.getProperties().getProperty("socketReceiveBufferSize", "0"));
+		int acceptBacklog = Integer.parseInt(chatServer.getProperties().getProperty("acceptBacklog", "128"));
+		handshakeTimeoutMillis = Long
+				.parseLong(chatServer.getProperties().getProperty("handshakeTimeoutMillis", "10000"));
+		startHandshakeTimer();
 		try {
-			serverSocket = new ServerSocket(port);
+			if (ioMode.equals("nio")) {
+				serverChannel = ServerSocketChannel.open();
+				serverSocket = serverChannel.socket();
+			} else {
+				serverSocket = new ServerSocket();
+			}
+			// The receive buffer size must be set before binding so that it
+			// applies to the TCP window of accepted sockets
+			if (socketReceiveBufferSize > 0) {
+				serverSocket.setReceiveBufferSize(socketReceiveBufferSize);
+			}
+			serverSocket.bind(new InetSocketAddress(port), acceptBacklog);
+			if (serverChannel != null) {
+				startEventLoops(Integer.parseInt(chatServer.getProperties().getProperty("nioThreads", "2")));
+			}
 			logger.log(Level.INFO, "Listening for clients on port " + port);
 		} catch (IOException e) {
-			logger.log(Level.SEVERE,
-					"Could not listen for clients on port " + Integer.toString(port) + " (Is it already in use?)", e);
-			e.printStackTrace();
+			if (serverSocket != null) {
+				serverSocket.close();
+			}
+			handshakeTimer.shutdownNow();
+			throw new IOException("Could not listen for clients on port " + port + " (Is it already in use?)", e);
+		}
+	}
+
+	/**
+	 * Applies the socket options configured for the server to a newly accepted
+	 * client socket.
+	 * 
+	 * @param socket
+	 *            The client socket to configure
+	 * @throws IOException
+	 *             If an option could not be set
+	 */
+	private void configureSocket(Socket socket) throws IOException {
+		socket.setTcpNoDelay(tcpNoDelay);
+		if (socketSendBufferSize > 0) {
+			socket.setSendBufferSize(socketSendBufferSize);
+		}
+		return;
+	}
+
+	/**
+	 * Returns a ThreadFactory that creates virtual threads, or null if the
+	 * running JVM does not support them. Reflection is used so that the server
+	 * can still be built for and run on older JVMs.
+	 * 
+	 * @return A ThreadFactory that creates virtual threads, or null if virtual
+	 *         threads are not supported
+	 */
+	private static ThreadFactory createVirtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			ThreadFactory factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory")
+					.invoke(builder);
+			logger.log(Level.INFO, "Reading client requests on virtual threads");
+			return factory;
+		} catch (ReflectiveOperationException e) {
+			logger.log(Level.WARNING, "Virtual threads are not supported by this JVM, using platform threads");
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the first of the Codecs named in offered that this server allows,
+	 * or the Java serialization Codec if there is none.
+	 * 
+	 * @param offered
+	 *            The names of the Codecs supported by a client, in order of
+	 *            preference, or null if the client did not send any
+	 * @return The Codec to use for the client
+	 */
+	private Codec negotiateCodec(String[] offered) {
+		if (offered != null) {
+			for (String name : offered) {
+				if (allowedCodecs.contains(name)) {
+					return Codecs.forName(name);
+				}
+			}
+		}
+		return Codecs.JAVA;
+	}
+
+	/**
+	 * Creates the thread that enforces handshake deadlines.
+	 */
+	private void startHandshakeTimer() {
+		handshakeTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r);
+				t.setDaemon(true);
+				t.setName("HandshakeTimerThread");
+				return t;
+			}
+		});
+		handshakeTimer.setRemoveOnCancelPolicy(true);
+		return;
+	}
+
+	/**
+	 * Creates and starts numThreads NioEventLoops for accepted clients to be
+	 * handed to.
+	 * 
+	 * @param numThreads
+	 *            The number of NioEventLoop threads to start
+	 * @throws IOException
+	 *             If a NioEventLoop could not open its Selector
+	 */
+	private void startEventLoops(int numThreads) throws IOException {
+		joinExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r);
+				t.setDaemon(true);
+				t.setName("JoinThread");
+				return t;
+			}
+		});
+		eventLoops = new NioEventLoop[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			eventLoops[i] = new NioEventLoop(chatServer, this);
+			Thread eventLoopThread = new Thread(eventLoops[i]);
+			eventLoopThread.setDaemon(true);
+			eventLoopThread.setName("NioEventLoopThread - " + i);
+			eventLoopThread.start();
 		}
+		logger.log(Level.INFO, "Serving clients on " + numThreads + " NioEventLoop threads");
+		return;
 	}
 
 	/**
-	 * Listens for clients connecting to serverSocket, receives, their
-	 * InitClientInfo, adds them to the ChatServer chatServer and sends them an
-	 * InitServerInfo object.
+	 * Listens for clients connecting to serverSocket and starts the handshake
+	 * of each one, either on one of the NioEventLoops or on a new client
+	 * thread. May be run on several threads at once. If accept fails, for
+	 * example because the process has run out of file descriptors, the thread
+	 * waits before trying again, for longer each time it fails in a row.
 	 */
 	@Override
 	public void run() {
-		Socket newClientSocket;
-		Client newClient;
+		long backoffMillis = MIN_ACCEPT_BACKOFF_MILLIS;
 		while (true) {
 			try {
-				newClientSocket = serverSocket.accept();
-				out = new ObjectOutputStream(newClientSocket.getOutputStream());
-				in = new ObjectInputStream(newClientSocket.getInputStream());
+				final SocketChannel newClientChannel;
+				final Socket newClientSocket;
+				if (serverChannel != null) {
+					newClientChannel = serverChannel.accept();
+					newClientSocket = newClientChannel.socket();
+				} else {
+					newClientChannel = null;
+					newClientSocket = serverSocket.accept();
+				}
+				chatServer.getMetrics().increment("accept.accepted");
+				backoffMillis = MIN_ACCEPT_BACKOFF_MILLIS;
+				try {
+					configureSocket(newClientSocket);
+				} catch (IOException e) {
+					closeQuietly(newClientSocket);
+					throw e;
+				}
 
-				// Get InitClientInfo from the client
-				InitClientInfo ici = (InitClientInfo) in.readUnshared();
+				// Close the connection if its handshake has not finished by
+				// its deadline
+				final AtomicBoolean finished = new AtomicBoolean(false);
+				final ScheduledFuture<?> timeout = handshakeTimer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						if (finished.compareAndSet(false, true)) {
+							chatServer.getMetrics().increment("handshake.timedOut");
+							logger.log(Level.INFO, "Handshake with " + newClientSocket.getInetAddress()
+									+ " timed out after " + handshakeTimeoutMillis + " ms");
+							closeQuietly(newClientSocket);
+						}
+					}
+				}, handshakeTimeoutMillis, TimeUnit.MILLISECONDS);
 
-				// Create a ClientInfo object for the new client
-				ClientInfo newClientInfo = new ClientInfo(ici.getNick());
+				if (newClientChannel != null) {
+					newClientChannel.configureBlocking(false);
+					int eventLoop = (nextEventLoop.getAndIncrement() & Integer.MAX_VALUE) % eventLoops.length;
+					eventLoops[eventLoop].register(new NioHandshake(newClientChannel, finished, timeout));
+				} else {
+					Thread clientThread = clientThreadFactory.newThread(new Runnable() {
+						@Override
+						public void run() {
+							Client newClient = handshake(newClientSocket, finished, timeout);
+							if (newClient != null) {
+								newClient.run();
+							}
+						}
+					});
+					clientThread.setName("ClientThread - " + newClientSocket.getInetAddress());
+					clientThread.start();
+				}
+			} catch (IOException e) {
+				chatServer.getMetrics().increment("accept.failed");
+				logger.log(Level.WARNING, "Could not accept client, retrying in " + backoffMillis + " ms", e);
+				try {
+					Thread.sleep(backoffMillis);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				backoffMillis = Math.min(backoffMillis * 2, MAX_ACCEPT_BACKOFF_MILLIS);
+			}
+		}
+	}
 
-				// Create the InitServerInfo to send to the new client
-				InitServerInfo isi = new InitServerInfo(newClientInfo,
-						chatServer.getDefaultChatRoom().getChatRoomInfo());
+	/**
+	 * Performs the handshake with a newly accepted client over blocking
+	 * streams, then starts its writer thread. Runs on the thread that will go
+	 * on to read the client's requests, which waits for the client to be added
+	 * to the default chat room before replying.
+	 * 
+	 * @param newClientSocket
+	 *            The socket connected to the new client
+	 * @param finished
+	 *            Set once the handshake has either timed out or gone far
+	 *            enough that it can no longer be abandoned
+	 * @param timeout
+	 *            The task that will close the socket if the handshake does not
+	 *            finish in time
+	 * @return The Client for the new client, or null if the handshake failed
+	 */
+	private Client handshake(Socket newClientSocket, AtomicBoolean finished, ScheduledFuture<?> timeout) {
+		Client newClient = null;
+		final AtomicReference<InitServerInfo> isi = new AtomicReference<InitServerInfo>();
+		final CountDownLatch replied = new CountDownLatch(1);
+		try {
+			ObjectInputStream in = new ObjectInputStream(newClientSocket.getInputStream());
 
-				// Ensure that the nick requested by the user is not already
-				// taken
-				if (chatServer.getDefaultChatRoom().hasClient(ici.getNick())) {
-					isi.setFlag(InitServerInfo.BAD_NICK);
-					String appendString;
-					int counter = 1;
-					do {
-						appendString = "_" + Integer.toString(counter);
-					} while (chatServer.getDefaultChatRoom().hasClient(ici.getNick() + appendString));
-					isi.setNick(ici.getNick() + appendString);
+			// Get InitClientInfo from the client
+			InitClientInfo ici = (InitClientInfo) in.readUnshared();
+
+			newClient = createClient(ici, newClientSocket);
+			if (!join(newClient, ici, finished, new ReplyCallback() {
+				@Override
+				public void reply(InitServerInfo reply) {
+					isi.set(reply);
+					replied.countDown();
 				}
+			})) {
+				return null;
+			}
+			replied.await();
+			if (isi.get() == null) {
+				newClient.disconnect();
+				return null;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			newClient.disconnect();
+			return null;
+		} catch (IOException | ClassNotFoundException | ClassCastException e) {
+			handshakeFailed(newClientSocket, finished, e);
+			return null;
+		} catch (RuntimeException e) {
+			if (newClient != null && finished.get()) {
+				logger.log(Level.WARNING, "Could not add client " + newClient.getClientInfo().getNick(), e);
+				newClient.disconnect();
+			} else {
+				handshakeFailed(newClientSocket, finished, e);
+			}
+			return null;
+		} finally {
+			timeout.cancel(false);
+		}
 
-				// Create a Client object for the new client
-				newClient = new Client(out, in, newClientSocket, newClientInfo, chatServer);
+		// Send the InitServerInfo to the client
+		try {
+			ObjectOutputStream out = new ObjectOutputStream(newClientSocket.getOutputStream());
+			out.writeUnshared(isi.get());
+			out.flush();
+		} catch (IOException e) {
+			logger.log(Level.INFO,
+					"Lost connection to client " + newClient.getClientInfo().getNick() + " during handshake");
+			newClient.disconnect();
+			return null;
+		}
 
-				// Add the client to the default chat room
-				chatServer.getDefaultChatRoom().addClient(newClient);
+		Thread.currentThread().setName("ClientThread - " + newClient.getClientInfo().getNick());
+		newClient.startWriter(clientThreadFactory);
+		handshakeCompleted(newClient);
+		return newClient;
+	}
 
-				// Send the InitServerInfo to the client
-				out.writeUnshared(isi);
+	/**
+	 * Creates a Client for a client that has sent the InitClientInfo ici,
+	 * using the first Codec it offered that this server allows.
+	 * 
+	 * @param ici
+	 *            The InitClientInfo sent by the client
+	 * @param socket
+	 *            The socket connected to the client
+	 * @return The Client for the new client
+	 * @throws IOException
+	 *             If ici does not hold a nick
+	 */
+	Client createClient(InitClientInfo ici, Socket socket) throws IOException {
+		if (ici.getNick() == null) {
+			throw new IOException("Client did not send a nick");
+		}
+		ClientInfo clientInfo = new ClientInfo(ici.getNick(), chatServer.nextSessionId());
+		return new Client(socket, clientInfo, negotiateCodec(ici.getCodecs()), chatServer);
+	}
+
+	/**
+	 * Chooses a nick for newClient and adds it to the default chat room, unless
+	 * its handshake has already timed out. The client is added by an exclusive
+	 * task of the default chat room, which builds the InitServerInfo to send
+	 * it and passes it to callback. If the default chat room has a room
+	 * thread, this happens there and join returns without waiting for it.
+	 * 
+	 * @param newClient
+	 *            The Client created for the new client
+	 * @param ici
+	 *            The InitClientInfo sent by the client
+	 * @param finished
+	 *            Set once the handshake has either timed out or gone far
+	 *            enough that it can no longer be abandoned
+	 * @param callback
+	 *            The code to run with the InitServerInfo once the client has
+	 *            been added
+	 * @return False if the handshake had already timed out, in which case
+	 *         callback is never called, true otherwise
+	 */
+	boolean join(Client newClient, InitClientInfo ici, AtomicBoolean finished, final ReplyCallback callback) {
+		final ClientInfo newClientInfo = newClient.getClientInfo();
+		final String codec = newClient.getCodec().getName();
+
+		// Give up if the handshake has already timed out
+		if (!finished.compareAndSet(false, true)) {
+			return false;
+		}
 
-				// Start the client's thread and add it to the chatServer's list
-				// of clients
-				Thread clientThread = new Thread(newClient);
-				clientThread.setDaemon(true);
-				clientThread.setName("ClientThread - " + newClientInfo.getNick());
-				clientThread.start();
+		// Reserve the nick requested by the user, or a free variation of it
+		// if it is already taken
+		String nick = chatServer.getNickRegistry().reserve(ici.getNick(), newClient);
+		final boolean badNick = !nick.equals(ici.getNick());
+		newClientInfo.setNick(nick);
 
-				// Log information about the client that just connected
-				logger.log(Level.INFO, "New client connected. Nick:" + newClientInfo.getNick() + " Addr:"
-						+ newClientSocket.getInetAddress().toString());
-			} catch (IOException e) {
-				e.printStackTrace();
-			} catch (ClassNotFoundException e) {
-				e.printStackTrace();
+		// Add the client to the default chat room, then create the
+		// InitServerInfo to send to it, which lists the default chat room's
+		// roster only if it is small
+		chatServer.getDefaultChatRoom().addClient(newClient, new DefaultChatRoom.JoinCallback() {
+			@Override
+			public void joined(ChatRoomInfo summary) {
+				if (summary == null) {
+					callback.reply(null);
+					return;
+				}
+				InitServerInfo isi = new InitServerInfo(newClientInfo, summary);
+				isi.setCodec(codec);
+				if (badNick) {
+					isi.setFlag(InitServerInfo.BAD_NICK);
+				}
+				callback.reply(isi);
 			}
+		});
+		return true;
+	}
+
+	/**
+	 * Calls join for a client whose handshake has been read by a
+	 * NioEventLoop, on a thread of its own rather than the NioEventLoop's.
+	 * callback is called with null if join fails.
+	 * 
+	 * @param newClient
+	 *            The Client created for the new client
+	 * @param ici
+	 *            The InitClientInfo sent by the client
+	 * @param finished
+	 *            Set once the handshake has either timed out or gone far
+	 *            enough that it can no longer be abandoned
+	 * @param callback
+	 *            The code to run with the InitServerInfo once the client has
+	 *            been added
+	 */
+	void joinLater(final Client newClient, final InitClientInfo ici, final AtomicBoolean finished,
+			final ReplyCallback callback) {
+		joinExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					join(newClient, ici, finished, callback);
+				} catch (RuntimeException e) {
+					logger.log(Level.WARNING, "Could not add client " + newClient.getClientInfo().getNick(), e);
+					callback.reply(null);
+				}
+			}
+		});
+		return;
+	}
+
+	/**
+	 * Serializes isi with its own object stream header, ready to be written to
+	 * a client that is not read with blocking streams.
+	 * 
+	 * @param isi
+	 *            The InitServerInfo to serialize
+	 * @return The serialized InitServerInfo
+	 * @throws IOException
+	 *             If isi could not be serialized
+	 */
+	static byte[] serialize(InitServerInfo isi) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeUnshared(isi);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Records that the handshake with newClient has completed.
+	 * 
+	 * @param newClient
+	 *            The Client whose handshake has completed
+	 */
+	void handshakeCompleted(Client newClient) {
+		chatServer.getMetrics().increment("handshake.completed");
+
+		// Log information about the client that just connected
+		logger.log(Level.INFO, "New client connected. Nick:" + newClient.getClientInfo().getNick() + " Addr:"
+				+ newClient.getSocket().getInetAddress().toString() + " Codec:" + newClient.getCodec().getName());
+		return;
+	}
+
+	/**
+	 * Records that the handshake with the client connected to socket failed and
+	 * closes socket, unless the handshake has already timed out.
+	 * 
+	 * @param socket
+	 *            The socket connected to the client
+	 * @param finished
+	 *            Set once the handshake has either timed out or gone far
+	 *            enough that it can no longer be abandoned
+	 * @param e
+	 *            The exception that caused the handshake to fail
+	 */
+	void handshakeFailed(Socket socket, AtomicBoolean finished, Exception e) {
+		if (finished.compareAndSet(false, true)) {
+			chatServer.getMetrics().increment("handshake.failed");
+			logger.log(Level.INFO, "Handshake with " + socket.getInetAddress() + " failed", e);
+			closeQuietly(socket);
 		}
+		return;
 	}
 
+	/**
+	 * Closes socket, ignoring any exception.
+	 * 
+	 * @param socket
+	 *            The socket to close
+	 */
+	static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Nothing more can be done with the socket
+		}
+		return;
+	}
 }
@@ -0,0 +1,645 @@
+package com.gunshippenguin.jchat.server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.gunshippenguin.jchat.shared.BinaryInput;
+import com.gunshippenguin.jchat.shared.BinaryOutput;
+import com.gunshippenguin.jchat.shared.ChatMessageEvent;
+
+/**
+ * Class representing the cluster of servers that this ChatServer is one node
+ * of. Every node is given the same list of nodes, and each chat room other
+ * than the default chat room is owned by one of them, chosen by consistent
+ * hashing of its name, so that adding a node moves only about a share of the
+ * chat rooms to it. Clients can connect to any node and use any chat room.
+ * 
+ * Chat rooms are created by their owner, which tells every other node so that
+ * they each hold a replica of it with the same name and id. Chat messages sent
+ * to a chat room on a node that does not own it are forwarded to the owner.
+ * The owner delivers each chat message to its own members and sends it once to
+ * every node that has members in the chat room, which delivers it to them.
+ * Nodes tell the owner when a chat room gains its first local member and
+ * loses its last, so chat messages are only sent to the nodes that need them.
+ * 
+ * Each node is linked to every other by a single ClusterLink. The node with the
+ * higher index connects to the node with the lower one, retrying until it
+ * succeeds; once connected, each node tells the other which chat rooms it owns
+ * and which of the other's chat rooms it has members in. The roster of each
+ * replica only holds the node's own members, nicks are only unique on each
+ * node, and the chat rooms owned by a node that is down cannot be used until
+ * it is back.
+ * 
+ * @author GunshipPenguin
+ */
+class Cluster {
+	/**
+	 * Opcode of the frame that the connecting node sends first, holding its
+	 * index.
+	 */
+	static final int HELLO = 1;
+	/**
+	 * Opcode of a frame telling a node that a chat room was created by its
+	 * owner, holding its name and id.
+	 */
+	static final int ROOM_CREATED = 2;
+	/**
+	 * Opcode of a frame asking the owner of a chat room to create it, holding
+	 * its name.
+	 */
+	static final int CREATE_ROOM = 3;
+	/**
+	 * Opcode of a frame asking the owner of a chat room to send its chat
+	 * messages to the sending node, holding its id.
+	 */
+	static final int SUBSCRIBE = 4;
+	/**
+	 * Opcode of a frame asking the owner of a chat room to stop sending its
+	 * chat messages to the sending node, holding its id.
+	 */
+	static final int UNSUBSCRIBE = 5;
+	/**
+	 * Opcode of a frame holding a chat message sent to a chat room, going to
+	 * its owner or from its owner to the nodes with members in it.
+	 */
+	static final int CHAT_MESSAGE = 6;
+	/**
+	 * Opcode of a frame with no other contents, sent over an idle link so that
+	 * the other node knows the link is still alive.
+	 */
+	static final int PING = 7;
+	/**
+	 * Number of points that each node is given on the hash ring.
+	 */
+	private static final int VIRTUAL_NODES = 128;
+	/**
+	 * Number of milliseconds to wait before connecting to a node again.
+	 */
+	private static final long RECONNECT_DELAY_MILLIS = 1000;
+	/**
+	 * The ChatServer that is this node.
+	 */
+	private final ChatServer server;
+	/**
+	 * Addresses of the cluster listeners of every node, in index order.
+	 */
+	private final InetSocketAddress[] nodes;
+	/**
+	 * Index of this node in nodes.
+	 */
+	private final int nodeIndex;
+	/**
+	 * Hash ring mapping points to the index of the node owning the chat rooms
+	 * whose names hash to that point or just below it.
+	 */
+	private final TreeMap<Integer, Integer> ring = new TreeMap<Integer, Integer>();
+	/**
+	 * The links to every other node, indexed by node. The entry for this node
+	 * is null.
+	 */
+	private final ClusterLink[] links;
+	/**
+	 * Map of the ids of the chat rooms owned by this node to the indexes of
+	 * the other nodes with members in them.
+	 */
+	private final ConcurrentMap<Integer, Set<Integer>> subscribers = new ConcurrentHashMap<Integer, Set<Integer>>();
+	/**
+	 * Counters that the cluster records its activity in.
+	 */
+	private final ServerMetrics metrics;
+	private static final Logger logger = Logger.getLogger(Cluster.class.getName());
+
+	/**
+	 * Creates a new Cluster in which this server is the node with index
+	 * nodeIndex in nodes. Nothing is connected until start is called.
+	 * 
+	 * @param server
+	 *            The ChatServer that is this node
+	 * @param nodes
+	 *            The host:port addresses of the cluster listeners of every
+	 *            node, in the same order on every node
+	 * @param nodeIndex
+	 *            The index of this node in nodes
+	 * @param queueSize
+	 *            The number of frames that can wait to be sent to each node
+	 * @param metrics
+	 *            The counters to record activity in
+	 */
+	Cluster(ChatServer server, String[] nodes, int nodeIndex, int queueSize, ServerMetrics metrics) {
+		if (nodeIndex < 0 || nodeIndex >= nodes.length) {
+			throw new IllegalArgumentException(
+					"clusterNodeIndex " + nodeIndex + " is not the index of one of the " + nodes.length + " nodes");
+		}
+		this.server = server;
+		this.nodes = new InetSocketAddress[nodes.length];
+		this.nodeIndex = nodeIndex;
+		this.links = new ClusterLink[nodes.length];
+		this.metrics = metrics;
+		for (int i = 0; i < nodes.length; i++) {
+			String node = nodes[i].trim();
+			int colon = node.lastIndexOf(':');
+			String host = node.substring(0, colon);
+			this.nodes[i] = new InetSocketAddress(host, Integer.parseInt(node.substring(colon + 1)));
+			if (i != nodeIndex) {
+				links[i] = new ClusterLink(i, this, queueSize, metrics);
+			}
+			for (int v = 0; v < VIRTUAL_NODES; v++) {
+				ring.put(hash(node + "#" + v), i);
+			}
+		}
+	}
+
+	/**
+	 * Returns the index of this node.
+	 * 
+	 * @return The index of this node
+	 */
+	int getNodeIndex() {
+		return nodeIndex;
+	}
+
+	/**
+	 * Returns the number of nodes in the cluster.
+	 * 
+	 * @return The number of nodes
+	 */
+	int getNodeCount() {
+		return nodes.length;
+	}
+
+	/**
+	 * Returns the index of the node that owns the chat room named name.
+	 * 
+	 * @param name
+	 *            The name of the chat room
+	 * @return The index of its owner
+	 */
+	int ownerOf(String name) {
+		Map.Entry<Integer, Integer> entry = ring.ceilingEntry(hash(name));
+		if (entry == null) {
+			entry = ring.firstEntry();
+		}
+		return entry.getValue();
+	}
+
+	/**
+	 * Returns the first four bytes of the MD5 digest of str, used to place chat
+	 * rooms and nodes on the hash ring.
+	 * 
+	 * @param str
+	 *            The string to hash
+	 * @return The hash of str
+	 */
+	private static int hash(String str) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(str.getBytes(StandardCharsets.UTF_8));
+			return (digest[0] & 0xFF) << 24 | (digest[1] & 0xFF) << 16 | (digest[2] & 0xFF) << 8 | (digest[3] & 0xFF);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not available", e);
+		}
+	}
+
+	/**
+	 * Starts listening for the nodes with higher indexes and connecting to the
+	 * nodes with lower ones. The listener is bound to this node's own address
+	 * in the list of nodes rather than to every interface.
+	 * 
+	 * @throws IOException
+	 *             If the cluster listener could not be opened
+	 */
+	void start() throws IOException {
+		final ServerSocket listener = new ServerSocket();
+		listener.setReuseAddress(true);
+		listener.bind(nodes[nodeIndex]);
+		Thread accepterThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept(listener);
+			}
+		});
+		accepterThread.setDaemon(true);
+		accepterThread.setName("ClusterAccepterThread");
+		accepterThread.start();
+		for (int i = 0; i < nodeIndex; i++) {
+			final int peer = i;
+			Thread linkThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					connect(peer);
+				}
+			});
+			linkThread.setDaemon(true);
+			linkThread.setName("ClusterLinkThread - " + peer);
+			linkThread.start();
+		}
+		logger.log(Level.INFO, "Node " + nodeIndex + " of " + nodes.length + " listening for the cluster on "
+				+ nodes[nodeIndex]);
+		return;
+	}
+
+	/**
+	 * Accepts connections from the nodes with higher indexes, giving each its
+	 * own thread to run its ClusterLink on. A connection is rejected unless it
+	 * comes from the address of the node that its HELLO frame names, and is
+	 * closed without reading anything if it does not come from the address of
+	 * any node that may connect to this one. A connection from a node whose
+	 * link is still up replaces the link, as the node has given up on it.
+	 * 
+	 * @param listener
+	 *            The cluster listener
+	 */
+	private void accept(ServerSocket listener) {
+		while (true) {
+			final Socket socket;
+			try {
+				socket = listener.accept();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Could not accept a cluster connection", e);
+				continue;
+			}
+			Thread linkThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (!isHigherNodeAddress(socket.getInetAddress())) {
+							throw new IOException("Cluster connection is not from a node of the cluster");
+						}
+						socket.setTcpNoDelay(true);
+						socket.setSoTimeout(ClusterLink.READ_TIMEOUT_MILLIS);
+						int peer = readHello(socket);
+						if (peer <= nodeIndex || peer >= nodes.length) {
+							throw new IOException("Unexpected cluster connection from node " + peer);
+						}
+						if (!socket.getInetAddress().equals(nodes[peer].getAddress())) {
+							throw new IOException("Cluster connection claiming to be from node " + peer
+									+ " is not from " + nodes[peer].getAddress());
+						}
+						if (links[peer].isConnected()) {
+							// The other node only connects again once it has
+							// given up on the old connection
+							logger.log(Level.INFO, "Node " + peer + " connected again, replacing its stale link");
+							links[peer].close();
+						}
+						Thread.currentThread().setName("ClusterLinkThread - " + peer);
+						links[peer].run(socket);
+					} catch (IOException e) {
+						logger.log(Level.WARNING, "Rejected cluster connection from " + socket.getRemoteSocketAddress(),
+								e);
+						ClusterLink.closeQuietly(socket);
+					}
+				}
+			});
+			linkThread.setDaemon(true);
+			linkThread.start();
+		}
+	}
+
+	/**
+	 * Returns true if address is the address of one of the nodes with higher
+	 * indexes than this node, which are the only nodes that connect to it.
+	 * 
+	 * @param address
+	 *            The address a connection came from
+	 * @return True if address is the address of a node that may connect
+	 */
+	private boolean isHigherNodeAddress(InetAddress address) {
+		for (int i = nodeIndex + 1; i < nodes.length; i++) {
+			if (address.equals(nodes[i].getAddress())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Connects to the node with index peer, which has a lower index than this
+	 * node, and runs the ClusterLink to it, connecting again whenever the
+	 * connection fails. The connection is made from this node's own address,
+	 * so that the other node can check where it comes from.
+	 * 
+	 * @param peer
+	 *            The index of the node to connect to
+	 */
+	private void connect(int peer) {
+		while (true) {
+			Socket socket = new Socket();
+			try {
+				socket.setTcpNoDelay(true);
+				socket.bind(new InetSocketAddress(nodes[nodeIndex].getAddress(), 0));
+				socket.connect(nodes[peer]);
+				BinaryOutput hello = new BinaryOutput();
+				hello.writeVarInt(HELLO);
+				hello.writeVarInt(nodeIndex);
+				OutputStream out = socket.getOutputStream();
+				out.write(ClusterLink.frame(hello));
+				out.flush();
+			} catch (IOException e) {
+				ClusterLink.closeQuietly(socket);
+				socket = null;
+			}
+			if (socket != null) {
+				links[peer].run(socket);
+			}
+			try {
+				Thread.sleep(RECONNECT_DELAY_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Reads the HELLO frame that a connecting node sends first.
+	 * 
+	 * @param socket
+	 *            The socket connected to the node
+	 * @return The index of the node
+	 * @throws IOException
+	 *             If the first frame is not a valid HELLO frame
+	 */
+	private static int readHello(Socket socket) throws IOException {
+		// Not buffered, so that nothing sent after the HELLO frame is read here
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		int length = ClusterLink.readVarInt(in);
+		if (length < 0 || length > 16) {
+			throw new IOException("Cluster HELLO frame length " + length + " is not valid");
+		}
+		byte[] body = new byte[length];
+		in.readFully(body);
+		BinaryInput hello = new BinaryInput(ByteBuffer.wrap(body));
+		if (hello.readVarInt() != HELLO) {
+			throw new IOException("Cluster connection did not start with HELLO");
+		}
+		return hello.readVarInt();
+	}
+
+	/**
+	 * Called once the link to the node with index peer is up. Tells it about
+	 * every chat room owned by this node and every chat room owned by it that
+	 * has members on this node.
+	 * 
+	 * @param peer
+	 *            The index of the node
+	 */
+	void linkUp(int peer) {
+		for (ChatRoom cr : server.getChatRooms()) {
+			if (cr.getChatRoomInfo().isDefaultChatRoom()) {
+				continue;
+			}
+			int owner = cr.getOwnerNode();
+			if (owner == nodeIndex) {
+				links[peer].send(roomCreatedFrame(cr));
+			} else if (owner == peer && cr.getClientCount() > 0) {
+				links[peer].send(roomFrame(SUBSCRIBE, cr.getChatRoomInfo().getId()));
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Called once the link to the node with index peer is down. Stops sending
+	 * chat messages to it; it subscribes again when the link is back up.
+	 * 
+	 * @param peer
+	 *            The index of the node
+	 */
+	void linkDown(int peer) {
+		for (Set<Integer> nodesSubscribed : subscribers.values()) {
+			nodesSubscribed.remove(peer);
+		}
+		return;
+	}
+
+	/**
+	 * Creates the chat room named name if this node owns it, or asks its owner
+	 * to create it otherwise.
+	 * 
+	 * @param name
+	 *            The name of the chat room
+	 * @return True if this node owns the chat room, false if its owner was
+	 *         asked to create it
+	 */
+	boolean routeCreate(String name) {
+		int owner = ownerOf(name);
+		if (owner == nodeIndex) {
+			return true;
+		}
+		BinaryOutput body = new BinaryOutput();
+		body.writeVarInt(CREATE_ROOM);
+		body.writeString(name);
+		links[owner].send(ClusterLink.frame(body));
+		return false;
+	}
+
+	/**
+	 * Tells every other node that the chat room cr, owned by this node, was
+	 * created.
+	 * 
+	 * @param cr
+	 *            The chat room that was created
+	 */
+	void chatRoomCreated(ChatRoom cr) {
+		byte[] frame = roomCreatedFrame(cr);
+		for (ClusterLink link : links) {
+			if (link != null) {
+				link.send(frame);
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Called when the replica cr of a chat room owned by another node gains
+	 * its first member on this node. Asks the owner to send its chat messages
+	 * here. Must be called by an exclusive task of cr.
+	 * 
+	 * @param cr
+	 *            The chat room
+	 */
+	void firstMemberJoined(ChatRoom cr) {
+		int owner = cr.getOwnerNode();
+		if (owner != nodeIndex) {
+			links[owner].send(roomFrame(SUBSCRIBE, cr.getChatRoomInfo().getId()));
+		}
+		return;
+	}
+
+	/**
+	 * Called when the replica cr of a chat room owned by another node loses its
+	 * last member on this node. Asks the owner to stop sending its chat
+	 * messages here. Must be called by an exclusive task of cr.
+	 * 
+	 * @param cr
+	 *            The chat room
+	 */
+	void lastMemberLeft(ChatRoom cr) {
+		int owner = cr.getOwnerNode();
+		if (owner != nodeIndex) {
+			links[owner].send(roomFrame(UNSUBSCRIBE, cr.getChatRoomInfo().getId()));
+		}
+		return;
+	}
+
+	/**
+	 * Routes the chat message evnt sent to the chat room cr. If this node owns
+	 * cr, evnt is sent once to every other node with members in it. Otherwise
+	 * it is forwarded to the owner, which sends it back to this node if it
+	 * still has members in cr.
+	 * 
+	 * @param cr
+	 *            The chat room that evnt was sent to
+	 * @param evnt
+	 *            The chat message
+	 * @return True if evnt should be delivered to the members of cr on this
+	 *         node now, false if it was forwarded to the owner
+	 */
+	boolean routeChatMessage(ChatRoom cr, ChatMessageEvent evnt) {
+		int owner = cr.getOwnerNode();
+		if (owner != nodeIndex) {
+			links[owner].send(chatMessageFrame(evnt));
+			metrics.increment("cluster.messagesForwarded");
+			return false;
+		}
+		Set<Integer> nodesSubscribed = subscribers.get(cr.getChatRoomInfo().getId());
+		if (nodesSubscribed != null && !nodesSubscribed.isEmpty()) {
+			byte[] frame = chatMessageFrame(evnt);
+			for (int node : nodesSubscribed) {
+				links[node].send(frame);
+			}
+			metrics.add("cluster.messagesFannedOut", nodesSubscribed.size());
+		}
+		return true;
+	}
+
+	/**
+	 * Handles a frame received from the node with index peer.
+	 * 
+	 * @param peer
+	 *            The index of the node that sent the frame
+	 * @param in
+	 *            The body of the frame, starting with its opcode
+	 * @throws IOException
+	 *             If the frame is malformed
+	 */
+	void receive(int peer, BinaryInput in) throws IOException {
+		int opcode = in.readVarInt();
+		switch (opcode) {
+		case PING:
+			break;
+		case ROOM_CREATED:
+			server.chatRoomCreatedByOwner(in.readNonNullString(), in.readVarInt());
+			break;
+		case CREATE_ROOM:
+			server.createChatRoom(in.readNonNullString());
+			break;
+		case SUBSCRIBE: {
+			int id = in.readVarInt();
+			Set<Integer> nodesSubscribed = subscribers.get(id);
+			if (nodesSubscribed == null) {
+				Set<Integer> created = new CopyOnWriteArraySet<Integer>();
+				nodesSubscribed = subscribers.putIfAbsent(id, created);
+				if (nodesSubscribed == null) {
+					nodesSubscribed = created;
+				}
+			}
+			nodesSubscribed.add(peer);
+			break;
+		}
+		case UNSUBSCRIBE: {
+			Set<Integer> nodesSubscribed = subscribers.get(in.readVarInt());
+			if (nodesSubscribed != null) {
+				nodesSubscribed.remove(peer);
+			}
+			break;
+		}
+		case CHAT_MESSAGE: {
+			ChatMessageEvent evnt = new ChatMessageEvent(in.readNonNullString(), in.readVarInt(),
+					in.readNonNullString(), in.readVarInt());
+			ChatRoom cr;
+			try {
+				cr = server.getChatRoomById(evnt.getChatRoomId());
+			} catch (RuntimeException e) {
+				metrics.increment("cluster.unknownChatRoom");
+				break;
+			}
+			if (cr.getOwnerNode() == nodeIndex) {
+				cr.sendChatMessage(evnt);
+			} else {
+				cr.deliverChatMessage(evnt);
+			}
+			break;
+		}
+		default:
+			throw new IOException("Unknown cluster opcode " + opcode);
+		}
+		metrics.increment("cluster.framesReceived");
+		return;
+	}
+
+	/**
+	 * Returns a ROOM_CREATED frame for the chat room cr.
+	 * 
+	 * @param cr
+	 *            The chat room
+	 * @return The frame
+	 */
+	private static byte[] roomCreatedFrame(ChatRoom cr) {
+		BinaryOutput body = new BinaryOutput();
+		body.writeVarInt(ROOM_CREATED);
+		body.writeString(cr.getChatRoomInfo().getName());
+		body.writeVarInt(cr.getChatRoomInfo().getId());
+		return ClusterLink.frame(body);
+	}
+
+	/**
+	 * Returns a frame with opcode opcode holding the chat room id id.
+	 * 
+	 * @param opcode
+	 *            The opcode of the frame
+	 * @param id
+	 *            The id of the chat room
+	 * @return The frame
+	 */
+	private static byte[] roomFrame(int opcode, int id) {
+		BinaryOutput body = new BinaryOutput();
+		body.writeVarInt(opcode);
+		body.writeVarInt(id);
+		return ClusterLink.frame(body);
+	}
+
+	/**
+	 * Returns a CHAT_MESSAGE frame holding evnt. Unlike the ChatMessageEvent
+	 * sent to clients, the frame includes the sender's nick, which the other
+	 * nodes need for their history and search index.
+	 * 
+	 * @param evnt
+	 *            The chat message
+	 * @return The frame
+	 */
+	private static byte[] chatMessageFrame(ChatMessageEvent evnt) {
+		BinaryOutput body = new BinaryOutput();
+		body.writeVarInt(CHAT_MESSAGE);
+		body.writeString(evnt.getChatMessage());
+		body.writeVarInt(evnt.getSenderId());
+		body.writeString(evnt.getSenderNick());
+		body.writeVarInt(evnt.getChatRoomId());
+		return ClusterLink.frame(body);
+	}
+}
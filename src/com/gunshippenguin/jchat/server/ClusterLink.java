@@ -0,0 +1,347 @@
+package com.gunshippenguin.jchat.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.gunshippenguin.jchat.shared.BinaryInput;
+import com.gunshippenguin.jchat.shared.BinaryOutput;
+
+/**
+ * Class representing the connection between this node of a Cluster and one of
+ * the other nodes. Frames sent to the other node are queued and written by a
+ * writer thread, which writes every frame waiting in the queue before
+ * flushing, so that a busy link sends many frames in each system call. Frames
+ * received are read on the thread that the connection was made or accepted on
+ * and handed to the Cluster.
+ * 
+ * Each frame is its length followed by its body, which starts with an opcode,
+ * in the same format as the BinaryCodec uses for frames sent to clients. While
+ * the link is down, frames sent over it are dropped; the Cluster sends the
+ * other node what it needs to know again once the link is back up.
+ * 
+ * A writer with nothing to send for PING_INTERVAL_MILLIS sends a PING frame,
+ * so a link that has read nothing for READ_TIMEOUT_MILLIS is to a node that
+ * has died or been cut off, and is closed so that it can be connected again.
+ * 
+ * @author GunshipPenguin
+ */
+class ClusterLink {
+	/**
+	 * Largest frame that will be read from another node.
+	 */
+	private static final int MAX_FRAME_LENGTH = 1 << 20;
+	/**
+	 * Number of milliseconds that the writer waits for a frame to send before
+	 * sending a PING frame instead.
+	 */
+	static final long PING_INTERVAL_MILLIS = 1000;
+	/**
+	 * Number of milliseconds without reading anything from the other node
+	 * after which the link is closed.
+	 */
+	static final int READ_TIMEOUT_MILLIS = 5000;
+	/**
+	 * The PING frame.
+	 */
+	private static final byte[] PING_FRAME = pingFrame();
+	/**
+	 * Index of the node at the other end of this link.
+	 */
+	private final int peerIndex;
+	/**
+	 * The Cluster that this link belongs to.
+	 */
+	private final Cluster cluster;
+	/**
+	 * Frames waiting to be written to the other node.
+	 */
+	private final BlockingQueue<byte[]> queue;
+	/**
+	 * Counters that the link records its activity in.
+	 */
+	private final ServerMetrics metrics;
+	/**
+	 * True while the link is connected to the other node.
+	 */
+	private volatile boolean connected = false;
+	/**
+	 * The socket the link is running on, or null if it is not running.
+	 */
+	private volatile Socket socket = null;
+	/**
+	 * Lock held while the link runs on a socket, so that a link replacing a
+	 * stale one only starts once the stale one has been torn down.
+	 */
+	private final Object runLock = new Object();
+	private static final Logger logger = Logger.getLogger(ClusterLink.class.getName());
+
+	/**
+	 * Creates a new ClusterLink to the node with index peerIndex, not yet
+	 * connected.
+	 * 
+	 * @param peerIndex
+	 *            The index of the node at the other end of the link
+	 * @param cluster
+	 *            The Cluster that the link belongs to
+	 * @param queueSize
+	 *            The number of frames that can wait to be written
+	 * @param metrics
+	 *            The counters to record activity in
+	 */
+	ClusterLink(int peerIndex, Cluster cluster, int queueSize, ServerMetrics metrics) {
+		this.peerIndex = peerIndex;
+		this.cluster = cluster;
+		this.queue = new ArrayBlockingQueue<byte[]>(queueSize);
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Returns a frame holding body, ready to be sent over a ClusterLink.
+	 * 
+	 * @param body
+	 *            The body of the frame, starting with its opcode
+	 * @return The frame
+	 */
+	static byte[] frame(BinaryOutput body) {
+		BinaryOutput frame = new BinaryOutput();
+		frame.writeVarInt(body.size());
+		byte[] bodyBytes = body.toByteArray();
+		frame.writeBytes(bodyBytes, 0, bodyBytes.length);
+		return frame.toByteArray();
+	}
+
+	/**
+	 * Returns the PING frame, which has no body besides its opcode.
+	 * 
+	 * @return The PING frame
+	 */
+	private static byte[] pingFrame() {
+		BinaryOutput body = new BinaryOutput();
+		body.writeVarInt(Cluster.PING);
+		return frame(body);
+	}
+
+	/**
+	 * Queues frame to be written to the other node. Never blocks; if the link
+	 * is down or its queue is full, the frame is dropped.
+	 * 
+	 * @param frame
+	 *            The frame to send
+	 */
+	void send(byte[] frame) {
+		if (!connected || !queue.offer(frame)) {
+			metrics.increment("cluster.dropped");
+		}
+		return;
+	}
+
+	/**
+	 * Returns true if the link is connected to the other node.
+	 * 
+	 * @return True if the link is up, false otherwise
+	 */
+	boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * Closes the socket that the link is running on, if any, so that the link
+	 * goes down. Used when the other node has connected again, which means
+	 * that it has given up on the old connection.
+	 */
+	void close() {
+		Socket current = socket;
+		if (current != null) {
+			closeQuietly(current);
+		}
+		return;
+	}
+
+	/**
+	 * Uses socket, which is connected to the other node and has already been
+	 * greeted, until it fails. Waits first for the link to stop running on any
+	 * earlier socket. Starts a writer thread for it, tells the Cluster that the
+	 * link is up and then reads frames from it on the calling thread. Once the
+	 * connection fails or times out, or a frame cannot be handled, the writer
+	 * is stopped, the connection is closed, any frames still queued are dropped
+	 * and the Cluster is told that the link is down.
+	 * 
+	 * @param socket
+	 *            The socket connected to the other node
+	 */
+	void run(Socket socket) {
+		synchronized (runLock) {
+			this.socket = socket;
+			try {
+				runOn(socket);
+			} finally {
+				this.socket = null;
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Runs the link on socket as described by run. Must be called with runLock
+	 * held.
+	 * 
+	 * @param socket
+	 *            The socket connected to the other node
+	 */
+	private void runOn(final Socket socket) {
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write(socket);
+			}
+		});
+		writer.setDaemon(true);
+		writer.setName("ClusterWriterThread - " + peerIndex);
+		queue.clear();
+		connected = true;
+		writer.start();
+		logger.log(Level.INFO, "Cluster link to node " + peerIndex + " is up");
+		try {
+			socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+			cluster.linkUp(peerIndex);
+			read(socket);
+		} catch (SocketTimeoutException e) {
+			metrics.increment("cluster.timeouts");
+			logger.log(Level.WARNING, "Cluster link to node " + peerIndex + " is down: nothing received for "
+					+ READ_TIMEOUT_MILLIS + " ms");
+		} catch (IOException e) {
+			logger.log(Level.INFO, "Cluster link to node " + peerIndex + " is down: " + e.getMessage());
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "Cluster link to node " + peerIndex + " failed", e);
+		} finally {
+			connected = false;
+			closeQuietly(socket);
+			writer.interrupt();
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			metrics.add("cluster.dropped", queue.size());
+			queue.clear();
+			cluster.linkDown(peerIndex);
+		}
+		return;
+	}
+
+	/**
+	 * Reads frames from socket and hands them to the Cluster until the
+	 * connection fails. A frame that the Cluster fails to handle is treated as
+	 * malformed, so that the link is closed and connected again rather than
+	 * carrying on in an unknown state.
+	 * 
+	 * @param socket
+	 *            The socket connected to the other node
+	 * @throws IOException
+	 *             When the connection fails or a malformed frame is read
+	 */
+	private void read(Socket socket) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+		while (true) {
+			int length = readVarInt(in);
+			if (length < 0 || length > MAX_FRAME_LENGTH) {
+				throw new IOException("Cluster frame length " + length + " is too large");
+			}
+			byte[] body = new byte[length];
+			in.readFully(body);
+			try {
+				cluster.receive(peerIndex, new BinaryInput(ByteBuffer.wrap(body)));
+			} catch (RuntimeException e) {
+				metrics.increment("cluster.badFrames");
+				logger.log(Level.WARNING, "Could not handle cluster frame from node " + peerIndex, e);
+				throw new IOException("Could not handle cluster frame from node " + peerIndex, e);
+			}
+		}
+	}
+
+	/**
+	 * Writes queued frames to socket until the thread is interrupted or the
+	 * connection fails, flushing whenever the queue is empty. Writes a PING
+	 * frame whenever no frame has been queued for PING_INTERVAL_MILLIS.
+	 * 
+	 * @param socket
+	 *            The socket connected to the other node
+	 */
+	private void write(Socket socket) {
+		try {
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 65536);
+			while (true) {
+				byte[] frame = queue.poll(PING_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+				if (frame == null) {
+					out.write(PING_FRAME);
+					out.flush();
+					continue;
+				}
+				int frames = 0;
+				do {
+					out.write(frame);
+					frames++;
+				} while ((frame = queue.poll()) != null);
+				out.flush();
+				metrics.increment("cluster.writes");
+				metrics.add("cluster.framesWritten", frames);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			closeQuietly(socket);
+		}
+		return;
+	}
+
+	/**
+	 * Reads a varint written by BinaryOutput.writeVarInt from in.
+	 * 
+	 * @param in
+	 *            The stream to read from
+	 * @return The value that was read
+	 * @throws IOException
+	 *             If the stream ends or the varint is malformed
+	 */
+	static int readVarInt(DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint in cluster frame");
+	}
+
+	/**
+	 * Closes socket, ignoring any error.
+	 * 
+	 * @param socket
+	 *            The socket to close
+	 */
+	static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// The connection is being abandoned anyway
+		}
+		return;
+	}
+}
@@ -1,11 +1,9 @@
 package com.gunshippenguin.jchat.server;
 
-import java.util.ArrayList;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
 import com.gunshippenguin.jchat.shared.ChatRoomInfo;
-import com.gunshippenguin.jchat.shared.JoinChatRoomEvent;
 
 /**
  * Class representing a default chat room. Contains methods to obtain
@@ -22,10 +20,6 @@ import com.gunshippenguin.jchat.shared.JoinChatRoomEvent;
  * @author GunshipPenguin
  */
 public class DefaultChatRoom extends ChatRoom {
-	/**
-	 * The ChatServer object associated with this DefaultChatRoom.
-	 */
-	ChatServer server;
 	/**
 	 * The Logger object to be used by the DefaultChatRoom class.
 	 */
@@ -38,25 +32,82 @@ public class DefaultChatRoom extends ChatRoom {
 	 *            The ChatServer object associated with this DefaultChatRoom
 	 */
 	public DefaultChatRoom(ChatServer server) {
-		super("default");
-		this.server = server;
+		super("default", server);
 		chatRoomInfo.setDefault(true);
 	}
 
 	/**
-	 * Adds a client to the DefaultChatRoom. All clients are added to a
-	 * ChatServer's DefaultChatRoom upon joining it.
+	 * Interface for the code to run once a client has been added to the
+	 * DefaultChatRoom by addClient.
+	 */
+	interface JoinCallback {
+		/**
+		 * Called by the exclusive task that added the client, with the summary
+		 * of the DefaultChatRoom to send it, which includes the client itself
+		 * and every change made before it. Must not block, since it may run on
+		 * a room thread.
+		 * 
+		 * @param summary
+		 *            A summary of the DefaultChatRoom, or null if the client
+		 *            could not be added
+		 */
+		void joined(ChatRoomInfo summary);
+	}
+
+	/**
+	 * Returns the index of this node if the server is one node of a Cluster,
+	 * since every node has a DefaultChatRoom of its own, or -1 otherwise.
+	 */
+	@Override
+	int getOwnerNode() {
+		Cluster cluster = server.getCluster();
+		return cluster != null ? cluster.getNodeIndex() : -1;
+	}
+
+	/**
+	 * Called once a client has been added to the DefaultChatRoom. All clients
+	 * are added to a ChatServer's DefaultChatRoom upon joining it, and are told
+	 * who else is in it by their InitServerInfo rather than by an
+	 * AcceptedToChatRoomEvent. They are still sent its recent chat messages.
 	 * 
 	 * @param client
-	 *            The Client object representing the client to be added to the
+	 *            The Client object representing the client added to the
 	 *            DefaultChatRoom
 	 */
 	@Override
-	public synchronized void addClient(Client client) {
-		sendEventToAllClients(new JoinChatRoomEvent(client.getClientInfo(), chatRoomInfo.getName()));
-		clients.add(client);
-		chatRoomInfo.addClient(client.getClientInfo());
+	protected void acceptClient(Client client) {
 		logger.log(Level.INFO, "Client " + client.getClientInfo().getNick() + " added to default chat room");
+		replayHistory(client);
+		return;
+	}
+
+	/**
+	 * Adds the client client to the DefaultChatRoom and then calls callback
+	 * from the same exclusive task, so that the roster summary a new client is
+	 * sent is built without waiting for the room thread. If the DefaultChatRoom
+	 * has a room thread, returns straight away.
+	 * 
+	 * @param client
+	 *            The client to add
+	 * @param callback
+	 *            The code to run once the client has been added
+	 */
+	void addClient(final Client client, final JoinCallback callback) {
+		runExclusive(new Runnable() {
+			@Override
+			public void run() {
+				ChatRoomInfo summary = null;
+				try {
+					if (joinClient(client)) {
+						summary = chatRoomInfo.summary(INLINE_ROSTER_LIMIT);
+					}
+				} catch (RuntimeException e) {
+					logger.log(Level.WARNING,
+							"Could not add client " + client.getClientInfo().getNick() + " to default chat room", e);
+				}
+				callback.joined(summary);
+			}
+		});
 		return;
 	}
 
@@ -66,22 +117,24 @@ public class DefaultChatRoom extends ChatRoom {
 	 *
 	 * @param nick
 	 *            The nickname of the client to remove
+	 * @return The removed Client, or null if no client with nickname nick is
+	 *         in the DefaultChatRoom
 	 */
 	@Override
-	public synchronized void removeClient(String nick) {
-		/* Get the client object to remove */
-		Client clientToRemove = getClientByNick(nick);
-
+	protected Client leaveClient(String nick) {
 		/* Remove the client from the defaultChatRoom */
-		super.removeClient(nick);
+		Client clientToRemove = super.leaveClient(nick);
+		if (clientToRemove == null) {
+			return null;
+		}
 
 		/* Remove this client from all other chat rooms that it is in */
-		ArrayList<ChatRoomInfo> chatRoomList = server.getChatRoomList();
-		for (ChatRoomInfo cri : chatRoomList) {
-			if (cri.hasClient(clientToRemove.getClientInfo().getNick()) && !cri.isDefaultChatRoom()) {
-				server.getChatRoomByName(cri.getName()).removeClient(nick);
+		for (ChatRoom cr : clientToRemove.getChatRooms()) {
+			if (cr != this) {
+				cr.removeClient(clientToRemove);
 			}
 		}
 		logger.log(Level.INFO, "Client " + nick + " removed from default chat room");
+		return clientToRemove;
 	}
 }
@@ -0,0 +1,183 @@
+package com.gunshippenguin.jchat.server;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.gunshippenguin.jchat.shared.ChatRoomDirectoryEvent;
+import com.gunshippenguin.jchat.shared.ChatRoomListing;
+
+/**
+ * Class holding pages of a ChatServer's chat room directory that have already
+ * been built and encoded, so that clients asking for the same page are all
+ * sent the same frames rather than each having the page built and encoded for
+ * them.
+ * 
+ * The directory has a version, which is incremented whenever a chat room is
+ * created or a client joins or leaves one. Cached pages belong to a snapshot of
+ * the directory at one version, and are thrown away together as soon as the
+ * version moves on. Requests for a page that is still being built wait for it
+ * rather than building it again.
+ * 
+ * @author GunshipPenguin
+ */
+class DirectoryCache {
+	/**
+	 * Largest number of pages cached for one version of the directory. Pages
+	 * asked for once the snapshot is full are built but not cached, so clients
+	 * asking for many different prefixes cannot use up the server's memory.
+	 */
+	static final int MAX_CACHED_PAGES = 1024;
+	/**
+	 * ChatServer whose chat room directory this DirectoryCache holds.
+	 */
+	private final ChatServer server;
+	/**
+	 * Current version of the directory.
+	 */
+	private final AtomicLong version = new AtomicLong();
+	/**
+	 * Snapshot holding the pages cached for the most recent version that a
+	 * page has been asked for at.
+	 */
+	private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>(new Snapshot(0));
+
+	/**
+	 * Creates a new DirectoryCache for the chat room directory of server.
+	 * 
+	 * @param server
+	 *            The ChatServer whose directory to cache
+	 */
+	DirectoryCache(ChatServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * Moves the directory on to a new version, so that pages cached for the
+	 * previous one are no longer used. Called after every change that could
+	 * alter a page of the directory. Never blocks.
+	 */
+	void invalidate() {
+		version.incrementAndGet();
+		return;
+	}
+
+	/**
+	 * Returns the page of the directory listing up to limit chat rooms whose
+	 * names start with prefix and come after after, encoded into a
+	 * ChatRoomDirectoryEvent.
+	 * 
+	 * @param prefix
+	 *            The prefix that the names of the listed chat rooms must start
+	 *            with
+	 * @param after
+	 *            The name of the last chat room on the previous page
+	 * @param limit
+	 *            The largest number of chat rooms to list
+	 * @return The requested page
+	 */
+	EncodedEvent getPage(final String prefix, final String after, final int limit) {
+		Snapshot current = currentSnapshot();
+		FutureTask<EncodedEvent> page = new FutureTask<EncodedEvent>(new Callable<EncodedEvent>() {
+			@Override
+			public EncodedEvent call() {
+				return buildPage(prefix, after, limit);
+			}
+		});
+		FutureTask<EncodedEvent> cached = null;
+		if (current.pages.size() < MAX_CACHED_PAGES) {
+			String key = prefix + '\0' + after + '\0' + limit;
+			cached = current.pages.putIfAbsent(key, page);
+		}
+		if (cached == null) {
+			server.getMetrics().increment("directory.misses");
+			page.run();
+		} else {
+			server.getMetrics().increment("directory.hits");
+			page = cached;
+		}
+		try {
+			return page.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return buildPage(prefix, after, limit);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Could not build chat room directory page", e.getCause());
+		}
+	}
+
+	/**
+	 * Returns the Snapshot for the current version of the directory, replacing
+	 * the cached one if it belongs to an older version.
+	 * 
+	 * @return The Snapshot for the current version
+	 */
+	private Snapshot currentSnapshot() {
+		while (true) {
+			long currentVersion = version.get();
+			Snapshot cached = snapshot.get();
+			if (cached.version >= currentVersion) {
+				return cached;
+			}
+			Snapshot fresh = new Snapshot(currentVersion);
+			if (snapshot.compareAndSet(cached, fresh)) {
+				return fresh;
+			}
+		}
+	}
+
+	/**
+	 * Builds the page of the directory listing up to limit chat rooms whose
+	 * names start with prefix and come after after.
+	 * 
+	 * @param prefix
+	 *            The prefix that the names of the listed chat rooms must start
+	 *            with
+	 * @param after
+	 *            The name of the last chat room on the previous page
+	 * @param limit
+	 *            The largest number of chat rooms to list
+	 * @return The page, not yet encoded
+	 */
+	private EncodedEvent buildPage(String prefix, String after, int limit) {
+		// Ask for one more chat room than fits on the page to learn whether
+		// there is another page after it
+		ArrayList<ChatRoomListing> listings = server.getChatRoomDirectory(prefix, after, limit + 1);
+		String next = "";
+		if (listings.size() > limit) {
+			listings.remove(limit);
+			next = listings.get(limit - 1).getName();
+		}
+		return new EncodedEvent(new ChatRoomDirectoryEvent(prefix, listings, next));
+	}
+
+	/**
+	 * The pages of the directory cached for one version of it.
+	 */
+	private static class Snapshot {
+		/**
+		 * Version of the directory that the pages were built at.
+		 */
+		final long version;
+		/**
+		 * Map of page keys to the pages, which may still be being built.
+		 */
+		final ConcurrentMap<String, FutureTask<EncodedEvent>> pages =
+				new ConcurrentHashMap<String, FutureTask<EncodedEvent>>();
+
+		/**
+		 * Creates a new, empty Snapshot for version version of the directory.
+		 * 
+		 * @param version
+		 *            The version of the directory
+		 */
+		Snapshot(long version) {
+			this.version = version;
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package com.gunshippenguin.jchat.server;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.gunshippenguin.jchat.shared.Codec;
+import com.gunshippenguin.jchat.shared.Event;
+
+/**
+ * Class representing an Event waiting to be written to one or more clients,
+ * together with the frames it has been encoded into. When an event is sent to
+ * every client in a chat room, a single EncodedEvent is queued for all of them,
+ * so the event is encoded once for each Codec in use rather than once for each
+ * client. Frames are never modified once encoded, so every client's writer can
+ * share them.
+ * 
+ * @author GunshipPenguin
+ */
+class EncodedEvent {
+	/**
+	 * The Event to be written.
+	 */
+	private final Event evnt;
+	/**
+	 * Codecs that evnt has been encoded with so far.
+	 */
+	private Codec[] codecs = new Codec[1];
+	/**
+	 * Frames evnt has been encoded into, in the same order as codecs.
+	 */
+	private byte[][] frames = new byte[1][];
+	/**
+	 * Number of valid entries in codecs and frames.
+	 */
+	private int numFrames = 0;
+
+	/**
+	 * Creates a new EncodedEvent for the Event evnt. No encoding is done until
+	 * a frame is first requested.
+	 * 
+	 * @param evnt
+	 *            The Event to be written
+	 */
+	EncodedEvent(Event evnt) {
+		this.evnt = evnt;
+	}
+
+	/**
+	 * Returns the Event to be written.
+	 * 
+	 * @return The Event to be written
+	 */
+	Event getEvent() {
+		return evnt;
+	}
+
+	/**
+	 * Returns the frame that the event is encoded into by codec, encoding it
+	 * if this is the first time it has been requested for codec. The returned
+	 * array is shared and must not be modified.
+	 * 
+	 * @param codec
+	 *            The Codec to encode the event with
+	 * @return The encoded event
+	 * @throws IOException
+	 *             If the event could not be encoded
+	 */
+	synchronized byte[] getFrame(Codec codec) throws IOException {
+		for (int i = 0; i < numFrames; i++) {
+			if (codecs[i] == codec) {
+				return frames[i];
+			}
+		}
+		byte[] frame = codec.encode(evnt);
+		if (numFrames == codecs.length) {
+			codecs = Arrays.copyOf(codecs, numFrames * 2);
+			frames = Arrays.copyOf(frames, numFrames * 2);
+		}
+		codecs[numFrames] = codec;
+		frames[numFrames] = frame;
+		numFrames++;
+		return frame;
+	}
+
+	/**
+	 * Returns the string representation of the Event to be written.
+	 * 
+	 * @return The string representation of the Event to be written
+	 */
+	@Override
+	public String toString() {
+		return evnt.toString();
+	}
+}
@@ -0,0 +1,612 @@
+package com.gunshippenguin.jchat.server;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Class representing one segment of a RoomLog: a data file holding a run of
+ * chat messages with consecutive sequence numbers, starting at the segment's
+ * base sequence number, and an index file holding where each message ends in
+ * the data file. Both files are created at their full size, so any message
+ * can be found straight from its sequence number.
+ * 
+ * The writer memory maps both files while it is writing to the segment, so
+ * appending a message needs no system calls. The mappings are released once
+ * the segment fills up or its chat room goes quiet, so that a server with
+ * many chat rooms only holds mappings for those being written to, and are
+ * made again if the writer appends to the segment later. Readers never use
+ * the mappings and read the files with positional reads instead, which see
+ * what the writer has written through its mappings, so the writer can unmap
+ * them without waiting for readers. Readers share one read-only channel per
+ * file, opened by the first read and kept until the segment is deleted.
+ * 
+ * Each message is stored as its length, its encoded body and a CRC32 checksum
+ * of the body. Index entries are written after the message they point to, so
+ * the messages in a segment are exactly those with a non-zero index entry.
+ * When an existing segment is opened, the number of messages is found by
+ * binary search of the index and only the last message is checked, so opening
+ * a segment never reads through its data.
+ * 
+ * @author GunshipPenguin
+ */
+class LogSegment {
+	/**
+	 * Suffix of the names of data files.
+	 */
+	static final String DATA_SUFFIX = ".log";
+	/**
+	 * Suffix of the names of index files.
+	 */
+	static final String INDEX_SUFFIX = ".idx";
+	/**
+	 * Number of bytes in each index entry.
+	 */
+	private static final int INDEX_ENTRY_BYTES = 4;
+	/**
+	 * Number of bytes written around the body of each message for its length
+	 * and checksum.
+	 */
+	private static final int RECORD_OVERHEAD = 8;
+	/**
+	 * Number of data bytes per index entry when creating a segment, which is
+	 * an estimate of the smallest average message size.
+	 */
+	private static final int BYTES_PER_INDEX_ENTRY = 64;
+	/**
+	 * Sequence number of the first message in this segment.
+	 */
+	private final int baseSequence;
+	/**
+	 * The data file of this segment.
+	 */
+	private final File dataFile;
+	/**
+	 * The index file of this segment.
+	 */
+	private final File indexFile;
+	/**
+	 * Size of the data file.
+	 */
+	private final int dataBytes;
+	/**
+	 * Size of the index file.
+	 */
+	private final int indexBytes;
+	/**
+	 * The data file mapped into memory, or null if it is not mapped. Only
+	 * used by the writer.
+	 */
+	private MappedByteBuffer data;
+	/**
+	 * The index file mapped into memory, or null if it is not mapped. Only
+	 * used by the writer.
+	 */
+	private MappedByteBuffer index;
+	/**
+	 * Number of messages that can be read from this segment. Set after a
+	 * message and its index entry have been written, so readers never see a
+	 * partly written message.
+	 */
+	private volatile int count;
+	/**
+	 * Position in the data file that the next message will be written at. Only
+	 * used by the writer.
+	 */
+	private int writePosition;
+	/**
+	 * Value of System.currentTimeMillis() when the last message was written to
+	 * this segment, or when its files were last modified if no message has
+	 * been written since it was opened.
+	 */
+	private volatile long lastWritten;
+	/**
+	 * Channel that readers read the data file through, or null if it has not
+	 * been opened. Guarded by the lock on this LogSegment.
+	 */
+	private FileChannel dataReader;
+	/**
+	 * Channel that readers read the index file through, or null if it has not
+	 * been opened. Guarded by the lock on this LogSegment.
+	 */
+	private FileChannel indexReader;
+	/**
+	 * True once this segment's files have been deleted, after which no
+	 * channel is opened to read them. Guarded by the lock on this LogSegment.
+	 */
+	private boolean deleted = false;
+
+	/**
+	 * Creates a new LogSegment for existing files, without mapping them. Use
+	 * create or open to get a LogSegment.
+	 * 
+	 * @param baseSequence
+	 *            The sequence number of the first message in the segment
+	 * @param dataFile
+	 *            The data file of the segment
+	 * @param indexFile
+	 *            The index file of the segment
+	 * @param dataBytes
+	 *            The size of the data file
+	 * @param indexBytes
+	 *            The size of the index file
+	 */
+	private LogSegment(int baseSequence, File dataFile, File indexFile, int dataBytes, int indexBytes) {
+		this.baseSequence = baseSequence;
+		this.dataFile = dataFile;
+		this.indexFile = indexFile;
+		this.dataBytes = dataBytes;
+		this.indexBytes = indexBytes;
+		this.lastWritten = dataFile.lastModified();
+	}
+
+	/**
+	 * Creates a new, empty segment in directory whose first message will have
+	 * sequence number baseSequence, with a data file of segmentBytes bytes,
+	 * and maps it ready to be written to.
+	 * 
+	 * @param directory
+	 *            The directory to create the segment's files in
+	 * @param baseSequence
+	 *            The sequence number of the first message in the segment
+	 * @param segmentBytes
+	 *            The size of the segment's data file
+	 * @return The new segment
+	 * @throws IOException
+	 *             If the segment's files could not be created
+	 */
+	static LogSegment create(File directory, int baseSequence, int segmentBytes) throws IOException {
+		File dataFile = new File(directory, fileName(baseSequence, DATA_SUFFIX));
+		File indexFile = new File(directory, fileName(baseSequence, INDEX_SUFFIX));
+		int indexBytes = Math.max(1, segmentBytes / BYTES_PER_INDEX_ENTRY) * INDEX_ENTRY_BYTES;
+		LogSegment segment = new LogSegment(baseSequence, dataFile, indexFile, segmentBytes, indexBytes);
+		segment.map();
+		segment.lastWritten = System.currentTimeMillis();
+		return segment;
+	}
+
+	/**
+	 * Opens the existing segment in directory whose first message has sequence
+	 * number baseSequence, without mapping it. A message at the end of the
+	 * segment that was only partly written before the server stopped is
+	 * discarded.
+	 * 
+	 * @param directory
+	 *            The directory holding the segment's files
+	 * @param baseSequence
+	 *            The sequence number of the first message in the segment
+	 * @return The opened segment
+	 * @throws IOException
+	 *             If the segment's files could not be opened
+	 */
+	static LogSegment open(File directory, int baseSequence) throws IOException {
+		File dataFile = new File(directory, fileName(baseSequence, DATA_SUFFIX));
+		File indexFile = new File(directory, fileName(baseSequence, INDEX_SUFFIX));
+		LogSegment segment = new LogSegment(baseSequence, dataFile, indexFile, (int) dataFile.length(),
+				(int) indexFile.length());
+		segment.recover();
+		return segment;
+	}
+
+	/**
+	 * Returns the name of the file for the segment starting at baseSequence
+	 * with suffix suffix. Names sort in order of sequence number.
+	 * 
+	 * @param baseSequence
+	 *            The sequence number of the first message in the segment
+	 * @param suffix
+	 *            DATA_SUFFIX or INDEX_SUFFIX
+	 * @return The name of the file
+	 */
+	static String fileName(int baseSequence, String suffix) {
+		return String.format("%010d", baseSequence) + suffix;
+	}
+
+	/**
+	 * Maps this segment's files into memory if they are not already mapped.
+	 * Only called by the writer.
+	 * 
+	 * @throws IOException
+	 *             If the files could not be mapped
+	 */
+	private void map() throws IOException {
+		if (data == null) {
+			MappedByteBuffer mappedData = map(dataFile, dataBytes);
+			try {
+				index = map(indexFile, indexBytes);
+			} catch (IOException e) {
+				unmap(mappedData);
+				throw e;
+			}
+			data = mappedData;
+		}
+		return;
+	}
+
+	/**
+	 * Maps the first size bytes of file into memory, creating or extending it
+	 * if it is smaller.
+	 * 
+	 * @param file
+	 *            The file to map
+	 * @param size
+	 *            The number of bytes to map
+	 * @return The mapped file
+	 * @throws IOException
+	 *             If the file could not be mapped
+	 */
+	private static MappedByteBuffer map(File file, int size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() < size) {
+				raf.setLength(size);
+			}
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Unmaps buffer straight away rather than whenever it is garbage
+	 * collected, so that mappings released by the writer really are given
+	 * back. There is no public API for this, so reflection is used; if it
+	 * fails the mapping is left to the garbage collector. buffer must never
+	 * be used again.
+	 * 
+	 * @param buffer
+	 *            The mapped buffer to unmap
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// Before Java 9 the buffer's own Cleaner has to be used
+			try {
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			} catch (ReflectiveOperationException | RuntimeException e2) {
+				// Left to the garbage collector
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Finds the number of messages in this segment from its index, discarding
+	 * any message at the end that fails its checksum.
+	 * 
+	 * @throws IOException
+	 *             If the segment's files could not be read
+	 */
+	private void recover() throws IOException {
+		RandomAccessFile indexIn = new RandomAccessFile(indexFile, "rw");
+		try {
+			int low = 0;
+			int high = indexBytes / INDEX_ENTRY_BYTES;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				indexIn.seek((long) mid * INDEX_ENTRY_BYTES);
+				if (indexIn.readInt() != 0) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			int recovered = low;
+			while (recovered > 0 && read(recovered - 1, recovered, recovered)[0] == null) {
+				recovered--;
+				indexIn.seek((long) recovered * INDEX_ENTRY_BYTES);
+				indexIn.writeInt(0);
+			}
+			if (recovered > 0) {
+				indexIn.seek((long) (recovered - 1) * INDEX_ENTRY_BYTES);
+				writePosition = indexIn.readInt();
+			}
+			count = recovered;
+		} finally {
+			indexIn.close();
+		}
+		return;
+	}
+
+	/**
+	 * Writes a message with the encoded body body to the end of this segment.
+	 * Only called by the writer.
+	 * 
+	 * @param body
+	 *            The encoded message
+	 * @return True if the message was written, false if the segment is full
+	 * @throws IOException
+	 *             If the segment's files were not mapped and could not be
+	 */
+	boolean append(byte[] body) throws IOException {
+		int end = writePosition + body.length + RECORD_OVERHEAD;
+		if (end > dataBytes || (count + 1) * INDEX_ENTRY_BYTES > indexBytes) {
+			return false;
+		}
+		map();
+		CRC32 crc = new CRC32();
+		crc.update(body, 0, body.length);
+		ByteBuffer dataView = data.duplicate();
+		dataView.position(writePosition);
+		dataView.putInt(body.length);
+		dataView.put(body);
+		dataView.putInt((int) crc.getValue());
+		index.putInt(count * INDEX_ENTRY_BYTES, end);
+		writePosition = end;
+		lastWritten = System.currentTimeMillis();
+		count = count + 1;
+		return true;
+	}
+
+	/**
+	 * Returns the encoded bodies of the messages with sequence numbers from
+	 * start up to but not including end, with the body of the message with
+	 * sequence number start + i at index i. Messages that are not in this
+	 * segment or fail their checksum are returned as null. Can be called by
+	 * any thread.
+	 * 
+	 * @param start
+	 *            The sequence number of the first message to return
+	 * @param end
+	 *            The sequence number after the last message to return
+	 * @return The bodies of the messages
+	 * @throws IOException
+	 *             If the segment's files could not be read
+	 */
+	ByteBuffer[] read(int start, int end) throws IOException {
+		return read(start - baseSequence, end - baseSequence, count);
+	}
+
+	/**
+	 * Returns copies of the encoded bodies of the messages at positions from
+	 * start up to but not including end in this segment, with the body at
+	 * position start + i at index i. Messages that are not among the first
+	 * available messages or fail their checksum are returned as null. The
+	 * index entries and then the data of all the messages are each read with
+	 * a single positional read.
+	 * 
+	 * @param start
+	 *            The position of the first message to return
+	 * @param end
+	 *            The position after the last message to return
+	 * @param available
+	 *            The number of messages that can be read
+	 * @return The bodies of the messages
+	 * @throws IOException
+	 *             If the segment's files could not be read
+	 */
+	private ByteBuffer[] read(int start, int end, int available) throws IOException {
+		ByteBuffer[] bodies = new ByteBuffer[Math.max(0, end - start)];
+		int first = Math.max(start, 0);
+		int last = Math.min(end, available);
+		if (first >= last) {
+			return bodies;
+		}
+
+		// Read where the message before the first one ends, then where each
+		// message ends
+		int[] ends = new int[last - first + 1];
+		int entryStart = first == 0 ? 0 : first - 1;
+		ByteBuffer entries = ByteBuffer.allocate((last - entryStart) * INDEX_ENTRY_BYTES);
+		readFully(indexFile, entries, (long) entryStart * INDEX_ENTRY_BYTES);
+		for (int i = first == 0 ? 1 : 0; i < ends.length; i++) {
+			ends[i] = entries.getInt();
+		}
+		int dataStart = ends[0];
+		int dataEnd = ends[ends.length - 1];
+		if (dataStart < 0 || dataEnd > dataBytes || dataEnd < dataStart) {
+			return bodies;
+		}
+		ByteBuffer records = ByteBuffer.allocate(dataEnd - dataStart);
+		readFully(dataFile, records, dataStart);
+
+		CRC32 crc = new CRC32();
+		for (int i = 1; i < ends.length; i++) {
+			int recordStart = ends[i - 1] - dataStart;
+			int recordEnd = ends[i] - dataStart;
+			if (recordStart < 0 || recordEnd > records.capacity() || recordEnd - recordStart < RECORD_OVERHEAD
+					|| records.getInt(recordStart) != recordEnd - recordStart - RECORD_OVERHEAD) {
+				continue;
+			}
+			byte[] body = new byte[recordEnd - recordStart - RECORD_OVERHEAD];
+			records.position(recordStart + 4);
+			records.get(body);
+			crc.reset();
+			crc.update(body, 0, body.length);
+			if (records.getInt() == (int) crc.getValue()) {
+				bodies[first + i - 1 - start] = ByteBuffer.wrap(body);
+			}
+		}
+		return bodies;
+	}
+
+	/**
+	 * Fills buffer with the bytes of file, which is the data or index file of
+	 * this segment, starting at position. If the shared channel was closed
+	 * under the read, because another reader was interrupted while using it,
+	 * the read is tried once more on a new channel.
+	 * 
+	 * @param file
+	 *            The file to read
+	 * @param buffer
+	 *            The buffer to fill
+	 * @param position
+	 *            The position in file to read from
+	 * @throws IOException
+	 *             If the file could not be read or ends before buffer is full
+	 */
+	private void readFully(File file, ByteBuffer buffer, long position) throws IOException {
+		for (int attempt = 1;; attempt++) {
+			FileChannel channel = getReader(file);
+			try {
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, position + buffer.position()) < 0) {
+						throw new EOFException("Log segment file " + file + " is shorter than its index");
+					}
+				}
+				break;
+			} catch (ClosedChannelException e) {
+				if (attempt > 1 || Thread.currentThread().isInterrupted()) {
+					throw e;
+				}
+				buffer.clear();
+			}
+		}
+		buffer.flip();
+		return;
+	}
+
+	/**
+	 * Returns the channel that readers read file through, opening it if it has
+	 * not been opened yet or has been closed.
+	 * 
+	 * @param file
+	 *            The data or index file of this segment
+	 * @return An open read-only channel to file
+	 * @throws IOException
+	 *             If the segment has been deleted or file could not be opened
+	 */
+	private synchronized FileChannel getReader(File file) throws IOException {
+		if (deleted) {
+			throw new IOException("Log segment file " + file + " has been deleted");
+		}
+		if (file == dataFile) {
+			if (dataReader == null || !dataReader.isOpen()) {
+				dataReader = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			}
+			return dataReader;
+		}
+		if (indexReader == null || !indexReader.isOpen()) {
+			indexReader = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		}
+		return indexReader;
+	}
+
+	/**
+	 * Closes the channels that readers read this segment's files through, if
+	 * they are open, and stops any more from being opened.
+	 */
+	private synchronized void closeReaders() {
+		deleted = true;
+		for (FileChannel reader : new FileChannel[] { dataReader, indexReader }) {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					// The segment is being deleted anyway
+				}
+			}
+		}
+		dataReader = null;
+		indexReader = null;
+		return;
+	}
+
+	/**
+	 * Writes any changes to this segment's mapped files through to the disk.
+	 * Has no effect if they are not mapped. Only called by the writer.
+	 */
+	void force() {
+		if (data != null) {
+			data.force();
+			index.force();
+		}
+		return;
+	}
+
+	/**
+	 * Forces any changes to this segment's files through to the disk and
+	 * unmaps them. Has no effect if they are not mapped. Only called by the
+	 * writer.
+	 */
+	void release() {
+		if (data != null) {
+			force();
+			unmap(data);
+			unmap(index);
+			data = null;
+			index = null;
+		}
+		return;
+	}
+
+	/**
+	 * Returns true if this segment's files are mapped into memory.
+	 * 
+	 * @return True if the segment is mapped, false otherwise
+	 */
+	boolean isMapped() {
+		return data != null;
+	}
+
+	/**
+	 * Unmaps and deletes this segment's files and closes the channels readers
+	 * read them through. Only called by the writer.
+	 */
+	void delete() {
+		if (data != null) {
+			unmap(data);
+			unmap(index);
+			data = null;
+			index = null;
+		}
+		closeReaders();
+		dataFile.delete();
+		indexFile.delete();
+		return;
+	}
+
+	/**
+	 * Returns the sequence number of the first message in this segment.
+	 * 
+	 * @return The sequence number of the first message in this segment
+	 */
+	int getBaseSequence() {
+		return baseSequence;
+	}
+
+	/**
+	 * Returns the sequence number that the next message written to this
+	 * segment would have.
+	 * 
+	 * @return The sequence number after the last message in this segment
+	 */
+	int getEndSequence() {
+		return baseSequence + count;
+	}
+
+	/**
+	 * Returns the number of bytes of disk space taken by this segment.
+	 * 
+	 * @return The size of this segment's files
+	 */
+	long getSize() {
+		return dataBytes + (long) indexBytes;
+	}
+
+	/**
+	 * Returns the value of System.currentTimeMillis() when the last message
+	 * was written to this segment.
+	 * 
+	 * @return The time the last message was written to this segment
+	 */
+	long getLastWritten() {
+		return lastWritten;
+	}
+}
@@ -0,0 +1,315 @@
+package com.gunshippenguin.jchat.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.gunshippenguin.jchat.shared.ChatMessageEvent;
+
+/**
+ * Class that keeps the chat messages sent to each chat room on disk, so that
+ * their history survives the server being restarted. Each chat room has its
+ * own RoomLog in a directory named after it.
+ * 
+ * Chat messages are handed to a single writer thread through a bounded queue,
+ * so sending a chat message never waits for the disk. The writer takes every
+ * message waiting in the queue at once, writes them all and then, depending on
+ * the fsync policy, forces them to the disk together:
+ * 
+ * always: after every batch of messages
+ * interval: at most once every fsyncMillis milliseconds
+ * never: only when a segment fills up, leaving the rest to the operating system
+ * 
+ * If the queue is full, the message is not written and its place in the log is
+ * filled with a placeholder. Old segments are deleted once a chat room's log
+ * grows larger than retentionBytes or they are older than retentionHours,
+ * checked whenever a chat room's log starts a new segment and once a minute.
+ * At the same check, the memory mappings of chat rooms that have not been
+ * sent a chat message for logIdleSeconds are released, so that the number of
+ * mappings held grows with the number of busy chat rooms rather than with the
+ * number of chat rooms.
+ * 
+ * @author GunshipPenguin
+ */
+class MessageLog implements Runnable {
+	/**
+	 * Fsync policy that forces messages to the disk after every batch.
+	 */
+	static final String FSYNC_ALWAYS = "always";
+	/**
+	 * Fsync policy that forces messages to the disk at most once every
+	 * fsyncMillis milliseconds.
+	 */
+	static final String FSYNC_INTERVAL = "interval";
+	/**
+	 * Fsync policy that leaves writing messages to the disk to the operating
+	 * system.
+	 */
+	static final String FSYNC_NEVER = "never";
+	/**
+	 * Number of milliseconds between checks of every RoomLog against the
+	 * retention limits and for idle mappings.
+	 */
+	private static final long RETENTION_CHECK_MILLIS = 60 * 1000;
+	/**
+	 * The directory holding the directory of each chat room's RoomLog.
+	 */
+	private final File directory;
+	/**
+	 * Size of the data file of each new segment.
+	 */
+	private final int segmentBytes;
+	/**
+	 * The fsync policy, one of FSYNC_ALWAYS, FSYNC_INTERVAL or FSYNC_NEVER.
+	 */
+	private final String fsyncPolicy;
+	/**
+	 * Number of milliseconds between forcing messages to the disk under the
+	 * interval policy.
+	 */
+	private final long fsyncMillis;
+	/**
+	 * Largest number of bytes of disk space for a chat room's log to take up,
+	 * or 0 for no limit.
+	 */
+	private final long retentionBytes;
+	/**
+	 * Age in milliseconds after which segments are deleted, or 0 for no limit.
+	 */
+	private final long retentionMillis;
+	/**
+	 * Number of milliseconds without a chat message after which a RoomLog's
+	 * mapping is released.
+	 */
+	private final long idleMillis;
+	/**
+	 * Chat messages waiting to be written by the writer.
+	 */
+	private final BlockingQueue<Append> queue;
+	/**
+	 * Map of chat room names to their open RoomLogs.
+	 */
+	private final ConcurrentMap<String, RoomLog> roomLogs = new ConcurrentHashMap<String, RoomLog>();
+	/**
+	 * Counters that the writer records its activity in.
+	 */
+	private final ServerMetrics metrics;
+	private static final Logger logger = Logger.getLogger(MessageLog.class.getName());
+
+	/**
+	 * Creates a new MessageLog keeping chat messages in the directory named by
+	 * the logDirectory property.
+	 * 
+	 * @param properties
+	 *            The properties of the server
+	 * @param metrics
+	 *            The counters to record activity in
+	 */
+	MessageLog(Properties properties, ServerMetrics metrics) {
+		this.directory = new File(properties.getProperty("logDirectory"));
+		this.segmentBytes = Integer.parseInt(properties.getProperty("logSegmentBytes", "8388608"));
+		this.fsyncPolicy = properties.getProperty("logFsync", FSYNC_INTERVAL);
+		this.fsyncMillis = Long.parseLong(properties.getProperty("logFsyncMillis", "1000"));
+		this.retentionBytes = Long.parseLong(properties.getProperty("logRetentionBytes", "268435456"));
+		this.retentionMillis = TimeUnit.HOURS
+				.toMillis(Long.parseLong(properties.getProperty("logRetentionHours", "168")));
+		this.idleMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(properties.getProperty("logIdleSeconds", "60")));
+		this.queue = new ArrayBlockingQueue<Append>(
+				Integer.parseInt(properties.getProperty("logQueueSize", "65536")));
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Returns the RoomLog of the chat room named chatRoomName, opening it if
+	 * it is not already open.
+	 * 
+	 * @param chatRoomName
+	 *            The name of the chat room
+	 * @return The RoomLog of the chat room
+	 * @throws IOException
+	 *             If the RoomLog could not be opened
+	 */
+	synchronized RoomLog open(String chatRoomName) throws IOException {
+		RoomLog roomLog = roomLogs.get(chatRoomName);
+		if (roomLog == null) {
+			roomLog = new RoomLog(new File(directory, directoryName(chatRoomName)), segmentBytes);
+			roomLogs.put(chatRoomName, roomLog);
+		}
+		return roomLog;
+	}
+
+	/**
+	 * Returns the name of the directory holding the log of the chat room named
+	 * chatRoomName: its name in UTF-8, written in hexadecimal so that any name
+	 * is a valid file name.
+	 * 
+	 * @param chatRoomName
+	 *            The name of the chat room
+	 * @return The name of the directory holding its log
+	 */
+	private static String directoryName(String chatRoomName) {
+		StringBuilder name = new StringBuilder();
+		for (byte b : chatRoomName.getBytes(StandardCharsets.UTF_8)) {
+			name.append(String.format("%02x", b & 0xFF));
+		}
+		return name.toString();
+	}
+
+	/**
+	 * Queues the chat message evnt, which has sequence number sequence, to be
+	 * written to roomLog. Never blocks; if the queue is full the message is
+	 * not written.
+	 * 
+	 * @param roomLog
+	 *            The RoomLog to write evnt to
+	 * @param sequence
+	 *            The sequence number of evnt
+	 * @param evnt
+	 *            The chat message to write
+	 */
+	void append(RoomLog roomLog, int sequence, ChatMessageEvent evnt) {
+		if (!queue.offer(new Append(roomLog, sequence, evnt))) {
+			metrics.increment("log.dropped");
+		}
+		return;
+	}
+
+	/**
+	 * Writes queued chat messages in batches until the thread is interrupted,
+	 * then writes any still queued and forces them all to the disk.
+	 */
+	@Override
+	public void run() {
+		ArrayList<Append> batch = new ArrayList<Append>();
+		LinkedHashSet<RoomLog> unforced = new LinkedHashSet<RoomLog>();
+		long lastForced = System.currentTimeMillis();
+		long lastRetentionCheck = System.currentTimeMillis();
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				Append first = queue.poll(Math.max(1, Math.min(fsyncMillis, RETENTION_CHECK_MILLIS)),
+						TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					queue.drainTo(batch);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			write(batch, unforced);
+
+			long now = System.currentTimeMillis();
+			boolean forceNow = fsyncPolicy.equals(FSYNC_ALWAYS)
+					|| (fsyncPolicy.equals(FSYNC_INTERVAL) && now - lastForced >= fsyncMillis);
+			if (forceNow && !unforced.isEmpty()) {
+				for (RoomLog roomLog : unforced) {
+					roomLog.force();
+				}
+				metrics.increment("log.fsyncs");
+				unforced.clear();
+				lastForced = now;
+			} else if (fsyncPolicy.equals(FSYNC_NEVER)) {
+				unforced.clear();
+			}
+
+			if (now - lastRetentionCheck >= RETENTION_CHECK_MILLIS) {
+				for (RoomLog roomLog : roomLogs.values()) {
+					metrics.add("log.segmentsDeleted", roomLog.applyRetention(retentionBytes, retentionMillis));
+					if (roomLog.releaseIfIdle(idleMillis)) {
+						metrics.increment("log.segmentsReleased");
+					}
+				}
+				lastRetentionCheck = now;
+			}
+		}
+
+		// Write whatever is left before the server stops. The interrupt is
+		// cleared first, since a thread that is interrupted cannot map a new
+		// segment
+		Thread.interrupted();
+		queue.drainTo(batch);
+		write(batch, unforced);
+		for (RoomLog roomLog : unforced) {
+			roomLog.force();
+		}
+		Thread.currentThread().interrupt();
+		return;
+	}
+
+	/**
+	 * Writes every chat message in batch to its RoomLog, adding the RoomLogs
+	 * written to to unforced, and empties batch. A chat message that cannot be
+	 * written is logged and left out, without stopping the writer.
+	 * 
+	 * @param batch
+	 *            The chat messages to write
+	 * @param unforced
+	 *            The RoomLogs written to since they were last forced to the
+	 *            disk
+	 */
+	private void write(ArrayList<Append> batch, Set<RoomLog> unforced) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		for (Append append : batch) {
+			try {
+				if (append.roomLog.write(append.sequence, append.evnt)) {
+					metrics.increment("log.segmentsCreated");
+					metrics.add("log.segmentsDeleted", append.roomLog.applyRetention(retentionBytes, retentionMillis));
+				}
+				unforced.add(append.roomLog);
+			} catch (IOException | RuntimeException e) {
+				logger.log(Level.WARNING, "Could not write chat message to log", e);
+			}
+		}
+		metrics.increment("log.batches");
+		metrics.add("log.messagesWritten", batch.size());
+		batch.clear();
+		return;
+	}
+
+	/**
+	 * A chat message waiting to be written to a RoomLog.
+	 */
+	private static class Append {
+		/**
+		 * The RoomLog to write the chat message to.
+		 */
+		final RoomLog roomLog;
+		/**
+		 * The sequence number of the chat message.
+		 */
+		final int sequence;
+		/**
+		 * The chat message.
+		 */
+		final ChatMessageEvent evnt;
+
+		/**
+		 * Creates a new Append of the chat message evnt to roomLog.
+		 * 
+		 * @param roomLog
+		 *            The RoomLog to write evnt to
+		 * @param sequence
+		 *            The sequence number of evnt
+		 * @param evnt
+		 *            The chat message
+		 */
+		Append(RoomLog roomLog, int sequence, ChatMessageEvent evnt) {
+			this.roomLog = roomLog;
+			this.sequence = sequence;
+			this.evnt = evnt;
+		}
+	}
+}
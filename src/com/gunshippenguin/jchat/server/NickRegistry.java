@@ -0,0 +1,187 @@
+package com.gunshippenguin.jchat.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Class holding the nick of every Client connected to a ChatServer. A nick is
+ * reserved for a client when its handshake completes and released when it
+ * disconnects, so that no two connected clients ever share a nick.
+ * 
+ * If a requested nick is already taken, the client is given the nick with the
+ * lowest numeric suffix ("_1", "_2", ...) not yet handed out for it. The next
+ * suffix to try is remembered per nick for as long as the nick or any nick
+ * derived from it is reserved, so finding a free nick does not require trying
+ * every suffix already in use.
+ * 
+ * @author GunshipPenguin
+ */
+public class NickRegistry {
+	/**
+	 * Map of nicks to the connected Clients that hold them.
+	 */
+	private final ConcurrentMap<String, Client> clients = new ConcurrentHashMap<String, Client>();
+	/**
+	 * Map of requested nicks that were already taken to their Suffixes. An
+	 * entry is removed once neither its nick nor any nick derived from it is
+	 * reserved.
+	 */
+	private final ConcurrentMap<String, Suffixes> suffixes = new ConcurrentHashMap<String, Suffixes>();
+	/**
+	 * Map of reserved nicks made by appending a suffix to a requested nick to
+	 * the Suffixes of the requested nick.
+	 */
+	private final ConcurrentMap<String, Suffixes> derivedNicks = new ConcurrentHashMap<String, Suffixes>();
+
+	/**
+	 * Class holding the suffixes handed out for a requested nick that was
+	 * already taken. Guarded by the lock on itself.
+	 */
+	private static class Suffixes {
+		/**
+		 * The requested nick.
+		 */
+		final String nick;
+		/**
+		 * The next suffix to try.
+		 */
+		int next = 1;
+		/**
+		 * Number of nicks derived from nick that are reserved.
+		 */
+		int live = 0;
+		/**
+		 * True once this Suffixes has been removed from the NickRegistry, after
+		 * which it must not be used to hand out suffixes.
+		 */
+		boolean removed = false;
+
+		/**
+		 * Creates a new Suffixes for the requested nick nick.
+		 * 
+		 * @param nick
+		 *            The requested nick
+		 */
+		Suffixes(String nick) {
+			this.nick = nick;
+		}
+	}
+
+	/**
+	 * Reserves the nick nick for the Client client, or if it is taken, a free
+	 * nick made by appending a numeric suffix to it. Safe to call from any
+	 * thread; concurrent calls never reserve the same nick.
+	 * 
+	 * @param nick
+	 *            The nick requested by the client
+	 * @param client
+	 *            The Client to reserve a nick for
+	 * @return The nick that was reserved for client
+	 */
+	public String reserve(String nick, Client client) {
+		if (clients.putIfAbsent(nick, client) == null) {
+			return nick;
+		}
+		while (true) {
+			Suffixes nickSuffixes = suffixes.get(nick);
+			if (nickSuffixes == null) {
+				Suffixes newSuffixes = new Suffixes(nick);
+				nickSuffixes = suffixes.putIfAbsent(nick, newSuffixes);
+				if (nickSuffixes == null) {
+					nickSuffixes = newSuffixes;
+				}
+			}
+			synchronized (nickSuffixes) {
+				if (nickSuffixes.removed) {
+					continue;
+				}
+				while (true) {
+					String candidate = nick + "_" + Integer.toString(nickSuffixes.next++);
+					if (clients.putIfAbsent(candidate, client) == null) {
+						nickSuffixes.live++;
+						derivedNicks.put(candidate, nickSuffixes);
+						return candidate;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Releases the nick nick if it is held by the Client client.
+	 * 
+	 * @param nick
+	 *            The nick to release
+	 * @param client
+	 *            The Client that should hold nick
+	 * @return True if nick was released, false if client did not hold it
+	 */
+	public boolean release(String nick, Client client) {
+		if (!clients.remove(nick, client)) {
+			return false;
+		}
+		Suffixes baseSuffixes = derivedNicks.remove(nick);
+		if (baseSuffixes != null) {
+			synchronized (baseSuffixes) {
+				baseSuffixes.live--;
+				removeIfUnused(baseSuffixes);
+			}
+		}
+		Suffixes nickSuffixes = suffixes.get(nick);
+		if (nickSuffixes != null) {
+			synchronized (nickSuffixes) {
+				removeIfUnused(nickSuffixes);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Removes nickSuffixes from this NickRegistry if neither its nick nor any
+	 * nick derived from it is reserved, so that the next suffix handed out
+	 * for the nick is "_1" again. Must be called while holding the lock on
+	 * nickSuffixes.
+	 * 
+	 * @param nickSuffixes
+	 *            The Suffixes to remove if it is unused
+	 */
+	private void removeIfUnused(Suffixes nickSuffixes) {
+		if (!nickSuffixes.removed && nickSuffixes.live == 0 && !clients.containsKey(nickSuffixes.nick)) {
+			nickSuffixes.removed = true;
+			suffixes.remove(nickSuffixes.nick, nickSuffixes);
+		}
+		return;
+	}
+
+	/**
+	 * Returns the Client holding the nick nick, or null if no connected client
+	 * holds it.
+	 * 
+	 * @param nick
+	 *            The nick to look up
+	 * @return The Client holding nick, or null if there is none
+	 */
+	public Client get(String nick) {
+		return clients.get(nick);
+	}
+
+	/**
+	 * Returns true if nick is held by a connected client, false otherwise.
+	 * 
+	 * @param nick
+	 *            The nick to look up
+	 * @return True if nick is held by a connected client, false otherwise
+	 */
+	public boolean contains(String nick) {
+		return clients.containsKey(nick);
+	}
+
+	/**
+	 * Returns the number of nicks currently reserved.
+	 * 
+	 * @return The number of nicks currently reserved
+	 */
+	public int size() {
+		return clients.size();
+	}
+}
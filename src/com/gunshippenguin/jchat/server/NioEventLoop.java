@@ -0,0 +1,372 @@
+package com.gunshippenguin.jchat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.gunshippenguin.jchat.shared.InitClientInfo;
+import com.gunshippenguin.jchat.shared.InitServerInfo;
+import com.gunshippenguin.jchat.shared.Request;
+
+/**
+ * Runnable class that owns a Selector and the non-blocking SocketChannels of
+ * the clients registered with it. Completes the handshake of every newly
+ * accepted channel, without waiting while the client is added to the server,
+ * then reads incoming Requests from it and calls their handle
+ * method, and writes queued Events back out as the channel becomes writable.
+ * 
+ * Used instead of one thread per client when the server's ioMode property is
+ * set to nio.
+ * 
+ * @author GunshipPenguin
+ */
+class NioEventLoop implements Runnable {
+	/**
+	 * ChatServer object to be passed into the handle method of incoming
+	 * Requests.
+	 */
+	private final ChatServer chatServer;
+	/**
+	 * ClientAccepter that hands newly accepted channels to this NioEventLoop.
+	 */
+	private final ClientAccepter clientAccepter;
+	/**
+	 * Selector that all channels owned by this NioEventLoop are registered
+	 * with.
+	 */
+	private final Selector selector;
+	/**
+	 * Buffer that channels are read into before their bytes are handed to the
+	 * owning NioSession.
+	 */
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+	/**
+	 * Handshakes waiting to have their channels registered with selector.
+	 */
+	private final ConcurrentLinkedQueue<NioHandshake> pendingRegistrations = new ConcurrentLinkedQueue<NioHandshake>();
+	/**
+	 * Handshakes whose clients have been added to the server, or could not be,
+	 * and whose channels are waiting to be turned into NioSessions.
+	 */
+	private final ConcurrentLinkedQueue<NioHandshake> pendingStarts = new ConcurrentLinkedQueue<NioHandshake>();
+	/**
+	 * Sessions that have had Events queued since they were last flushed.
+	 */
+	private final ConcurrentLinkedQueue<NioSession> pendingWrites = new ConcurrentLinkedQueue<NioSession>();
+	/**
+	 * Sessions whose clients should be disconnected.
+	 */
+	private final ConcurrentLinkedQueue<NioSession> pendingDisconnects = new ConcurrentLinkedQueue<NioSession>();
+	/**
+	 * Number of nanoseconds to wait for more Events to be queued before
+	 * flushing pending writes, 0 to flush them as soon as they are scheduled.
+	 */
+	private final long flushLingerNanos;
+	/**
+	 * Logger object to be used by the NioEventLoop class.
+	 */
+	private static final Logger logger = Logger.getLogger(NioEventLoop.class.getName());
+
+	/**
+	 * Creates a new NioEventLoop for the ChatServer chatServer.
+	 * 
+	 * @param chatServer
+	 *            The ChatServer whose clients this NioEventLoop will serve
+	 * @param clientAccepter
+	 *            The ClientAccepter that will hand accepted channels to this
+	 *            NioEventLoop
+	 * @throws IOException
+	 *             If a Selector could not be opened
+	 */
+	NioEventLoop(ChatServer chatServer, ClientAccepter clientAccepter) throws IOException {
+		this.chatServer = chatServer;
+		this.clientAccepter = clientAccepter;
+		this.selector = Selector.open();
+		this.flushLingerNanos = Client.getFlushLingerNanos(chatServer.getProperties());
+	}
+
+	/**
+	 * Hands a newly accepted channel over to this NioEventLoop, which will
+	 * complete its handshake. The channel must already be in non-blocking mode.
+	 * May be called from any thread.
+	 * 
+	 * @param handshake
+	 *            The handshake whose channel should be registered
+	 */
+	void register(NioHandshake handshake) {
+		pendingRegistrations.add(handshake);
+		selector.wakeup();
+		return;
+	}
+
+	/**
+	 * Asks this NioEventLoop to finish handshake, whose InitServerInfo is
+	 * ready. May be called from any thread.
+	 * 
+	 * @param handshake
+	 *            The handshake to finish
+	 */
+	void scheduleStart(NioHandshake handshake) {
+		pendingStarts.add(handshake);
+		selector.wakeup();
+		return;
+	}
+
+	/**
+	 * Asks this NioEventLoop to flush the queued Events of session. May be
+	 * called from any thread.
+	 * 
+	 * @param session
+	 *            The session with queued Events
+	 */
+	void scheduleWrite(NioSession session) {
+		pendingWrites.add(session);
+		selector.wakeup();
+		return;
+	}
+
+	/**
+	 * Asks this NioEventLoop to disconnect the client of session. May be called
+	 * from any thread.
+	 * 
+	 * @param session
+	 *            The session to disconnect
+	 */
+	void scheduleDisconnect(NioSession session) {
+		pendingDisconnects.add(session);
+		selector.wakeup();
+		return;
+	}
+
+	/**
+	 * Calls the handle method of the Request request made by client. A
+	 * RuntimeException thrown by the handler is passed on to the caller, which
+	 * disconnects client just as a Client reading on its own thread would.
+	 * 
+	 * @param client
+	 *            The Client that made the request
+	 * @param request
+	 *            The Request to handle
+	 */
+	void dispatch(Client client, Request request) {
+		logger.log(Level.FINER,
+				"Got request " + request.toString() + " from client " + client.getClientInfo().getNick());
+		request.handle(chatServer, client.getClientInfo());
+		return;
+	}
+
+	/**
+	 * Selects ready channels until the thread is interrupted, reading Requests
+	 * from readable channels and flushing Events to writable ones. A failure
+	 * while serving one channel only disconnects that channel, so that it can
+	 * never stop the loop and the other channels registered with it.
+	 */
+	@Override
+	public void run() {
+		logger.log(Level.INFO, Thread.currentThread().getName() + " started");
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "Could not select channels", e);
+				return;
+			}
+			registerPending();
+			startPending();
+			flushPending();
+			disconnectPending();
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				if (!key.isValid()) {
+					continue;
+				}
+				if (key.attachment() instanceof NioHandshake) {
+					readHandshake(key, (NioHandshake) key.attachment());
+					continue;
+				}
+				NioSession session = (NioSession) key.attachment();
+				try {
+					if (key.isReadable() && !session.read(readBuffer)) {
+						disconnect(session);
+						continue;
+					}
+					if (key.isValid() && key.isWritable() && session.flush()) {
+						key.interestOps(SelectionKey.OP_READ);
+					}
+				} catch (IOException e) {
+					logger.log(Level.WARNING,
+							"Connection to client " + session.getClient().getClientInfo().getNick() + " failed", e);
+					disconnect(session);
+				} catch (RuntimeException e) {
+					logger.log(Level.WARNING,
+							"Could not serve client " + session.getClient().getClientInfo().getNick(), e);
+					disconnect(session);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Registers the channels of all handshakes handed to this NioEventLoop
+	 * since the last call.
+	 */
+	private void registerPending() {
+		NioHandshake handshake;
+		while ((handshake = pendingRegistrations.poll()) != null) {
+			try {
+				handshake.getChannel().register(selector, SelectionKey.OP_READ, handshake);
+			} catch (ClosedChannelException e) {
+				// The handshake timed out before the channel was registered
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Reads the InitClientInfo of the handshake registered under key. Once it
+	 * has been received, stops reading the channel and has the ClientAccepter
+	 * add the client to the server, which schedules the rest of the handshake
+	 * once the client's InitServerInfo is ready. If the handshake fails in any
+	 * way, only its own channel is closed.
+	 * 
+	 * @param key
+	 *            The SelectionKey that handshake is attached to
+	 * @param handshake
+	 *            The handshake to read
+	 */
+	private void readHandshake(SelectionKey key, final NioHandshake handshake) {
+		try {
+			InitClientInfo ici = handshake.read(readBuffer);
+			if (ici == null) {
+				return;
+			}
+			handshake.getTimeout().cancel(false);
+			// Requests sent before the InitServerInfo is ready are left unread
+			// until the NioSession starts
+			key.interestOps(0);
+			Client newClient = clientAccepter.createClient(ici, handshake.getChannel().socket());
+			newClient.useEventLoop(this, handshake.getChannel());
+			handshake.setClient(newClient);
+			clientAccepter.joinLater(newClient, ici, handshake.getFinished(), new ClientAccepter.ReplyCallback() {
+				@Override
+				public void reply(InitServerInfo isi) {
+					handshake.setReply(isi);
+					scheduleStart(handshake);
+				}
+			});
+		} catch (IOException | RuntimeException e) {
+			key.cancel();
+			clientAccepter.handshakeFailed(handshake.getChannel().socket(), handshake.getFinished(), e);
+		}
+		return;
+	}
+
+	/**
+	 * Finishes every handshake passed to scheduleStart since the last call,
+	 * turning its channel into a NioSession that starts by writing the
+	 * client's InitServerInfo. A client that could not be added to the server
+	 * or that has been disconnected meanwhile is disconnected and its channel
+	 * closed.
+	 */
+	private void startPending() {
+		NioHandshake handshake;
+		while ((handshake = pendingStarts.poll()) != null) {
+			SelectionKey key = handshake.getChannel().keyFor(selector);
+			Client newClient = handshake.getClient();
+			try {
+				if (handshake.getReply() == null || newClient.isDisconnected() || key == null || !key.isValid()) {
+					throw new IOException("Client was disconnected during its handshake");
+				}
+				newClient.getNioSession().start(key, ClientAccepter.serialize(handshake.getReply()),
+						handshake.getLeftover());
+				key.interestOps(SelectionKey.OP_READ);
+				clientAccepter.handshakeCompleted(newClient);
+			} catch (IOException | RuntimeException e) {
+				if (key != null) {
+					key.cancel();
+				}
+				logger.log(Level.WARNING, "Connection to client " + newClient.getClientInfo().getNick() + " failed",
+						e);
+				newClient.disconnect();
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Flushes all sessions that have had Events queued since the last call,
+	 * selecting for writability on any whose channel could not take everything.
+	 * If the flush policy is linger, first waits for the linger time so that
+	 * Events queued meanwhile are written in the same batch.
+	 */
+	private void flushPending() {
+		if (flushLingerNanos > 0 && !pendingWrites.isEmpty()) {
+			LockSupport.parkNanos(flushLingerNanos);
+		}
+		NioSession session;
+		while ((session = pendingWrites.poll()) != null) {
+			SelectionKey key = session.getKey();
+			if (!key.isValid()) {
+				continue;
+			}
+			try {
+				if (!session.flush()) {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+			} catch (IOException e) {
+				logger.log(Level.WARNING,
+						"Connection to client " + session.getClient().getClientInfo().getNick() + " failed", e);
+				disconnect(session);
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING,
+						"Could not serve client " + session.getClient().getClientInfo().getNick(), e);
+				disconnect(session);
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Disconnects the clients of all sessions passed to scheduleDisconnect
+	 * since the last call.
+	 */
+	private void disconnectPending() {
+		NioSession session;
+		while ((session = pendingDisconnects.poll()) != null) {
+			disconnect(session);
+		}
+		return;
+	}
+
+	/**
+	 * Removes the client of session from the server and closes its channel.
+	 * The channel is closed even if the client could not be removed.
+	 * 
+	 * @param session
+	 *            The session to disconnect
+	 */
+	private void disconnect(NioSession session) {
+		String nick = session.getClient().getClientInfo().getNick();
+		logger.log(Level.INFO, "Client " + nick + " disconnected");
+		if (session.getKey() != null) {
+			session.getKey().cancel();
+		}
+		try {
+			session.getClient().disconnect();
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "Could not remove client " + nick + " from the server", e);
+			session.getClient().stopListening();
+		}
+		return;
+	}
+}
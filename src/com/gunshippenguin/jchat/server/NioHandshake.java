@@ -0,0 +1,220 @@
+package com.gunshippenguin.jchat.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.gunshippenguin.jchat.shared.Codecs;
+import com.gunshippenguin.jchat.shared.InitClientInfo;
+import com.gunshippenguin.jchat.shared.InitServerInfo;
+
+/**
+ * Class holding the state of a handshake being read without blocking by a
+ * NioEventLoop. Buffers incoming bytes until the client's InitClientInfo can
+ * be decoded, then holds the new Client until the InitServerInfo to reply
+ * with is ready.
+ * 
+ * @author GunshipPenguin
+ */
+class NioHandshake {
+	/**
+	 * Header written once at the start of every Java serialization stream. The
+	 * client sends it before its InitClientInfo.
+	 */
+	private static final byte[] STREAM_HEADER = { (byte) 0xAC, (byte) 0xED, 0x00, 0x05 };
+	/**
+	 * Largest number of bytes accepted before the InitClientInfo is complete.
+	 */
+	private static final int MAX_HANDSHAKE_BYTES = 64 * 1024;
+	/**
+	 * Non-blocking SocketChannel connected to the client.
+	 */
+	private final SocketChannel channel;
+	/**
+	 * Set once the handshake has either timed out or gone far enough that it
+	 * can no longer be abandoned.
+	 */
+	private final AtomicBoolean finished;
+	/**
+	 * The task that will close channel if the handshake does not finish in
+	 * time.
+	 */
+	private final ScheduledFuture<?> timeout;
+	/**
+	 * Bytes received from the client so far. Kept in write mode between reads.
+	 */
+	private ByteBuffer received = ByteBuffer.allocate(512);
+	/**
+	 * The Client created once the InitClientInfo has been received, or null
+	 * until then.
+	 */
+	private volatile Client client;
+	/**
+	 * The InitServerInfo to reply to the client with, or null if it is not
+	 * ready or the client could not be added to the server.
+	 */
+	private volatile InitServerInfo reply;
+
+	/**
+	 * Creates a new NioHandshake for the client connected through channel.
+	 * 
+	 * @param channel
+	 *            The non-blocking SocketChannel connected to the client
+	 * @param finished
+	 *            Set once the handshake has either timed out or gone far
+	 *            enough that it can no longer be abandoned
+	 * @param timeout
+	 *            The task that will close channel if the handshake does not
+	 *            finish in time
+	 */
+	NioHandshake(SocketChannel channel, AtomicBoolean finished, ScheduledFuture<?> timeout) {
+		this.channel = channel;
+		this.finished = finished;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Reads all bytes currently available on channel and attempts to decode
+	 * the client's InitClientInfo from them.
+	 * 
+	 * @param readBuffer
+	 *            Buffer owned by the event loop to read into
+	 * @return The InitClientInfo, or null if it has not been received
+	 *         completely yet
+	 * @throws IOException
+	 *             If the channel could not be read, was closed or did not hold
+	 *             a valid InitClientInfo
+	 */
+	InitClientInfo read(ByteBuffer readBuffer) throws IOException {
+		int n;
+		while ((n = channel.read(readBuffer)) > 0) {
+			readBuffer.flip();
+			if (readBuffer.remaining() > received.remaining()) {
+				if (received.position() + readBuffer.remaining() > MAX_HANDSHAKE_BYTES) {
+					throw new IOException("Handshake is larger than " + MAX_HANDSHAKE_BYTES + " bytes");
+				}
+				ByteBuffer grown = ByteBuffer
+						.allocate(Math.max(received.position() + readBuffer.remaining(), received.capacity() * 2));
+				received.flip();
+				grown.put(received);
+				received = grown;
+			}
+			received.put(readBuffer);
+			readBuffer.clear();
+		}
+		if (n < 0) {
+			throw new EOFException("Client closed the connection during its handshake");
+		}
+		if (received.position() < STREAM_HEADER.length) {
+			return null;
+		}
+		received.flip();
+		try {
+			for (int i = 0; i < STREAM_HEADER.length; i++) {
+				if (received.get(i) != STREAM_HEADER[i]) {
+					throw new IOException("Client did not start its handshake with an object stream");
+				}
+			}
+			received.position(STREAM_HEADER.length);
+			Serializable message = Codecs.JAVA.decode(received);
+			if (message == null) {
+				received.position(0);
+				return null;
+			}
+			if (!(message instanceof InitClientInfo)) {
+				throw new IOException("Received " + message.getClass().getName() + " but expected an InitClientInfo");
+			}
+			return (InitClientInfo) message;
+		} finally {
+			received.compact();
+		}
+	}
+
+	/**
+	 * Returns the bytes the client sent after its InitClientInfo. Only valid
+	 * once read has returned the InitClientInfo.
+	 * 
+	 * @return The bytes the client sent after its InitClientInfo
+	 */
+	ByteBuffer getLeftover() {
+		received.flip();
+		return received;
+	}
+
+	/**
+	 * Returns the Client created for the client once its InitClientInfo has
+	 * been received.
+	 * 
+	 * @return The Client, or null if the InitClientInfo has not been received
+	 */
+	Client getClient() {
+		return client;
+	}
+
+	/**
+	 * Sets the Client created for the client once its InitClientInfo has been
+	 * received.
+	 * 
+	 * @param client
+	 *            The Client created for the client
+	 */
+	void setClient(Client client) {
+		this.client = client;
+		return;
+	}
+
+	/**
+	 * Returns the InitServerInfo to reply to the client with.
+	 * 
+	 * @return The InitServerInfo, or null if the client could not be added to
+	 *         the server
+	 */
+	InitServerInfo getReply() {
+		return reply;
+	}
+
+	/**
+	 * Sets the InitServerInfo to reply to the client with.
+	 * 
+	 * @param reply
+	 *            The InitServerInfo, or null if the client could not be added
+	 *            to the server
+	 */
+	void setReply(InitServerInfo reply) {
+		this.reply = reply;
+		return;
+	}
+
+	/**
+	 * Returns the SocketChannel connected to the client.
+	 * 
+	 * @return The SocketChannel connected to the client
+	 */
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Returns the flag set once the handshake has either timed out or gone far
+	 * enough that it can no longer be abandoned.
+	 * 
+	 * @return The flag set once the handshake has finished
+	 */
+	AtomicBoolean getFinished() {
+		return finished;
+	}
+
+	/**
+	 * Returns the task that will close channel if the handshake does not
+	 * finish in time.
+	 * 
+	 * @return The handshake's timeout task
+	 */
+	ScheduledFuture<?> getTimeout() {
+		return timeout;
+	}
+}
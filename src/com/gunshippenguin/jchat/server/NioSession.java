@@ -0,0 +1,266 @@
+package com.gunshippenguin.jchat.server;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.gunshippenguin.jchat.shared.Request;
+
+/**
+ * Class holding the non-blocking channel state of a Client whose socket is
+ * owned by a NioEventLoop. Buffers incoming bytes until a complete Request can
+ * be decoded and writes the client's queued Events as the channel becomes
+ * writable.
+ * 
+ * @author GunshipPenguin
+ */
+class NioSession {
+	/**
+	 * The Client whose connection this NioSession represents.
+	 */
+	private final Client client;
+	/**
+	 * Non-blocking SocketChannel connected to the client.
+	 */
+	private final SocketChannel channel;
+	/**
+	 * NioEventLoop that owns channel.
+	 */
+	private final NioEventLoop eventLoop;
+	/**
+	 * SelectionKey of channel, set once the event loop has registered it.
+	 */
+	private volatile SelectionKey key;
+	/**
+	 * Bytes received from the client that have not yet been decoded into a
+	 * Request. Kept in write mode between reads.
+	 */
+	private ByteBuffer pending = ByteBuffer.allocate(1024);
+	/**
+	 * Maximum number of encoded Events gathered into a single write to
+	 * channel.
+	 */
+	private static final int MAX_GATHERED_EVENTS = 64;
+	/**
+	 * Encoded Events taken from the client's outbound queue that have not yet
+	 * been completely written to channel. Valid entries start at index 0.
+	 */
+	private final ByteBuffer[] writeBuffers = new ByteBuffer[MAX_GATHERED_EVENTS];
+	/**
+	 * Number of valid entries in writeBuffers.
+	 */
+	private int writeCount = 0;
+	/**
+	 * True while this session is waiting in its event loop's list of sessions
+	 * with pending writes.
+	 */
+	private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+	/**
+	 * Creates a new NioSession for the Client client connected through the
+	 * SocketChannel channel and owned by the NioEventLoop eventLoop.
+	 * 
+	 * @param client
+	 *            The Client this NioSession represents
+	 * @param channel
+	 *            The SocketChannel connected to the client
+	 * @param eventLoop
+	 *            The NioEventLoop that will own channel
+	 */
+	NioSession(Client client, SocketChannel channel, NioEventLoop eventLoop) {
+		this.client = client;
+		this.channel = channel;
+		this.eventLoop = eventLoop;
+	}
+
+	/**
+	 * Informs the event loop that an event has been added to the client's
+	 * outbound queue. May be called from any thread.
+	 */
+	void eventQueued() {
+		if (key != null && writeScheduled.compareAndSet(false, true)) {
+			eventLoop.scheduleWrite(this);
+		}
+		return;
+	}
+
+	/**
+	 * Asks the event loop to disconnect this session's client. May be called
+	 * from any thread.
+	 */
+	void requestDisconnect() {
+		eventLoop.scheduleDisconnect(this);
+		return;
+	}
+
+	/**
+	 * Starts this session once its client's handshake has been read from the
+	 * channel registered under key. handshakeReply is written before any
+	 * queued Event, and leftover holds any bytes the client sent after its
+	 * handshake.
+	 * 
+	 * @param key
+	 *            The SelectionKey the channel is registered under
+	 * @param handshakeReply
+	 *            The bytes completing the handshake
+	 * @param leftover
+	 *            Bytes received after the handshake, to be decoded as Requests
+	 * @throws IOException
+	 *             If leftover is not a valid Request
+	 */
+	void start(SelectionKey key, byte[] handshakeReply, ByteBuffer leftover) throws IOException {
+		writeBuffers[writeCount++] = ByteBuffer.wrap(handshakeReply);
+		append(leftover);
+		key.attach(this);
+		setKey(key);
+		decodePending();
+		return;
+	}
+
+	/**
+	 * Reads all bytes currently available on channel and decodes as many
+	 * Requests from them as possible.
+	 * 
+	 * @param readBuffer
+	 *            Buffer owned by the event loop to read into
+	 * @return False if the client has closed its end of the connection, true
+	 *         otherwise
+	 * @throws IOException
+	 *             If the channel could not be read or a Request could not be
+	 *             decoded
+	 */
+	boolean read(ByteBuffer readBuffer) throws IOException {
+		int n;
+		while ((n = channel.read(readBuffer)) > 0) {
+			readBuffer.flip();
+			append(readBuffer);
+			readBuffer.clear();
+		}
+		decodePending();
+		return n >= 0;
+	}
+
+	/**
+	 * Decodes as many Requests as possible from pending and dispatches them.
+	 * 
+	 * @throws IOException
+	 *             If the buffered bytes are not a valid Request
+	 */
+	private void decodePending() throws IOException {
+		pending.flip();
+		try {
+			Serializable message;
+			while ((message = client.getCodec().decode(pending)) != null) {
+				if (!(message instanceof Request)) {
+					throw new IOException("Received " + message.getClass().getName() + " but expected a Request");
+				}
+				eventLoop.dispatch(client, (Request) message);
+			}
+		} finally {
+			pending.compact();
+		}
+		return;
+	}
+
+	/**
+	 * Writes as many of the client's queued Events to channel as it will
+	 * accept without blocking. Queued Events are gathered into a single write
+	 * where possible, with each write's shared frames passed to the channel
+	 * without being copied.
+	 * 
+	 * @return True if the outbound queue has been emptied, false if channel is
+	 *         full
+	 * @throws IOException
+	 *             If writing to the channel failed
+	 */
+	boolean flush() throws IOException {
+		writeScheduled.set(false);
+		OutboundQueue outbound = client.getOutboundQueue();
+		while (true) {
+			EncodedEvent evnt;
+			while (writeCount < writeBuffers.length && (evnt = outbound.poll()) != null) {
+				writeBuffers[writeCount++] = ByteBuffer.wrap(evnt.getFrame(client.getCodec()));
+			}
+			if (writeCount == 0) {
+				outbound.markWriteCompleted();
+				return true;
+			}
+			long written = channel.write(writeBuffers, 0, writeCount);
+			int completed = 0;
+			while (completed < writeCount && !writeBuffers[completed].hasRemaining()) {
+				completed++;
+			}
+			client.countWrite(completed, written);
+			System.arraycopy(writeBuffers, completed, writeBuffers, 0, writeCount - completed);
+			Arrays.fill(writeBuffers, writeCount - completed, writeCount, null);
+			writeCount -= completed;
+			if (writeCount > 0) {
+				outbound.markWriteBlocked();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Appends the remaining bytes of buf to pending, growing it if necessary.
+	 * 
+	 * @param buf
+	 *            The buffer to append
+	 */
+	private void append(ByteBuffer buf) {
+		if (buf.remaining() > pending.remaining()) {
+			ByteBuffer grown = ByteBuffer
+					.allocate(Math.max(pending.position() + buf.remaining(), pending.capacity() * 2));
+			pending.flip();
+			grown.put(pending);
+			pending = grown;
+		}
+		pending.put(buf);
+		return;
+	}
+
+	/**
+	 * Returns the Client that this NioSession represents.
+	 * 
+	 * @return The Client that this NioSession represents
+	 */
+	Client getClient() {
+		return client;
+	}
+
+	/**
+	 * Returns the SocketChannel connected to the client.
+	 * 
+	 * @return The SocketChannel connected to the client
+	 */
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Returns the SelectionKey of this session's channel.
+	 * 
+	 * @return The SelectionKey of this session's channel, or null if it has not
+	 *         been registered yet
+	 */
+	SelectionKey getKey() {
+		return key;
+	}
+
+	/**
+	 * Sets the SelectionKey of this session's channel once it has been
+	 * registered with the event loop's selector.
+	 * 
+	 * @param key
+	 *            The SelectionKey of this session's channel
+	 */
+	void setKey(SelectionKey key) {
+		this.key = key;
+		eventQueued();
+		return;
+	}
+}
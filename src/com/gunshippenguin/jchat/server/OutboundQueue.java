@@ -0,0 +1,521 @@
+package com.gunshippenguin.jchat.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.gunshippenguin.jchat.shared.ChatMessageEvent;
+import com.gunshippenguin.jchat.shared.Event;
+import com.gunshippenguin.jchat.shared.MessagesSkippedEvent;
+
+/**
+ * Class representing the bounded queue of events waiting to be written to a
+ * single client.
+ * 
+ * Once the client falls behind, either because too many events are waiting or
+ * because a write to its socket has been blocked for too long, it is treated as
+ * a slow consumer and the server's slowConsumerPolicy is applied to it:
+ * <ul>
+ * <li>dropOldest - The oldest queued chat message is dropped for each new one
+ * </li>
+ * <li>coalesce - As dropOldest, but the client is sent a MessagesSkippedEvent
+ * saying how many chat messages were dropped on each chat room</li>
+ * <li>disconnect - The client is disconnected from the server</li>
+ * </ul>
+ * Events other than chat messages are never dropped. If the queue is full and
+ * holds nothing but such events, the client is disconnected whatever the
+ * policy.
+ * 
+ * Chat messages sent to chat rooms that have a RoomRing are not queued here.
+ * The OutboundQueue instead holds a cursor for each such chat room and reads
+ * their messages from the ring once its queued events have been taken. If the
+ * client falls so far behind that messages are overwritten before it reads
+ * them, the policy is applied as if they had been dropped from the queue.
+ * 
+ * @author GunshipPenguin
+ */
+class OutboundQueue {
+	/**
+	 * Policy that drops the oldest queued chat message for each new one.
+	 */
+	static final String DROP_OLDEST = "dropOldest";
+	/**
+	 * Policy that drops the oldest queued chat message for each new one and
+	 * tells the client how many were dropped.
+	 */
+	static final String COALESCE = "coalesce";
+	/**
+	 * Policy that disconnects slow consumers.
+	 */
+	static final String DISCONNECT = "disconnect";
+	/**
+	 * The Client whose events are queued.
+	 */
+	private final Client client;
+	/**
+	 * ServerMetrics object that throttled clients are counted in.
+	 */
+	private final ServerMetrics metrics;
+	/**
+	 * Maximum number of events that can be queued.
+	 */
+	private final int capacity;
+	/**
+	 * Number of queued events at which the client is treated as a slow
+	 * consumer.
+	 */
+	private final int backlogThreshold;
+	/**
+	 * Number of milliseconds a write can be blocked for before the client is
+	 * treated as a slow consumer.
+	 */
+	private final long maxWriteMillis;
+	/**
+	 * The policy applied to the client while it is a slow consumer.
+	 */
+	private final String policy;
+	/**
+	 * Events waiting to be written to the client.
+	 */
+	private final ArrayDeque<EncodedEvent> events = new ArrayDeque<EncodedEvent>();
+	/**
+	 * Map of chat room ids to the number of chat messages dropped on them
+	 * that the client has not yet been told about. Only used by the coalesce
+	 * policy.
+	 */
+	private final Map<Integer, Integer> skipped = new LinkedHashMap<Integer, Integer>();
+	/**
+	 * Cursors reading the RoomRings of the chat rooms the client is in that
+	 * have one.
+	 */
+	private final ArrayList<RoomRing.Cursor> rings = new ArrayList<RoomRing.Cursor>();
+	/**
+	 * Index in rings of the cursor to read first next time, so that every
+	 * chat room gets its turn.
+	 */
+	private int nextRing = 0;
+	/**
+	 * True while the writer is waiting for an event. Chat messages published
+	 * to a RoomRing only signal notEmpty while it is set.
+	 */
+	private volatile boolean waiting = false;
+	/**
+	 * Lock guarding events, skipped and the slow consumer state.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	/**
+	 * Condition signalled when an event is queued.
+	 */
+	private final Condition notEmpty = lock.newCondition();
+	/**
+	 * Time in nanoseconds at which the current write to the client started, or
+	 * 0 if no write is in progress.
+	 */
+	private volatile long writeBlockedSince = 0;
+	/**
+	 * True while the client is being treated as a slow consumer.
+	 */
+	private boolean throttled = false;
+	/**
+	 * Number of chat messages dropped since the client became a slow consumer.
+	 */
+	private int droppedWhileThrottled = 0;
+	/**
+	 * True once the client has been disconnected, after which no more events
+	 * are accepted.
+	 */
+	private boolean closed = false;
+	/**
+	 * Logger object to be used by the OutboundQueue class.
+	 */
+	private static final Logger logger = Logger.getLogger(OutboundQueue.class.getName());
+
+	/**
+	 * Creates a new OutboundQueue for the Client client, configured from the
+	 * server properties properties.
+	 * 
+	 * @param client
+	 *            The Client whose events will be queued
+	 * @param properties
+	 *            The properties of the server
+	 * @param metrics
+	 *            The ServerMetrics object to count throttled clients in
+	 */
+	OutboundQueue(Client client, Properties properties, ServerMetrics metrics) {
+		this.client = client;
+		this.metrics = metrics;
+		this.capacity = Integer.parseInt(properties.getProperty("outboundQueueSize", "1024"));
+		this.backlogThreshold = Integer.parseInt(properties.getProperty("slowConsumerBacklog", "256"));
+		this.maxWriteMillis = Long.parseLong(properties.getProperty("slowConsumerWriteMillis", "5000"));
+		this.policy = properties.getProperty("slowConsumerPolicy", COALESCE);
+	}
+
+	/**
+	 * Queues the event evnt, applying the slow consumer policy if the client
+	 * has fallen behind. Never blocks. The same EncodedEvent may be queued for
+	 * many clients.
+	 * 
+	 * @param evnt
+	 *            The event to queue
+	 * @return True if the event was queued or dropped by the policy, false if
+	 *         the client is being disconnected
+	 */
+	boolean offer(EncodedEvent evnt) {
+		String reason;
+		boolean disconnect = false;
+		lock.lock();
+		try {
+			if (closed) {
+				return false;
+			}
+			reason = slowConsumerReason();
+			if (reason != null) {
+				if (!throttled) {
+					throttled = true;
+					droppedWhileThrottled = 0;
+					metrics.increment("slowConsumer.throttled");
+					logger.log(Level.WARNING, "Client " + client.getClientInfo().getNick()
+							+ " is a slow consumer (" + reason + "), applying policy " + policy);
+				}
+				if (policy.equals(DISCONNECT)) {
+					disconnect = true;
+				} else if (evnt.getEvent() instanceof ChatMessageEvent) {
+					dropOldestChatMessage();
+				}
+			}
+			if (!disconnect && events.size() >= capacity && !dropOldestChatMessage()) {
+				reason = "outbound queue full";
+				disconnect = true;
+			}
+			if (disconnect) {
+				closed = true;
+				throttled = false;
+				events.clear();
+				skipped.clear();
+			} else {
+				events.add(evnt);
+				notEmpty.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (disconnect) {
+			metrics.increment("slowConsumer.disconnected");
+			logger.log(Level.WARNING,
+					"Disconnecting slow consumer " + client.getClientInfo().getNick() + " (" + reason + ")");
+			client.requestDisconnect();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Removes and returns the next event to write to the client, waiting until
+	 * one is queued.
+	 * 
+	 * @return The next event to write to the client
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting
+	 */
+	EncodedEvent take() throws InterruptedException {
+		lock.lock();
+		try {
+			EncodedEvent evnt;
+			while ((evnt = nextOrStartWaiting()) == null) {
+				notEmpty.await();
+			}
+			return evnt;
+		} finally {
+			waiting = false;
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes and returns the next event to write to the client, or returns
+	 * null if there is none.
+	 * 
+	 * @return The next event to write to the client, or null if there is none
+	 */
+	EncodedEvent poll() {
+		lock.lock();
+		try {
+			return next();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes and returns the next event to write to the client, waiting up to
+	 * timeout for one to be queued.
+	 * 
+	 * @param timeout
+	 *            The longest time to wait
+	 * @param unit
+	 *            The unit of timeout
+	 * @return The next event to write to the client, or null if none was
+	 *         queued in time
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting
+	 */
+	EncodedEvent poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			EncodedEvent evnt;
+			while ((evnt = nextOrStartWaiting()) == null) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return evnt;
+		} finally {
+			waiting = false;
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Starts reading the chat messages published to a RoomRing through
+	 * cursor.
+	 * 
+	 * @param cursor
+	 *            The cursor to read the RoomRing through
+	 */
+	void addRing(RoomRing.Cursor cursor) {
+		lock.lock();
+		try {
+			rings.add(cursor);
+		} finally {
+			lock.unlock();
+		}
+		return;
+	}
+
+	/**
+	 * Stops reading the chat messages published to a RoomRing through cursor.
+	 * 
+	 * @param cursor
+	 *            The cursor to stop reading
+	 */
+	void removeRing(RoomRing.Cursor cursor) {
+		lock.lock();
+		try {
+			rings.remove(cursor);
+			cursor.removeWaiter(client);
+		} finally {
+			lock.unlock();
+		}
+		return;
+	}
+
+	/**
+	 * Wakes the writer if it is waiting, after a chat message has been
+	 * published to the RoomRing of one of the client's chat rooms. Takes no
+	 * lock unless the writer is waiting.
+	 */
+	void ringPublished() {
+		if (waiting) {
+			lock.lock();
+			try {
+				notEmpty.signal();
+			} finally {
+				lock.unlock();
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Returns the next event as next does. If there is none, records that the
+	 * writer is about to wait and looks again, so that a chat message published
+	 * to a RoomRing in between either is returned or signals notEmpty. Must be
+	 * called with lock held.
+	 * 
+	 * @return The next event to write to the client, or null if there is none
+	 */
+	private EncodedEvent nextOrStartWaiting() {
+		EncodedEvent evnt = next();
+		if (evnt == null) {
+			waiting = true;
+			evnt = next();
+		}
+		return evnt;
+	}
+
+	/**
+	 * Records that a write to the client has started or could not complete.
+	 * Has no effect if a write is already known to be in progress.
+	 */
+	void markWriteBlocked() {
+		if (writeBlockedSince == 0) {
+			writeBlockedSince = System.nanoTime();
+		}
+		return;
+	}
+
+	/**
+	 * Records that all writes to the client have completed.
+	 */
+	void markWriteCompleted() {
+		writeBlockedSince = 0;
+		return;
+	}
+
+	/**
+	 * Removes and returns the next event to write to the client, or returns
+	 * null if there is none. Pending MessagesSkippedEvents are returned before
+	 * any queued events, since the chat messages they replace were older than
+	 * anything still queued. Must be called with lock held.
+	 * 
+	 * @return The next event to write to the client, or null if there is none
+	 */
+	private EncodedEvent next() {
+		if (!skipped.isEmpty()) {
+			Iterator<Map.Entry<Integer, Integer>> it = skipped.entrySet().iterator();
+			Map.Entry<Integer, Integer> entry = it.next();
+			it.remove();
+			return new EncodedEvent(new MessagesSkippedEvent(entry.getKey(), entry.getValue()));
+		}
+		EncodedEvent evnt = events.poll();
+		if (throttled && events.size() <= backlogThreshold / 2 && slowConsumerReason() == null) {
+			throttled = false;
+			logger.log(Level.INFO, "Client " + client.getClientInfo().getNick() + " has caught up, "
+					+ droppedWhileThrottled + " chat messages were dropped");
+		}
+		if (evnt == null && !closed) {
+			evnt = pollRings();
+			if (evnt == null && !rings.isEmpty()) {
+				// Ask to be woken by the next chat message published to any of
+				// the rings, then look again in case one was published first
+				for (RoomRing.Cursor cursor : rings) {
+					cursor.addWaiter(client);
+				}
+				evnt = pollRings();
+			}
+			if (evnt == null && !skipped.isEmpty()) {
+				return next();
+			}
+		}
+		return evnt;
+	}
+
+	/**
+	 * Returns the next chat message from the RoomRings the client is reading,
+	 * taking each in turn, or null if it has read every message published to
+	 * them. Messages that were overwritten before the client read them are
+	 * dealt with according to the policy. Must be called with lock held.
+	 * 
+	 * @return The next chat message from a RoomRing, or null if there is none
+	 */
+	private EncodedEvent pollRings() {
+		for (int i = 0; i < rings.size(); i++) {
+			if (nextRing >= rings.size()) {
+				nextRing = 0;
+			}
+			RoomRing.Cursor cursor = rings.get(nextRing++);
+			EncodedEvent evnt = cursor.poll();
+			long overwritten;
+			while ((overwritten = cursor.takeSkipped()) > 0) {
+				ringOverrun(cursor.getChatRoomId(), overwritten);
+				if (closed) {
+					return null;
+				}
+				// The cursor has skipped to the oldest message still in the
+				// ring, which can be read now
+				evnt = cursor.poll();
+			}
+			if (evnt != null) {
+				return evnt;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Applies the policy to the client after count chat messages on the chat
+	 * room with id chatRoomId were overwritten in its RoomRing before the
+	 * client read them. Must be called with lock held.
+	 * 
+	 * @param chatRoomId
+	 *            The id of the chat room the messages were sent to
+	 * @param count
+	 *            The number of messages overwritten
+	 */
+	private void ringOverrun(int chatRoomId, long count) {
+		metrics.increment("ring.overruns");
+		logger.log(Level.WARNING, "Client " + client.getClientInfo().getNick() + " fell " + count
+				+ " chat messages behind on chat room " + chatRoomId + ", applying policy " + policy);
+		if (policy.equals(DISCONNECT)) {
+			closed = true;
+			events.clear();
+			skipped.clear();
+			metrics.increment("slowConsumer.disconnected");
+			client.requestDisconnect();
+			return;
+		}
+		metrics.add("slowConsumer.droppedMessages", count);
+		if (policy.equals(COALESCE)) {
+			Integer skippedCount = skipped.get(chatRoomId);
+			int total = (int) Math.min(Integer.MAX_VALUE, (skippedCount == null ? 0 : skippedCount) + count);
+			skipped.put(chatRoomId, total);
+		}
+		return;
+	}
+
+	/**
+	 * Drops the oldest queued chat message, recording it for a
+	 * MessagesSkippedEvent if the policy is coalesce. Must be called with lock
+	 * held.
+	 * 
+	 * @return True if a chat message was dropped, false if none are queued
+	 */
+	private boolean dropOldestChatMessage() {
+		Iterator<EncodedEvent> it = events.iterator();
+		while (it.hasNext()) {
+			Event evnt = it.next().getEvent();
+			if (evnt instanceof ChatMessageEvent) {
+				it.remove();
+				droppedWhileThrottled++;
+				metrics.increment("slowConsumer.droppedMessages");
+				if (policy.equals(COALESCE)) {
+					int chatRoomId = ((ChatMessageEvent) evnt).getChatRoomId();
+					Integer count = skipped.get(chatRoomId);
+					skipped.put(chatRoomId, count == null ? 1 : count + 1);
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns a description of why the client is a slow consumer, or null if it
+	 * is keeping up. Must be called with lock held.
+	 * 
+	 * @return Why the client is a slow consumer, or null if it is not one
+	 */
+	private String slowConsumerReason() {
+		if (events.size() >= backlogThreshold) {
+			return "backlog of " + events.size() + " events";
+		}
+		long blockedSince = writeBlockedSince;
+		if (blockedSince != 0) {
+			long blockedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - blockedSince);
+			if (blockedMillis > maxWriteMillis) {
+				return "write blocked for " + blockedMillis + " ms";
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,243 @@
+package com.gunshippenguin.jchat.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import com.gunshippenguin.jchat.shared.BinaryInput;
+import com.gunshippenguin.jchat.shared.BinaryOutput;
+
+/**
+ * Class that keeps a snapshot of the chat rooms on the server in a file, so
+ * that the chat rooms created by clients are still there after the server is
+ * restarted. For each chat room other than the default chat room the snapshot
+ * records its name, its id and, if its chat messages are kept in a RoomLog,
+ * the sequence number that its log had reached. It also records the id that
+ * the next chat room created will be given, so that ids are never reused
+ * across restarts.
+ * 
+ * The snapshot is written in the same compact binary format as the
+ * BinaryCodec uses, followed by a CRC32 checksum, to a temporary file which is
+ * then forced to the disk and renamed over the old snapshot. A snapshot that
+ * was only partly written is therefore never read, and the previous one is
+ * kept until the new one is complete. A snapshot that has not changed since it
+ * was last written is not written again.
+ * 
+ * @author GunshipPenguin
+ */
+class RegistrySnapshot {
+	/**
+	 * Value at the start of every snapshot file, the characters JCRS.
+	 */
+	private static final int MAGIC = 0x4A435253;
+	/**
+	 * Version of the snapshot format written.
+	 */
+	private static final int FORMAT_VERSION = 1;
+	/**
+	 * Number of bytes of the checksum at the end of every snapshot file.
+	 */
+	private static final int CHECKSUM_BYTES = 4;
+	/**
+	 * Largest snapshot file that will be read.
+	 */
+	private static final int MAX_SNAPSHOT_BYTES = 1 << 30;
+	/**
+	 * The file holding the snapshot.
+	 */
+	private final File file;
+	/**
+	 * The contents of the snapshot last written or read, or null if there has
+	 * been none.
+	 */
+	private byte[] lastContents = null;
+
+	/**
+	 * Creates a new RegistrySnapshot kept in file.
+	 * 
+	 * @param file
+	 *            The file holding the snapshot
+	 */
+	RegistrySnapshot(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Returns the file holding the snapshot.
+	 * 
+	 * @return The file holding the snapshot
+	 */
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * Writes a snapshot recording the chat rooms chatRooms, unless it would be
+	 * the same as the snapshot last written.
+	 * 
+	 * @param chatRooms
+	 *            The chat rooms to record
+	 * @param nextChatRoomId
+	 *            The id that the next chat room created will be given, greater
+	 *            than the id of every chat room in chatRooms
+	 * @return True if the snapshot was written, false if it had not changed
+	 * @throws IOException
+	 *             If the snapshot could not be written
+	 */
+	synchronized boolean save(ArrayList<Entry> chatRooms, int nextChatRoomId) throws IOException {
+		BinaryOutput out = new BinaryOutput();
+		out.writeVarInt(MAGIC);
+		out.writeVarInt(FORMAT_VERSION);
+		out.writeVarInt(nextChatRoomId);
+		out.writeVarInt(chatRooms.size());
+		for (Entry entry : chatRooms) {
+			out.writeString(entry.name);
+			out.writeVarInt(entry.id);
+			out.writeVarInt(entry.historyEnd);
+		}
+		byte[] contents = out.toByteArray();
+		if (Arrays.equals(contents, lastContents)) {
+			return false;
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(contents, 0, contents.length);
+		ByteBuffer checksum = ByteBuffer.allocate(CHECKSUM_BYTES);
+		checksum.putInt((int) crc.getValue());
+
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream output = new FileOutputStream(temp);
+		try {
+			output.write(contents);
+			output.write(checksum.array());
+			output.getFD().sync();
+		} finally {
+			output.close();
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		lastContents = contents;
+		return true;
+	}
+
+	/**
+	 * Reads the snapshot, if there is one.
+	 * 
+	 * @return The chat rooms recorded in the snapshot, or null if there is no
+	 *         snapshot
+	 * @throws IOException
+	 *             If the snapshot could not be read or is not valid
+	 */
+	synchronized Restored load() throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		byte[] bytes;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.length() < CHECKSUM_BYTES || raf.length() > MAX_SNAPSHOT_BYTES) {
+				throw new IOException("Snapshot " + file + " has an invalid length of " + raf.length());
+			}
+			bytes = new byte[(int) raf.length()];
+			raf.readFully(bytes);
+		} finally {
+			raf.close();
+		}
+		byte[] contents = Arrays.copyOf(bytes, bytes.length - CHECKSUM_BYTES);
+		CRC32 crc = new CRC32();
+		crc.update(contents, 0, contents.length);
+		if (ByteBuffer.wrap(bytes, contents.length, CHECKSUM_BYTES).getInt() != (int) crc.getValue()) {
+			throw new IOException("Snapshot " + file + " fails its checksum");
+		}
+
+		BinaryInput in = new BinaryInput(ByteBuffer.wrap(contents));
+		if (in.readVarInt() != MAGIC) {
+			throw new IOException(file + " is not a chat room snapshot");
+		}
+		int version = in.readVarInt();
+		if (version != FORMAT_VERSION) {
+			throw new IOException("Snapshot " + file + " has unsupported format version " + version);
+		}
+		int nextChatRoomId = in.readVarInt();
+		int count = in.readVarInt();
+		ArrayList<Entry> chatRooms = new ArrayList<Entry>();
+		for (int i = 0; i < count; i++) {
+			chatRooms.add(new Entry(in.readString(), in.readVarInt(), in.readVarInt()));
+		}
+		if (!in.isFinished()) {
+			throw new IOException("Snapshot " + file + " has trailing bytes");
+		}
+		lastContents = contents;
+		return new Restored(nextChatRoomId, chatRooms);
+	}
+
+	/**
+	 * The record of one chat room in a snapshot.
+	 */
+	static class Entry {
+		/**
+		 * The name of the chat room.
+		 */
+		final String name;
+		/**
+		 * The id of the chat room.
+		 */
+		final int id;
+		/**
+		 * The sequence number that the RoomLog of the chat room had reached, or
+		 * -1 if its chat messages are not kept in a RoomLog.
+		 */
+		final int historyEnd;
+
+		/**
+		 * Creates a new Entry for the chat room named name.
+		 * 
+		 * @param name
+		 *            The name of the chat room
+		 * @param id
+		 *            The id of the chat room
+		 * @param historyEnd
+		 *            The sequence number that the chat room's RoomLog had
+		 *            reached, or -1 if it has none
+		 */
+		Entry(String name, int id, int historyEnd) {
+			this.name = name;
+			this.id = id;
+			this.historyEnd = historyEnd;
+		}
+	}
+
+	/**
+	 * The contents of a snapshot that has been read.
+	 */
+	static class Restored {
+		/**
+		 * The id that the next chat room created was to be given.
+		 */
+		final int nextChatRoomId;
+		/**
+		 * The chat rooms recorded in the snapshot.
+		 */
+		final ArrayList<Entry> chatRooms;
+
+		/**
+		 * Creates a new Restored holding the contents of a snapshot.
+		 * 
+		 * @param nextChatRoomId
+		 *            The id that the next chat room created was to be given
+		 * @param chatRooms
+		 *            The chat rooms recorded in the snapshot
+		 */
+		Restored(int nextChatRoomId, ArrayList<Entry> chatRooms) {
+			this.nextChatRoomId = nextChatRoomId;
+			this.chatRooms = chatRooms;
+		}
+	}
+}
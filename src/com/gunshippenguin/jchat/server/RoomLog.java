@@ -0,0 +1,424 @@
+package com.gunshippenguin.jchat.server;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.gunshippenguin.jchat.shared.BinaryInput;
+import com.gunshippenguin.jchat.shared.BinaryOutput;
+import com.gunshippenguin.jchat.shared.ChatHistoryEvent;
+import com.gunshippenguin.jchat.shared.ChatMessageEvent;
+
+/**
+ * Class representing the durable log of the chat messages sent to one chat
+ * room, kept in its own directory as a series of LogSegments. Messages are
+ * only written by the MessageLog's writer thread, in order of sequence number,
+ * and can be read by any thread at the same time. No segment is created until
+ * the first message is written, so a chat room that is never sent a chat
+ * message takes up no disk space and no memory mappings.
+ * 
+ * A message that the writer never received, because its queue was full, is
+ * stored as an empty placeholder so that every message keeps the sequence
+ * number it was given. Placeholders are skipped when messages are read.
+ * 
+ * @author GunshipPenguin
+ */
+class RoomLog {
+	/**
+	 * Session id stored for placeholders in place of a sender.
+	 */
+	private static final int PLACEHOLDER_SENDER = -1;
+	/**
+	 * Largest number of bytes of messages read for one page, so that a page
+	 * always fits in a single frame.
+	 */
+	private static final int MAX_PAGE_BYTES = 256 * 1024;
+	/**
+	 * The directory holding the segments of this RoomLog.
+	 */
+	private final File directory;
+	/**
+	 * Size of the data file of each new segment.
+	 */
+	private final int segmentBytes;
+	/**
+	 * The segments of this RoomLog, oldest first, or none if no message has
+	 * been written. The last is the one being written to. Replaced rather than
+	 * modified, and only by the writer.
+	 */
+	private volatile LogSegment[] segments;
+	private static final Logger logger = Logger.getLogger(RoomLog.class.getName());
+
+	/**
+	 * Opens the RoomLog kept in directory, creating the directory if it does
+	 * not exist. Only the names of the segment files and the index of each
+	 * segment are read, and no segment is mapped into memory.
+	 * 
+	 * @param directory
+	 *            The directory holding the segments
+	 * @param segmentBytes
+	 *            The size of the data file of each new segment
+	 * @throws IOException
+	 *             If the segments could not be opened or created
+	 */
+	RoomLog(File directory, int segmentBytes) throws IOException {
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create log directory " + directory);
+		}
+		String[] names = directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(LogSegment.DATA_SUFFIX);
+			}
+		});
+		Arrays.sort(names);
+		ArrayList<LogSegment> opened = new ArrayList<LogSegment>();
+		for (String name : names) {
+			String base = name.substring(0, name.length() - LogSegment.DATA_SUFFIX.length());
+			try {
+				opened.add(LogSegment.open(directory, Integer.parseInt(base)));
+			} catch (NumberFormatException e) {
+				logger.log(Level.WARNING, "Ignoring unexpected file " + name + " in " + directory);
+			}
+		}
+		this.segments = opened.toArray(new LogSegment[opened.size()]);
+	}
+
+	/**
+	 * Returns the sequence number that the next message written to this
+	 * RoomLog will have.
+	 * 
+	 * @return The sequence number after the newest message
+	 */
+	int getEndSequence() {
+		return getEndSequence(segments);
+	}
+
+	/**
+	 * Returns the sequence number after the newest message in current.
+	 * 
+	 * @param current
+	 *            The segments of this RoomLog
+	 * @return The sequence number after the newest message, or 0 if there are
+	 *         no segments
+	 */
+	private static int getEndSequence(LogSegment[] current) {
+		return current.length == 0 ? 0 : current[current.length - 1].getEndSequence();
+	}
+
+	/**
+	 * Returns the sequence number of the oldest message kept in this RoomLog.
+	 * 
+	 * @return The sequence number of the oldest message
+	 */
+	int getStartSequence() {
+		return getStartSequence(segments);
+	}
+
+	/**
+	 * Returns the sequence number of the oldest message in current.
+	 * 
+	 * @param current
+	 *            The segments of this RoomLog
+	 * @return The sequence number of the oldest message, or 0 if there are no
+	 *         segments
+	 */
+	private static int getStartSequence(LogSegment[] current) {
+		return current.length == 0 ? 0 : current[0].getBaseSequence();
+	}
+
+	/**
+	 * Writes the chat message evnt, which has sequence number sequence, to the
+	 * end of this RoomLog. Any messages between the newest one written and
+	 * evnt are written as placeholders. Messages older than the newest one
+	 * written are ignored. Only called by the writer.
+	 * 
+	 * @param sequence
+	 *            The sequence number of evnt
+	 * @param evnt
+	 *            The chat message to write
+	 * @return True if a new segment was started
+	 * @throws IOException
+	 *             If a new segment was needed and could not be created
+	 */
+	boolean write(int sequence, ChatMessageEvent evnt) throws IOException {
+		boolean rolled = false;
+		while (getEndSequence() < sequence) {
+			rolled |= append(encode(PLACEHOLDER_SENDER, "", ""));
+		}
+		if (getEndSequence() == sequence) {
+			rolled |= append(encode(evnt.getSenderId(), evnt.getSenderNick(), evnt.getChatMessage()));
+		}
+		return rolled;
+	}
+
+	/**
+	 * Writes body to the newest segment, starting a new segment if there is
+	 * none or it is full. The segment that filled up is released, since
+	 * nothing more will be written to it. Only called by the writer.
+	 * 
+	 * @param body
+	 *            The encoded message
+	 * @return True if a new segment was started
+	 * @throws IOException
+	 *             If a new segment could not be created
+	 */
+	private boolean append(byte[] body) throws IOException {
+		LogSegment[] current = segments;
+		if (current.length > 0) {
+			LogSegment newest = current[current.length - 1];
+			if (newest.append(body)) {
+				return false;
+			}
+			newest.release();
+		}
+		LogSegment next = LogSegment.create(directory, getEndSequence(current),
+				Math.max(segmentBytes, body.length + 64));
+		if (!next.append(body)) {
+			throw new IOException("Message too large for a new log segment");
+		}
+		LogSegment[] rolled = Arrays.copyOf(current, current.length + 1);
+		rolled[current.length] = next;
+		segments = rolled;
+		return true;
+	}
+
+	/**
+	 * Returns a ChatHistoryEvent for the chat room with id chatRoomId holding
+	 * up to limit of the messages in this RoomLog sent before the message with
+	 * sequence number before, oldest first. Reads the segments' files directly,
+	 * so never waits for the writer.
+	 * 
+	 * @param chatRoomId
+	 *            The id of the chat room the log belongs to
+	 * @param before
+	 *            The sequence number to return the messages before, or -1 to
+	 *            return the most recent messages
+	 * @param limit
+	 *            The largest number of messages to return
+	 * @return A ChatHistoryEvent holding the requested messages
+	 */
+	ChatHistoryEvent getPage(int chatRoomId, int before, int limit) {
+		LogSegment[] current = segments;
+		int oldest = getStartSequence(current);
+		int newest = getEndSequence(current);
+		int end = before < 0 || before > newest ? newest : Math.max(before, oldest);
+		ArrayList<ChatMessageEvent> page = new ArrayList<ChatMessageEvent>();
+		int start = end;
+		int pageBytes = 0;
+		int segment = current.length - 1;
+		boolean full = false;
+		while (start > oldest && page.size() < limit && !full) {
+			while (segment > 0 && current[segment].getBaseSequence() >= start) {
+				segment--;
+			}
+			// Read as many messages as are still needed, unless some turn out
+			// to be placeholders, in one go
+			int from = Math.max(current[segment].getBaseSequence(), start - (limit - page.size()));
+			ByteBuffer[] bodies = readBodies(current[segment], from, start);
+			for (int i = bodies.length - 1; i >= 0 && page.size() < limit; i--) {
+				if (bodies[i] != null) {
+					pageBytes += bodies[i].remaining();
+					if (pageBytes > MAX_PAGE_BYTES && !page.isEmpty()) {
+						full = true;
+						break;
+					}
+					ChatMessageEvent message = decode(bodies[i], chatRoomId);
+					if (message != null) {
+						page.add(0, message);
+					}
+				}
+				start--;
+			}
+		}
+		return new ChatHistoryEvent(chatRoomId, page, start > oldest ? start : -1);
+	}
+
+	/**
+	 * Returns the messages in this RoomLog with sequence numbers from start up
+	 * to but not including end, oldest first. Placeholders and messages that
+	 * cannot be read are returned as null, so that the message with sequence
+	 * number start + i is always at index i.
+	 * 
+	 * @param chatRoomId
+	 *            The id of the chat room the log belongs to
+	 * @param start
+	 *            The sequence number of the first message to return, at least
+	 *            getStartSequence()
+	 * @param end
+	 *            The sequence number after the last message to return, at most
+	 *            getEndSequence()
+	 * @return The messages, with null for those that cannot be returned
+	 */
+	ArrayList<ChatMessageEvent> read(int chatRoomId, int start, int end) {
+		LogSegment[] current = segments;
+		ArrayList<ChatMessageEvent> messages = new ArrayList<ChatMessageEvent>(Math.max(0, end - start));
+		int sequence = start;
+		for (int segment = 0; segment < current.length && sequence < end; segment++) {
+			int segmentEnd = segment == current.length - 1 ? end
+					: Math.min(end, current[segment + 1].getBaseSequence());
+			if (segmentEnd <= sequence) {
+				continue;
+			}
+			for (ByteBuffer body : readBodies(current[segment], sequence, segmentEnd)) {
+				messages.add(body == null ? null : decode(body, chatRoomId));
+			}
+			sequence = segmentEnd;
+		}
+		while (sequence < end) {
+			messages.add(null);
+			sequence++;
+		}
+		return messages;
+	}
+
+	/**
+	 * Returns the encoded bodies of the messages in segment with sequence
+	 * numbers from start up to but not including end, as LogSegment.read
+	 * does, logging and returning them all as null if the segment cannot be
+	 * read.
+	 * 
+	 * @param segment
+	 *            The segment to read from
+	 * @param start
+	 *            The sequence number of the first message to return
+	 * @param end
+	 *            The sequence number after the last message to return
+	 * @return The bodies of the messages
+	 */
+	private ByteBuffer[] readBodies(LogSegment segment, int start, int end) {
+		try {
+			return segment.read(start, end);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Skipping unreadable messages in " + directory, e);
+			return new ByteBuffer[Math.max(0, end - start)];
+		}
+	}
+
+	/**
+	 * Writes any changes to the newest segment through to the disk. Older
+	 * segments are written through when they fill up. Only called by the
+	 * writer.
+	 */
+	void force() {
+		LogSegment[] current = segments;
+		if (current.length > 0) {
+			current[current.length - 1].force();
+		}
+		return;
+	}
+
+	/**
+	 * Releases the memory mapping of the newest segment if nothing has been
+	 * written to it for idleMillis milliseconds, so that chat rooms that have
+	 * gone quiet hold no mappings. The segment is mapped again if another
+	 * message is written to it. Only called by the writer.
+	 * 
+	 * @param idleMillis
+	 *            The number of milliseconds without a write after which the
+	 *            newest segment is released
+	 * @return True if a mapping was released
+	 */
+	boolean releaseIfIdle(long idleMillis) {
+		LogSegment[] current = segments;
+		if (current.length == 0) {
+			return false;
+		}
+		LogSegment newest = current[current.length - 1];
+		if (!newest.isMapped() || System.currentTimeMillis() - newest.getLastWritten() < idleMillis) {
+			return false;
+		}
+		newest.release();
+		return true;
+	}
+
+	/**
+	 * Deletes the oldest segments until this RoomLog takes up no more than
+	 * maxBytes of disk space and holds no segment last written more than
+	 * maxAgeMillis milliseconds ago. The newest segment is never deleted. Only
+	 * called by the writer.
+	 * 
+	 * @param maxBytes
+	 *            The most disk space to take up, or 0 for no limit
+	 * @param maxAgeMillis
+	 *            The age after which segments are deleted, or 0 for no limit
+	 * @return The number of segments deleted
+	 */
+	int applyRetention(long maxBytes, long maxAgeMillis) {
+		LogSegment[] current = segments;
+		long size = 0;
+		for (LogSegment segment : current) {
+			size += segment.getSize();
+		}
+		long now = System.currentTimeMillis();
+		int deleted = 0;
+		while (deleted < current.length - 1) {
+			LogSegment oldest = current[deleted];
+			boolean tooLarge = maxBytes > 0 && size > maxBytes;
+			boolean tooOld = maxAgeMillis > 0 && now - oldest.getLastWritten() > maxAgeMillis;
+			if (!tooLarge && !tooOld) {
+				break;
+			}
+			size -= oldest.getSize();
+			deleted++;
+		}
+		if (deleted > 0) {
+			segments = Arrays.copyOfRange(current, deleted, current.length);
+			for (int i = 0; i < deleted; i++) {
+				current[i].delete();
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Encodes a message for writing to a segment.
+	 * 
+	 * @param senderId
+	 *            The session id of the sender, or PLACEHOLDER_SENDER
+	 * @param senderNick
+	 *            The nick of the sender
+	 * @param chatMessage
+	 *            The text of the message
+	 * @return The encoded message
+	 */
+	private static byte[] encode(int senderId, String senderNick, String chatMessage) {
+		BinaryOutput out = new BinaryOutput();
+		out.writeVarInt(senderId);
+		out.writeString(senderNick);
+		out.writeString(chatMessage);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes a message read from a segment.
+	 * 
+	 * @param body
+	 *            The encoded message
+	 * @param chatRoomId
+	 *            The id of the chat room the message was sent on
+	 * @return The message, or null if it is a placeholder or cannot be decoded
+	 */
+	private ChatMessageEvent decode(ByteBuffer body, int chatRoomId) {
+		try {
+			BinaryInput in = new BinaryInput(body);
+			int senderId = in.readVarInt();
+			String senderNick = in.readString();
+			String chatMessage = in.readString();
+			if (senderId == PLACEHOLDER_SENDER) {
+				return null;
+			}
+			return new ChatMessageEvent(chatMessage, senderId, senderNick, chatRoomId);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Skipping unreadable message in " + directory, e);
+			return null;
+		}
+	}
+}
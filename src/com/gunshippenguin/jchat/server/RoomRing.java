@@ -0,0 +1,287 @@
+package com.gunshippenguin.jchat.server;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Class representing a fixed size ring of the chat messages most recently sent
+ * to a ChatRoom. Publishing a chat message claims the next sequence number and
+ * stores the message in the slot for it, without taking a lock and without
+ * touching the outbound queue of any member. Each member instead reads the
+ * ring through its own Cursor, at its own pace, when its writer next looks for
+ * events to write.
+ * 
+ * Publishers never wait for members. A member that falls a whole ring behind
+ * finds that the messages it has not read have been overwritten, and skips
+ * ahead to the oldest message still in the ring. The distance between the
+ * newest message and the slowest member's cursor shows how far behind the
+ * slowest member is.
+ * 
+ * A member whose writer has read every message it can registers as a waiter
+ * before it goes idle, and each publish wakes only the waiters, so publishing
+ * to a chat room whose members are busy writing touches none of them.
+ * 
+ * @author GunshipPenguin
+ */
+class RoomRing {
+	/**
+	 * Value of a slot's sequence number while a message is being stored in it.
+	 */
+	private static final long WRITING = -1;
+	/**
+	 * Value of a slot's sequence number before any message has been stored in
+	 * it. Lower than every real sequence number.
+	 */
+	private static final long EMPTY = Long.MIN_VALUE;
+	/**
+	 * Mask giving the slot for a sequence number.
+	 */
+	private final int mask;
+	/**
+	 * Encoded chat messages, each in the slot for its sequence number.
+	 */
+	private final AtomicReferenceArray<EncodedEvent> slots;
+	/**
+	 * Sequence number of the message in each slot, WRITING while one is being
+	 * stored, or EMPTY if none has been. A publisher claims a slot by changing
+	 * its sequence number to WRITING with a compare-and-set, so only one
+	 * publisher stores into a slot at a time. A member reading a slot checks
+	 * it before and after reading the message, so it never reads a message
+	 * that is being replaced.
+	 */
+	private final AtomicLongArray sequences;
+	/**
+	 * Sequence number that the next published message will be given.
+	 */
+	private final AtomicLong nextSequence = new AtomicLong();
+	/**
+	 * Id of the ChatRoom that this RoomRing belongs to.
+	 */
+	private final int chatRoomId;
+	/**
+	 * Members whose writers have read every message published so far and are
+	 * waiting to be woken by the next one.
+	 */
+	private final Set<Client> waiters = Collections.newSetFromMap(new ConcurrentHashMap<Client, Boolean>());
+
+	/**
+	 * Creates a new RoomRing holding the last size messages sent to the
+	 * ChatRoom with id chatRoomId, rounded up to a power of two.
+	 * 
+	 * @param chatRoomId
+	 *            The id of the ChatRoom the RoomRing belongs to
+	 * @param size
+	 *            The number of messages to hold
+	 */
+	RoomRing(int chatRoomId, int size) {
+		int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+		this.chatRoomId = chatRoomId;
+		this.mask = capacity - 1;
+		this.slots = new AtomicReferenceArray<EncodedEvent>(capacity);
+		this.sequences = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			sequences.set(i, EMPTY);
+		}
+	}
+
+	/**
+	 * Stores evnt in the next slot of the ring. Never waits for members, only
+	 * for a publisher that is storing a message one ring earlier or later into
+	 * the same slot, which takes a few instructions. If a publisher one ring
+	 * later has already stored its message, evnt is not stored at all, since
+	 * it would be overwritten anyway and members skip it as overwritten.
+	 * wakeWaiters must be called afterwards so that waiting members read it.
+	 * 
+	 * The ring holds references to EncodedEvents rather than reusing one
+	 * preallocated holder per slot, because a member's writer keeps using the
+	 * EncodedEvent it polled, and encodes it, after the slot may have been
+	 * claimed again. A reused holder would have to be copied out under the
+	 * slot's sequence check for every member, which costs more than the one
+	 * short-lived object allocated per chat message.
+	 * 
+	 * @param evnt
+	 *            The encoded chat message to publish
+	 * @return The sequence number given to evnt
+	 */
+	long publish(EncodedEvent evnt) {
+		long sequence = nextSequence.getAndIncrement();
+		int slot = (int) sequence & mask;
+		while (true) {
+			long current = sequences.get(slot);
+			if (current > sequence) {
+				return sequence;
+			}
+			if (current != WRITING && sequences.compareAndSet(slot, current, WRITING)) {
+				break;
+			}
+			Thread.yield();
+		}
+		slots.set(slot, evnt);
+		sequences.set(slot, sequence);
+		return sequence;
+	}
+
+	/**
+	 * Wakes every member waiting for a message to be published and stops
+	 * waking them, until they wait again. Each waiter is removed before it is
+	 * woken, so a member that waits again while this runs is woken once more
+	 * or stays registered for the next publish.
+	 */
+	void wakeWaiters() {
+		if (waiters.isEmpty()) {
+			return;
+		}
+		Iterator<Client> it = waiters.iterator();
+		while (it.hasNext()) {
+			Client waiter = it.next();
+			it.remove();
+			waiter.ringPublished();
+		}
+		return;
+	}
+
+	/**
+	 * Returns a new Cursor that reads the messages published from now on.
+	 * 
+	 * @return A new Cursor for this RoomRing
+	 */
+	Cursor subscribe() {
+		return new Cursor(nextSequence.get());
+	}
+
+	/**
+	 * Returns the number of messages that the ring holds.
+	 * 
+	 * @return The capacity of the ring
+	 */
+	int getCapacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Returns the sequence number that the next published message will be
+	 * given.
+	 * 
+	 * @return The next sequence number
+	 */
+	long getNextSequence() {
+		return nextSequence.get();
+	}
+
+	/**
+	 * A single member's position in a RoomRing. Only read by the member's
+	 * writer, with its OutboundQueue's lock held.
+	 */
+	class Cursor {
+		/**
+		 * Sequence number of the next message for the member to read.
+		 */
+		private volatile long sequence;
+		/**
+		 * Number of messages skipped because they were overwritten before the
+		 * member read them, and not yet collected by takeSkipped.
+		 */
+		private long skipped = 0;
+
+		/**
+		 * Creates a new Cursor starting at sequence number sequence.
+		 * 
+		 * @param sequence
+		 *            The sequence number of the first message to read
+		 */
+		private Cursor(long sequence) {
+			this.sequence = sequence;
+		}
+
+		/**
+		 * Returns the next message for the member and moves past it, or null
+		 * if it has read every message published so far. If the next message
+		 * has been overwritten, skips to the oldest message still in the ring,
+		 * adds the number skipped to those returned by takeSkipped and returns
+		 * null.
+		 * 
+		 * @return The next message, or null if there is none to read now
+		 */
+		EncodedEvent poll() {
+			long current = sequence;
+			int slot = (int) current & mask;
+			long before = sequences.get(slot);
+			if (before == current) {
+				EncodedEvent evnt = slots.get(slot);
+				if (sequences.get(slot) == current) {
+					sequence = current + 1;
+					return evnt;
+				}
+			} else if (before == WRITING || before < current) {
+				return null;
+			}
+			// The message was overwritten, so skip to the oldest one that
+			// will not be overwritten by the next publish
+			long oldest = Math.max(current + 1, nextSequence.get() - mask);
+			skipped += oldest - current;
+			sequence = oldest;
+			return null;
+		}
+
+		/**
+		 * Returns the number of messages skipped since the last call, and
+		 * resets it to 0.
+		 * 
+		 * @return The number of messages skipped
+		 */
+		long takeSkipped() {
+			long count = skipped;
+			skipped = 0;
+			return count;
+		}
+
+		/**
+		 * Returns the number of published messages that the member has not
+		 * yet read.
+		 * 
+		 * @return The number of messages the member is behind
+		 */
+		long getLag() {
+			return Math.max(0, nextSequence.get() - sequence);
+		}
+
+		/**
+		 * Asks for client, whose writer reads through this Cursor, to be woken
+		 * by the next message published to the ring. The writer must look for
+		 * messages again afterwards, in case one was published in between.
+		 * 
+		 * @param client
+		 *            The Client to wake
+		 */
+		void addWaiter(Client client) {
+			waiters.add(client);
+			return;
+		}
+
+		/**
+		 * Stops client being woken by messages published to the ring, once it
+		 * no longer reads through this Cursor.
+		 * 
+		 * @param client
+		 *            The Client to stop waking
+		 */
+		void removeWaiter(Client client) {
+			waiters.remove(client);
+			return;
+		}
+
+		/**
+		 * Returns the id of the ChatRoom whose messages this Cursor reads.
+		 * 
+		 * @return The id of the ChatRoom
+		 */
+		int getChatRoomId() {
+			return chatRoomId;
+		}
+	}
+}
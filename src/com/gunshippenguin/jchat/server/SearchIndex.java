@@ -0,0 +1,810 @@
+package com.gunshippenguin.jchat.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.gunshippenguin.jchat.shared.ChatMessageEvent;
+import com.gunshippenguin.jchat.shared.SearchHit;
+import com.gunshippenguin.jchat.shared.SearchResultsEvent;
+
+/**
+ * Class holding an inverted index of the chat messages sent to every chat room
+ * on the server, so that clients can search them by the words they contain,
+ * who sent them, the chat room they were sent to and when. The index is only
+ * held in memory and covers the messages sent since the server started, up to
+ * the most recent maxMessages of them.
+ * 
+ * Every message is given a document id one greater than the last. Chat rooms
+ * hand messages to a single indexer thread through a bounded queue, so sending
+ * a chat message never waits for the index; if the queue is full the message
+ * is not indexed. The indexer adds each message's terms to an in-memory buffer
+ * and, once the buffer holds SEGMENT_DOCS messages, seals it into an immutable
+ * SearchSegment. Groups of MERGE_FACTOR segments of the same level are merged
+ * on a separate merge thread, so the number of segments a search looks in
+ * stays small.
+ * 
+ * The terms of a message are the lower case words of its text, "@" followed by
+ * the lower case nick of its sender and "#" followed by the id of its chat
+ * room. A search returns the newest messages using every term asked for that
+ * were sent to a chat room the requester is in. Searches run on their own
+ * threads and only take the lock on the SearchIndex long enough to copy the
+ * parts of the buffer they need.
+ * 
+ * @author GunshipPenguin
+ */
+class SearchIndex implements Runnable {
+	/**
+	 * Number of messages in the buffer when it is sealed into a segment, and in
+	 * each page of stored messages.
+	 */
+	static final int SEGMENT_DOCS = 65536;
+	/**
+	 * Number of segments of the same level merged into one.
+	 */
+	private static final int MERGE_FACTOR = 4;
+	/**
+	 * Largest number of characters of a word used as a term. Longer words are
+	 * cut short.
+	 */
+	private static final int MAX_TERM_LENGTH = 64;
+	/**
+	 * Largest number of messages returned for one page of search results.
+	 */
+	static final int MAX_SEARCH_PAGE = 50;
+	/**
+	 * Largest estimated number of bytes of messages returned for one page, so
+	 * that a page always fits in a single frame.
+	 */
+	private static final long MAX_PAGE_BYTES = 256 * 1024;
+	/**
+	 * Largest number of document ids that one search walks through, so that a
+	 * search for common words in chat rooms the requester is not in cannot run
+	 * for long. The results then end early and the next page carries on from
+	 * where the search stopped.
+	 */
+	private static final int MAX_CANDIDATES = 1 << 20;
+	/**
+	 * Largest number of messages to keep indexed, or 0 for no limit.
+	 */
+	private final int maxMessages;
+	/**
+	 * Largest number of messages covered by a segment produced by a merge.
+	 */
+	private final int maxMergedDocs;
+	/**
+	 * Chat messages waiting to be indexed by the indexer.
+	 */
+	private final BlockingQueue<Pending> queue;
+	/**
+	 * Executor that segments are merged on.
+	 */
+	private final Executor mergeExecutor;
+	/**
+	 * Counters that the index records its activity in.
+	 */
+	private final ServerMetrics metrics;
+	/**
+	 * Pages of SEGMENT_DOCS stored messages, page i holding the messages with
+	 * document ids from i * SEGMENT_DOCS. Pages whose messages are no longer
+	 * indexed are null. Replaced rather than modified, and only by the
+	 * indexer.
+	 */
+	private DocPage[] pages = new DocPage[0];
+	/**
+	 * Map of terms to the document ids of the messages in the buffer using
+	 * them. Only changed by the indexer while holding the lock on this
+	 * SearchIndex.
+	 */
+	private HashMap<String, IntList> buffer = new HashMap<String, IntList>();
+	/**
+	 * Document id of the first message in the buffer.
+	 */
+	private int bufferStart = 0;
+	/**
+	 * Document id that the next message indexed will be given.
+	 */
+	private int docCount = 0;
+	/**
+	 * Document id of the oldest message still indexed.
+	 */
+	private int firstDoc = 0;
+	/**
+	 * The sealed segments, oldest first, each starting where the last ended.
+	 * Replaced rather than modified.
+	 */
+	private SearchSegment[] segments = new SearchSegment[0];
+	/**
+	 * Send time given to the last message indexed. Only used by the indexer.
+	 */
+	private long lastSentMillis = 0;
+	private static final Logger logger = Logger.getLogger(SearchIndex.class.getName());
+
+	/**
+	 * Creates a new SearchIndex configured by the searchMaxMessages and
+	 * searchQueueSize properties.
+	 * 
+	 * @param properties
+	 *            The properties of the server
+	 * @param mergeExecutor
+	 *            The executor to merge segments on
+	 * @param metrics
+	 *            The counters to record activity in
+	 */
+	SearchIndex(Properties properties, Executor mergeExecutor, ServerMetrics metrics) {
+		this.maxMessages = Math.max(0, Integer.parseInt(properties.getProperty("searchMaxMessages", "1000000")));
+		this.maxMergedDocs = maxMessages > 0 ? Math.max(SEGMENT_DOCS, maxMessages / 2) : Integer.MAX_VALUE;
+		this.queue = new ArrayBlockingQueue<Pending>(
+				Integer.parseInt(properties.getProperty("searchQueueSize", "65536")));
+		this.mergeExecutor = mergeExecutor;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Queues the chat message evnt to be indexed. Never blocks; if the queue is
+	 * full, or evnt has no text or sender nick, the message is not indexed.
+	 * 
+	 * @param evnt
+	 *            The chat message to index
+	 */
+	void add(ChatMessageEvent evnt) {
+		if (evnt == null || evnt.getChatMessage() == null || evnt.getSenderNick() == null) {
+			metrics.increment("search.rejected");
+			return;
+		}
+		if (!queue.offer(new Pending(evnt, System.currentTimeMillis()))) {
+			metrics.increment("search.dropped");
+		}
+		return;
+	}
+
+	/**
+	 * Indexes queued chat messages until the thread is interrupted. A chat
+	 * message that cannot be indexed is logged and left out, without stopping
+	 * the indexer.
+	 */
+	@Override
+	public void run() {
+		ArrayList<Pending> batch = new ArrayList<Pending>();
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				batch.add(queue.take());
+				queue.drainTo(batch);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			int indexed = 0;
+			for (Pending pending : batch) {
+				try {
+					index(pending);
+					indexed++;
+				} catch (RuntimeException e) {
+					metrics.increment("search.failed");
+					logger.log(Level.WARNING, "Could not index chat message " + pending.evnt, e);
+				}
+			}
+			metrics.add("search.messagesIndexed", indexed);
+			batch.clear();
+		}
+		return;
+	}
+
+	/**
+	 * Stores the chat message held by pending, adds its terms to the buffer
+	 * and seals the buffer if it is full. Only called by the indexer.
+	 * 
+	 * @param pending
+	 *            The chat message to index
+	 */
+	private void index(Pending pending) {
+		int doc = docCount;
+		if (doc == Integer.MAX_VALUE) {
+			metrics.increment("search.dropped");
+			return;
+		}
+
+		// Send times are kept in document id order so that time bounds can be
+		// found by binary search, even if the clock goes back
+		lastSentMillis = Math.max(lastSentMillis, pending.sentMillis);
+		int pageIndex = doc / SEGMENT_DOCS;
+		if (pageIndex == pages.length) {
+			DocPage[] grown = Arrays.copyOf(pages, pages.length + 1);
+			grown[pageIndex] = new DocPage();
+			synchronized (this) {
+				pages = grown;
+			}
+		}
+		DocPage page = pages[pageIndex];
+		page.messages[doc % SEGMENT_DOCS] = pending.evnt;
+		page.sentMillis[doc % SEGMENT_DOCS] = lastSentMillis;
+
+		Set<String> terms = tokenize(pending.evnt.getChatMessage());
+		terms.add(nickTerm(pending.evnt.getSenderNick()));
+		terms.add(chatRoomTerm(pending.evnt.getChatRoomId()));
+		synchronized (this) {
+			for (String term : terms) {
+				IntList postings = buffer.get(term);
+				if (postings == null) {
+					postings = new IntList();
+					buffer.put(term, postings);
+				}
+				postings.add(doc);
+			}
+			docCount = doc + 1;
+			applyRetention();
+		}
+
+		if (docCount - bufferStart >= SEGMENT_DOCS) {
+			seal();
+		}
+		return;
+	}
+
+	/**
+	 * Seals the buffer into a new segment and starts merging segments. The
+	 * segment is built without holding the lock, which is safe because only
+	 * the indexer changes the buffer. Only called by the indexer.
+	 */
+	private void seal() {
+		TreeMap<String, int[]> sorted = new TreeMap<String, int[]>();
+		for (Map.Entry<String, IntList> entry : buffer.entrySet()) {
+			sorted.put(entry.getKey(), entry.getValue().toArray());
+		}
+		SearchSegment sealed = new SearchSegment(0, bufferStart, docCount, sorted);
+		synchronized (this) {
+			SearchSegment[] added = Arrays.copyOf(segments, segments.length + 1);
+			added[segments.length] = sealed;
+			segments = added;
+			buffer = new HashMap<String, IntList>();
+			bufferStart = docCount;
+			applyRetention();
+		}
+		metrics.increment("search.segmentsSealed");
+		mergeExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				mergeSegments();
+			}
+		});
+		return;
+	}
+
+	/**
+	 * Stops indexing the oldest messages once more than maxMessages are
+	 * indexed, dropping the segments and pages that only hold messages no
+	 * longer indexed. Must be called by the indexer while holding the lock on
+	 * this SearchIndex.
+	 */
+	private void applyRetention() {
+		if (maxMessages == 0 || docCount - firstDoc <= maxMessages) {
+			return;
+		}
+		firstDoc = docCount - maxMessages;
+		int dropped = 0;
+		while (dropped < segments.length && segments[dropped].getEndDoc() <= firstDoc) {
+			dropped++;
+		}
+		if (dropped > 0) {
+			segments = Arrays.copyOfRange(segments, dropped, segments.length);
+		}
+		int droppedPages = firstDoc / SEGMENT_DOCS;
+		if (droppedPages > 0 && pages[droppedPages - 1] != null) {
+			DocPage[] remaining = pages.clone();
+			for (int i = 0; i < droppedPages; i++) {
+				remaining[i] = null;
+			}
+			pages = remaining;
+		}
+		return;
+	}
+
+	/**
+	 * Merges runs of MERGE_FACTOR segments of the same level until there are
+	 * none left to merge. Runs on the merge executor; the merged segment is
+	 * built without holding the lock and then swapped in for the segments it
+	 * replaces, unless the oldest of them has been dropped in the meantime.
+	 */
+	private void mergeSegments() {
+		while (true) {
+			SearchSegment[] current;
+			synchronized (this) {
+				current = segments;
+			}
+			List<SearchSegment> run = findMergeRun(current);
+			if (run == null) {
+				return;
+			}
+			SearchSegment merged = SearchSegment.merge(run);
+			synchronized (this) {
+				int start = Arrays.asList(segments).indexOf(run.get(0));
+				if (start >= 0) {
+					SearchSegment[] replaced = new SearchSegment[segments.length - run.size() + 1];
+					System.arraycopy(segments, 0, replaced, 0, start);
+					replaced[start] = merged;
+					System.arraycopy(segments, start + run.size(), replaced, start + 1,
+							segments.length - start - run.size());
+					segments = replaced;
+				}
+			}
+			metrics.increment("search.merges");
+		}
+	}
+
+	/**
+	 * Returns the newest run of MERGE_FACTOR adjacent segments of the same
+	 * level in current that together cover no more than maxMergedDocs
+	 * messages, or null if there is none.
+	 * 
+	 * @param current
+	 *            The segments, oldest first
+	 * @return The segments to merge, oldest first, or null
+	 */
+	private List<SearchSegment> findMergeRun(SearchSegment[] current) {
+		for (int start = current.length - MERGE_FACTOR; start >= 0; start--) {
+			int level = current[start].getLevel();
+			boolean sameLevel = true;
+			for (int i = start + 1; i < start + MERGE_FACTOR; i++) {
+				sameLevel &= current[i].getLevel() == level;
+			}
+			long docs = (long) current[start + MERGE_FACTOR - 1].getEndDoc() - current[start].getStartDoc();
+			if (sameLevel && docs <= maxMergedDocs) {
+				return Arrays.asList(current).subList(start, start + MERGE_FACTOR);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns a SearchResultsEvent holding up to limit of the newest indexed
+	 * messages that use every word of query, were sent to a chat room that
+	 * requester is in and match the other conditions given, newest first.
+	 * 
+	 * @param requester
+	 *            The Client searching
+	 * @param query
+	 *            The words that the messages must contain, or null for none
+	 * @param senderNick
+	 *            The nick of the client that must have sent the messages, or
+	 *            the empty string or null for any client
+	 * @param chatRoomName
+	 *            The name of the chat room the messages must have been sent
+	 *            to, or the empty string or null for any chat room requester
+	 *            is in
+	 * @param sinceMillis
+	 *            The earliest time the messages may have been sent at, or 0 for
+	 *            no limit
+	 * @param untilMillis
+	 *            The time the messages must have been sent before, or 0 for no
+	 *            limit
+	 * @param before
+	 *            The document id to return the messages before, or -1 to
+	 *            return the newest messages
+	 * @param limit
+	 *            The largest number of messages to return
+	 * @return A SearchResultsEvent holding the messages found
+	 */
+	SearchResultsEvent search(Client requester, String query, String senderNick, String chatRoomName,
+			long sinceMillis, long untilMillis, int before, int limit) {
+		if (query == null) {
+			query = "";
+		}
+		if (senderNick == null) {
+			senderNick = "";
+		}
+		if (chatRoomName == null) {
+			chatRoomName = "";
+		}
+		ArrayList<SearchHit> hits = new ArrayList<SearchHit>();
+		int pageSize = Math.max(1, Math.min(limit, MAX_SEARCH_PAGE));
+
+		// Only messages sent to chat rooms that the requester is in are found
+		HashMap<Integer, String> chatRoomNames = new HashMap<Integer, String>();
+		for (ChatRoom cr : requester.getChatRooms()) {
+			if (chatRoomName.isEmpty() || cr.getChatRoomInfo().getName().equals(chatRoomName)) {
+				chatRoomNames.put(cr.getChatRoomInfo().getId(), cr.getChatRoomInfo().getName());
+			}
+		}
+		Set<String> terms = tokenize(query);
+		if (!senderNick.isEmpty()) {
+			terms.add(nickTerm(senderNick));
+		}
+		if (!chatRoomName.isEmpty() && chatRoomNames.size() == 1) {
+			terms.add(chatRoomTerm(chatRoomNames.keySet().iterator().next()));
+		}
+		if (terms.isEmpty() || chatRoomNames.isEmpty()) {
+			return new SearchResultsEvent(hits, -1);
+		}
+		String[] termArray = terms.toArray(new String[terms.size()]);
+
+		// Copy what is needed of the buffer and take the segments and pages as
+		// they are, then search without holding the lock
+		int count;
+		int first;
+		int searchBufferStart;
+		int[][] bufferPostings;
+		SearchSegment[] searchSegments;
+		DocPage[] searchPages;
+		synchronized (this) {
+			count = docCount;
+			first = firstDoc;
+			searchBufferStart = bufferStart;
+			searchSegments = segments;
+			searchPages = pages;
+			bufferPostings = new int[termArray.length][];
+			for (int i = 0; i < termArray.length; i++) {
+				IntList postings = buffer.get(termArray[i]);
+				if (postings == null) {
+					bufferPostings = null;
+					break;
+				}
+				bufferPostings[i] = postings.toArray();
+			}
+		}
+
+		int upper = before < 0 ? count : Math.min(before, count);
+		int lower = first;
+		if (sinceMillis > 0) {
+			lower = Math.max(lower, firstSentAtOrAfter(searchPages, first, count, sinceMillis));
+		}
+		if (untilMillis > 0) {
+			upper = Math.min(upper, firstSentAtOrAfter(searchPages, first, count, untilMillis));
+		}
+
+		// Search the buffer, then the segments from newest to oldest, each
+		// covering older messages than the one before
+		Search search = new Search(searchPages, chatRoomNames, lower, pageSize, hits);
+		if (bufferPostings != null && searchBufferStart < upper) {
+			upper = search.run(bufferPostings, upper);
+		}
+		for (int i = searchSegments.length - 1; i >= 0 && upper > lower && !search.isFinished(); i--) {
+			SearchSegment segment = searchSegments[i];
+			if (segment.getStartDoc() >= upper) {
+				continue;
+			}
+			int[][] postings = new int[termArray.length][];
+			for (int j = 0; j < termArray.length && postings != null; j++) {
+				postings[j] = segment.getPostings(termArray[j]);
+				if (postings[j] == null) {
+					postings = null;
+				}
+			}
+			if (postings == null) {
+				upper = Math.min(upper, segment.getStartDoc());
+			} else {
+				upper = search.run(postings, upper);
+			}
+		}
+		metrics.increment("search.queries");
+		return new SearchResultsEvent(hits, search.isFinished() && upper > lower ? upper : -1);
+	}
+
+	/**
+	 * Returns the document id of the first message from first up to count sent
+	 * at or after timeMillis, or count if there is none.
+	 * 
+	 * @param searchPages
+	 *            The pages of stored messages
+	 * @param first
+	 *            The document id of the oldest message indexed
+	 * @param count
+	 *            The document id after the newest message indexed
+	 * @param timeMillis
+	 *            The time to search for
+	 * @return The document id of the first message sent at or after timeMillis
+	 */
+	private static int firstSentAtOrAfter(DocPage[] searchPages, int first, int count, long timeMillis) {
+		int low = first;
+		int high = count;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (searchPages[mid / SEGMENT_DOCS].sentMillis[mid % SEGMENT_DOCS] < timeMillis) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Returns the terms used in text: its words in lower case, each made up of
+	 * letters and digits and cut short at MAX_TERM_LENGTH characters.
+	 * 
+	 * @param text
+	 *            The text to split into terms
+	 * @return The distinct terms used in text, in the order first used
+	 */
+	static Set<String> tokenize(String text) {
+		LinkedHashSet<String> terms = new LinkedHashSet<String>();
+		StringBuilder word = new StringBuilder();
+		for (int i = 0; i <= text.length(); i++) {
+			char c = i < text.length() ? text.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)) {
+				if (word.length() < MAX_TERM_LENGTH) {
+					word.append(Character.toLowerCase(c));
+				}
+			} else if (word.length() > 0) {
+				terms.add(word.toString());
+				word.setLength(0);
+			}
+		}
+		return terms;
+	}
+
+	/**
+	 * Returns the term used for messages sent by the client with nick nick.
+	 * 
+	 * @param nick
+	 *            The nick of the sender
+	 * @return The term for the sender
+	 */
+	private static String nickTerm(String nick) {
+		return "@" + nick.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Returns the term used for messages sent to the chat room with id
+	 * chatRoomId.
+	 * 
+	 * @param chatRoomId
+	 *            The id of the chat room
+	 * @return The term for the chat room
+	 */
+	private static String chatRoomTerm(int chatRoomId) {
+		return "#" + chatRoomId;
+	}
+
+	/**
+	 * The state of one search as it moves from newer to older parts of the
+	 * index, collecting hits until it has enough.
+	 */
+	private static class Search {
+		/**
+		 * The pages of stored messages.
+		 */
+		private final DocPage[] pages;
+		/**
+		 * Map of the ids of the chat rooms whose messages may be found to
+		 * their names.
+		 */
+		private final Map<Integer, String> chatRoomNames;
+		/**
+		 * Document id of the oldest message that may be found.
+		 */
+		private final int lower;
+		/**
+		 * Largest number of hits to collect.
+		 */
+		private final int pageSize;
+		/**
+		 * The hits collected so far, newest first.
+		 */
+		private final ArrayList<SearchHit> hits;
+		/**
+		 * Estimated number of bytes taken by the hits collected so far.
+		 */
+		private long bytes = 0;
+		/**
+		 * Number of messages using every term looked at so far.
+		 */
+		private int candidates = 0;
+		/**
+		 * True once the search has stopped before running out of messages.
+		 */
+		private boolean finished = false;
+
+		/**
+		 * Creates a new Search collecting up to pageSize hits into hits.
+		 * 
+		 * @param pages
+		 *            The pages of stored messages
+		 * @param chatRoomNames
+		 *            Map of the ids of the chat rooms whose messages may be
+		 *            found to their names
+		 * @param lower
+		 *            The document id of the oldest message that may be found
+		 * @param pageSize
+		 *            The largest number of hits to collect
+		 * @param hits
+		 *            The list to collect hits into
+		 */
+		Search(DocPage[] pages, Map<Integer, String> chatRoomNames, int lower, int pageSize,
+				ArrayList<SearchHit> hits) {
+			this.pages = pages;
+			this.chatRoomNames = chatRoomNames;
+			this.lower = lower;
+			this.pageSize = pageSize;
+			this.hits = hits;
+		}
+
+		/**
+		 * Collects hits among the messages before upper whose document ids are
+		 * in every one of postings, newest first. Walks the shortest list
+		 * backwards and looks each id up in the others by binary search,
+		 * narrowing each lookup to the ids below the last one found.
+		 * 
+		 * @param postings
+		 *            The postings list of each term searched for
+		 * @param upper
+		 *            The document id to collect the hits before
+		 * @return The document id that the search should carry on before
+		 */
+		int run(int[][] postings, int upper) {
+			int shortest = 0;
+			for (int i = 1; i < postings.length; i++) {
+				if (postings[i].length < postings[shortest].length) {
+					shortest = i;
+				}
+			}
+			int[] walk = postings[shortest];
+			int[] ends = new int[postings.length];
+			for (int i = 0; i < postings.length; i++) {
+				ends[i] = insertionPoint(postings[i], postings[i].length, upper);
+			}
+			for (int i = ends[shortest] - 1; i >= 0; i--) {
+				int doc = walk[i];
+				if (doc < lower) {
+					return lower;
+				}
+				if (++candidates > MAX_CANDIDATES) {
+					finished = true;
+					return doc + 1;
+				}
+				boolean match = true;
+				for (int j = 0; j < postings.length && match; j++) {
+					if (j != shortest) {
+						int found = insertionPoint(postings[j], ends[j], doc);
+						ends[j] = found;
+						match = found < postings[j].length && postings[j][found] == doc;
+					}
+				}
+				if (match && collect(doc)) {
+					finished = true;
+					return doc;
+				}
+			}
+			return upper;
+		}
+
+		/**
+		 * Adds a hit for the message with document id doc if it was sent to a
+		 * chat room whose messages may be found.
+		 * 
+		 * @param doc
+		 *            The document id of the message
+		 * @return True if the search has collected enough hits
+		 */
+		private boolean collect(int doc) {
+			DocPage page = pages[doc / SEGMENT_DOCS];
+			ChatMessageEvent evnt = page.messages[doc % SEGMENT_DOCS];
+			String chatRoomName = chatRoomNames.get(evnt.getChatRoomId());
+			if (chatRoomName == null) {
+				return false;
+			}
+			bytes += 64 + 2L * (evnt.getChatMessage().length() + evnt.getSenderNick().length());
+			hits.add(new SearchHit(chatRoomName, evnt.getSenderNick(), evnt.getChatMessage(),
+					page.sentMillis[doc % SEGMENT_DOCS]));
+			return hits.size() >= pageSize || bytes >= MAX_PAGE_BYTES;
+		}
+
+		/**
+		 * Returns true if the search has stopped before running out of
+		 * messages.
+		 * 
+		 * @return True if the search has finished early
+		 */
+		boolean isFinished() {
+			return finished;
+		}
+
+		/**
+		 * Returns the index in the first end entries of list of the first id at
+		 * or above doc, or end if there is none.
+		 * 
+		 * @param list
+		 *            A postings list
+		 * @param end
+		 *            The number of entries of list to search
+		 * @param doc
+		 *            The document id to search for
+		 * @return The index of the first id at or above doc
+		 */
+		private static int insertionPoint(int[] list, int end, int doc) {
+			int found = Arrays.binarySearch(list, 0, end, doc);
+			return found >= 0 ? found : -found - 1;
+		}
+	}
+
+	/**
+	 * A page of SEGMENT_DOCS stored messages and the times they were sent.
+	 */
+	private static class DocPage {
+		/**
+		 * The messages, indexed by document id within the page.
+		 */
+		final ChatMessageEvent[] messages = new ChatMessageEvent[SEGMENT_DOCS];
+		/**
+		 * The send time of each message, as System.currentTimeMillis().
+		 */
+		final long[] sentMillis = new long[SEGMENT_DOCS];
+	}
+
+	/**
+	 * A growable list of document ids in ascending order.
+	 */
+	private static class IntList {
+		/**
+		 * The document ids, the first size of which are used.
+		 */
+		private int[] values = new int[2];
+		/**
+		 * Number of document ids in the list.
+		 */
+		private int size = 0;
+
+		/**
+		 * Adds doc to the end of the list, unless it is already the last id.
+		 * 
+		 * @param doc
+		 *            The document id to add, at least the last id
+		 */
+		void add(int doc) {
+			if (size > 0 && values[size - 1] == doc) {
+				return;
+			}
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = doc;
+			return;
+		}
+
+		/**
+		 * Returns a copy of the document ids in the list.
+		 * 
+		 * @return The document ids in ascending order
+		 */
+		int[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+
+	/**
+	 * A chat message waiting to be indexed.
+	 */
+	private static class Pending {
+		/**
+		 * The chat message.
+		 */
+		final ChatMessageEvent evnt;
+		/**
+		 * Value of System.currentTimeMillis() when the message was sent.
+		 */
+		final long sentMillis;
+
+		/**
+		 * Creates a new Pending for the chat message evnt sent at sentMillis.
+		 * 
+		 * @param evnt
+		 *            The chat message
+		 * @param sentMillis
+		 *            The time the message was sent
+		 */
+		Pending(ChatMessageEvent evnt, long sentMillis) {
+			this.evnt = evnt;
+			this.sentMillis = sentMillis;
+		}
+	}
+}
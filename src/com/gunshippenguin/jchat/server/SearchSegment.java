@@ -0,0 +1,139 @@
+package com.gunshippenguin.jchat.server;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Class representing an immutable part of a SearchIndex, covering the chat
+ * messages with document ids from startDoc up to but not including endDoc. For
+ * each term used in those messages it holds a postings list: the ids of the
+ * messages using it, in ascending order. Terms are kept sorted so that a term
+ * is found by binary search.
+ * 
+ * Segments are created from the SearchIndex's in-memory buffer once it fills
+ * up, at level 0, and merged with their neighbours in the background, each
+ * merge producing a segment one level higher, so that a search has a small
+ * number of segments to look in however many messages are indexed.
+ * 
+ * @author GunshipPenguin
+ */
+class SearchSegment {
+	/**
+	 * Number of merges that produced this segment from level 0 segments.
+	 */
+	private final int level;
+	/**
+	 * Document id of the first message covered by this segment.
+	 */
+	private final int startDoc;
+	/**
+	 * Document id after the last message covered by this segment.
+	 */
+	private final int endDoc;
+	/**
+	 * The terms used in the messages covered by this segment, sorted.
+	 */
+	private final String[] terms;
+	/**
+	 * The postings list of each term, at the same index as the term.
+	 */
+	private final int[][] postings;
+
+	/**
+	 * Creates a new SearchSegment from the postings lists in postingsByTerm.
+	 * 
+	 * @param level
+	 *            The number of merges that produced the segment
+	 * @param startDoc
+	 *            The document id of the first message covered
+	 * @param endDoc
+	 *            The document id after the last message covered
+	 * @param postingsByTerm
+	 *            Map of terms, in sorted order, to their postings lists
+	 */
+	SearchSegment(int level, int startDoc, int endDoc, TreeMap<String, int[]> postingsByTerm) {
+		this.level = level;
+		this.startDoc = startDoc;
+		this.endDoc = endDoc;
+		this.terms = new String[postingsByTerm.size()];
+		this.postings = new int[postingsByTerm.size()][];
+		int i = 0;
+		for (Map.Entry<String, int[]> entry : postingsByTerm.entrySet()) {
+			terms[i] = entry.getKey();
+			postings[i] = entry.getValue();
+			i++;
+		}
+	}
+
+	/**
+	 * Merges the adjacent segments run, oldest first, into a single segment
+	 * one level above the highest of them.
+	 * 
+	 * @param run
+	 *            The segments to merge, oldest first, each starting where the
+	 *            last ended
+	 * @return The merged segment
+	 */
+	static SearchSegment merge(List<SearchSegment> run) {
+		TreeMap<String, int[]> merged = new TreeMap<String, int[]>();
+		int level = 0;
+		for (SearchSegment segment : run) {
+			level = Math.max(level, segment.level + 1);
+			for (int i = 0; i < segment.terms.length; i++) {
+				int[] existing = merged.get(segment.terms[i]);
+				if (existing == null) {
+					merged.put(segment.terms[i], segment.postings[i]);
+				} else {
+					// Every id in a later segment is greater than every id in
+					// an earlier one, so appending keeps the list in order
+					int[] combined = Arrays.copyOf(existing, existing.length + segment.postings[i].length);
+					System.arraycopy(segment.postings[i], 0, combined, existing.length, segment.postings[i].length);
+					merged.put(segment.terms[i], combined);
+				}
+			}
+		}
+		return new SearchSegment(level, run.get(0).startDoc, run.get(run.size() - 1).endDoc, merged);
+	}
+
+	/**
+	 * Returns the postings list of term, or null if no message covered by
+	 * this segment uses it.
+	 * 
+	 * @param term
+	 *            The term to look up
+	 * @return The ids of the messages using term in ascending order, or null
+	 */
+	int[] getPostings(String term) {
+		int i = Arrays.binarySearch(terms, term);
+		return i < 0 ? null : postings[i];
+	}
+
+	/**
+	 * Returns the number of merges that produced this segment.
+	 * 
+	 * @return The level of this segment
+	 */
+	int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Returns the document id of the first message covered by this segment.
+	 * 
+	 * @return The first document id covered
+	 */
+	int getStartDoc() {
+		return startDoc;
+	}
+
+	/**
+	 * Returns the document id after the last message covered by this segment.
+	 * 
+	 * @return The document id after the last one covered
+	 */
+	int getEndDoc() {
+		return endDoc;
+	}
+}
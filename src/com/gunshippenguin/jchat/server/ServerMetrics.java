@@ -0,0 +1,119 @@
+package com.gunshippenguin.jchat.server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Class holding named counters describing the behaviour of a running
+ * ChatServer. Counters are created the first time they are incremented and can
+ * be logged periodically by running a ServerMetrics on its own thread.
+ * 
+ * @author GunshipPenguin
+ */
+public class ServerMetrics implements Runnable {
+	/**
+	 * Map of counter names to their current values.
+	 */
+	private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+	/**
+	 * Number of seconds to wait between logging all counters when running on
+	 * its own thread.
+	 */
+	private final int logIntervalSeconds;
+	/**
+	 * Logger object to be used by the ServerMetrics class.
+	 */
+	private static final Logger logger = Logger.getLogger(ServerMetrics.class.getName());
+
+	/**
+	 * Creates a new ServerMetrics object that logs all of its counters every
+	 * logIntervalSeconds seconds when run.
+	 * 
+	 * @param logIntervalSeconds
+	 *            The number of seconds to wait between logging all counters
+	 */
+	public ServerMetrics(int logIntervalSeconds) {
+		this.logIntervalSeconds = logIntervalSeconds;
+	}
+
+	/**
+	 * Adds delta to the counter with name name.
+	 * 
+	 * @param name
+	 *            The name of the counter to add to
+	 * @param delta
+	 *            The amount to add to the counter
+	 */
+	public void add(String name, long delta) {
+		AtomicLong counter = counters.get(name);
+		if (counter == null) {
+			AtomicLong newCounter = new AtomicLong();
+			counter = counters.putIfAbsent(name, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		counter.addAndGet(delta);
+		return;
+	}
+
+	/**
+	 * Adds one to the counter with name name.
+	 * 
+	 * @param name
+	 *            The name of the counter to increment
+	 */
+	public void increment(String name) {
+		add(name, 1);
+		return;
+	}
+
+	/**
+	 * Returns the current value of the counter with name name, or 0 if it has
+	 * never been incremented.
+	 * 
+	 * @param name
+	 *            The name of the counter to return the value of
+	 * @return The current value of the counter with name name
+	 */
+	public long get(String name) {
+		AtomicLong counter = counters.get(name);
+		return counter == null ? 0 : counter.get();
+	}
+
+	/**
+	 * Returns a string listing every counter and its current value, sorted by
+	 * name.
+	 * 
+	 * @return A string listing every counter and its current value
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, AtomicLong> entry : new TreeMap<String, AtomicLong>(counters).entrySet()) {
+			sb.append(entry.getKey()).append('=').append(entry.getValue().get()).append(' ');
+		}
+		return sb.toString().trim();
+	}
+
+	/**
+	 * Logs all counters every logIntervalSeconds seconds until the thread is
+	 * interrupted.
+	 */
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(logIntervalSeconds * 1000L);
+			} catch (InterruptedException e) {
+				return;
+			}
+			logger.log(Level.INFO, "Server metrics: " + toString());
+		}
+	}
+}
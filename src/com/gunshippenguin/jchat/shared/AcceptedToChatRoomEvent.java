@@ -1,5 +1,7 @@
 package com.gunshippenguin.jchat.shared;
 
+import java.io.IOException;
+
 import com.gunshippenguin.jchat.client.Connection;
 
 /**
@@ -8,7 +10,7 @@ import com.gunshippenguin.jchat.client.Connection;
  * 
  * @author GunshipPenguin
  */
-public class AcceptedToChatRoomEvent implements Event {
+public class AcceptedToChatRoomEvent implements Event, BinaryEncodable {
 	/**
 	 * ChatRoomInfo object for the chat room that the client has been accepted
 	 * to.
@@ -27,6 +29,16 @@ public class AcceptedToChatRoomEvent implements Event {
 		this.chatRoomInfo = chatRoomInfo;
 	}
 
+	/**
+	 * Returns the ChatRoomInfo object for the chat room that the client has
+	 * been accepted to.
+	 * 
+	 * @return The ChatRoomInfo object for the chat room
+	 */
+	public ChatRoomInfo getChatRoomInfo() {
+		return chatRoomInfo;
+	}
+
 	/**
 	 * Adds the chat room represented by chatRoomInfo to the connection conn.
 	 * 
@@ -38,4 +50,34 @@ public class AcceptedToChatRoomEvent implements Event {
 		conn.addChatRoom(chatRoomInfo);
 		return;
 	}
+
+	/**
+	 * Returns the opcode of AcceptedToChatRoomEvent in a binary frame.
+	 */
+	@Override
+	public int getBinaryOpcode() {
+		return BinaryCodec.ACCEPTED_TO_CHAT_ROOM_EVENT;
+	}
+
+	/**
+	 * Writes the information about the chat room to out.
+	 */
+	@Override
+	public void writeBinary(BinaryOutput out) {
+		chatRoomInfo.writeBinary(out);
+		return;
+	}
+
+	/**
+	 * Reads an AcceptedToChatRoomEvent written by writeBinary from in.
+	 * 
+	 * @param in
+	 *            The BinaryInput to read from
+	 * @return The AcceptedToChatRoomEvent that was read
+	 * @throws IOException
+	 *             If in does not hold a valid AcceptedToChatRoomEvent
+	 */
+	static AcceptedToChatRoomEvent readBinary(BinaryInput in) throws IOException {
+		return new AcceptedToChatRoomEvent(ChatRoomInfo.readBinary(in));
+	}
 }
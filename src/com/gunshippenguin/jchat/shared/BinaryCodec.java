@@ -0,0 +1,290 @@
+package com.gunshippenguin.jchat.shared;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * Codec that sends messages in a compact binary format. Every message is sent
+ * as a frame consisting of the length of the rest of the frame, an opcode
+ * identifying the message's class and the message's fields. Lengths, opcodes
+ * and integers are written as varints and strings as UTF-8, so that a short
+ * chat message takes only a few bytes more than its text.
+ * 
+ * Only classes implementing BinaryEncodable can be sent with this Codec.
+ * 
+ * @author GunshipPenguin
+ */
+public class BinaryCodec implements Codec {
+	/**
+	 * Opcode of AcceptedToChatRoomEvent.
+	 */
+	static final int ACCEPTED_TO_CHAT_ROOM_EVENT = 1;
+	/**
+	 * Opcode of ChatMessageEvent.
+	 */
+	static final int CHAT_MESSAGE_EVENT = 2;
+	/**
+	 * Opcode of MessagesSkippedEvent.
+	 */
+	static final int MESSAGES_SKIPPED_EVENT = 7;
+	/**
+	 * Opcode of RosterPageEvent.
+	 */
+	static final int ROSTER_PAGE_EVENT = 8;
+	/**
+	 * Opcode of RosterDeltaEvent.
+	 */
+	static final int ROSTER_DELTA_EVENT = 9;
+	/**
+	 * Opcode of PresenceEvent.
+	 */
+	static final int PRESENCE_EVENT = 10;
+	/**
+	 * Opcode of ChatRoomDirectoryEvent.
+	 */
+	static final int CHAT_ROOM_DIRECTORY_EVENT = 11;
+	/**
+	 * Opcode of ChatHistoryEvent.
+	 */
+	static final int CHAT_HISTORY_EVENT = 12;
+	/**
+	 * Opcode of SearchResultsEvent.
+	 */
+	static final int SEARCH_RESULTS_EVENT = 13;
+	/**
+	 * Opcode of ClientInfoEvent.
+	 */
+	static final int CLIENT_INFO_EVENT = 14;
+	/**
+	 * Opcode of CreateChatRoomRequest.
+	 */
+	static final int CREATE_CHAT_ROOM_REQUEST = 64;
+	/**
+	 * Opcode of JoinChatRoomRequest.
+	 */
+	static final int JOIN_CHAT_ROOM_REQUEST = 66;
+	/**
+	 * Opcode of LeaveChatRoomRequest.
+	 */
+	static final int LEAVE_CHAT_ROOM_REQUEST = 67;
+	/**
+	 * Opcode of SendChatMessageRequest.
+	 */
+	static final int SEND_CHAT_MESSAGE_REQUEST = 68;
+	/**
+	 * Opcode of GetRosterRequest.
+	 */
+	static final int GET_ROSTER_REQUEST = 69;
+	/**
+	 * Opcode of GetChatRoomDirectoryRequest.
+	 */
+	static final int GET_CHAT_ROOM_DIRECTORY_REQUEST = 70;
+	/**
+	 * Opcode of GetChatHistoryRequest.
+	 */
+	static final int GET_CHAT_HISTORY_REQUEST = 71;
+	/**
+	 * Opcode of SearchRequest.
+	 */
+	static final int SEARCH_REQUEST = 72;
+	/**
+	 * Opcode of GetClientInfoRequest.
+	 */
+	static final int GET_CLIENT_INFO_REQUEST = 73;
+	/**
+	 * Largest frame that will be decoded. Guards against allocating huge
+	 * buffers for a corrupt or malicious length prefix.
+	 */
+	static final int MAX_FRAME_LENGTH = 1 << 20;
+
+	/**
+	 * Returns the name of this Codec, binary.
+	 */
+	@Override
+	public String getName() {
+		return "binary";
+	}
+
+	/**
+	 * Encodes message into a single length prefixed frame.
+	 */
+	@Override
+	public byte[] encode(Serializable message) throws IOException {
+		if (!(message instanceof BinaryEncodable)) {
+			throw new IOException(message.getClass().getName() + " cannot be sent with the binary codec");
+		}
+		BinaryEncodable encodable = (BinaryEncodable) message;
+		BinaryOutput body = new BinaryOutput();
+		body.writeVarInt(encodable.getBinaryOpcode());
+		encodable.writeBinary(body);
+
+		BinaryOutput frame = new BinaryOutput();
+		frame.writeVarInt(body.size());
+		byte[] bodyBytes = body.toByteArray();
+		frame.writeBytes(bodyBytes, 0, bodyBytes.length);
+		return frame.toByteArray();
+	}
+
+	/**
+	 * Decodes a single frame from buf, which must be backed by an array.
+	 */
+	@Override
+	public Serializable decode(ByteBuffer buf) throws IOException {
+		int start = buf.position();
+		int length = 0;
+		for (int shift = 0;; shift += 7) {
+			if (!buf.hasRemaining()) {
+				buf.position(start);
+				return null;
+			}
+			if (shift >= 35) {
+				throw new IOException("Malformed binary frame length");
+			}
+			byte b = buf.get();
+			length |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+		}
+		checkFrameLength(length);
+		if (buf.remaining() < length) {
+			buf.position(start);
+			return null;
+		}
+		ByteBuffer body = buf.slice();
+		body.limit(length);
+		buf.position(buf.position() + length);
+		return decodeBody(body);
+	}
+
+	/**
+	 * Reads a single frame from in.
+	 */
+	@Override
+	public Serializable read(InputStream in) throws IOException {
+		int length = 0;
+		for (int shift = 0;; shift += 7) {
+			if (shift >= 35) {
+				throw new IOException("Malformed binary frame length");
+			}
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			length |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+		}
+		checkFrameLength(length);
+		byte[] body = new byte[length];
+		int read = 0;
+		while (read < length) {
+			int n = in.read(body, read, length - read);
+			if (n < 0) {
+				throw new EOFException();
+			}
+			read += n;
+		}
+		return decodeBody(ByteBuffer.wrap(body));
+	}
+
+	/**
+	 * Throws an IOException if length is not a valid frame length.
+	 * 
+	 * @param length
+	 *            The frame length to check
+	 * @throws IOException
+	 *             If length is negative or larger than MAX_FRAME_LENGTH
+	 */
+	private static void checkFrameLength(int length) throws IOException {
+		if (length < 0 || length > MAX_FRAME_LENGTH) {
+			throw new IOException("Binary frame length " + length + " is too large");
+		}
+		return;
+	}
+
+	/**
+	 * Decodes the message held in the body of a frame, which starts with the
+	 * message's opcode.
+	 * 
+	 * @param body
+	 *            The body of the frame
+	 * @return The decoded message
+	 * @throws IOException
+	 *             If the body is not a valid message
+	 */
+	private static Serializable decodeBody(ByteBuffer body) throws IOException {
+		BinaryInput in = new BinaryInput(body);
+		int opcode = in.readVarInt();
+		Serializable message;
+		switch (opcode) {
+		case ACCEPTED_TO_CHAT_ROOM_EVENT:
+			message = AcceptedToChatRoomEvent.readBinary(in);
+			break;
+		case CHAT_MESSAGE_EVENT:
+			message = ChatMessageEvent.readBinary(in);
+			break;
+		case MESSAGES_SKIPPED_EVENT:
+			message = MessagesSkippedEvent.readBinary(in);
+			break;
+		case ROSTER_PAGE_EVENT:
+			message = RosterPageEvent.readBinary(in);
+			break;
+		case ROSTER_DELTA_EVENT:
+			message = RosterDeltaEvent.readBinary(in);
+			break;
+		case PRESENCE_EVENT:
+			message = PresenceEvent.readBinary(in);
+			break;
+		case CHAT_ROOM_DIRECTORY_EVENT:
+			message = ChatRoomDirectoryEvent.readBinary(in);
+			break;
+		case CHAT_HISTORY_EVENT:
+			message = ChatHistoryEvent.readBinary(in);
+			break;
+		case SEARCH_RESULTS_EVENT:
+			message = SearchResultsEvent.readBinary(in);
+			break;
+		case CLIENT_INFO_EVENT:
+			message = ClientInfoEvent.readBinary(in);
+			break;
+		case CREATE_CHAT_ROOM_REQUEST:
+			message = CreateChatRoomRequest.readBinary(in);
+			break;
+		case JOIN_CHAT_ROOM_REQUEST:
+			message = JoinChatRoomRequest.readBinary(in);
+			break;
+		case LEAVE_CHAT_ROOM_REQUEST:
+			message = LeaveChatRoomRequest.readBinary(in);
+			break;
+		case SEND_CHAT_MESSAGE_REQUEST:
+			message = SendChatMessageRequest.readBinary(in);
+			break;
+		case GET_ROSTER_REQUEST:
+			message = GetRosterRequest.readBinary(in);
+			break;
+		case GET_CHAT_ROOM_DIRECTORY_REQUEST:
+			message = GetChatRoomDirectoryRequest.readBinary(in);
+			break;
+		case GET_CHAT_HISTORY_REQUEST:
+			message = GetChatHistoryRequest.readBinary(in);
+			break;
+		case SEARCH_REQUEST:
+			message = SearchRequest.readBinary(in);
+			break;
+		case GET_CLIENT_INFO_REQUEST:
+			message = GetClientInfoRequest.readBinary(in);
+			break;
+		default:
+			throw new IOException("Unknown binary opcode " + opcode);
+		}
+		if (!in.isFinished()) {
+			throw new IOException("Binary frame with opcode " + opcode + " has trailing bytes");
+		}
+		return message;
+	}
+}
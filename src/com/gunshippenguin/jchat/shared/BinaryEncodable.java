@@ -0,0 +1,31 @@
+package com.gunshippenguin.jchat.shared;
+
+import java.io.IOException;
+
+/**
+ * The BinaryEncodable interface should be implemented by every Event and
+ * Request that can be sent with the BinaryCodec. Each implementing class also
+ * provides a static readBinary method that BinaryCodec calls to decode it.
+ * 
+ * @author GunshipPenguin
+ */
+public interface BinaryEncodable {
+	/**
+	 * Returns the opcode identifying this message's class in a binary frame.
+	 * Must be one of the opcode constants of BinaryCodec.
+	 * 
+	 * @return The opcode of this message
+	 */
+	public int getBinaryOpcode();
+
+	/**
+	 * Writes the fields of this message to out, in the order that its
+	 * readBinary method reads them.
+	 * 
+	 * @param out
+	 *            The BinaryOutput to write this message to
+	 * @throws IOException
+	 *             If this message cannot be written
+	 */
+	public void writeBinary(BinaryOutput out) throws IOException;
+}
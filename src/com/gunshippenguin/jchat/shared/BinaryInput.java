@@ -0,0 +1,142 @@
+package com.gunshippenguin.jchat.shared;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Class that reads the primitive values written by a BinaryOutput from the
+ * body of a single binary frame.
+ * 
+ * @author GunshipPenguin
+ */
+public class BinaryInput {
+	/**
+	 * Buffer holding the remaining bytes of the frame being read.
+	 */
+	private final ByteBuffer buf;
+
+	/**
+	 * Creates a new BinaryInput that reads the bytes remaining in buf.
+	 * 
+	 * @param buf
+	 *            The buffer holding the frame body to read
+	 */
+	public BinaryInput(ByteBuffer buf) {
+		this.buf = buf;
+	}
+
+	/**
+	 * Reads an unsigned variable length integer written by
+	 * BinaryOutput.writeVarInt.
+	 * 
+	 * @return The value that was read
+	 * @throws IOException
+	 *             If the frame ends before the value or the value is longer
+	 *             than five bytes
+	 */
+	public int readVarInt() throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = readByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint in binary frame");
+	}
+
+	/**
+	 * Reads an unsigned variable length integer written by
+	 * BinaryOutput.writeVarLong.
+	 * 
+	 * @return The value that was read
+	 * @throws IOException
+	 *             If the frame ends before the value or the value is longer
+	 *             than ten bytes
+	 */
+	public long readVarLong() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 70; shift += 7) {
+			byte b = readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varlong in binary frame");
+	}
+
+	/**
+	 * Reads a boolean written by BinaryOutput.writeBoolean.
+	 * 
+	 * @return The value that was read
+	 * @throws IOException
+	 *             If the frame ends before the value
+	 */
+	public boolean readBoolean() throws IOException {
+		return readByte() != 0;
+	}
+
+	/**
+	 * Reads a string written by BinaryOutput.writeString.
+	 * 
+	 * @return The string that was read, or null if a null string was written
+	 * @throws IOException
+	 *             If the frame ends before the end of the string
+	 */
+	public String readString() throws IOException {
+		int length = readVarInt();
+		if (length == 0) {
+			return null;
+		}
+		length--;
+		if (length < 0 || length > buf.remaining()) {
+			throw new IOException("String of " + length + " bytes runs past the end of binary frame");
+		}
+		String str = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+		buf.position(buf.position() + length);
+		return str;
+	}
+
+	/**
+	 * Reads a string written by BinaryOutput.writeString that may not be null,
+	 * for the fields of Requests that the server relies on being present.
+	 * 
+	 * @return The string that was read
+	 * @throws IOException
+	 *             If the frame ends before the end of the string or a null
+	 *             string was written
+	 */
+	public String readNonNullString() throws IOException {
+		String str = readString();
+		if (str == null) {
+			throw new IOException("Binary frame holds a null string where one is required");
+		}
+		return str;
+	}
+
+	/**
+	 * Returns true if every byte of the frame has been read.
+	 * 
+	 * @return True if every byte of the frame has been read, false otherwise
+	 */
+	public boolean isFinished() {
+		return !buf.hasRemaining();
+	}
+
+	/**
+	 * Reads a single byte.
+	 * 
+	 * @return The byte that was read
+	 * @throws IOException
+	 *             If the frame has ended
+	 */
+	private byte readByte() throws IOException {
+		if (!buf.hasRemaining()) {
+			throw new IOException("Unexpected end of binary frame");
+		}
+		return buf.get();
+	}
+}
@@ -0,0 +1,141 @@
+package com.gunshippenguin.jchat.shared;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Class that writes the primitive values of the BinaryCodec format to a
+ * growable byte array.
+ * 
+ * @author GunshipPenguin
+ */
+public class BinaryOutput {
+	/**
+	 * Bytes written so far.
+	 */
+	private byte[] buf;
+	/**
+	 * Number of valid bytes at the start of buf.
+	 */
+	private int length = 0;
+
+	/**
+	 * Creates a new, empty BinaryOutput.
+	 */
+	public BinaryOutput() {
+		buf = new byte[64];
+	}
+
+	/**
+	 * Writes value as an unsigned variable length integer, seven bits per byte
+	 * with the high bit set on every byte but the last. Values below 128 take a
+	 * single byte.
+	 * 
+	 * @param value
+	 *            The value to write
+	 */
+	public void writeVarInt(int value) {
+		ensureCapacity(5);
+		while ((value & ~0x7F) != 0) {
+			buf[length++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buf[length++] = (byte) value;
+		return;
+	}
+
+	/**
+	 * Writes value as an unsigned variable length integer in the same way as
+	 * writeVarInt, taking up to ten bytes.
+	 * 
+	 * @param value
+	 *            The value to write
+	 */
+	public void writeVarLong(long value) {
+		ensureCapacity(10);
+		while ((value & ~0x7FL) != 0) {
+			buf[length++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buf[length++] = (byte) value;
+		return;
+	}
+
+	/**
+	 * Writes value as a single byte.
+	 * 
+	 * @param value
+	 *            The value to write
+	 */
+	public void writeBoolean(boolean value) {
+		ensureCapacity(1);
+		buf[length++] = (byte) (value ? 1 : 0);
+		return;
+	}
+
+	/**
+	 * Writes str as its UTF-8 encoded length plus one followed by its UTF-8
+	 * bytes. A null str is written as a length of 0.
+	 * 
+	 * @param str
+	 *            The string to write, may be null
+	 */
+	public void writeString(String str) {
+		if (str == null) {
+			writeVarInt(0);
+			return;
+		}
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(bytes.length + 1);
+		writeBytes(bytes, 0, bytes.length);
+		return;
+	}
+
+	/**
+	 * Writes len bytes of bytes starting at offset off.
+	 * 
+	 * @param bytes
+	 *            The array to write bytes from
+	 * @param off
+	 *            The offset of the first byte to write
+	 * @param len
+	 *            The number of bytes to write
+	 */
+	public void writeBytes(byte[] bytes, int off, int len) {
+		ensureCapacity(len);
+		System.arraycopy(bytes, off, buf, length, len);
+		length += len;
+		return;
+	}
+
+	/**
+	 * Returns the number of bytes written so far.
+	 * 
+	 * @return The number of bytes written so far
+	 */
+	public int size() {
+		return length;
+	}
+
+	/**
+	 * Returns a copy of the bytes written so far.
+	 * 
+	 * @return The bytes written so far
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buf, length);
+	}
+
+	/**
+	 * Grows buf so that at least needed more bytes can be written to it.
+	 * 
+	 * @param needed
+	 *            The number of bytes about to be written
+	 */
+	private void ensureCapacity(int needed) {
+		if (length + needed > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(length + needed, buf.length * 2));
+		}
+		return;
+	}
+}
@@ -0,0 +1,148 @@
+package com.gunshippenguin.jchat.shared;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+
+import com.gunshippenguin.jchat.client.Connection;
+
+/**
+ * Event holding chat messages sent on a chat room before the client asked for
+ * them, oldest first. Sent to a client when it joins a chat room, holding the
+ * most recent messages, and in reply to a GetChatHistoryRequest. If the server
+ * holds older messages, nextBefore is the sequence number to ask for the
+ * messages before.
+ * 
+ * Unlike a ChatMessageEvent sent on its own, each chat message is sent with
+ * its sender's nick, as the sender may have long since left.
+ * 
+ * @author GunshipPenguin
+ */
+public class ChatHistoryEvent implements Event, BinaryEncodable {
+	/**
+	 * Id of the chat room that the chat messages were sent on.
+	 */
+	private int chatRoomId;
+	/**
+	 * The chat messages, oldest first.
+	 */
+	private ArrayList<ChatMessageEvent> messages;
+	/**
+	 * Sequence number of the oldest message held if the server holds older
+	 * messages, -1 otherwise.
+	 */
+	private int nextBefore;
+
+	/**
+	 * Creates a new ChatHistoryEvent holding the chat messages messages sent on
+	 * the chat room with id chatRoomId.
+	 * 
+	 * @param chatRoomId
+	 *            The id of the chat room that the chat messages were sent on
+	 * @param messages
+	 *            The chat messages, oldest first
+	 * @param nextBefore
+	 *            The sequence number to ask for older messages before, or -1
+	 *            if the server holds no older messages
+	 */
+	public ChatHistoryEvent(int chatRoomId, ArrayList<ChatMessageEvent> messages, int nextBefore) {
+		this.chatRoomId = chatRoomId;
+		this.messages = messages;
+		this.nextBefore = nextBefore;
+	}
+
+	/**
+	 * Adds the chat messages above those already shown in the chat room's
+	 * ChatRoomManager and remembers where older messages start.
+	 */
+	@Override
+	public void handle(Connection conn) {
+		conn.getChatRoomManagerById(chatRoomId).addChatHistory(messages, nextBefore);
+		return;
+	}
+
+	/**
+	 * Writes this ChatHistoryEvent for the JavaSerializationCodec, followed by
+	 * the nick of the sender of each chat message, which a ChatMessageEvent
+	 * does not serialize itself.
+	 * 
+	 * @param out
+	 *            The ObjectOutputStream to write to
+	 * @throws IOException
+	 *             If this ChatHistoryEvent could not be written
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		for (ChatMessageEvent message : messages) {
+			out.writeObject(message.getSenderNick());
+		}
+		return;
+	}
+
+	/**
+	 * Reads a ChatHistoryEvent written by writeObject, giving each chat
+	 * message the nick of its sender.
+	 * 
+	 * @param in
+	 *            The ObjectInputStream to read from
+	 * @throws IOException
+	 *             If in does not hold a valid ChatHistoryEvent
+	 * @throws ClassNotFoundException
+	 *             If a class in the ChatHistoryEvent could not be found
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		ArrayList<ChatMessageEvent> named = new ArrayList<ChatMessageEvent>(messages.size());
+		for (ChatMessageEvent message : messages) {
+			named.add(new ChatMessageEvent(message.getChatMessage(), message.getSenderId(),
+					(String) in.readObject(), chatRoomId));
+		}
+		messages = named;
+		return;
+	}
+
+	/**
+	 * Returns the opcode of ChatHistoryEvent in a binary frame.
+	 */
+	@Override
+	public int getBinaryOpcode() {
+		return BinaryCodec.CHAT_HISTORY_EVENT;
+	}
+
+	/**
+	 * Writes the chat room id, the sender and text of each chat message and the
+	 * sequence number of older messages to out.
+	 */
+	@Override
+	public void writeBinary(BinaryOutput out) {
+		out.writeVarInt(chatRoomId);
+		out.writeVarInt(messages.size());
+		for (ChatMessageEvent message : messages) {
+			out.writeString(message.getChatMessage());
+			out.writeVarInt(message.getSenderId());
+			out.writeString(message.getSenderNick());
+		}
+		out.writeVarInt(nextBefore);
+		return;
+	}
+
+	/**
+	 * Reads a ChatHistoryEvent written by writeBinary from in.
+	 * 
+	 * @param in
+	 *            The BinaryInput to read from
+	 * @return The ChatHistoryEvent that was read
+	 * @throws IOException
+	 *             If in does not hold a valid ChatHistoryEvent
+	 */
+	static ChatHistoryEvent readBinary(BinaryInput in) throws IOException {
+		int chatRoomId = in.readVarInt();
+		int size = in.readVarInt();
+		ArrayList<ChatMessageEvent> messages = new ArrayList<ChatMessageEvent>();
+		for (int i = 0; i < size; i++) {
+			messages.add(new ChatMessageEvent(in.readString(), in.readVarInt(), in.readString(), chatRoomId));
+		}
+		return new ChatHistoryEvent(chatRoomId, messages, in.readVarInt());
+	}
+}
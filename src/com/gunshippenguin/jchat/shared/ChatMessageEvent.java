@@ -1,57 +1,141 @@
 package com.gunshippenguin.jchat.shared;
 
+import java.io.IOException;
+
 import com.gunshippenguin.jchat.client.ChatRoomManager;
 import com.gunshippenguin.jchat.client.Connection;
 
 /**
- * Event to inform a client of a new ChatMessage being sent.
+ * Event to inform a client of a new ChatMessage being sent. The sender is sent
+ * by session id only. The server also keeps the sender's nick for its own use,
+ * such as the chat room's history, but never sends it with the message.
  * 
  * @author GunshipPenguin
  */
-public class ChatMessageEvent implements Event {
+public class ChatMessageEvent implements Event, BinaryEncodable {
 	/**
 	 * String representing the chat message being sent
 	 */
 	private String chatMessage;
 	/**
-	 * String representing the nickname of the sending player.
+	 * Session id of the sending player.
+	 */
+	private int senderId;
+	/**
+	 * Nick of the sending player, known only on the server and null once the
+	 * event has been sent to a client.
 	 */
-	private String sendingPlayer;
+	private transient String senderNick;
 	/**
-	 * String representing the name of the chatRoom that the chat message is
-	 * being sent of.
+	 * Id of the chatRoom that the chat message is being sent on.
 	 */
-	private String chatRoomName;
+	private int chatRoomId;
 
 	/**
 	 * Constructs a new ChatMessageEvent.
 	 * 
 	 * @param chatMessage
 	 *            The chat message being sent in String form
-	 * @param sendingPlayer
-	 *            The nickname of the sending player as a string
-	 * @param chatRoomName
-	 *            The name of the chat room that the chat message is being sent
+	 * @param senderId
+	 *            The session id of the sending player
+	 * @param senderNick
+	 *            The nick of the sending player, or null if it is not known
+	 * @param chatRoomId
+	 *            The id of the chat room that the chat message is being sent
 	 *            on
 	 */
-	public ChatMessageEvent(String chatMessage, String sendingPlayer, String chatRoomName) {
+	public ChatMessageEvent(String chatMessage, int senderId, String senderNick, int chatRoomId) {
 		this.chatMessage = chatMessage;
-		this.sendingPlayer = sendingPlayer;
-		this.chatRoomName = chatRoomName;
+		this.senderId = senderId;
+		this.senderNick = senderNick;
+		this.chatRoomId = chatRoomId;
+	}
+
+	/**
+	 * Returns the chat message being sent.
+	 * 
+	 * @return The chat message being sent
+	 */
+	public String getChatMessage() {
+		return chatMessage;
+	}
+
+	/**
+	 * Returns the session id of the sending player.
+	 * 
+	 * @return The session id of the sending player
+	 */
+	public int getSenderId() {
+		return senderId;
+	}
+
+	/**
+	 * Returns the nick of the sending player, which is only known on the
+	 * server and in chat messages read from a ChatHistoryEvent.
+	 * 
+	 * @return The nick of the sending player, or null if it is not known
+	 */
+	public String getSenderNick() {
+		return senderNick;
 	}
 
 	/**
-	 * Sends the chat message chatMessage on the chat room with name
-	 * chatRoomName.
+	 * Returns the id of the chat room that the chat message is being sent on.
+	 * 
+	 * @return The id of the chat room that the chat message is being sent on
+	 */
+	public int getChatRoomId() {
+		return chatRoomId;
+	}
+
+	/**
+	 * Sends the chat message chatMessage on the chat room with id chatRoomId.
+	 * If the chat room's roster does not list the sender, as happens in chat
+	 * rooms too large to send their rosters and for messages that arrive before
+	 * the PresenceEvent announcing their sender, the sender is looked up on the
+	 * server and the message is shown once the reply arrives.
 	 * 
 	 * @param conn
-	 *            The connection that the chat room with name chatRoomName will
-	 *            be searched for.
+	 *            The connection that the chat room with id chatRoomId will be
+	 *            looked up in.
 	 */
 	@Override
 	public void handle(Connection conn) {
-		ChatRoomManager chatRoom = conn.getChatRoomManagerByName(chatRoomName);
-		chatRoom.addChatMessage(chatRoom.getClientInfoByNick(sendingPlayer), chatMessage);
+		ChatRoomManager chatRoom = conn.getChatRoomManagerById(chatRoomId);
+		chatRoom.receiveChatMessage(this);
 		return;
 	}
+
+	/**
+	 * Returns the opcode of ChatMessageEvent in a binary frame.
+	 */
+	@Override
+	public int getBinaryOpcode() {
+		return BinaryCodec.CHAT_MESSAGE_EVENT;
+	}
+
+	/**
+	 * Writes the chat message, the session id of its sender and its chat room
+	 * to out.
+	 */
+	@Override
+	public void writeBinary(BinaryOutput out) {
+		out.writeString(chatMessage);
+		out.writeVarInt(senderId);
+		out.writeVarInt(chatRoomId);
+		return;
+	}
+
+	/**
+	 * Reads a ChatMessageEvent written by writeBinary from in.
+	 * 
+	 * @param in
+	 *            The BinaryInput to read from
+	 * @return The ChatMessageEvent that was read
+	 * @throws IOException
+	 *             If in does not hold a valid ChatMessageEvent
+	 */
+	static ChatMessageEvent readBinary(BinaryInput in) throws IOException {
+		return new ChatMessageEvent(in.readString(), in.readVarInt(), null, in.readVarInt());
+	}
 }
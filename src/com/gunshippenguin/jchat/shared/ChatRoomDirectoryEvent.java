@@ -0,0 +1,116 @@
+package com.gunshippenguin.jchat.shared;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import com.gunshippenguin.jchat.client.Connection;
+
+import javafx.application.Platform;
+
+/**
+ * Event sent in reply to a GetChatRoomDirectoryRequest, listing one page of the
+ * chat rooms on the server whose names start with the requested prefix. If
+ * there are more matching chat rooms, next holds the name to ask for the chat
+ * rooms after.
+ * 
+ * @author GunshipPenguin
+ */
+public class ChatRoomDirectoryEvent implements Event, BinaryEncodable {
+	/**
+	 * Prefix that the names of the listed chat rooms start with.
+	 */
+	private String prefix;
+	/**
+	 * ChatRoomListing objects for the chat rooms on this page, in order of
+	 * name.
+	 */
+	private ArrayList<ChatRoomListing> chatRooms;
+	/**
+	 * Name of the last chat room on this page if there are more matching chat
+	 * rooms after it, the empty string otherwise.
+	 */
+	private String next;
+
+	/**
+	 * Creates a new ChatRoomDirectoryEvent listing the chat rooms chatRooms.
+	 * 
+	 * @param prefix
+	 *            The prefix that the names of the listed chat rooms start with
+	 * @param chatRooms
+	 *            The chat rooms on this page, in order of name
+	 * @param next
+	 *            The name to ask for the next page after, or the empty string
+	 *            if this is the last page
+	 */
+	public ChatRoomDirectoryEvent(String prefix, ArrayList<ChatRoomListing> chatRooms, String next) {
+		this.prefix = prefix;
+		this.chatRooms = chatRooms;
+		this.next = next;
+	}
+
+	/**
+	 * Displays the listed chat rooms via messages in the client's default chat
+	 * room and remembers where the next page starts.
+	 */
+	@Override
+	public void handle(final Connection conn) {
+		conn.setChatRoomDirectoryCursor(prefix, next);
+		Platform.runLater(new Runnable() {
+			@Override
+			public void run() {
+				conn.getUi().showServerUiMessage("Chat Room List:");
+				for (ChatRoomListing listing : chatRooms) {
+					if (!listing.isDefaultChatRoom()) {
+						conn.getUi().showServerUiMessage(
+								"\t" + listing.getName() + " (" + listing.getClientCount() + " clients)");
+					}
+				}
+				if (!next.isEmpty()) {
+					conn.getUi().showServerUiMessage("More chat rooms follow (use /morechatrooms)");
+				}
+			}
+		});
+		return;
+	}
+
+	/**
+	 * Returns the opcode of ChatRoomDirectoryEvent in a binary frame.
+	 */
+	@Override
+	public int getBinaryOpcode() {
+		return BinaryCodec.CHAT_ROOM_DIRECTORY_EVENT;
+	}
+
+	/**
+	 * Writes the prefix, the listed chat rooms and the next page start to out.
+	 */
+	@Override
+	public void writeBinary(BinaryOutput out) {
+		out.writeString(prefix);
+		out.writeVarInt(chatRooms.size());
+		for (ChatRoomListing listing : chatRooms) {
+			listing.writeBinary(out);
+		}
+		out.writeString(next);
+		return;
+	}
+
+	/**
+	 * Reads a ChatRoomDirectoryEvent written by writeBinary from in.
+	 * 
+	 * @param in
+	 *            The BinaryInput to read from
+	 * @return The ChatRoomDirectoryEvent that was read
+	 * @throws IOException
+	 *             If in does not hold a valid ChatRoomDirectoryEvent
+	 */
+	static ChatRoomDirectoryEvent readBinary(BinaryInput in) throws IOException {
+		String prefix = in.readString();
+		int size = in.readVarInt();
+		ArrayList<ChatRoomListing> chatRooms = new ArrayList<ChatRoomListing>();
+		for (int i = 0; i < size; i++) {
+			chatRooms.add(ChatRoomListing.readBinary(in));
+		}
+		return new ChatRoomDirectoryEvent(prefix, chatRooms, in.readString());
+	}
+}
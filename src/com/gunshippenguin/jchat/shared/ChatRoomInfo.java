@@ -1,5 +1,6 @@
 package com.gunshippenguin.jchat.shared;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -16,6 +17,11 @@ public class ChatRoomInfo implements Serializable {
 	 * Name of the chat room.
 	 */
 	private String name;
+	/**
+	 * Id assigned to the chat room by the server when it was created. Events
+	 * about the chat room refer to it by this id rather than by its name.
+	 */
+	private int id;
 	/**
 	 * ArrayList containing one ClientInfo object for each client connected to
 	 * the chat room.
@@ -25,15 +31,29 @@ public class ChatRoomInfo implements Serializable {
 	 * True if this is a default chat room, false otherwise.
 	 */
 	private boolean isDefault = false;
+	/**
+	 * Version of the chat room's roster, incremented every time a client joins
+	 * or leaves it.
+	 */
+	private int version = 0;
+	/**
+	 * Number of clients in the chat room. May be larger than the size of
+	 * clients if this ChatRoomInfo is a summary that does not list every
+	 * client.
+	 */
+	private int clientCount = 0;
 
 	/**
 	 * Constructs a new ChatRoomInfo object
 	 * 
 	 * @param name
 	 *            The name of the chat room
+	 * @param id
+	 *            The id of the chat room
 	 */
-	public ChatRoomInfo(String name) {
+	public ChatRoomInfo(String name, int id) {
 		this.name = name;
+		this.id = id;
 		clients = new ArrayList<ClientInfo>();
 	}
 
@@ -60,32 +80,37 @@ public class ChatRoomInfo implements Serializable {
 	}
 
 	/**
-	 * Adds the clientInfo object newClient to the clients ArrayList.
+	 * Adds the clientInfo object newClient to the clients ArrayList and
+	 * increments the roster version.
 	 * 
 	 * @param newClient
 	 *            The ClientInfo object to add to the clients ArrayList
+	 * @return The new roster version
 	 */
-	public synchronized void addClient(ClientInfo newClient) {
+	public synchronized int addClient(ClientInfo newClient) {
 		clients.add(newClient);
-		return;
+		clientCount = clients.size();
+		return ++version;
 	}
 
 	/**
-	 * Removes the client with nickname nick from the clients ArrayList. Throws
-	 * a RuntimeException if no client exists in the clients ArrayList with the
-	 * nickname nick.
+	 * Removes the client with nickname nick from the clients ArrayList and
+	 * increments the roster version. Throws a RuntimeException if no client
+	 * exists in the clients ArrayList with the nickname nick.
 	 * 
 	 * @param nick
 	 *            Nickname of client whose ClientInfo object is to be removed
 	 *            from the clients ArrayList
+	 * @return The new roster version
 	 */
-	public synchronized void removeClient(String nick) {
+	public synchronized int removeClient(String nick) {
 		Iterator<ClientInfo> it = clients.iterator();
 		while (it.hasNext()) {
 			ClientInfo currClient = it.next();
 			if (currClient.getNick().equals(nick)) {
-				clients.remove(currClient);
-				return;
+				it.remove();
+				clientCount = clients.size();
+				return ++version;
 			}
 		}
 		throw new RuntimeException(
@@ -111,6 +136,115 @@ public class ChatRoomInfo implements Serializable {
 		return false;
 	}
 
+	/**
+	 * Returns a copy of this ChatRoomInfo. The copy's list of clients does not
+	 * change when clients join or leave the chat room, so it can safely be
+	 * serialized after this method returns.
+	 * 
+	 * @return A copy of this ChatRoomInfo
+	 */
+	public synchronized ChatRoomInfo copy() {
+		ChatRoomInfo copy = new ChatRoomInfo(name, id);
+		copy.clients.addAll(clients);
+		copy.isDefault = isDefault;
+		copy.version = version;
+		copy.clientCount = clientCount;
+		return copy;
+	}
+
+	/**
+	 * Returns a copy of this ChatRoomInfo that lists its clients only if there
+	 * are no more than inlineLimit of them. Larger rosters are left for the
+	 * client to fetch a page at a time, so that joining a busy chat room does
+	 * not mean downloading its whole roster at once. The copy's version and
+	 * client count are always set.
+	 * 
+	 * @param inlineLimit
+	 *            The largest number of clients to list in the copy
+	 * @return A copy of this ChatRoomInfo
+	 */
+	public synchronized ChatRoomInfo summary(int inlineLimit) {
+		ChatRoomInfo copy = new ChatRoomInfo(name, id);
+		if (clients.size() <= inlineLimit) {
+			copy.clients.addAll(clients);
+		}
+		copy.isDefault = isDefault;
+		copy.version = version;
+		copy.clientCount = clientCount;
+		return copy;
+	}
+
+	/**
+	 * Returns the version of the chat room's roster.
+	 * 
+	 * @return The version of the chat room's roster
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the number of clients in the chat room, which may be larger than
+	 * the number listed by getClients if this ChatRoomInfo is a summary.
+	 * 
+	 * @return The number of clients in the chat room
+	 */
+	public int getClientCount() {
+		return clientCount;
+	}
+
+	/**
+	 * Returns true if getClients lists every client in the chat room, false if
+	 * this ChatRoomInfo is a summary whose roster must be fetched separately.
+	 * 
+	 * @return True if every client in the chat room is listed
+	 */
+	public boolean isRosterComplete() {
+		return clients.size() >= clientCount;
+	}
+
+	/**
+	 * Writes the name and id of the chat room, whether it is the default chat
+	 * room, its roster version and client count and every client listed in it
+	 * to out, for use by the BinaryCodec.
+	 * 
+	 * @param out
+	 *            The BinaryOutput to write this ChatRoomInfo to
+	 */
+	synchronized void writeBinary(BinaryOutput out) {
+		out.writeString(name);
+		out.writeVarInt(id);
+		out.writeBoolean(isDefault);
+		out.writeVarInt(version);
+		out.writeVarInt(clientCount);
+		out.writeVarInt(clients.size());
+		for (ClientInfo ci : clients) {
+			ci.writeBinary(out);
+		}
+		return;
+	}
+
+	/**
+	 * Reads a ChatRoomInfo written by writeBinary from in.
+	 * 
+	 * @param in
+	 *            The BinaryInput to read from
+	 * @return The ChatRoomInfo that was read
+	 * @throws IOException
+	 *             If in does not hold a valid ChatRoomInfo
+	 */
+	static ChatRoomInfo readBinary(BinaryInput in) throws IOException {
+		ChatRoomInfo chatRoomInfo = new ChatRoomInfo(in.readString(), in.readVarInt());
+		chatRoomInfo.isDefault = in.readBoolean();
+		chatRoomInfo.version = in.readVarInt();
+		chatRoomInfo.clientCount = in.readVarInt();
+		int size = in.readVarInt();
+		for (int i = 0; i < size; i++) {
+			chatRoomInfo.clients.add(ClientInfo.readBinary(in));
+		}
+		return chatRoomInfo;
+	}
+
 	/**
 	 * Returns the name of the chat room as a string.
 	 * 
@@ -120,6 +254,15 @@ public class ChatRoomInfo implements Serializable {
 		return name;
 	}
 
+	/**
+	 * Returns the id of the chat room.
+	 * 
+	 * @return The id of the chat room
+	 */
+	public int getId() {
+		return id;
+	}
+
 	/**
 	 * Sets the name of the chat room.
 	 * 
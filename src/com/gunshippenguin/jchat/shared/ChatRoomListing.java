@@ -0,0 +1,98 @@
+package com.gunshippenguin.jchat.shared;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Class containing the information about a chat room that is shown in the
+ * server's chat room directory: its name, how many clients are in it and
+ * whether it is the default chat room. Unlike a ChatRoomInfo, a ChatRoomListing
+ * never carries the chat room's roster, so it stays small however many clients
+ * are in the chat room.
+ * 
+ * @author GunshipPenguin
+ */
+public class ChatRoomListing implements Serializable {
+	/**
+	 * Name of the chat room.
+	 */
+	private String name;
+	/**
+	 * Number of clients in the chat room.
+	 */
+	private int clientCount;
+	/**
+	 * True if the chat room is the default chat room, false otherwise.
+	 */
+	private boolean isDefault;
+
+	/**
+	 * Creates a new ChatRoomListing for the chat room with name name.
+	 * 
+	 * @param name
+	 *            The name of the chat room
+	 * @param clientCount
+	 *            The number of clients in the chat room
+	 * @param isDefault
+	 *            True if the chat room is the default chat room
+	 */
+	public ChatRoomListing(String name, int clientCount, boolean isDefault) {
+		this.name = name;
+		this.clientCount = clientCount;
+		this.isDefault = isDefault;
+	}
+
+	/**
+	 * Returns the name of the chat room.
+	 * 
+	 * @return The name of the chat room
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the number of clients in the chat room.
+	 * 
+	 * @return The number of clients in the chat room
+	 */
+	public int getClientCount() {
+		return clientCount;
+	}
+
+	/**
+	 * Returns true if the chat room is the default chat room, false otherwise.
+	 * 
+	 * @return True if the chat room is the default chat room
+	 */
+	public boolean isDefaultChatRoom() {
+		return isDefault;
+	}
+
+	/**
+	 * Writes the name, client count and default flag of this ChatRoomListing
+	 * to out, for use by the BinaryCodec.
+	 * 
+	 * @param out
+	 *            The BinaryOutput to write this ChatRoomListing to
+	 */
+	void writeBinary(BinaryOutput out) {
+		out.writeString(name);
+		out.writeVarInt(clientCount);
+		out.writeBoolean(isDefault);
+		return;
+	}
+
+	/**
+	 * Reads a ChatRoomListing written by writeBinary from in.
+	 * 
+	 * @param in
+	 *            The BinaryInput to read from
+	 * @return The ChatRoomListing that was read
+	 * @throws IOException
+	 *             If in does not hold a valid ChatRoomListing
+	 */
+	static ChatRoomListing readBinary(BinaryInput in) throws IOException {
+		return new ChatRoomListing(in.readString(), in.readVarInt(), in.readBoolean());
+	}
+}
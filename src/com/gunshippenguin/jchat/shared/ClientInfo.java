@@ -1,5 +1,6 @@
 package com.gunshippenguin.jchat.shared;
 
+import java.io.IOException;
 import java.io.Serializable;
 
 /**
@@ -13,17 +14,37 @@ public class ClientInfo implements Serializable {
 	 * Nickname of the client.
 	 */
 	private String nick;
+	/**
+	 * Session id assigned to the client by the server when it connected.
+	 * Events about the client refer to it by this id rather than by its nick.
+	 */
+	private int id;
 
 	/**
 	 * Creates a new ClientInfo object with nick as the nickname of the
-	 * represented client.
+	 * represented client and id as its session id.
 	 * 
 	 * @param nick
 	 *            The nickname of the client who this ClientInfo object
 	 *            represents.
+	 * @param id
+	 *            The session id of the client who this ClientInfo object
+	 *            represents
 	 */
-	public ClientInfo(String nick) {
+	public ClientInfo(String nick, int id) {
 		this.nick = nick;
+		this.id = id;
+	}
+
+	/**
+	 * Returns the session id of the client who this ClientInfo object
+	 * represents.
+	 * 
+	 * @return The session id of the client who this ClientInfo object
+	 *         represents
+	 */
+	public int getId() {
+		return id;
 	}
 
 	/**
@@ -54,4 +75,30 @@ public class ClientInfo implements Serializable {
 	public String toString() {
 		return nick;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Writes the nick and session id of this ClientInfo to out, for use by the
+	 * BinaryCodec.
+	 * 
+	 * @param out
+	 *            The BinaryOutput to write this ClientInfo to
+	 */
+	void writeBinary(BinaryOutput out) {
+		out.writeString(nick);
+		out.writeVarInt(id);
+		return;
+	}
+
+	/**
+	 * Reads a ClientInfo written by writeBinary from in.
+	 * 
+	 * @param in
+	 *            The BinaryInput to read from
+	 * @return The ClientInfo that was read
+	 * @throws IOException
+	 *             If in does not hold a valid ClientInfo
+	 */
+	static ClientInfo readBinary(BinaryInput in) throws IOException {
+		return new ClientInfo(in.readString(), in.readVarInt());
+	}
+}
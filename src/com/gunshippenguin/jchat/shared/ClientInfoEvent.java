@@ -0,0 +1,79 @@
+package com.gunshippenguin.jchat.shared;
+
+import java.io.IOException;
+
+import com.gunshippenguin.jchat.client.Connection;
+
+/**
+ * Event sent in reply to a GetClientInfoRequest, naming a client that sent a
+ * chat message on a chat room. The nick is null if the server no longer knows
+ * who the client was.
+ * 
+ * @author GunshipPenguin
+ */
+public class ClientInfoEvent implements Event, BinaryEncodable {
+	/**
+	 * Id of the chat room that the client sent a chat message on.
+	 */
+	private int chatRoomId;
+	/**
+	 * ClientInfo object for the client, with a null nick if it is not known.
+	 */
+	private ClientInfo clientInfo;
+
+	/**
+	 * Creates a new ClientInfoEvent naming the client clientInfo, who sent a
+	 * chat message on the chat room with id chatRoomId.
+	 * 
+	 * @param chatRoomId
+	 *            The id of the chat room that the client sent a chat message on
+	 * @param clientInfo
+	 *            The ClientInfo of the client, with a null nick if it is not
+	 *            known
+	 */
+	public ClientInfoEvent(int chatRoomId, ClientInfo clientInfo) {
+		this.chatRoomId = chatRoomId;
+		this.clientInfo = clientInfo;
+	}
+
+	/**
+	 * Gives the chat room's ChatRoomManager the nick of the client, so that
+	 * the chat messages waiting for it can be shown.
+	 */
+	@Override
+	public void handle(Connection conn) {
+		conn.getChatRoomManagerById(chatRoomId).addSender(clientInfo);
+		return;
+	}
+
+	/**
+	 * Returns the opcode of ClientInfoEvent in a binary frame.
+	 */
+	@Override
+	public int getBinaryOpcode() {
+		return BinaryCodec.CLIENT_INFO_EVENT;
+	}
+
+	/**
+	 * Writes the chat room id and the client to out.
+	 */
+	@Override
+	public void writeBinary(BinaryOutput out) {
+		out.writeVarInt(chatRoomId);
+		clientInfo.writeBinary(out);
+		return;
+	}
+
+	/**
+	 * Reads a ClientInfoEvent written by writeBinary from in.
+	 * 
+	 * @param in
+	 *            The BinaryInput to read from
+	 * @return The ClientInfoEvent that was read
+	 * @throws IOException
+	 *             If in does not hold a valid ClientInfoEvent
+	 */
+	static ClientInfoEvent readBinary(BinaryInput in) throws IOException {
+		return new ClientInfoEvent(in.readVarInt(), ClientInfo.readBinary(in));
+	}
+}
@@ -0,0 +1,67 @@
+package com.gunshippenguin.jchat.shared;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * The Codec interface should be implemented by any class that converts Events
+ * and Requests to and from the bytes sent between client and server once the
+ * handshake is complete. The codec used by a connection is chosen during the
+ * handshake from the names listed in the InitClientInfo, and is announced to
+ * the client in the InitServerInfo.
+ * 
+ * Every message encoded by a Codec must be self-contained, so that encoded
+ * messages can be written to a connection in any order and decoded one at a
+ * time.
+ * 
+ * @author GunshipPenguin
+ */
+public interface Codec {
+	/**
+	 * Returns the name that this Codec is negotiated by.
+	 * 
+	 * @return The name of this Codec
+	 */
+	public String getName();
+
+	/**
+	 * Encodes the Event or Request message into the bytes that should be
+	 * written to a connection.
+	 * 
+	 * @param message
+	 *            The Event or Request to encode
+	 * @return The encoded message
+	 * @throws IOException
+	 *             If the message cannot be encoded by this Codec
+	 */
+	public byte[] encode(Serializable message) throws IOException;
+
+	/**
+	 * Decodes a single message from the bytes remaining in buf. If buf holds a
+	 * complete message, its position is advanced past it. Otherwise buf is left
+	 * unchanged and null is returned, so that more bytes can be appended before
+	 * trying again.
+	 * 
+	 * @param buf
+	 *            The buffer to decode a message from
+	 * @return The decoded message, or null if buf does not yet hold a complete
+	 *         message
+	 * @throws IOException
+	 *             If the bytes in buf are not a valid message
+	 */
+	public Serializable decode(ByteBuffer buf) throws IOException;
+
+	/**
+	 * Reads a single message from in, blocking until it has been received
+	 * completely.
+	 * 
+	 * @param in
+	 *            The InputStream to read a message from
+	 * @return The message that was read
+	 * @throws IOException
+	 *             If the message could not be read or is not valid
+	 */
+	public Serializable read(InputStream in) throws IOException;
+}
@@ -0,0 +1,46 @@
+package com.gunshippenguin.jchat.shared;
+
+/**
+ * Class containing the Codecs that clients and servers can negotiate during
+ * the handshake.
+ * 
+ * @author GunshipPenguin
+ */
+public class Codecs {
+	/**
+	 * Codec that uses Java serialization. Always supported, and used whenever
+	 * client and server have no other Codec in common.
+	 */
+	public static final Codec JAVA = new JavaSerializationCodec();
+	/**
+	 * Codec that uses the compact binary format of BinaryCodec.
+	 */
+	public static final Codec BINARY = new BinaryCodec();
+
+	/**
+	 * Returns the Codec with the name name. Returns the Java serialization
+	 * Codec if name is null, which is what a peer that predates codec
+	 * negotiation will send.
+	 * 
+	 * @param name
+	 *            The name of the Codec to return
+	 * @return The Codec with the name name
+	 */
+	public static Codec forName(String name) {
+		if (name == null || name.equals(JAVA.getName())) {
+			return JAVA;
+		} else if (name.equals(BINARY.getName())) {
+			return BINARY;
+		}
+		throw new IllegalArgumentException("Unknown codec " + name);
+	}
+
+	/**
+	 * Returns the names of all supported Codecs, in order of preference.
+	 * 
+	 * @return The names of all supported Codecs
+	 */
+	public static String[] getNames() {
+		return new String[] { BINARY.getName(), JAVA.getName() };
+	}
+}
@@ -1,6 +1,7 @@
 package com.gunshippenguin.jchat.shared;
 
-import com.gunshippenguin.jchat.server.ChatRoom;
+import java.io.IOException;
+
 import com.gunshippenguin.jchat.server.ChatServer;
 
 /**
@@ -8,7 +9,7 @@ import com.gunshippenguin.jchat.server.ChatServer;
  * 
  * @author GunshipPenguin
  */
-public class CreateChatRoomRequest implements Request {
+public class CreateChatRoomRequest implements Request, BinaryEncodable {
 	/**
 	 * Name of the new chat room to create
 	 */
@@ -29,14 +30,42 @@ public class CreateChatRoomRequest implements Request {
 	 * Creates a new ChatRoom with its name set to the value of the name
 	 * attribute of this CreateChatRoomRequest if no chat room already exists
 	 * with a name of the value of the name attribute of this
-	 * CreateChatRoomRequest.
+	 * CreateChatRoomRequest, or asks the node of the cluster that owns the chat
+	 * room to create it.
 	 */
 	@Override
 	public void handle(ChatServer chatServer, ClientInfo clientInfo) {
-		if (!chatServer.chatRoomExists(name)) {
-			ChatRoom cr = new ChatRoom(name);
-			chatServer.addChatRoom(cr);
-		}
+		chatServer.createChatRoom(name);
 		return;
 	}
+
+	/**
+	 * Returns the opcode of CreateChatRoomRequest in a binary frame.
+	 */
+	@Override
+	public int getBinaryOpcode() {
+		return BinaryCodec.CREATE_CHAT_ROOM_REQUEST;
+	}
+
+	/**
+	 * Writes the name of the chat room to create to out.
+	 */
+	@Override
+	public void writeBinary(BinaryOutput out) {
+		out.writeString(name);
+		return;
+	}
+
+	/**
+	 * Reads a CreateChatRoomRequest written by writeBinary from in.
+	 * 
+	 * @param in
+	 *            The BinaryInput to read from
+	 * @return The CreateChatRoomRequest that was read
+	 * @throws IOException
+	 *             If in does not hold a valid CreateChatRoomRequest
+	 */
+	static CreateChatRoomRequest readBinary(BinaryInput in) throws IOException {
+		return new CreateChatRoomRequest(in.readNonNullString());
+	}
 }
@@ -0,0 +1,94 @@
+package com.gunshippenguin.jchat.shared;
+
+import java.io.IOException;
+
+import com.gunshippenguin.jchat.server.ChatRoom;
+import com.gunshippenguin.jchat.server.ChatServer;
+import com.gunshippenguin.jchat.server.Client;
+
+/**
+ * A Request for chat messages sent on a chat room before the message with
+ * sequence number before. The reply is a ChatHistoryEvent holding up to limit
+ * of them, oldest first. Only members of the chat room are sent its history.
+ * 
+ * @author GunshipPenguin
+ */
+public class GetChatHistoryRequest implements Request, BinaryEncodable {
+	/**
+	 * Id of the chat room whose history is requested.
+	 */
+	private int chatRoomId;
+	/**
+	 * Sequence number of the message to return the messages before, or -1 for
+	 * the most recent messages.
+	 */
+	private int before;
+	/**
+	 * Largest number of messages to return.
+	 */
+	private int limit;
+
+	/**
+	 * Creates a new GetChatHistoryRequest for the messages sent on the chat
+	 * room with id chatRoomId before the message with sequence number before.
+	 * 
+	 * @param chatRoomId
+	 *            The id of the chat room whose history is requested
+	 * @param before
+	 *            The sequence number to return the messages before, or -1 for
+	 *            the most recent messages
+	 * @param limit
+	 *            The largest number of messages to return
+	 */
+	public GetChatHistoryRequest(int chatRoomId, int before, int limit) {
+		this.chatRoomId = chatRoomId;
+		this.before = before;
+		this.limit = limit;
+	}
+
+	/**
+	 * Sends the requested messages to the requesting client if it is in the
+	 * chat room.
+	 */
+	@Override
+	public void handle(ChatServer chatServer, ClientInfo clientInfo) {
+		ChatRoom chatRoom = chatServer.getChatRoomById(chatRoomId);
+		if (chatRoom.hasClient(clientInfo.getNick())) {
+			Client requester = chatServer.getClientByNick(clientInfo.getNick());
+			chatRoom.sendChatHistory(requester, before, limit);
+		}
+		return;
+	}
+
+	/**
+	 * Returns the opcode of GetChatHistoryRequest in a binary frame.
+	 */
+	@Override
+	public int getBinaryOpcode() {
+		return BinaryCodec.GET_CHAT_HISTORY_REQUEST;
+	}
+
+	/**
+	 * Writes the chat room id, the sequence number and the limit to out.
+	 */
+	@Override
+	public void writeBinary(BinaryOutput out) {
+		out.writeVarInt(chatRoomId);
+		out.writeVarInt(before);
+		out.writeVarInt(limit);
+		return;
+	}
+
+	/**
+	 * Reads a GetChatHistoryRequest written by writeBinary from in.
+	 * 
+	 * @param in
+	 *            The BinaryInput to read from
+	 * @return The GetChatHistoryRequest that was read
+	 * @throws IOException
+	 *             If in does not hold a valid GetChatHistoryRequest
+	 */
+	static GetChatHistoryRequest readBinary(BinaryInput in) throws IOException {
+		return new GetChatHistoryRequest(in.readVarInt(), in.readVarInt(), in.readVarInt());
+	}
+}
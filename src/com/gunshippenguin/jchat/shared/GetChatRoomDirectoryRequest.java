@@ -0,0 +1,93 @@
+package com.gunshippenguin.jchat.shared;
+
+import java.io.IOException;
+
+import com.gunshippenguin.jchat.server.ChatServer;
+import com.gunshippenguin.jchat.server.Client;
+
+/**
+ * A Request for one page of the server's chat room directory. Lists the chat
+ * rooms whose names start with prefix, in order of name, starting after the
+ * chat room named after. The reply is a ChatRoomDirectoryEvent holding a
+ * ChatRoomListing for each chat room on the page.
+ * 
+ * @author GunshipPenguin
+ */
+public class GetChatRoomDirectoryRequest implements Request, BinaryEncodable {
+	/**
+	 * Prefix that the names of the listed chat rooms must start with, or the
+	 * empty string to list every chat room.
+	 */
+	private String prefix;
+	/**
+	 * Name of the last chat room on the previous page, or the empty string to
+	 * start from the first matching chat room.
+	 */
+	private String after;
+	/**
+	 * Largest number of chat rooms to list on the page.
+	 */
+	private int limit;
+
+	/**
+	 * Creates a new GetChatRoomDirectoryRequest for the page of chat rooms
+	 * whose names start with prefix and come after after.
+	 * 
+	 * @param prefix
+	 *            The prefix that the names of the listed chat rooms must start
+	 *            with, or the empty string for every chat room
+	 * @param after
+	 *            The name of the last chat room on the previous page, or the
+	 *            empty string for the first page
+	 * @param limit
+	 *            The largest number of chat rooms to list on the page
+	 */
+	public GetChatRoomDirectoryRequest(String prefix, String after, int limit) {
+		this.prefix = prefix;
+		this.after = after;
+		this.limit = limit;
+	}
+
+	/**
+	 * Sends a ChatRoomDirectoryEvent holding the requested page to the
+	 * requesting client.
+	 */
+	@Override
+	public void handle(ChatServer chatServer, ClientInfo clientInfo) {
+		Client requester = chatServer.getClientByNick(clientInfo.getNick());
+		chatServer.sendChatRoomDirectory(requester, prefix, after, limit);
+		return;
+	}
+
+	/**
+	 * Returns the opcode of GetChatRoomDirectoryRequest in a binary frame.
+	 */
+	@Override
+	public int getBinaryOpcode() {
+		return BinaryCodec.GET_CHAT_ROOM_DIRECTORY_REQUEST;
+	}
+
+	/**
+	 * Writes the prefix, page start and limit to out.
+	 */
+	@Override
+	public void writeBinary(BinaryOutput out) {
+		out.writeString(prefix);
+		out.writeString(after);
+		out.writeVarInt(limit);
+		return;
+	}
+
+	/**
+	 * Reads a GetChatRoomDirectoryRequest written by writeBinary from in.
+	 * 
+	 * @param in
+	 *            The BinaryInput to read from
+	 * @return The GetChatRoomDirectoryRequest that was read
+	 * @throws IOException
+	 *             If in does not hold a valid GetChatRoomDirectoryRequest
+	 */
+	static GetChatRoomDirectoryRequest readBinary(BinaryInput in) throws IOException {
+		return new GetChatRoomDirectoryRequest(in.readNonNullString(), in.readNonNullString(), in.readVarInt());
+	}
+}
@@ -0,0 +1,81 @@
+package com.gunshippenguin.jchat.shared;
+
+import java.io.IOException;
+
+import com.gunshippenguin.jchat.server.ChatRoom;
+import com.gunshippenguin.jchat.server.ChatServer;
+import com.gunshippenguin.jchat.server.Client;
+
+/**
+ * A Request for the nick of the client with session id clientId, sent by a
+ * client that received a chat message on a chat room from a sender its roster
+ * does not list. The reply is a ClientInfoEvent.
+ * 
+ * @author GunshipPenguin
+ */
+public class GetClientInfoRequest implements Request, BinaryEncodable {
+	/**
+	 * Id of the chat room that the client sent a chat message on.
+	 */
+	private int chatRoomId;
+	/**
+	 * Session id of the client whose nick is requested.
+	 */
+	private int clientId;
+
+	/**
+	 * Creates a new GetClientInfoRequest for the client with session id
+	 * clientId, who sent a chat message on the chat room with id chatRoomId.
+	 * 
+	 * @param chatRoomId
+	 *            The id of the chat room that the client sent a chat message on
+	 * @param clientId
+	 *            The session id of the client whose nick is requested
+	 */
+	public GetClientInfoRequest(int chatRoomId, int clientId) {
+		this.chatRoomId = chatRoomId;
+		this.clientId = clientId;
+	}
+
+	/**
+	 * Sends the ClientInfo of the requested client to the requesting client.
+	 */
+	@Override
+	public void handle(ChatServer chatServer, ClientInfo clientInfo) {
+		ChatRoom chatRoom = chatServer.getChatRoomById(chatRoomId);
+		Client requester = chatServer.getClientByNick(clientInfo.getNick());
+		chatRoom.sendSenderInfo(requester, clientId);
+		return;
+	}
+
+	/**
+	 * Returns the opcode of GetClientInfoRequest in a binary frame.
+	 */
+	@Override
+	public int getBinaryOpcode() {
+		return BinaryCodec.GET_CLIENT_INFO_REQUEST;
+	}
+
+	/**
+	 * Writes the chat room id and the session id of the client to out.
+	 */
+	@Override
+	public void writeBinary(BinaryOutput out) {
+		out.writeVarInt(chatRoomId);
+		out.writeVarInt(clientId);
+		return;
+	}
+
+	/**
+	 * Reads a GetClientInfoRequest written by writeBinary from in.
+	 * 
+	 * @param in
+	 *            The BinaryInput to read from
+	 * @return The GetClientInfoRequest that was read
+	 * @throws IOException
+	 *             If in does not hold a valid GetClientInfoRequest
+	 */
+	static GetClientInfoRequest readBinary(BinaryInput in) throws IOException {
+		return new GetClientInfoRequest(in.readVarInt(), in.readVarInt());
+	}
+}
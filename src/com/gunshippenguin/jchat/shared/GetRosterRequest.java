@@ -0,0 +1,102 @@
+package com.gunshippenguin.jchat.shared;
+
+import java.io.IOException;
+
+import com.gunshippenguin.jchat.server.ChatRoom;
+import com.gunshippenguin.jchat.server.ChatServer;
+import com.gunshippenguin.jchat.server.Client;
+
+/**
+ * A Request for the roster of a chat room. If the client already holds a
+ * version of the roster that the server still has the changes since, it is sent
+ * a RosterDeltaEvent with just those changes. Otherwise it is sent a
+ * RosterPageEvent listing up to limit clients, starting after the client with
+ * session id afterId. A limit of 0 asks for the number of clients only.
+ * 
+ * @author GunshipPenguin
+ */
+public class GetRosterRequest implements Request, BinaryEncodable {
+	/**
+	 * Id of the chat room whose roster is requested.
+	 */
+	private int chatRoomId;
+	/**
+	 * Version of the roster already held by the client, or -1 if it holds none.
+	 */
+	private int knownVersion;
+	/**
+	 * Session id of the last client on the previous page, or -1 to start from
+	 * the beginning of the roster.
+	 */
+	private int afterId;
+	/**
+	 * Largest number of clients to list on the page.
+	 */
+	private int limit;
+
+	/**
+	 * Creates a new GetRosterRequest for the roster of the chat room with id
+	 * chatRoomId.
+	 * 
+	 * @param chatRoomId
+	 *            The id of the chat room whose roster is requested
+	 * @param knownVersion
+	 *            The version of the roster already held by the client, or -1 if
+	 *            it holds none
+	 * @param afterId
+	 *            The session id of the last client on the previous page, or -1
+	 *            to start from the beginning of the roster
+	 * @param limit
+	 *            The largest number of clients to list on the page
+	 */
+	public GetRosterRequest(int chatRoomId, int knownVersion, int afterId, int limit) {
+		this.chatRoomId = chatRoomId;
+		this.knownVersion = knownVersion;
+		this.afterId = afterId;
+		this.limit = limit;
+	}
+
+	/**
+	 * Sends the requested part of the roster to the requesting client.
+	 */
+	@Override
+	public void handle(ChatServer chatServer, ClientInfo clientInfo) {
+		ChatRoom chatRoom = chatServer.getChatRoomById(chatRoomId);
+		Client requester = chatServer.getClientByNick(clientInfo.getNick());
+		chatRoom.sendRoster(requester, knownVersion, afterId, limit);
+		return;
+	}
+
+	/**
+	 * Returns the opcode of GetRosterRequest in a binary frame.
+	 */
+	@Override
+	public int getBinaryOpcode() {
+		return BinaryCodec.GET_ROSTER_REQUEST;
+	}
+
+	/**
+	 * Writes the chat room id, known version, page start and limit to out.
+	 */
+	@Override
+	public void writeBinary(BinaryOutput out) {
+		out.writeVarInt(chatRoomId);
+		out.writeVarInt(knownVersion);
+		out.writeVarInt(afterId);
+		out.writeVarInt(limit);
+		return;
+	}
+
+	/**
+	 * Reads a GetRosterRequest written by writeBinary from in.
+	 * 
+	 * @param in
+	 *            The BinaryInput to read from
+	 * @return The GetRosterRequest that was read
+	 * @throws IOException
+	 *             If in does not hold a valid GetRosterRequest
+	 */
+	static GetRosterRequest readBinary(BinaryInput in) throws IOException {
+		return new GetRosterRequest(in.readVarInt(), in.readVarInt(), in.readVarInt(), in.readVarInt());
+	}
+}
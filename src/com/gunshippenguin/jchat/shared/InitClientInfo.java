@@ -15,16 +15,24 @@ public class InitClientInfo implements Serializable {
 	 * The nickname requested by the client.
 	 */
 	private String nick;
+	/**
+	 * Names of the Codecs supported by the client, in order of preference.
+	 */
+	private String[] codecs;
 
 	/**
 	 * Creates a new InitClientInfo object with the nickname requested by the
-	 * client set to nick.
+	 * client set to nick and the names of the Codecs it supports set to codecs.
 	 * 
 	 * @param nick
 	 *            The nickname requested by the client
+	 * @param codecs
+	 *            The names of the Codecs supported by the client, in order of
+	 *            preference
 	 */
-	public InitClientInfo(String nick) {
+	public InitClientInfo(String nick, String[] codecs) {
 		this.nick = nick;
+		this.codecs = codecs;
 	}
 
 	/**
@@ -35,4 +43,15 @@ public class InitClientInfo implements Serializable {
 	public String getNick() {
 		return nick;
 	}
+
+	/**
+	 * Returns the names of the Codecs supported by the client, in order of
+	 * preference.
+	 * 
+	 * @return The names of the Codecs supported by the client, or null if the
+	 *         client only supports Java serialization
+	 */
+	public String[] getCodecs() {
+		return codecs;
+	}
 }
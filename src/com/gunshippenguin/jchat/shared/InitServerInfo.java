@@ -33,6 +33,12 @@ public class InitServerInfo implements Serializable {
 	 */
 	private int flags = 0;
 
+	/**
+	 * Name of the Codec chosen by the server for all Events and Requests sent
+	 * after the handshake.
+	 */
+	private String codec;
+
 	/**
 	 * Creates a new InitServerInfo object with selfClient being the ClientInfo
 	 * object representing the connecting client and defaultChatRoom being the
@@ -99,4 +105,24 @@ public class InitServerInfo implements Serializable {
 		flags |= flagToSet;
 		return;
 	}
+
+	/**
+	 * Returns the name of the Codec chosen by the server.
+	 * 
+	 * @return The name of the Codec chosen by the server
+	 */
+	public String getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Sets the name of the Codec chosen by the server.
+	 * 
+	 * @param codec
+	 *            The name of the Codec chosen by the server
+	 */
+	public void setCodec(String codec) {
+		this.codec = codec;
+		return;
+	}
 }
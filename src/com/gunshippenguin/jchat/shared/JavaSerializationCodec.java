@@ -0,0 +1,92 @@
+package com.gunshippenguin.jchat.shared;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.SequenceInputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Codec that sends messages using Java serialization. Messages are written the
+ * same way a reset ObjectOutputStream writes them after its stream header, so
+ * they continue the object stream opened by each side for the handshake and
+ * remain readable by peers that do not negotiate a codec.
+ * 
+ * @author GunshipPenguin
+ */
+public class JavaSerializationCodec implements Codec {
+	/**
+	 * Header written once at the start of every Java serialization stream. It
+	 * is sent during the handshake, so it is stripped from every encoded
+	 * message and put back in front of each one when decoding.
+	 */
+	private static final byte[] STREAM_HEADER = { (byte) 0xAC, (byte) 0xED, 0x00, 0x05 };
+
+	/**
+	 * Returns the name of this Codec, java.
+	 */
+	@Override
+	public String getName() {
+		return "java";
+	}
+
+	/**
+	 * Serializes message after a stream reset, so that it does not refer back
+	 * to any object written before it.
+	 */
+	@Override
+	public byte[] encode(Serializable message) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bytes);
+		oos.reset();
+		oos.writeObject(message);
+		oos.flush();
+		byte[] all = bytes.toByteArray();
+		return Arrays.copyOfRange(all, STREAM_HEADER.length, all.length);
+	}
+
+	/**
+	 * Attempts to deserialize a message from the bytes remaining in buf, which
+	 * must be backed by an array. Java serialization has no length prefix, so
+	 * an incomplete message is only detected when deserializing it runs out of
+	 * bytes.
+	 */
+	@Override
+	public Serializable decode(ByteBuffer buf) throws IOException {
+		if (!buf.hasRemaining()) {
+			return null;
+		}
+		ByteArrayInputStream body = new ByteArrayInputStream(buf.array(), buf.arrayOffset() + buf.position(),
+				buf.remaining());
+		Serializable message;
+		try {
+			message = read(body);
+		} catch (EOFException e) {
+			return null;
+		}
+		buf.position(buf.limit() - body.available());
+		return message;
+	}
+
+	/**
+	 * Deserializes a single message from in. A new ObjectInputStream is used
+	 * for every message, which is possible because every message starts with a
+	 * stream reset.
+	 */
+	@Override
+	public Serializable read(InputStream in) throws IOException {
+		ObjectInputStream ois = new ObjectInputStream(
+				new SequenceInputStream(new ByteArrayInputStream(STREAM_HEADER), in));
+		try {
+			return (Serializable) ois.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Received object of unknown class", e);
+		}
+	}
+}
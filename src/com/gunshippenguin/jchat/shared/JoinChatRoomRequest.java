@@ -1,5 +1,7 @@
 package com.gunshippenguin.jchat.shared;
 
+import java.io.IOException;
+
 import com.gunshippenguin.jchat.server.ChatRoom;
 import com.gunshippenguin.jchat.server.ChatServer;
 import com.gunshippenguin.jchat.server.Client;
@@ -9,7 +11,7 @@ import com.gunshippenguin.jchat.server.Client;
  * 
  * @author GunshipPenguin
  */
-public class JoinChatRoomRequest implements Request {
+public class JoinChatRoomRequest implements Request, BinaryEncodable {
 	/**
 	 * Name of the chat room that the client is requesting to join
 	 */
@@ -33,7 +35,7 @@ public class JoinChatRoomRequest implements Request {
 	@Override
 	public void handle(ChatServer chatServer, ClientInfo clientInfo) {
 		if (chatServer.chatRoomExists(chatRoomName)) {
-			Client client = chatServer.getDefaultChatRoom().getClientByNick(clientInfo.getNick());
+			Client client = chatServer.getClientByNick(clientInfo.getNick());
 			ChatRoom roomToJoin = chatServer.getChatRoomByName(chatRoomName);
 			if (!roomToJoin.hasClient(clientInfo.getNick())) {
 				roomToJoin.addClient(client);
@@ -41,4 +43,34 @@ public class JoinChatRoomRequest implements Request {
 		}
 		return;
 	}
+
+	/**
+	 * Returns the opcode of JoinChatRoomRequest in a binary frame.
+	 */
+	@Override
+	public int getBinaryOpcode() {
+		return BinaryCodec.JOIN_CHAT_ROOM_REQUEST;
+	}
+
+	/**
+	 * Writes the name of the chat room to join to out.
+	 */
+	@Override
+	public void writeBinary(BinaryOutput out) {
+		out.writeString(chatRoomName);
+		return;
+	}
+
+	/**
+	 * Reads a JoinChatRoomRequest written by writeBinary from in.
+	 * 
+	 * @param in
+	 *            The BinaryInput to read from
+	 * @return The JoinChatRoomRequest that was read
+	 * @throws IOException
+	 *             If in does not hold a valid JoinChatRoomRequest
+	 */
+	static JoinChatRoomRequest readBinary(BinaryInput in) throws IOException {
+		return new JoinChatRoomRequest(in.readNonNullString());
+	}
 }
@@ -1,5 +1,7 @@
 package com.gunshippenguin.jchat.shared;
 
+import java.io.IOException;
+
 import com.gunshippenguin.jchat.server.ChatRoom;
 import com.gunshippenguin.jchat.server.ChatServer;
 import com.gunshippenguin.jchat.server.Client;
@@ -9,7 +11,7 @@ import com.gunshippenguin.jchat.server.Client;
  * 
  * @author GunshipPenguin
  */
-public class LeaveChatRoomRequest implements Request {
+public class LeaveChatRoomRequest implements Request, BinaryEncodable {
 	/**
 	 * Name of the chat room that the client is requesting to leave.
 	 */
@@ -33,9 +35,38 @@ public class LeaveChatRoomRequest implements Request {
 	@Override
 	public void handle(ChatServer chatServer, ClientInfo clientInfo) {
 		ChatRoom cr = chatServer.getChatRoomByName(chatRoomName);
-		Client c = chatServer.getDefaultChatRoom().getClientByNick(clientInfo.getNick());
+		Client c = chatServer.getClientByNick(clientInfo.getNick());
 		cr.removeClient(c.getClientInfo().getNick());
 		return;
 	}
 
+	/**
+	 * Returns the opcode of LeaveChatRoomRequest in a binary frame.
+	 */
+	@Override
+	public int getBinaryOpcode() {
+		return BinaryCodec.LEAVE_CHAT_ROOM_REQUEST;
+	}
+
+	/**
+	 * Writes the name of the chat room to leave to out.
+	 */
+	@Override
+	public void writeBinary(BinaryOutput out) {
+		out.writeString(chatRoomName);
+		return;
+	}
+
+	/**
+	 * Reads a LeaveChatRoomRequest written by writeBinary from in.
+	 * 
+	 * @param in
+	 *            The BinaryInput to read from
+	 * @return The LeaveChatRoomRequest that was read
+	 * @throws IOException
+	 *             If in does not hold a valid LeaveChatRoomRequest
+	 */
+	static LeaveChatRoomRequest readBinary(BinaryInput in) throws IOException {
+		return new LeaveChatRoomRequest(in.readNonNullString());
+	}
 }
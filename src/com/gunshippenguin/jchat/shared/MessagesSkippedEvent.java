@@ -0,0 +1,79 @@
+package com.gunshippenguin.jchat.shared;
+
+import java.io.IOException;
+
+import com.gunshippenguin.jchat.client.Connection;
+
+/**
+ * Event to inform a client that chat messages sent on a chat room were not
+ * delivered to it because it was not keeping up with the server.
+ * 
+ * @author GunshipPenguin
+ */
+public class MessagesSkippedEvent implements Event, BinaryEncodable {
+	/**
+	 * Id of the chat room that the skipped chat messages were sent on.
+	 */
+	private int chatRoomId;
+	/**
+	 * Number of chat messages that were skipped.
+	 */
+	private int count;
+
+	/**
+	 * Creates a new MessagesSkippedEvent for count chat messages sent on the
+	 * chat room with id chatRoomId.
+	 * 
+	 * @param chatRoomId
+	 *            The id of the chat room that the skipped chat messages were
+	 *            sent on
+	 * @param count
+	 *            The number of chat messages that were skipped
+	 */
+	public MessagesSkippedEvent(int chatRoomId, int count) {
+		this.chatRoomId = chatRoomId;
+		this.count = count;
+	}
+
+	/**
+	 * Informs the client of the skipped chat messages via a message in the chat
+	 * room they were sent on.
+	 */
+	@Override
+	public void handle(Connection conn) {
+		conn.getChatRoomManagerById(chatRoomId)
+				.addServerMessage(count + " messages skipped because your connection was too slow");
+		return;
+	}
+
+	/**
+	 * Returns the opcode of MessagesSkippedEvent in a binary frame.
+	 */
+	@Override
+	public int getBinaryOpcode() {
+		return BinaryCodec.MESSAGES_SKIPPED_EVENT;
+	}
+
+	/**
+	 * Writes the chat room id and the number of skipped messages to out.
+	 */
+	@Override
+	public void writeBinary(BinaryOutput out) {
+		out.writeVarInt(chatRoomId);
+		out.writeVarInt(count);
+		return;
+	}
+
+	/**
+	 * Reads a MessagesSkippedEvent written by writeBinary from in.
+	 * 
+	 * @param in
+	 *            The BinaryInput to read from
+	 * @return The MessagesSkippedEvent that was read
+	 * @throws IOException
+	 *             If in does not hold a valid MessagesSkippedEvent
+	 */
+	static MessagesSkippedEvent readBinary(BinaryInput in) throws IOException {
+		return new MessagesSkippedEvent(in.readVarInt(), in.readVarInt());
+	}
+}
@@ -0,0 +1,202 @@
+package com.gunshippenguin.jchat.shared;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import com.gunshippenguin.jchat.client.ChatRoomManager;
+import com.gunshippenguin.jchat.client.Connection;
+
+/**
+ * Event to inform the members of a chat room of everything that has happened
+ * to its roster over a short window: the clients who have joined and are still
+ * in it, the session ids of the clients who have left and, for the default chat
+ * room, the names of any chat rooms that have been created.
+ * 
+ * Chat rooms with more members than the server's large room threshold send
+ * their client count only. Members of such a chat room that want to know who is
+ * in it must fetch its roster with a GetRosterRequest.
+ * 
+ * @author GunshipPenguin
+ */
+public class PresenceEvent implements Event, BinaryEncodable {
+	/**
+	 * Id of the chat room that this PresenceEvent pertains to.
+	 */
+	private int chatRoomId;
+	/**
+	 * Version of the chat room's roster that the changes start from.
+	 */
+	private int fromVersion;
+	/**
+	 * Version of the chat room's roster once the changes have been applied.
+	 */
+	private int toVersion;
+	/**
+	 * Number of clients in the chat room once the changes have been applied.
+	 */
+	private int clientCount;
+	/**
+	 * True if joined and leftIds list the changes to the roster, false if the
+	 * chat room is too large for them to be sent.
+	 */
+	private boolean membersIncluded;
+	/**
+	 * ClientInfo objects for clients who joined the chat room after
+	 * fromVersion and are still in it.
+	 */
+	private ArrayList<ClientInfo> joined;
+	/**
+	 * Session ids of clients who left the chat room after fromVersion.
+	 */
+	private int[] leftIds;
+	/**
+	 * Names of the chat rooms created on the server since the last
+	 * PresenceEvent. Only sent to the default chat room.
+	 */
+	private ArrayList<String> chatRoomsAdded;
+
+	/**
+	 * Creates a new PresenceEvent for the chat room with id chatRoomId.
+	 * 
+	 * @param chatRoomId
+	 *            The id of the chat room that the event pertains to
+	 * @param fromVersion
+	 *            The version of the roster that the changes start from
+	 * @param toVersion
+	 *            The version of the roster once the changes are applied
+	 * @param clientCount
+	 *            The number of clients in the chat room once the changes are
+	 *            applied
+	 * @param membersIncluded
+	 *            True if joined and leftIds list the changes to the roster,
+	 *            false if only clientCount is sent
+	 * @param joined
+	 *            The clients who joined after fromVersion and are still in the
+	 *            chat room
+	 * @param leftIds
+	 *            The session ids of clients who left after fromVersion
+	 * @param chatRoomsAdded
+	 *            The names of the chat rooms created since the last
+	 *            PresenceEvent
+	 */
+	public PresenceEvent(int chatRoomId, int fromVersion, int toVersion, int clientCount, boolean membersIncluded,
+			ArrayList<ClientInfo> joined, int[] leftIds, ArrayList<String> chatRoomsAdded) {
+		this.chatRoomId = chatRoomId;
+		this.fromVersion = fromVersion;
+		this.toVersion = toVersion;
+		this.clientCount = clientCount;
+		this.membersIncluded = membersIncluded;
+		this.joined = joined;
+		this.leftIds = leftIds;
+		this.chatRoomsAdded = chatRoomsAdded;
+	}
+
+	/**
+	 * Returns the id of the chat room that this PresenceEvent pertains to.
+	 * 
+	 * @return The id of the chat room
+	 */
+	public int getChatRoomId() {
+		return chatRoomId;
+	}
+
+	/**
+	 * Returns the number of clients in the chat room once the changes are
+	 * applied.
+	 * 
+	 * @return The number of clients in the chat room
+	 */
+	public int getClientCount() {
+		return clientCount;
+	}
+
+	/**
+	 * Applies the changes to the ChatRoomManager for the chat room and informs
+	 * the user of them via messages in the chat room.
+	 */
+	@Override
+	public void handle(Connection conn) {
+		ChatRoomManager chatRoomManager = conn.getChatRoomManagerById(chatRoomId);
+		if (membersIncluded) {
+			chatRoomManager.applyPresence(fromVersion, toVersion, joined, leftIds);
+		} else {
+			chatRoomManager.setClientCount(clientCount);
+		}
+		for (String name : chatRoomsAdded) {
+			chatRoomManager.addServerMessage("New Room Added - " + name);
+		}
+		return;
+	}
+
+	/**
+	 * Returns the opcode of PresenceEvent in a binary frame.
+	 */
+	@Override
+	public int getBinaryOpcode() {
+		return BinaryCodec.PRESENCE_EVENT;
+	}
+
+	/**
+	 * Writes the chat room id, both versions, the client count, the changes to
+	 * the roster if they are included and the names of the added chat rooms to
+	 * out.
+	 */
+	@Override
+	public void writeBinary(BinaryOutput out) {
+		out.writeVarInt(chatRoomId);
+		out.writeVarInt(fromVersion);
+		out.writeVarInt(toVersion);
+		out.writeVarInt(clientCount);
+		out.writeBoolean(membersIncluded);
+		out.writeVarInt(joined.size());
+		for (ClientInfo ci : joined) {
+			ci.writeBinary(out);
+		}
+		out.writeVarInt(leftIds.length);
+		for (int id : leftIds) {
+			out.writeVarInt(id);
+		}
+		out.writeVarInt(chatRoomsAdded.size());
+		for (String name : chatRoomsAdded) {
+			out.writeString(name);
+		}
+		return;
+	}
+
+	/**
+	 * Reads a PresenceEvent written by writeBinary from in.
+	 * 
+	 * @param in
+	 *            The BinaryInput to read from
+	 * @return The PresenceEvent that was read
+	 * @throws IOException
+	 *             If in does not hold a valid PresenceEvent
+	 */
+	static PresenceEvent readBinary(BinaryInput in) throws IOException {
+		int chatRoomId = in.readVarInt();
+		int fromVersion = in.readVarInt();
+		int toVersion = in.readVarInt();
+		int clientCount = in.readVarInt();
+		boolean membersIncluded = in.readBoolean();
+		int joinedSize = in.readVarInt();
+		ArrayList<ClientInfo> joined = new ArrayList<ClientInfo>();
+		for (int i = 0; i < joinedSize; i++) {
+			joined.add(ClientInfo.readBinary(in));
+		}
+		int leftSize = in.readVarInt();
+		if (leftSize < 0 || leftSize > BinaryCodec.MAX_FRAME_LENGTH) {
+			throw new IOException("Malformed PresenceEvent");
+		}
+		int[] leftIds = new int[leftSize];
+		for (int i = 0; i < leftSize; i++) {
+			leftIds[i] = in.readVarInt();
+		}
+		int addedSize = in.readVarInt();
+		ArrayList<String> chatRoomsAdded = new ArrayList<String>();
+		for (int i = 0; i < addedSize; i++) {
+			chatRoomsAdded.add(in.readString());
+		}
+		return new PresenceEvent(chatRoomId, fromVersion, toVersion, clientCount, membersIncluded, joined, leftIds,
+				chatRoomsAdded);
+	}
+}
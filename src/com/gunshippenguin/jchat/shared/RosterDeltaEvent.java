@@ -0,0 +1,128 @@
+package com.gunshippenguin.jchat.shared;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import com.gunshippenguin.jchat.client.Connection;
+
+/**
+ * Event sent in reply to a GetRosterRequest from a client that already holds a
+ * recent version of a chat room's roster. Lists the net changes to the roster
+ * between that version and the current one: the clients who are now in the
+ * chat room but may not have been, and the session ids of those who have left.
+ * 
+ * @author GunshipPenguin
+ */
+public class RosterDeltaEvent implements Event, BinaryEncodable {
+	/**
+	 * Id of the chat room whose roster has changed.
+	 */
+	private int chatRoomId;
+	/**
+	 * Version of the roster held by the client that the changes start from.
+	 */
+	private int fromVersion;
+	/**
+	 * Version of the roster once the changes have been applied.
+	 */
+	private int toVersion;
+	/**
+	 * ClientInfo objects for clients who joined the chat room after
+	 * fromVersion and are still in it.
+	 */
+	private ArrayList<ClientInfo> joined;
+	/**
+	 * Session ids of clients who left the chat room after fromVersion.
+	 */
+	private int[] leftIds;
+
+	/**
+	 * Creates a new RosterDeltaEvent for the chat room with id chatRoomId.
+	 * 
+	 * @param chatRoomId
+	 *            The id of the chat room whose roster has changed
+	 * @param fromVersion
+	 *            The version of the roster the changes start from
+	 * @param toVersion
+	 *            The version of the roster once the changes are applied
+	 * @param joined
+	 *            The clients who joined after fromVersion and are still in the
+	 *            chat room
+	 * @param leftIds
+	 *            The session ids of clients who left after fromVersion
+	 */
+	public RosterDeltaEvent(int chatRoomId, int fromVersion, int toVersion, ArrayList<ClientInfo> joined,
+			int[] leftIds) {
+		this.chatRoomId = chatRoomId;
+		this.fromVersion = fromVersion;
+		this.toVersion = toVersion;
+		this.joined = joined;
+		this.leftIds = leftIds;
+	}
+
+	/**
+	 * Applies the changes to the chat room's ChatRoomManager.
+	 */
+	@Override
+	public void handle(Connection conn) {
+		conn.getChatRoomManagerById(chatRoomId).applyRosterDelta(joined, leftIds, toVersion);
+		return;
+	}
+
+	/**
+	 * Returns the opcode of RosterDeltaEvent in a binary frame.
+	 */
+	@Override
+	public int getBinaryOpcode() {
+		return BinaryCodec.ROSTER_DELTA_EVENT;
+	}
+
+	/**
+	 * Writes the chat room id, both versions, the joined clients and the ids of
+	 * the clients who left to out.
+	 */
+	@Override
+	public void writeBinary(BinaryOutput out) {
+		out.writeVarInt(chatRoomId);
+		out.writeVarInt(fromVersion);
+		out.writeVarInt(toVersion);
+		out.writeVarInt(joined.size());
+		for (ClientInfo ci : joined) {
+			ci.writeBinary(out);
+		}
+		out.writeVarInt(leftIds.length);
+		for (int id : leftIds) {
+			out.writeVarInt(id);
+		}
+		return;
+	}
+
+	/**
+	 * Reads a RosterDeltaEvent written by writeBinary from in.
+	 * 
+	 * @param in
+	 *            The BinaryInput to read from
+	 * @return The RosterDeltaEvent that was read
+	 * @throws IOException
+	 *             If in does not hold a valid RosterDeltaEvent
+	 */
+	static RosterDeltaEvent readBinary(BinaryInput in) throws IOException {
+		int chatRoomId = in.readVarInt();
+		int fromVersion = in.readVarInt();
+		int toVersion = in.readVarInt();
+		int joinedSize = in.readVarInt();
+		ArrayList<ClientInfo> joined = new ArrayList<ClientInfo>();
+		for (int i = 0; i < joinedSize; i++) {
+			joined.add(ClientInfo.readBinary(in));
+		}
+		int leftSize = in.readVarInt();
+		if (leftSize < 0 || leftSize > BinaryCodec.MAX_FRAME_LENGTH) {
+			throw new IOException("Malformed RosterDeltaEvent");
+		}
+		int[] leftIds = new int[leftSize];
+		for (int i = 0; i < leftSize; i++) {
+			leftIds[i] = in.readVarInt();
+		}
+		return new RosterDeltaEvent(chatRoomId, fromVersion, toVersion, joined, leftIds);
+	}
+}
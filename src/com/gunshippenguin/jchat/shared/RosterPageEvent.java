@@ -0,0 +1,134 @@
+package com.gunshippenguin.jchat.shared;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import com.gunshippenguin.jchat.client.ChatRoomManager;
+import com.gunshippenguin.jchat.client.Connection;
+
+/**
+ * Event sent in reply to a GetRosterRequest, listing one page of a chat room's
+ * roster. Clients are listed in order of session id, so a client can fetch the
+ * next page by asking for the clients after the last one listed. Clients
+ * joining or leaving between pages are covered by the PresenceEvents that
+ * members of the chat room are sent anyway.
+ * 
+ * @author GunshipPenguin
+ */
+public class RosterPageEvent implements Event, BinaryEncodable {
+	/**
+	 * Id of the chat room whose roster this page is part of.
+	 */
+	private int chatRoomId;
+	/**
+	 * Session id that this page starts after, or -1 if it is the first page.
+	 */
+	private int afterId;
+	/**
+	 * Version of the roster when this page was taken.
+	 */
+	private int version;
+	/**
+	 * Number of clients in the chat room when this page was taken.
+	 */
+	private int clientCount;
+	/**
+	 * ClientInfo objects for the clients listed on this page.
+	 */
+	private ArrayList<ClientInfo> clients;
+	/**
+	 * True if there are clients after the last one on this page.
+	 */
+	private boolean more;
+
+	/**
+	 * Creates a new RosterPageEvent listing the clients clients of the chat
+	 * room with id chatRoomId.
+	 * 
+	 * @param chatRoomId
+	 *            The id of the chat room whose roster this page is part of
+	 * @param afterId
+	 *            The session id that this page starts after, or -1 if it is the
+	 *            first page
+	 * @param version
+	 *            The version of the roster when this page was taken
+	 * @param clientCount
+	 *            The number of clients in the chat room
+	 * @param clients
+	 *            The clients listed on this page, in order of session id
+	 * @param more
+	 *            True if there are clients after the last one on this page
+	 */
+	public RosterPageEvent(int chatRoomId, int afterId, int version, int clientCount, ArrayList<ClientInfo> clients,
+			boolean more) {
+		this.chatRoomId = chatRoomId;
+		this.afterId = afterId;
+		this.version = version;
+		this.clientCount = clientCount;
+		this.clients = clients;
+		this.more = more;
+	}
+
+	/**
+	 * Adds the clients on this page to the chat room's ChatRoomManager, in
+	 * place of those it held if this is the first page, and requests the next
+	 * page if there is one.
+	 */
+	@Override
+	public void handle(Connection conn) {
+		ChatRoomManager chatRoomManager = conn.getChatRoomManagerById(chatRoomId);
+		chatRoomManager.addRosterPage(clients, afterId < 0, clientCount, version);
+		if (more && !clients.isEmpty()) {
+			chatRoomManager.requestRosterPage(clients.get(clients.size() - 1).getId());
+		}
+		return;
+	}
+
+	/**
+	 * Returns the opcode of RosterPageEvent in a binary frame.
+	 */
+	@Override
+	public int getBinaryOpcode() {
+		return BinaryCodec.ROSTER_PAGE_EVENT;
+	}
+
+	/**
+	 * Writes the chat room id, page start, version, client count, listed clients and
+	 * whether more follow to out.
+	 */
+	@Override
+	public void writeBinary(BinaryOutput out) {
+		out.writeVarInt(chatRoomId);
+		out.writeVarInt(afterId);
+		out.writeVarInt(version);
+		out.writeVarInt(clientCount);
+		out.writeVarInt(clients.size());
+		for (ClientInfo ci : clients) {
+			ci.writeBinary(out);
+		}
+		out.writeBoolean(more);
+		return;
+	}
+
+	/**
+	 * Reads a RosterPageEvent written by writeBinary from in.
+	 * 
+	 * @param in
+	 *            The BinaryInput to read from
+	 * @return The RosterPageEvent that was read
+	 * @throws IOException
+	 *             If in does not hold a valid RosterPageEvent
+	 */
+	static RosterPageEvent readBinary(BinaryInput in) throws IOException {
+		int chatRoomId = in.readVarInt();
+		int afterId = in.readVarInt();
+		int version = in.readVarInt();
+		int clientCount = in.readVarInt();
+		int size = in.readVarInt();
+		ArrayList<ClientInfo> clients = new ArrayList<ClientInfo>();
+		for (int i = 0; i < size; i++) {
+			clients.add(ClientInfo.readBinary(in));
+		}
+		return new RosterPageEvent(chatRoomId, afterId, version, clientCount, clients, in.readBoolean());
+	}
+}
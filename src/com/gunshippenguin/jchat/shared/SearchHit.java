@@ -0,0 +1,114 @@
+package com.gunshippenguin.jchat.shared;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Class containing one chat message found by a search: the name of the chat
+ * room it was sent to, the nick of its sender, its text and when it was sent.
+ * 
+ * @author GunshipPenguin
+ */
+public class SearchHit implements Serializable {
+	/**
+	 * Name of the chat room that the message was sent to.
+	 */
+	private String chatRoomName;
+	/**
+	 * Nick of the client that sent the message.
+	 */
+	private String senderNick;
+	/**
+	 * Text of the message.
+	 */
+	private String chatMessage;
+	/**
+	 * Time the message was sent, as System.currentTimeMillis() on the server.
+	 */
+	private long sentMillis;
+
+	/**
+	 * Creates a new SearchHit for the message chatMessage sent to the chat room
+	 * named chatRoomName.
+	 * 
+	 * @param chatRoomName
+	 *            The name of the chat room the message was sent to
+	 * @param senderNick
+	 *            The nick of the client that sent the message
+	 * @param chatMessage
+	 *            The text of the message
+	 * @param sentMillis
+	 *            The time the message was sent
+	 */
+	public SearchHit(String chatRoomName, String senderNick, String chatMessage, long sentMillis) {
+		this.chatRoomName = chatRoomName;
+		this.senderNick = senderNick;
+		this.chatMessage = chatMessage;
+		this.sentMillis = sentMillis;
+	}
+
+	/**
+	 * Returns the name of the chat room that the message was sent to.
+	 * 
+	 * @return The name of the chat room
+	 */
+	public String getChatRoomName() {
+		return chatRoomName;
+	}
+
+	/**
+	 * Returns the nick of the client that sent the message.
+	 * 
+	 * @return The nick of the sender
+	 */
+	public String getSenderNick() {
+		return senderNick;
+	}
+
+	/**
+	 * Returns the text of the message.
+	 * 
+	 * @return The text of the message
+	 */
+	public String getChatMessage() {
+		return chatMessage;
+	}
+
+	/**
+	 * Returns the time the message was sent, as System.currentTimeMillis() on
+	 * the server.
+	 * 
+	 * @return The time the message was sent
+	 */
+	public long getSentMillis() {
+		return sentMillis;
+	}
+
+	/**
+	 * Writes the chat room name, sender, text and send time of this SearchHit
+	 * to out, for use by the BinaryCodec.
+	 * 
+	 * @param out
+	 *            The BinaryOutput to write this SearchHit to
+	 */
+	void writeBinary(BinaryOutput out) {
+		out.writeString(chatRoomName);
+		out.writeString(senderNick);
+		out.writeString(chatMessage);
+		out.writeVarLong(sentMillis);
+		return;
+	}
+
+	/**
+	 * Reads a SearchHit written by writeBinary from in.
+	 * 
+	 * @param in
+	 *            The BinaryInput to read from
+	 * @return The SearchHit that was read
+	 * @throws IOException
+	 *             If in does not hold a valid SearchHit
+	 */
+	static SearchHit readBinary(BinaryInput in) throws IOException {
+		return new SearchHit(in.readString(), in.readString(), in.readString(), in.readVarLong());
+	}
+}
@@ -0,0 +1,148 @@
+package com.gunshippenguin.jchat.shared;
+
+import java.io.IOException;
+
+import com.gunshippenguin.jchat.server.ChatServer;
+import com.gunshippenguin.jchat.server.Client;
+
+/**
+ * A Request to search the chat messages sent to the chat rooms the client is
+ * in. Finds the messages containing every word of query, optionally only those
+ * sent by the client with nick senderNick, to the chat room named chatRoomName
+ * or between sinceMillis and untilMillis. The reply is a SearchResultsEvent
+ * holding up to limit of them, newest first, starting before the position
+ * before.
+ * 
+ * @author GunshipPenguin
+ */
+public class SearchRequest implements Request, BinaryEncodable {
+	/**
+	 * The words that the messages must contain.
+	 */
+	private String query;
+	/**
+	 * Nick of the client that must have sent the messages, or the empty string
+	 * for any client.
+	 */
+	private String senderNick;
+	/**
+	 * Name of the chat room that the messages must have been sent to, or the
+	 * empty string for any chat room the client is in.
+	 */
+	private String chatRoomName;
+	/**
+	 * Earliest time the messages may have been sent at, as
+	 * System.currentTimeMillis(), or 0 for no limit.
+	 */
+	private long sinceMillis;
+	/**
+	 * Time the messages must have been sent before, as
+	 * System.currentTimeMillis(), or 0 for no limit.
+	 */
+	private long untilMillis;
+	/**
+	 * Position from a previous SearchResultsEvent to return the messages
+	 * before, or -1 for the newest messages.
+	 */
+	private int before;
+	/**
+	 * Largest number of messages to return.
+	 */
+	private int limit;
+
+	/**
+	 * Creates a new SearchRequest for the messages containing every word of
+	 * query that match the other conditions given.
+	 * 
+	 * @param query
+	 *            The words that the messages must contain
+	 * @param senderNick
+	 *            The nick of the client that must have sent the messages, or
+	 *            the empty string for any client
+	 * @param chatRoomName
+	 *            The name of the chat room the messages must have been sent
+	 *            to, or the empty string for any chat room
+	 * @param sinceMillis
+	 *            The earliest time the messages may have been sent at, or 0 for
+	 *            no limit
+	 * @param untilMillis
+	 *            The time the messages must have been sent before, or 0 for no
+	 *            limit
+	 * @param before
+	 *            The position to return the messages before, or -1 for the
+	 *            newest messages
+	 * @param limit
+	 *            The largest number of messages to return
+	 */
+	public SearchRequest(String query, String senderNick, String chatRoomName, long sinceMillis, long untilMillis,
+			int before, int limit) {
+		this.query = query;
+		this.senderNick = senderNick;
+		this.chatRoomName = chatRoomName;
+		this.sinceMillis = sinceMillis;
+		this.untilMillis = untilMillis;
+		this.before = before;
+		this.limit = limit;
+	}
+
+	/**
+	 * Returns a copy of this SearchRequest asking for the messages before the
+	 * position before.
+	 * 
+	 * @param before
+	 *            The position to return the messages before
+	 * @return A SearchRequest for the next page of results
+	 */
+	public SearchRequest nextPage(int before) {
+		return new SearchRequest(query, senderNick, chatRoomName, sinceMillis, untilMillis, before, limit);
+	}
+
+	/**
+	 * Searches the chat messages on the server and sends the requesting client
+	 * the messages found.
+	 */
+	@Override
+	public void handle(ChatServer chatServer, ClientInfo clientInfo) {
+		Client requester = chatServer.getClientByNick(clientInfo.getNick());
+		chatServer.sendSearchResults(requester, query, senderNick, chatRoomName, sinceMillis, untilMillis, before,
+				limit);
+		return;
+	}
+
+	/**
+	 * Returns the opcode of SearchRequest in a binary frame.
+	 */
+	@Override
+	public int getBinaryOpcode() {
+		return BinaryCodec.SEARCH_REQUEST;
+	}
+
+	/**
+	 * Writes the query, conditions, position and limit to out.
+	 */
+	@Override
+	public void writeBinary(BinaryOutput out) {
+		out.writeString(query);
+		out.writeString(senderNick);
+		out.writeString(chatRoomName);
+		out.writeVarLong(sinceMillis);
+		out.writeVarLong(untilMillis);
+		out.writeVarInt(before);
+		out.writeVarInt(limit);
+		return;
+	}
+
+	/**
+	 * Reads a SearchRequest written by writeBinary from in.
+	 * 
+	 * @param in
+	 *            The BinaryInput to read from
+	 * @return The SearchRequest that was read
+	 * @throws IOException
+	 *             If in does not hold a valid SearchRequest
+	 */
+	static SearchRequest readBinary(BinaryInput in) throws IOException {
+		return new SearchRequest(in.readNonNullString(), in.readNonNullString(), in.readNonNullString(),
+				in.readVarLong(), in.readVarLong(), in.readVarInt(), in.readVarInt());
+	}
+}
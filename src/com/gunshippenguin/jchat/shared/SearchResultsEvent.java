@@ -0,0 +1,119 @@
+package com.gunshippenguin.jchat.shared;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+
+import com.gunshippenguin.jchat.client.Connection;
+
+import javafx.application.Platform;
+
+/**
+ * Event sent in reply to a SearchRequest, holding one page of the chat messages
+ * found, newest first. If more messages may match, nextBefore holds the
+ * position to ask for the messages before.
+ * 
+ * @author GunshipPenguin
+ */
+public class SearchResultsEvent implements Event, BinaryEncodable {
+	/**
+	 * The chat messages found, newest first.
+	 */
+	private ArrayList<SearchHit> hits;
+	/**
+	 * Position to ask for the next page of results before if more messages may
+	 * match, -1 otherwise.
+	 */
+	private int nextBefore;
+
+	/**
+	 * Creates a new SearchResultsEvent holding the chat messages hits.
+	 * 
+	 * @param hits
+	 *            The chat messages found, newest first
+	 * @param nextBefore
+	 *            The position to ask for the next page before, or -1 if there
+	 *            are no more results
+	 */
+	public SearchResultsEvent(ArrayList<SearchHit> hits, int nextBefore) {
+		this.hits = hits;
+		this.nextBefore = nextBefore;
+	}
+
+	/**
+	 * Returns the chat messages found.
+	 * 
+	 * @return The chat messages found, newest first
+	 */
+	public ArrayList<SearchHit> getHits() {
+		return hits;
+	}
+
+	/**
+	 * Displays the chat messages found via messages in the client's default
+	 * chat room and remembers where the next page starts.
+	 */
+	@Override
+	public void handle(final Connection conn) {
+		conn.setSearchCursor(nextBefore);
+		Platform.runLater(new Runnable() {
+			@Override
+			public void run() {
+				SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+				if (hits.isEmpty()) {
+					conn.getUi().showServerUiMessage("No messages found");
+				} else {
+					conn.getUi().showServerUiMessage("Search Results:");
+				}
+				for (SearchHit hit : hits) {
+					conn.getUi().showServerUiMessage("\t" + format.format(new Date(hit.getSentMillis())) + " ["
+							+ hit.getChatRoomName() + "] " + hit.getSenderNick() + ": " + hit.getChatMessage());
+				}
+				if (nextBefore >= 0) {
+					conn.getUi().showServerUiMessage("More results may follow (use /moresearch)");
+				}
+			}
+		});
+		return;
+	}
+
+	/**
+	 * Returns the opcode of SearchResultsEvent in a binary frame.
+	 */
+	@Override
+	public int getBinaryOpcode() {
+		return BinaryCodec.SEARCH_RESULTS_EVENT;
+	}
+
+	/**
+	 * Writes the chat messages found and the next page position to out.
+	 */
+	@Override
+	public void writeBinary(BinaryOutput out) {
+		out.writeVarInt(hits.size());
+		for (SearchHit hit : hits) {
+			hit.writeBinary(out);
+		}
+		out.writeVarInt(nextBefore);
+		return;
+	}
+
+	/**
+	 * Reads a SearchResultsEvent written by writeBinary from in.
+	 * 
+	 * @param in
+	 *            The BinaryInput to read from
+	 * @return The SearchResultsEvent that was read
+	 * @throws IOException
+	 *             If in does not hold a valid SearchResultsEvent
+	 */
+	static SearchResultsEvent readBinary(BinaryInput in) throws IOException {
+		int size = in.readVarInt();
+		ArrayList<SearchHit> hits = new ArrayList<SearchHit>();
+		for (int i = 0; i < size; i++) {
+			hits.add(SearchHit.readBinary(in));
+		}
+		return new SearchResultsEvent(hits, in.readVarInt());
+	}
+}
@@ -1,5 +1,7 @@
 package com.gunshippenguin.jchat.shared;
 
+import java.io.IOException;
+
 import com.gunshippenguin.jchat.server.ChatRoom;
 import com.gunshippenguin.jchat.server.ChatServer;
 
@@ -8,27 +10,27 @@ import com.gunshippenguin.jchat.server.ChatServer;
  * 
  * @author GunshipPenguin
  */
-public class SendChatMessageRequest implements Request {
+public class SendChatMessageRequest implements Request, BinaryEncodable {
 	/**
 	 * String representation of the chat message to be sent.
 	 */
 	private String chatMessage;
 	/**
-	 * Name of the chat room that the chat message is being sent on.
+	 * Id of the chat room that the chat message is being sent on.
 	 */
-	private String chatRoomName;
+	private int chatRoomId;
 
 	/**
 	 * Creates a new SendChatMessage request for the message chatMessage and the
-	 * chat room with name chatRoomName
+	 * chat room with id chatRoomId
 	 * 
 	 * @param chatMessage
 	 *            String representation of the chat message to be sent
-	 * @param chatRoomName
-	 *            Name of the chat room that the message is being sent on
+	 * @param chatRoomId
+	 *            Id of the chat room that the message is being sent on
 	 */
-	public SendChatMessageRequest(String chatMessage, String chatRoomName) {
-		this.chatRoomName = chatRoomName;
+	public SendChatMessageRequest(String chatMessage, int chatRoomId) {
+		this.chatRoomId = chatRoomId;
 		this.chatMessage = chatMessage;
 	}
 
@@ -46,9 +48,41 @@ public class SendChatMessageRequest implements Request {
 	 * for this SendChatMessageRequest.
 	 */
 	public void handle(ChatServer chatServer, ClientInfo clientInfo) {
-		ChatRoom chatRoom = chatServer.getChatRoomByName(chatRoomName);
-		ChatMessageEvent chatMessageEvent = new ChatMessageEvent(chatMessage, clientInfo.getNick(), chatRoomName);
-		chatRoom.sendEventToAllClients(chatMessageEvent);
+		ChatRoom chatRoom = chatServer.getChatRoomById(chatRoomId);
+		ChatMessageEvent chatMessageEvent = new ChatMessageEvent(chatMessage, clientInfo.getId(),
+				clientInfo.getNick(), chatRoomId);
+		chatRoom.sendChatMessage(chatMessageEvent);
 		return;
 	}
+
+	/**
+	 * Returns the opcode of SendChatMessageRequest in a binary frame.
+	 */
+	@Override
+	public int getBinaryOpcode() {
+		return BinaryCodec.SEND_CHAT_MESSAGE_REQUEST;
+	}
+
+	/**
+	 * Writes the chat message and the id of its chat room to out.
+	 */
+	@Override
+	public void writeBinary(BinaryOutput out) {
+		out.writeString(chatMessage);
+		out.writeVarInt(chatRoomId);
+		return;
+	}
+
+	/**
+	 * Reads a SendChatMessageRequest written by writeBinary from in.
+	 * 
+	 * @param in
+	 *            The BinaryInput to read from
+	 * @return The SendChatMessageRequest that was read
+	 * @throws IOException
+	 *             If in does not hold a valid SendChatMessageRequest
+	 */
+	static SendChatMessageRequest readBinary(BinaryInput in) throws IOException {
+		return new SendChatMessageRequest(in.readNonNullString(), in.readVarInt());
+	}
 }